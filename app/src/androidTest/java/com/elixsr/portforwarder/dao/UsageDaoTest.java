@@ -0,0 +1,160 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.dao;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.elixsr.portforwarder.db.RuleDbHelper;
+import com.elixsr.portforwarder.models.UsageModel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.elixsr.portforwarder.db.RuleContract.UsageEntry.RESOLUTION_DAY;
+import static com.elixsr.portforwarder.db.RuleContract.UsageEntry.RESOLUTION_HOUR;
+import static com.elixsr.portforwarder.db.RuleContract.UsageEntry.RESOLUTION_MINUTE;
+
+/**
+ * Checks how {@link UsageDao} sums usage into buckets and rolls it up, on a database of its own
+ * on the device running the tests.
+ */
+public class UsageDaoTest extends AndroidTestCase {
+
+    private static final long RULE = 1;
+    private static final long OTHER_RULE = 2;
+
+    /**
+     * The time compaction runs at, on a day boundary.
+     */
+    private static final long NOW = 20000 * RESOLUTION_DAY;
+
+    /**
+     * The start of an hour old enough for its minutes to be rolled up.
+     */
+    private static final long OLD_HOUR = NOW - UsageDao.MINUTE_RETENTION_MILLIS - 2 * RESOLUTION_HOUR;
+
+    private Context context;
+    private RuleDbHelper ruleDbHelper;
+    private UsageDao usageDao;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(RuleDbHelper.DATABASE_NAME);
+        ruleDbHelper = new RuleDbHelper(context);
+        usageDao = new UsageDao(ruleDbHelper);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ruleDbHelper.close();
+        context.deleteDatabase(RuleDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private static UsageModel usage(long ruleId, long resolution, long bucketStart,
+                                    long bytesUp, long bytesDown, int connections) {
+        UsageModel usageModel = new UsageModel(ruleId, resolution, bucketStart);
+        usageModel.add(bytesUp, bytesDown, connections);
+        return usageModel;
+    }
+
+    private static void assertUsage(UsageModel usageModel, long bucketStart,
+                                    long bytesUp, long bytesDown, int peakConnections) {
+        assertEquals(bucketStart, usageModel.getBucketStart());
+        assertEquals(bytesUp, usageModel.getBytesUp());
+        assertEquals(bytesDown, usageModel.getBytesDown());
+        assertEquals(peakConnections, usageModel.getPeakConnections());
+    }
+
+    public void testAddUsageSumsIntoBucket() {
+        usageDao.addUsage(Arrays.asList(usage(RULE, RESOLUTION_MINUTE, OLD_HOUR, 10, 20, 3)));
+        usageDao.addUsage(Arrays.asList(usage(RULE, RESOLUTION_MINUTE, OLD_HOUR, 1, 2, 1)));
+
+        List<UsageModel> usage = usageDao.getUsage(RULE, RESOLUTION_MINUTE, 0);
+        assertEquals(1, usage.size());
+        assertUsage(usage.get(0), OLD_HOUR, 11, 22, 3);
+    }
+
+    public void testCompactRollsUpOldMinutes() {
+        long recentMinute = NOW - RESOLUTION_MINUTE;
+        usageDao.addUsage(Arrays.asList(
+                usage(RULE, RESOLUTION_MINUTE, OLD_HOUR + RESOLUTION_MINUTE, 10, 100, 2),
+                usage(RULE, RESOLUTION_MINUTE, OLD_HOUR + 5 * RESOLUTION_MINUTE, 20, 200, 5),
+                usage(RULE, RESOLUTION_MINUTE, recentMinute, 1, 1, 1)));
+
+        usageDao.compact(NOW);
+
+        // Only the recent minute is left at its resolution
+        List<UsageModel> minutes = usageDao.getUsage(RULE, RESOLUTION_MINUTE, 0);
+        assertEquals(1, minutes.size());
+        assertUsage(minutes.get(0), recentMinute, 1, 1, 1);
+
+        List<UsageModel> hours = usageDao.getUsage(RULE, RESOLUTION_HOUR, 0);
+        assertEquals(2, hours.size());
+        assertUsage(hours.get(0), OLD_HOUR, 30, 300, 5);
+        assertUsage(hours.get(1), recentMinute - recentMinute % RESOLUTION_HOUR, 1, 1, 1);
+    }
+
+    public void testCompactMergesIntoExistingCoarserBucket() {
+        usageDao.addUsage(Arrays.asList(
+                usage(RULE, RESOLUTION_HOUR, OLD_HOUR, 100, 1000, 7),
+                usage(RULE, RESOLUTION_MINUTE, OLD_HOUR + RESOLUTION_MINUTE, 10, 100, 2)));
+
+        usageDao.compact(NOW);
+        assertTrue(usageDao.getUsage(RULE, RESOLUTION_MINUTE, 0).isEmpty());
+
+        List<UsageModel> hours = usageDao.getUsage(RULE, RESOLUTION_HOUR, 0);
+        assertEquals(1, hours.size());
+        assertUsage(hours.get(0), OLD_HOUR, 110, 1100, 7);
+    }
+
+    public void testCompactKeepsRulesApart() {
+        usageDao.addUsage(Arrays.asList(
+                usage(RULE, RESOLUTION_MINUTE, OLD_HOUR, 10, 100, 2),
+                usage(OTHER_RULE, RESOLUTION_MINUTE, OLD_HOUR, 20, 200, 4)));
+
+        usageDao.compact(NOW);
+
+        List<UsageModel> usage = usageDao.getUsage(RULE, RESOLUTION_HOUR, 0);
+        assertEquals(1, usage.size());
+        assertUsage(usage.get(0), OLD_HOUR, 10, 100, 2);
+
+        usage = usageDao.getUsage(OTHER_RULE, RESOLUTION_HOUR, 0);
+        assertEquals(1, usage.size());
+        assertUsage(usage.get(0), OLD_HOUR, 20, 200, 4);
+    }
+
+    public void testCompactDeletesDaysPastRetention() {
+        long expiredDay = NOW - UsageDao.DAY_RETENTION_MILLIS - RESOLUTION_DAY;
+        long keptDay = NOW - UsageDao.DAY_RETENTION_MILLIS + RESOLUTION_DAY;
+        usageDao.addUsage(Arrays.asList(
+                usage(RULE, RESOLUTION_DAY, expiredDay, 1, 1, 1),
+                usage(RULE, RESOLUTION_DAY, keptDay, 2, 2, 2)));
+
+        usageDao.compact(NOW);
+
+        List<UsageModel> days = usageDao.getUsage(RULE, RESOLUTION_DAY, 0);
+        assertEquals(1, days.size());
+        assertUsage(days.get(0), keptDay, 2, 2, 2);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the TCP relay paths over loopback, on the device running the tests.
+ * <p>
+ * Each run sends a fixed amount of data through a forwarder into a sink, and logs the rate under
+ * the {@value #TAG} tag, so the fastest engine for the device can be chosen.
+ */
+public class TcpRelayBenchmark extends TestCase {
+
+    private static final String TAG = "TcpRelayBenchmark";
+
+    private static final int TRANSFER_BYTES = 256 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int RUNS = 3;
+
+    private ExecutorService executorService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executorService.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testCopyRelay() throws Exception {
+        for (int run = 0; run < RUNS; run++) {
+            Log.i(TAG, String.format("copy: %.1f MB/s", measureThroughput(newTcpForwarder(false))));
+        }
+    }
+
+    public void testAsyncRelay() throws Exception {
+        if (!AsyncTcpForwarder.isSupported()) {
+            Log.w(TAG, "async: asynchronous channels not supported, skipped");
+            return;
+        }
+
+        for (int run = 0; run < RUNS; run++) {
+            Log.i(TAG, String.format("async: %.1f MB/s", measureThroughput(new ForwarderFactory() {
+                @Override
+                public Forwarder create(InetSocketAddress from, InetSocketAddress to) {
+                    return new AsyncTcpForwarder(from, to, TAG, new SocketProfile(), new TrafficPolicy());
+                }
+            })));
+        }
+    }
+
+    public void testSpliceRelay() throws Exception {
+        if (!NativeTransport.isAvailable()) {
+            Log.w(TAG, "splice: native transport not available, skipped");
+            return;
+        }
+
+        for (int run = 0; run < RUNS; run++) {
+            Log.i(TAG, String.format("splice: %.1f MB/s", measureThroughput(newTcpForwarder(true))));
+        }
+    }
+
+    /**
+     * Creates the forwarder under test.
+     */
+    private interface ForwarderFactory {
+        Forwarder create(InetSocketAddress from, InetSocketAddress to);
+    }
+
+    private static ForwarderFactory newTcpForwarder(final boolean zeroCopy) {
+        return new ForwarderFactory() {
+            @Override
+            public Forwarder create(InetSocketAddress from, InetSocketAddress to) {
+                TcpForwarder forwarder = new TcpForwarder(from, to, TAG, new SocketProfile(), new TrafficPolicy());
+                forwarder.setZeroCopy(zeroCopy);
+                return forwarder;
+            }
+        };
+    }
+
+    /**
+     * Relay {@link #TRANSFER_BYTES} through a forwarder into a sink.
+     *
+     * @param factory creates the forwarder.
+     * @return the rate in megabytes per second, from the first byte sent until the sink has read
+     * the last one.
+     */
+    private double measureThroughput(ForwarderFactory factory) throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final ServerSocket sink = new ServerSocket(0, 1, loopback);
+        Future<Long> received = executorService.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                Socket socket = sink.accept();
+                try {
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[CHUNK_BYTES];
+                    long total = 0;
+                    int r;
+                    while ((r = in.read(buffer)) > 0) {
+                        total += r;
+                    }
+                    return total;
+                } finally {
+                    socket.close();
+                }
+            }
+        });
+
+        InetSocketAddress from = new InetSocketAddress(loopback, freePort());
+        Forwarder forwarder = factory.create(from, new InetSocketAddress(loopback, sink.getLocalPort()));
+        Future<Void> running = executorService.submit(forwarder);
+
+        try {
+            Socket client = connectWhenListening(from);
+            byte[] chunk = new byte[CHUNK_BYTES];
+
+            long start = System.nanoTime();
+            OutputStream out = client.getOutputStream();
+            for (int sent = 0; sent < TRANSFER_BYTES; sent += CHUNK_BYTES) {
+                out.write(chunk);
+            }
+            client.shutdownOutput();
+
+            long total = received.get(60, TimeUnit.SECONDS);
+            long elapsedNanos = System.nanoTime() - start;
+            client.close();
+
+            assertEquals(TRANSFER_BYTES, total);
+            return total / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        } finally {
+            running.cancel(true);
+            sink.close();
+        }
+    }
+
+    private static Socket connectWhenListening(InetSocketAddress address) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(address.getAddress(), address.getPort());
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
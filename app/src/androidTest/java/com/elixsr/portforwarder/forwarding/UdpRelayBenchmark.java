@@ -0,0 +1,157 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the packet rate of the UDP relay paths over loopback, on the device running the tests.
+ * <p>
+ * Each run sends a fixed amount of small datagrams through a {@link UdpForwarder} into a sink as
+ * fast as possible, and logs the rate the sink received them at under the {@value #TAG} tag.
+ * Datagrams dropped along the way are logged too, as an overloaded relay drops rather than slows.
+ */
+public class UdpRelayBenchmark extends TestCase {
+
+    private static final String TAG = "UdpRelayBenchmark";
+
+    private static final int DATAGRAMS = 500000;
+    private static final int DATAGRAM_BYTES = 64;
+    private static final int SINK_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final int IDLE_MILLIS = 500;
+    private static final int RUNS = 3;
+
+    private ExecutorService executorService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executorService.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testNioRelay() throws Exception {
+        for (int run = 0; run < RUNS; run++) {
+            measurePacketRate(false);
+        }
+    }
+
+    public void testBatchedRelay() throws Exception {
+        if (!NativeTransport.isAvailable()) {
+            Log.w(TAG, "batched: native transport not available, skipped");
+            return;
+        }
+
+        for (int run = 0; run < RUNS; run++) {
+            measurePacketRate(true);
+        }
+    }
+
+    /**
+     * Send {@link #DATAGRAMS} through a forwarder into a sink, which counts them until none have
+     * arrived for {@link #IDLE_MILLIS}.
+     *
+     * @param batching whether the forwarder relays in batches.
+     */
+    private void measurePacketRate(boolean batching) throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final DatagramSocket sink = new DatagramSocket(0, loopback);
+        sink.setReceiveBufferSize(SINK_BUFFER_BYTES);
+        sink.setSoTimeout(IDLE_MILLIS);
+
+        // The time of the last datagram received, and the amount received
+        final long[] lastReceivedAt = new long[1];
+        Future<Long> received = executorService.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                DatagramPacket packet = new DatagramPacket(new byte[DATAGRAM_BYTES], DATAGRAM_BYTES);
+                long total = 0;
+                try {
+                    while (true) {
+                        sink.receive(packet);
+                        lastReceivedAt[0] = System.nanoTime();
+                        total++;
+                    }
+                } catch (SocketTimeoutException e) {
+                    return total;
+                }
+            }
+        });
+
+        InetSocketAddress from = new InetSocketAddress(loopback, freePort());
+        UdpForwarder forwarder = new UdpForwarder(from, new InetSocketAddress(loopback, sink.getLocalPort()), TAG,
+                new SocketProfile(), new TrafficPolicy());
+        forwarder.setBatching(batching);
+        Future<Void> running = executorService.submit(forwarder);
+
+        DatagramSocket client = new DatagramSocket();
+        try {
+            // Give the forwarder time to bind, datagrams sent before are lost
+            Thread.sleep(200);
+
+            DatagramPacket packet = new DatagramPacket(new byte[DATAGRAM_BYTES], DATAGRAM_BYTES, from);
+            long start = System.nanoTime();
+            for (int sent = 0; sent < DATAGRAMS; sent++) {
+                client.send(packet);
+            }
+
+            long total = received.get(60, TimeUnit.SECONDS);
+            long elapsedNanos = lastReceivedAt[0] - start;
+            assertTrue("nothing was relayed", total > 0);
+
+            Log.i(TAG, String.format("%s: %.0f datagrams/s, %d of %d dropped",
+                    batching ? "batched" : "nio", total / (elapsedNanos / 1e9), DATAGRAMS - total, DATAGRAMS));
+        } finally {
+            running.cancel(true);
+            client.close();
+            sink.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Native side of com.elixsr.portforwarder.forwarding.NativeTransport.
+ *
+ * The system calls are made through syscall(2) where bionic only declares them from a later API
+ * level than the app's minimum, the kernel has supported them for far longer.
+ */
+
+#define _GNU_SOURCE
+
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/epoll.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <sys/uio.h>
+#include <linux/filter.h>
+
+#ifndef F_SETPIPE_SZ
+#define F_SETPIPE_SZ 1031
+#endif
+
+#ifndef F_GETPIPE_SZ
+#define F_GETPIPE_SZ 1032
+#endif
+
+#ifndef SPLICE_F_MOVE
+#define SPLICE_F_MOVE 1
+#endif
+
+#ifndef SPLICE_F_NONBLOCK
+#define SPLICE_F_NONBLOCK 2
+#endif
+
+#ifndef SO_REUSEPORT
+#define SO_REUSEPORT 15
+#endif
+
+#ifndef TCP_DEFER_ACCEPT
+#define TCP_DEFER_ACCEPT 9
+#endif
+
+#ifndef TCP_FASTOPEN
+#define TCP_FASTOPEN 23
+#endif
+
+#ifndef EPOLL_CLOEXEC
+#define EPOLL_CLOEXEC O_CLOEXEC
+#endif
+
+#ifndef EFD_NONBLOCK
+#define EFD_NONBLOCK O_NONBLOCK
+#endif
+
+#ifndef EFD_CLOEXEC
+#define EFD_CLOEXEC O_CLOEXEC
+#endif
+
+#ifndef SO_ATTACH_REUSEPORT_CBPF
+#define SO_ATTACH_REUSEPORT_CBPF 51
+#endif
+
+#ifndef BPF_MOD
+#define BPF_MOD 0x90
+#endif
+
+#ifndef SOL_UDP
+#define SOL_UDP 17
+#endif
+
+#ifndef UDP_SEGMENT
+#define UDP_SEGMENT 103
+#endif
+
+#ifndef UDP_GRO
+#define UDP_GRO 104
+#endif
+
+#define DEFAULT_PIPE_CAPACITY 65536
+
+/* The most events read by one epoll_wait, larger arrays from Java are only partly used */
+#define MAX_EPOLL_EVENTS 512
+
+/* Must match NativeTransport.WOULD_BLOCK */
+#define WOULD_BLOCK (-1)
+
+/* The most datagrams moved by one recvmmsg or sendmmsg, larger batches from Java are cut short */
+#define MAX_DATAGRAM_BATCH 64
+
+/* Must match DatagramRing.ADDRESS_SIZE: 16 bytes of IPv6 address, IPv4 mapped, and the port */
+#define DATAGRAM_ADDRESS_SIZE 20
+
+/* Must match DatagramRing.DROPPED */
+#define DROPPED_DATAGRAM (-1)
+
+#define NATIVE_METHOD(name) Java_com_elixsr_portforwarder_forwarding_NativeTransport_##name
+
+static void throwIOException(JNIEnv *env, const char *operation, int error) {
+    char message[128];
+    jclass exceptionClass = (*env)->FindClass(env, "java/io/IOException");
+    if (exceptionClass == NULL) {
+        return;
+    }
+    snprintf(message, sizeof(message), "%s failed: %s", operation, strerror(error));
+    (*env)->ThrowNew(env, exceptionClass, message);
+}
+
+/*
+ * Find the int descriptor inside a java.io.FileDescriptor, named "descriptor" on Android and
+ * "fd" on other runtimes.
+ */
+static jint descriptorOf(JNIEnv *env, jobject fileDescriptor) {
+    jclass fileDescriptorClass = (*env)->GetObjectClass(env, fileDescriptor);
+    jfieldID field = (*env)->GetFieldID(env, fileDescriptorClass, "descriptor", "I");
+    if (field == NULL) {
+        (*env)->ExceptionClear(env);
+        field = (*env)->GetFieldID(env, fileDescriptorClass, "fd", "I");
+        if (field == NULL) {
+            (*env)->ExceptionClear(env);
+            return -1;
+        }
+    }
+    return (*env)->GetIntField(env, fileDescriptor, field);
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(getFd)(JNIEnv *env, jclass clazz, jobject channel) {
+    jclass channelClass = (*env)->GetObjectClass(env, channel);
+    jfieldID field = (*env)->GetFieldID(env, channelClass, "fd", "Ljava/io/FileDescriptor;");
+    jobject fileDescriptor;
+
+    if (field == NULL) {
+        (*env)->ExceptionClear(env);
+        return -1;
+    }
+
+    fileDescriptor = (*env)->GetObjectField(env, channel, field);
+    if (fileDescriptor == NULL) {
+        return -1;
+    }
+    return descriptorOf(env, fileDescriptor);
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(pipe)(JNIEnv *env, jclass clazz, jintArray fds, jint capacity) {
+    int pipeFds[2];
+    jint result[2];
+    int actual;
+
+    if (pipe2(pipeFds, O_NONBLOCK | O_CLOEXEC) < 0) {
+        throwIOException(env, "pipe2", errno);
+        return -1;
+    }
+
+    /* Growing a pipe past the system maximum fails, the default capacity is kept then */
+    if (capacity > 0) {
+        fcntl(pipeFds[1], F_SETPIPE_SZ, capacity);
+    }
+    actual = fcntl(pipeFds[1], F_GETPIPE_SZ);
+    if (actual <= 0) {
+        actual = DEFAULT_PIPE_CAPACITY;
+    }
+
+    result[0] = pipeFds[0];
+    result[1] = pipeFds[1];
+    (*env)->SetIntArrayRegion(env, fds, 0, 2, result);
+    return actual;
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(splice)(JNIEnv *env, jclass clazz, jint fromFd, jint toFd, jint length) {
+    long moved;
+
+    do {
+        moved = syscall(__NR_splice, fromFd, NULL, toFd, NULL, (size_t) length,
+                        SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+    } while (moved < 0 && errno == EINTR);
+
+    if (moved < 0) {
+        if (errno == EAGAIN) {
+            return WOULD_BLOCK;
+        }
+        throwIOException(env, "splice", errno);
+        return WOULD_BLOCK;
+    }
+    return (jint) moved;
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(close)(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(epollCreate)(JNIEnv *env, jclass clazz) {
+    int epollFd = (int) syscall(__NR_epoll_create1, EPOLL_CLOEXEC);
+    if (epollFd < 0) {
+        throwIOException(env, "epoll_create1", errno);
+    }
+    return epollFd;
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(epollAdd)(JNIEnv *env, jclass clazz, jint epollFd, jint fd, jint events) {
+    struct epoll_event event;
+
+    memset(&event, 0, sizeof(event));
+    event.events = (uint32_t) events;
+    event.data.fd = fd;
+
+    if (epoll_ctl(epollFd, EPOLL_CTL_ADD, fd, &event) < 0) {
+        /* A descriptor number reused while a duplicate of the old one is still registered */
+        if (errno != EEXIST || epoll_ctl(epollFd, EPOLL_CTL_MOD, fd, &event) < 0) {
+            throwIOException(env, "epoll_ctl", errno);
+        }
+    }
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(epollDelete)(JNIEnv *env, jclass clazz, jint epollFd, jint fd) {
+    struct epoll_event event;
+
+    /* Kernels before 2.6.9 require an event even though it is ignored */
+    memset(&event, 0, sizeof(event));
+    epoll_ctl(epollFd, EPOLL_CTL_DEL, fd, &event);
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(epollWait)(JNIEnv *env, jclass clazz, jint epollFd, jintArray fds, jintArray events,
+                         jint timeoutMillis) {
+    struct epoll_event ready[MAX_EPOLL_EVENTS];
+    jint readyFds[MAX_EPOLL_EVENTS];
+    jint readyEvents[MAX_EPOLL_EVENTS];
+    int maxEvents = (*env)->GetArrayLength(env, fds);
+    int count;
+    int i;
+
+    if (maxEvents > MAX_EPOLL_EVENTS) {
+        maxEvents = MAX_EPOLL_EVENTS;
+    }
+
+    count = epoll_wait(epollFd, ready, maxEvents, timeoutMillis);
+    if (count < 0) {
+        if (errno == EINTR) {
+            return 0;
+        }
+        throwIOException(env, "epoll_wait", errno);
+        return 0;
+    }
+
+    for (i = 0; i < count; i++) {
+        readyFds[i] = ready[i].data.fd;
+        readyEvents[i] = (jint) ready[i].events;
+    }
+    (*env)->SetIntArrayRegion(env, fds, 0, count, readyFds);
+    (*env)->SetIntArrayRegion(env, events, 0, count, readyEvents);
+    return count;
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(eventFd)(JNIEnv *env, jclass clazz) {
+    int fd = (int) syscall(__NR_eventfd2, 0, EFD_NONBLOCK | EFD_CLOEXEC);
+    if (fd < 0) {
+        throwIOException(env, "eventfd", errno);
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(eventFdWrite)(JNIEnv *env, jclass clazz, jint fd) {
+    uint64_t value = 1;
+    ssize_t written;
+
+    /* A full counter already wakes the reader, so failures are ignored */
+    written = write(fd, &value, sizeof(value));
+    (void) written;
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(eventFdRead)(JNIEnv *env, jclass clazz, jint fd) {
+    uint64_t value;
+    ssize_t r;
+
+    r = read(fd, &value, sizeof(value));
+    (void) r;
+}
+
+static void setIntOption(JNIEnv *env, int fd, int level, int option, int value, const char *name) {
+    if (setsockopt(fd, level, option, &value, sizeof(value)) < 0) {
+        throwIOException(env, name, errno);
+    }
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setReusePort)(JNIEnv *env, jclass clazz, jint fd, jboolean reusePort) {
+    setIntOption(env, fd, SOL_SOCKET, SO_REUSEPORT, reusePort ? 1 : 0, "SO_REUSEPORT");
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setReusePortSteering)(JNIEnv *env, jclass clazz, jint fd, jint groupSize) {
+    /*
+     * The socket of the group is chosen from the source address: the whole of an IPv4 address,
+     * or the last 4 bytes of an IPv6 one, modulo the size of the group.
+     */
+    struct sock_filter code[] = {
+            BPF_STMT(BPF_LD | BPF_B | BPF_ABS, (uint32_t) SKF_NET_OFF),
+            BPF_STMT(BPF_ALU | BPF_RSH | BPF_K, 4),
+            BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, 6, 2, 0),
+            BPF_STMT(BPF_LD | BPF_W | BPF_ABS, (uint32_t) (SKF_NET_OFF + 12)),
+            BPF_JUMP(BPF_JMP | BPF_JA, 1, 0, 0),
+            BPF_STMT(BPF_LD | BPF_W | BPF_ABS, (uint32_t) (SKF_NET_OFF + 20)),
+            BPF_STMT(BPF_ALU | BPF_MOD | BPF_K, (uint32_t) groupSize),
+            BPF_STMT(BPF_RET | BPF_A, 0),
+    };
+    struct sock_fprog program;
+
+    program.len = sizeof(code) / sizeof(code[0]);
+    program.filter = code;
+
+    if (setsockopt(fd, SOL_SOCKET, SO_ATTACH_REUSEPORT_CBPF, &program, sizeof(program)) < 0) {
+        throwIOException(env, "SO_ATTACH_REUSEPORT_CBPF", errno);
+    }
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setTcpFastOpen)(JNIEnv *env, jclass clazz, jint fd, jint queueLength) {
+    setIntOption(env, fd, IPPROTO_TCP, TCP_FASTOPEN, queueLength, "TCP_FASTOPEN");
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setTcpDeferAccept)(JNIEnv *env, jclass clazz, jint fd, jint seconds) {
+    setIntOption(env, fd, IPPROTO_TCP, TCP_DEFER_ACCEPT, seconds, "TCP_DEFER_ACCEPT");
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setResetOnClose)(JNIEnv *env, jclass clazz, jint fd) {
+    struct linger linger;
+
+    linger.l_onoff = 1;
+    linger.l_linger = 0;
+    if (setsockopt(fd, SOL_SOCKET, SO_LINGER, &linger, sizeof(linger)) < 0) {
+        throwIOException(env, "SO_LINGER", errno);
+    }
+}
+
+static const uint8_t V4_MAPPED_PREFIX[12] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xff, 0xff};
+
+static void encodeAddress(const struct sockaddr_storage *address, uint8_t *encoded) {
+    memset(encoded, 0, DATAGRAM_ADDRESS_SIZE);
+
+    if (address->ss_family == AF_INET) {
+        const struct sockaddr_in *in = (const struct sockaddr_in *) address;
+        memcpy(encoded, V4_MAPPED_PREFIX, sizeof(V4_MAPPED_PREFIX));
+        memcpy(encoded + 12, &in->sin_addr, 4);
+        memcpy(encoded + 16, &in->sin_port, 2);
+    } else if (address->ss_family == AF_INET6) {
+        const struct sockaddr_in6 *in6 = (const struct sockaddr_in6 *) address;
+        memcpy(encoded, &in6->sin6_addr, 16);
+        memcpy(encoded + 16, &in6->sin6_port, 2);
+    }
+}
+
+static socklen_t decodeAddress(const uint8_t *encoded, int ipv6Socket, struct sockaddr_storage *address) {
+    memset(address, 0, sizeof(*address));
+
+    /* An IPv4 socket can only reach IPv4 addresses, anything else fails when it is sent */
+    if (!ipv6Socket && memcmp(encoded, V4_MAPPED_PREFIX, sizeof(V4_MAPPED_PREFIX)) == 0) {
+        struct sockaddr_in *in = (struct sockaddr_in *) address;
+        in->sin_family = AF_INET;
+        memcpy(&in->sin_addr, encoded + 12, 4);
+        memcpy(&in->sin_port, encoded + 16, 2);
+        return sizeof(struct sockaddr_in);
+    } else {
+        struct sockaddr_in6 *in6 = (struct sockaddr_in6 *) address;
+        in6->sin6_family = AF_INET6;
+        memcpy(&in6->sin6_addr, encoded, 16);
+        memcpy(&in6->sin6_port, encoded + 16, 2);
+        return sizeof(struct sockaddr_in6);
+    }
+}
+
+typedef union {
+    char buffer[CMSG_SPACE(sizeof(int))];
+    struct cmsghdr align;
+} DatagramControl;
+
+JNIEXPORT jboolean JNICALL
+NATIVE_METHOD(isIpv6Socket)(JNIEnv *env, jclass clazz, jint fd) {
+    struct sockaddr_storage address;
+    socklen_t length = sizeof(address);
+
+    if (getsockname(fd, (struct sockaddr *) &address, &length) < 0) {
+        throwIOException(env, "getsockname", errno);
+        return JNI_FALSE;
+    }
+    return address.ss_family == AF_INET6 ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+NATIVE_METHOD(setUdpGro)(JNIEnv *env, jclass clazz, jint fd, jboolean gro) {
+    setIntOption(env, fd, SOL_UDP, UDP_GRO, gro ? 1 : 0, "UDP_GRO");
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(receiveDatagrams)(JNIEnv *env, jclass clazz, jint fd, jobject packets, jint slotSize,
+                                jobject addresses, jintArray lengths, jintArray segmentSizes,
+                                jint count) {
+    struct mmsghdr messages[MAX_DATAGRAM_BATCH];
+    struct iovec vectors[MAX_DATAGRAM_BATCH];
+    struct sockaddr_storage sources[MAX_DATAGRAM_BATCH];
+    DatagramControl controls[MAX_DATAGRAM_BATCH];
+    jint receivedLengths[MAX_DATAGRAM_BATCH];
+    jint receivedSegmentSizes[MAX_DATAGRAM_BATCH];
+    uint8_t *packetData = (*env)->GetDirectBufferAddress(env, packets);
+    uint8_t *addressData = (*env)->GetDirectBufferAddress(env, addresses);
+    struct cmsghdr *control;
+    int received;
+    int i;
+
+    if (count > MAX_DATAGRAM_BATCH) {
+        count = MAX_DATAGRAM_BATCH;
+    }
+
+    memset(messages, 0, sizeof(struct mmsghdr) * count);
+    for (i = 0; i < count; i++) {
+        vectors[i].iov_base = packetData + (size_t) i * slotSize;
+        vectors[i].iov_len = (size_t) slotSize;
+        messages[i].msg_hdr.msg_name = &sources[i];
+        messages[i].msg_hdr.msg_namelen = sizeof(sources[i]);
+        messages[i].msg_hdr.msg_iov = &vectors[i];
+        messages[i].msg_hdr.msg_iovlen = 1;
+        messages[i].msg_hdr.msg_control = controls[i].buffer;
+        messages[i].msg_hdr.msg_controllen = sizeof(controls[i].buffer);
+    }
+
+    do {
+        received = (int) syscall(__NR_recvmmsg, fd, messages, (unsigned int) count, MSG_DONTWAIT, NULL);
+    } while (received < 0 && errno == EINTR);
+
+    if (received < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            return 0;
+        }
+        throwIOException(env, "recvmmsg", errno);
+        return 0;
+    }
+
+    for (i = 0; i < received; i++) {
+        receivedLengths[i] = (jint) messages[i].msg_len;
+        receivedSegmentSizes[i] = 0;
+
+        /* With UDP GRO, datagrams of one flow arrive joined together, and the size of each */
+        for (control = CMSG_FIRSTHDR(&messages[i].msg_hdr); control != NULL;
+             control = CMSG_NXTHDR(&messages[i].msg_hdr, control)) {
+            if (control->cmsg_level == SOL_UDP && control->cmsg_type == UDP_GRO) {
+                int segmentSize;
+                memcpy(&segmentSize, CMSG_DATA(control), sizeof(segmentSize));
+                receivedSegmentSizes[i] = segmentSize;
+            }
+        }
+
+        encodeAddress(&sources[i], addressData + (size_t) i * DATAGRAM_ADDRESS_SIZE);
+    }
+
+    (*env)->SetIntArrayRegion(env, lengths, 0, received, receivedLengths);
+    (*env)->SetIntArrayRegion(env, segmentSizes, 0, received, receivedSegmentSizes);
+    return received;
+}
+
+/*
+ * Send joined datagrams one by one, for a destination whose device cannot segment them. What the
+ * socket cannot take straight away is dropped, as the datagrams would have been without GRO.
+ */
+static int sendSegments(int fd, const struct msghdr *joined, int segmentSize) {
+    struct mmsghdr messages[MAX_DATAGRAM_BATCH];
+    struct iovec vectors[MAX_DATAGRAM_BATCH];
+    uint8_t *data = joined->msg_iov[0].iov_base;
+    size_t length = joined->msg_iov[0].iov_len;
+    size_t offset = 0;
+    int count;
+    int sent;
+
+    while (offset < length) {
+        memset(messages, 0, sizeof(messages));
+        for (count = 0; count < MAX_DATAGRAM_BATCH && offset < length; count++) {
+            size_t segmentLength = length - offset < (size_t) segmentSize ? length - offset : (size_t) segmentSize;
+            vectors[count].iov_base = data + offset;
+            vectors[count].iov_len = segmentLength;
+            messages[count].msg_hdr.msg_name = joined->msg_name;
+            messages[count].msg_hdr.msg_namelen = joined->msg_namelen;
+            messages[count].msg_hdr.msg_iov = &vectors[count];
+            messages[count].msg_hdr.msg_iovlen = 1;
+            offset += segmentLength;
+        }
+
+        do {
+            sent = (int) syscall(__NR_sendmmsg, fd, messages, (unsigned int) count, MSG_DONTWAIT);
+        } while (sent < 0 && errno == EINTR);
+
+        if (sent < 0 && errno != EAGAIN && errno != EWOULDBLOCK) {
+            return -1;
+        }
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+NATIVE_METHOD(sendDatagrams)(JNIEnv *env, jclass clazz, jint fd, jobject packets, jint slotSize,
+                             jobject addresses, jintArray lengths, jintArray segmentSizes,
+                             jint offset, jint count, jboolean ipv6Socket) {
+    struct mmsghdr messages[MAX_DATAGRAM_BATCH];
+    struct iovec vectors[MAX_DATAGRAM_BATCH];
+    struct sockaddr_storage destinations[MAX_DATAGRAM_BATCH];
+    DatagramControl controls[MAX_DATAGRAM_BATCH];
+    jint slotLengths[MAX_DATAGRAM_BATCH];
+    jint slotSegmentSizes[MAX_DATAGRAM_BATCH];
+    int slotOfMessage[MAX_DATAGRAM_BATCH];
+    uint8_t *packetData = (*env)->GetDirectBufferAddress(env, packets);
+    uint8_t *addressData = (*env)->GetDirectBufferAddress(env, addresses);
+    struct cmsghdr *control;
+    int messageCount = 0;
+    int sent;
+    int i;
+
+    if (count > MAX_DATAGRAM_BATCH) {
+        count = MAX_DATAGRAM_BATCH;
+    }
+
+    (*env)->GetIntArrayRegion(env, lengths, offset, count, slotLengths);
+    (*env)->GetIntArrayRegion(env, segmentSizes, offset, count, slotSegmentSizes);
+
+    memset(messages, 0, sizeof(struct mmsghdr) * count);
+    for (i = 0; i < count; i++) {
+        int slot = offset + i;
+        struct msghdr *message;
+
+        if (slotLengths[i] == DROPPED_DATAGRAM) {
+            continue;
+        }
+
+        message = &messages[messageCount].msg_hdr;
+        vectors[messageCount].iov_base = packetData + (size_t) slot * slotSize;
+        vectors[messageCount].iov_len = (size_t) slotLengths[i];
+        message->msg_iov = &vectors[messageCount];
+        message->msg_iovlen = 1;
+        message->msg_name = &destinations[messageCount];
+        message->msg_namelen = decodeAddress(addressData + (size_t) slot * DATAGRAM_ADDRESS_SIZE,
+                                             ipv6Socket, &destinations[messageCount]);
+
+        /* Joined datagrams are split again by the kernel, or by the device with UDP GSO */
+        if (slotSegmentSizes[i] > 0 && slotLengths[i] > slotSegmentSizes[i]) {
+            uint16_t segmentSize = (uint16_t) slotSegmentSizes[i];
+            message->msg_control = controls[messageCount].buffer;
+            message->msg_controllen = CMSG_SPACE(sizeof(segmentSize));
+            control = CMSG_FIRSTHDR(message);
+            control->cmsg_level = SOL_UDP;
+            control->cmsg_type = UDP_SEGMENT;
+            control->cmsg_len = CMSG_LEN(sizeof(segmentSize));
+            memcpy(CMSG_DATA(control), &segmentSize, sizeof(segmentSize));
+        }
+
+        slotOfMessage[messageCount++] = i;
+    }
+
+    if (messageCount == 0) {
+        return count;
+    }
+
+    do {
+        sent = (int) syscall(__NR_sendmmsg, fd, messages, (unsigned int) messageCount, MSG_DONTWAIT);
+    } while (sent < 0 && errno == EINTR);
+
+    if (sent < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            sent = 0;
+        } else if ((errno == EIO || errno == EINVAL) && messages[0].msg_hdr.msg_control != NULL) {
+            if (sendSegments(fd, &messages[0].msg_hdr, slotSegmentSizes[slotOfMessage[0]]) < 0) {
+                throwIOException(env, "sendmmsg", errno);
+                return 0;
+            }
+            sent = 1;
+        } else {
+            throwIOException(env, "sendmmsg", errno);
+            return 0;
+        }
+    }
+
+    /* Dropped slots before the first unsent datagram are consumed along with the sent ones */
+    return sent < messageCount ? slotOfMessage[sent] : count;
+}
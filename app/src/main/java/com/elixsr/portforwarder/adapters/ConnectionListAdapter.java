@@ -0,0 +1,318 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.adapters;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.elixsr.portforwarder.R;
+import com.elixsr.portforwarder.forwarding.ConnectionInfo;
+import com.elixsr.portforwarder.forwarding.Throughput;
+
+/**
+ * The {@link ConnectionListAdapter} class lists the connections of a rule, oldest first.
+ * <p>
+ * Each refresh is diffed against the connections shown: both lists are ordered by id, so a single
+ * pass finds the connections which opened, closed or moved bytes, and only those items are
+ * notified. Each connection's rate is measured between two refreshes, and its age is shown to the
+ * second for its first minute and to the minute after, so idle connections are rarely rebound.
+ */
+public class ConnectionListAdapter extends RecyclerView.Adapter<ConnectionListAdapter.ConnectionViewHolder> {
+
+    /**
+     * Payload of an item change which only rebinds the connection's counters and state.
+     */
+    private static final Object PAYLOAD_COUNTERS = new Object();
+
+    private static final int NO_CHANGE = 0;
+    private static final int INSERT = 1;
+    private static final int REMOVE = 2;
+    private static final int CHANGE = 3;
+
+    public interface Listener {
+
+        /**
+         * @param connection the connection the user asked to close.
+         */
+        void onCloseConnection(ConnectionInfo connection);
+    }
+
+    private final Listener listener;
+    private List<Row> rows = new ArrayList<>();
+
+    /**
+     * When the connections were last refreshed, on the {@link System#nanoTime()} clock.
+     */
+    private long refreshedAtNanos;
+
+    /**
+     * The run of notifications not yet sent, coalesced into one range.
+     */
+    private int pendingChange = NO_CHANGE;
+    private int pendingStart;
+    private int pendingCount;
+
+    private final StringBuilder text = new StringBuilder();
+
+    static final class Row {
+        ConnectionInfo connection;
+        long upPerSecond;
+        long downPerSecond;
+
+        /**
+         * The age shown, see {@link #ageShown(long)}.
+         */
+        long ageShown;
+
+        Row(ConnectionInfo connection) {
+            this.connection = connection;
+        }
+    }
+
+    public static class ConnectionViewHolder extends RecyclerView.ViewHolder {
+        public TextView addressText;
+        public TextView countersText;
+        public Button closeButton;
+
+        public ConnectionViewHolder(View v) {
+            super(v);
+            addressText = (TextView) v.findViewById(R.id.connection_item_address);
+            countersText = (TextView) v.findViewById(R.id.connection_item_counters);
+            closeButton = (Button) v.findViewById(R.id.connection_item_close);
+        }
+    }
+
+    public ConnectionListAdapter(Listener listener) {
+        this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the latest connections, notifying only the items which changed.
+     *
+     * @param connections the connections, ordered by id.
+     */
+    public void setConnections(List<ConnectionInfo> connections) {
+        long now = System.nanoTime();
+        long elapsedNanos = now - refreshedAtNanos;
+        refreshedAtNanos = now;
+        long nowMillis = System.currentTimeMillis();
+
+        List<Row> previous = rows;
+        List<Row> current = new ArrayList<>(connections.size());
+        int oldIndex = 0;
+        int newIndex = 0;
+
+        while (oldIndex < previous.size() || newIndex < connections.size()) {
+            Row row = oldIndex < previous.size() ? previous.get(oldIndex) : null;
+            ConnectionInfo connection = newIndex < connections.size() ? connections.get(newIndex) : null;
+
+            if (connection == null || (row != null && row.connection.getId() < connection.getId())) {
+                // Closed since the last refresh
+                notifyPending(REMOVE, current.size());
+                oldIndex++;
+            } else if (row == null || row.connection.getId() > connection.getId()) {
+                // Opened since the last refresh
+                notifyPending(INSERT, current.size());
+                Row inserted = new Row(connection);
+                inserted.ageShown = ageShown(ageSeconds(connection, nowMillis));
+                current.add(inserted);
+                newIndex++;
+            } else {
+                ConnectionInfo last = row.connection;
+                long upPerSecond = perSecond(connection.getBytesUp() - last.getBytesUp(), elapsedNanos);
+                long downPerSecond = perSecond(connection.getBytesDown() - last.getBytesDown(), elapsedNanos);
+                long ageShown = ageShown(ageSeconds(connection, nowMillis));
+                boolean changed = connection.hasChanged(last) || ageShown != row.ageShown
+                        || upPerSecond != row.upPerSecond || downPerSecond != row.downPerSecond;
+
+                row.connection = connection;
+                row.upPerSecond = upPerSecond;
+                row.downPerSecond = downPerSecond;
+                row.ageShown = ageShown;
+                notifyPending(changed ? CHANGE : NO_CHANGE, current.size());
+                current.add(row);
+                oldIndex++;
+                newIndex++;
+            }
+        }
+
+        rows = current;
+        notifyPending(NO_CHANGE, current.size());
+    }
+
+    /**
+     * Coalesce notifications of neighbouring items into ranges. Positions are those of the list as
+     * it is being built, which is what the items already notified have turned the shown list into.
+     *
+     * @param change   the change of the item at the position, or {@link #NO_CHANGE} to send the
+     *                 pending range.
+     * @param position the position of the item.
+     */
+    private void notifyPending(int change, int position) {
+        if (change == pendingChange && change != NO_CHANGE
+                && position == (change == REMOVE ? pendingStart : pendingStart + pendingCount)) {
+            pendingCount++;
+            return;
+        }
+
+        switch (pendingChange) {
+            case INSERT:
+                notifyItemRangeInserted(pendingStart, pendingCount);
+                break;
+            case REMOVE:
+                notifyItemRangeRemoved(pendingStart, pendingCount);
+                break;
+            case CHANGE:
+                notifyItemRangeChanged(pendingStart, pendingCount, PAYLOAD_COUNTERS);
+                break;
+        }
+
+        pendingChange = change;
+        pendingStart = position;
+        pendingCount = change == NO_CHANGE ? 0 : 1;
+    }
+
+    private static long ageSeconds(ConnectionInfo connection, long nowMillis) {
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(nowMillis - connection.getOpenedAtMillis()));
+    }
+
+    /**
+     * @return the seconds of a connection's age for its first minute, then its minutes, offset so
+     * the two do not meet.
+     */
+    private static long ageShown(long ageSeconds) {
+        return ageSeconds < 60 ? ageSeconds : 60 + ageSeconds / 60;
+    }
+
+    private static StringBuilder appendAge(StringBuilder out, long ageSeconds) {
+        if (ageSeconds < 60) {
+            return out.append(ageSeconds).append('s');
+        }
+        long minutes = ageSeconds / 60;
+        if (minutes < 60) {
+            return out.append(minutes).append('m');
+        }
+        return out.append(minutes / 60).append("h ").append(minutes % 60).append('m');
+    }
+
+    private static long perSecond(long bytes, long elapsedNanos) {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+    }
+
+    /**
+     * @return the id of the last connection shown, or 0 if there is none.
+     */
+    public long getLastConnectionId() {
+        return rows.isEmpty() ? 0 : rows.get(rows.size() - 1).connection.getId();
+    }
+
+    @Override
+    public ConnectionViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.connection_item_view, parent, false);
+        final ConnectionViewHolder holder = new ConnectionViewHolder(view);
+
+        holder.closeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    listener.onCloseConnection(rows.get(position).connection);
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ConnectionViewHolder holder, int position) {
+        ConnectionInfo connection = rows.get(position).connection;
+
+        text.setLength(0);
+        appendAddress(text, connection.getClient()).append(" \u2192 ");
+        appendAddress(text, connection.getTarget());
+        holder.addressText.setText(text.toString());
+
+        bindCounters(holder, rows.get(position));
+    }
+
+    @Override
+    public void onBindViewHolder(ConnectionViewHolder holder, int position, List<Object> payloads) {
+        if (!payloads.isEmpty()) {
+            bindCounters(holder, rows.get(position));
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    /**
+     * Show the age, bytes each way, rate and state of a connection.
+     */
+    private void bindCounters(ConnectionViewHolder holder, Row row) {
+        ConnectionInfo connection = row.connection;
+
+        text.setLength(0);
+        appendAge(text, ageSeconds(connection, System.currentTimeMillis())).append("  \u2191 ");
+        Throughput.appendBytes(text, connection.getBytesUp()).append(" (");
+        Throughput.appendRate(text, row.upPerSecond).append(")  \u2193 ");
+        Throughput.appendBytes(text, connection.getBytesDown()).append(" (");
+        Throughput.appendRate(text, row.downPerSecond).append(')');
+
+        if (connection.getState() != ConnectionInfo.State.OPEN) {
+            text.append("  ").append(holder.countersText.getContext().getString(
+                    connection.getState() == ConnectionInfo.State.THROTTLED
+                            ? R.string.connection_state_throttled
+                            : R.string.connection_state_closing));
+        }
+        holder.countersText.setText(text.toString());
+        holder.closeButton.setEnabled(connection.getState() != ConnectionInfo.State.CLOSING);
+    }
+
+    private static StringBuilder appendAddress(StringBuilder out, InetSocketAddress address) {
+        if (address == null) {
+            return out.append('?');
+        }
+        // An unresolved address keeps its hostname, which is returned without a lookup
+        return out.append(address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostName())
+                .append(':').append(address.getPort());
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).connection.getId();
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+}
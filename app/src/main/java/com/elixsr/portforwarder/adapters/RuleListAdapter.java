@@ -34,9 +34,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.elixsr.portforwarder.forwarding.ForwardingManager;
+import com.elixsr.portforwarder.forwarding.RuleState;
+import com.elixsr.portforwarder.forwarding.Throughput;
 import com.elixsr.portforwarder.R;
 import com.elixsr.portforwarder.models.RuleModel;
 import com.elixsr.portforwarder.ui.rules.EditRuleActivity;
+import com.elixsr.portforwarder.ui.rules.RuleConnectionsActivity;
+import com.elixsr.portforwarder.util.RuleHelper;
 import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.AdSize;
 import com.google.android.gms.ads.AdView;
@@ -53,6 +57,11 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
     protected static final int AD_VIEW = 1;
     protected static final int RULE_VIEW = 0;
 
+    /**
+     * Builds the rate shown on a rule, reused for every rule. Only used on the main thread.
+     */
+    private final StringBuilder rateText = new StringBuilder();
+
 
     public static class AdViewHolder extends RecyclerView.ViewHolder {
 
@@ -90,8 +99,21 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         public TextView ruleNameText;
         public TextView ruleFromPortText;
         public TextView ruleTargetPortText;
+        public TextView ruleStatusText;
+        public TextView ruleRateText;
         private ForwardingManager forwardingManager;
         private long ruleId;
+        private String ruleName;
+
+        /**
+         * The state the status text was bound from.
+         */
+        private RuleState ruleState;
+
+        /**
+         * Holds the rate text, which the text view keeps a reference to rather than a copy.
+         */
+        private char[] rateChars = new char[32];
 
 
         public RuleViewHolder(View v, ForwardingManager forwardingManager) {
@@ -102,6 +124,8 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
             ruleNameText = (TextView) v.findViewById(R.id.rule_item_name);
             ruleFromPortText = (TextView) v.findViewById(R.id.rule_item_from_port);
             ruleTargetPortText = (TextView) v.findViewById(R.id.rule_item_target_port);
+            ruleStatusText = (TextView) v.findViewById(R.id.rule_item_status);
+            ruleRateText = (TextView) v.findViewById(R.id.rule_item_rate);
 
             v.setOnClickListener(this);
         }
@@ -115,6 +139,12 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
                 editRuleIntent.putExtra("RuleModelLocation", getAdapterPosition());
                 editRuleIntent.putExtra("RuleModelId", this.ruleId);
                 view.getContext().startActivity(editRuleIntent);
+            } else {
+                // While forwarding, show what the rule is relaying instead
+                Intent connectionsIntent = new Intent(view.getContext(), RuleConnectionsActivity.class);
+                connectionsIntent.putExtra(RuleHelper.RULE_MODEL_ID, this.ruleId);
+                connectionsIntent.putExtra(RuleConnectionsActivity.RULE_MODEL_NAME, this.ruleName);
+                view.getContext().startActivity(connectionsIntent);
             }
         }
     }
@@ -176,6 +206,7 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
                 //TODO: potentially should add some validation :/ / exception handling
                 ruleHolder.ruleId = ruleModel.getId();
+                ruleHolder.ruleName = ruleModel.getName();
                 ruleHolder.ruleProtocolText.setText(ruleModel.protocolToString());
 
                 if (!ruleModel.isEnabled()) {
@@ -188,6 +219,7 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
                 ruleHolder.ruleNameText.setText(ruleModel.getName());
                 ruleHolder.ruleFromPortText.setText(String.valueOf(ruleModel.getFromPort()));
                 ruleHolder.ruleTargetPortText.setText(String.valueOf(ruleModel.getTarget().getPort()));
+                bindRuleState(ruleHolder, forwardingManager.getRuleState(ruleModel.getId()));
                 break;
             case AD_VIEW:
                 AdViewHolder adHolder = (AdViewHolder) holder;
@@ -195,6 +227,97 @@ public class RuleListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         }
     }
 
+    /**
+     * Rebind only the status and rate of a rule, when the payloads hold its latest
+     * {@link RuleState}.
+     */
+    @Override
+    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position, List<Object> payloads) {
+        if (!payloads.isEmpty() && holder.getItemViewType() == RULE_VIEW) {
+            bindRuleState((RuleViewHolder) holder, (RuleState) payloads.get(payloads.size() - 1));
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    /**
+     * Show what the forwarding service is doing with a rule, and the rate it forwards at, or
+     * nothing if it is not forwarded.
+     * <p>
+     * The status text is only set when the state changed, and the rate is set without allocating,
+     * as the rule is rebound several times a second while it forwards.
+     */
+    private void bindRuleState(RuleViewHolder ruleHolder, RuleState ruleState) {
+        if (ruleState == null || ruleState.getPhase() == RuleState.Phase.STOPPED) {
+            ruleHolder.ruleState = ruleState;
+            ruleHolder.ruleStatusText.setVisibility(View.GONE);
+            ruleHolder.ruleRateText.setVisibility(View.GONE);
+            return;
+        }
+
+        bindThroughput(ruleHolder, forwardingManager.getThroughput(ruleState.getRuleId()));
+        if (ruleState == ruleHolder.ruleState) {
+            return;
+        }
+        ruleHolder.ruleState = ruleState;
+
+        Context context = ruleHolder.ruleStatusText.getContext();
+        switch (ruleState.getPhase()) {
+            case STARTING:
+                ruleHolder.ruleStatusText.setText(R.string.rule_state_starting);
+                break;
+            case BOUND:
+                ruleHolder.ruleStatusText.setText(R.string.rule_state_bound);
+                break;
+            case FAILED:
+                ruleHolder.ruleStatusText.setText(context.getString(R.string.rule_state_failed, ruleState.getLastError()));
+                break;
+            case DRAINING:
+                ruleHolder.ruleStatusText.setText(R.string.rule_state_draining);
+                break;
+        }
+        ruleHolder.ruleStatusText.setVisibility(View.VISIBLE);
+    }
+
+    private void bindThroughput(RuleViewHolder ruleHolder, Throughput throughput) {
+        if (throughput == null) {
+            ruleHolder.ruleRateText.setVisibility(View.GONE);
+            return;
+        }
+
+        rateText.setLength(0);
+        Throughput.appendRate(rateText.append("\u2191 "), throughput.getUpPerSecond());
+        Throughput.appendRate(rateText.append("  \u2193 "), throughput.getDownPerSecond());
+
+        int length = rateText.length();
+        if (ruleHolder.rateChars.length < length) {
+            ruleHolder.rateChars = new char[length];
+        }
+        rateText.getChars(0, length, ruleHolder.rateChars, 0);
+        ruleHolder.ruleRateText.setText(ruleHolder.rateChars, 0, length);
+        ruleHolder.ruleRateText.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Rebind the status and rate of the rules which changed, passing each rule's new state as the
+     * payload of its item change so that nothing else is rebound.
+     *
+     * @param changedRules the new states, see {@link ForwardingManager.Listener}.
+     */
+    public void onRuleStatesChanged(List<RuleState> changedRules) {
+        for (int i = 0; i < changedRules.size(); i++) {
+            RuleState ruleState = changedRules.get(i);
+            for (int position = 0; position < listItems.size(); position++) {
+                ListItem listItem = listItems.get(position);
+                if (listItem.getViewType() == RULE_VIEW
+                        && ((RuleModel) listItem.getPayload()).getId() == ruleState.getRuleId()) {
+                    notifyItemChanged(position, ruleState);
+                    break;
+                }
+            }
+        }
+    }
+
     @Override
     public int getItemViewType(int position) {
         // Just as an example, return 0 or 2 depending on position
@@ -2,6 +2,7 @@ package com.elixsr.portforwarder.adapters;
 
 import com.elixsr.portforwarder.exceptions.RuleValidationException;
 import com.elixsr.portforwarder.util.IpAddressValidator;
+import com.elixsr.portforwarder.util.NetworkHelper;
 import com.elixsr.portforwarder.validators.RuleModelValidator;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
@@ -26,9 +27,10 @@ public class RuleListTargetJsonDeserializer implements JsonDeserializer<InetSock
 
         try {
             if (jsonObject.has("hostname") && jsonObject.has("port")
-                    && ipAddressValidator.validate(jsonObject.get("hostname").getAsString())
+                    && (ipAddressValidator.validate(jsonObject.get("hostname").getAsString())
+                    || NetworkHelper.isValidHostname(jsonObject.get("hostname").getAsString()))
                     && RuleModelValidator.validateRuleTargetPort(jsonObject.get("port").getAsInt())) {
-                return new InetSocketAddress(jsonObject.get("hostname").getAsString(), jsonObject.get("port").getAsInt());
+                return NetworkHelper.createTarget(jsonObject.get("hostname").getAsString(), jsonObject.get("port").getAsInt());
             } else {
                 throw new JsonParseException("Target is missing host and port");
             }
@@ -1,5 +1,6 @@
 package com.elixsr.portforwarder.adapters;
 
+import com.elixsr.portforwarder.util.NetworkHelper;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
@@ -17,7 +18,7 @@ public class RuleListTargetJsonSerializer implements JsonSerializer<InetSocketAd
     @Override
     public JsonElement serialize(InetSocketAddress src, Type typeOfSrc, JsonSerializationContext context) {
         JsonObject targetObject = new JsonObject();
-        targetObject.addProperty("hostname", src.getAddress().getHostAddress());
+        targetObject.addProperty("hostname", NetworkHelper.getTargetHost(src));
         targetObject.addProperty("port", src.getPort());
         return targetObject;
     }
@@ -0,0 +1,221 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.elixsr.portforwarder.db.RuleContract.UsageEntry;
+import com.elixsr.portforwarder.db.RuleDbHelper;
+import com.elixsr.portforwarder.models.UsageModel;
+
+/**
+ * The {@link UsageDao} class provides database access for the usage history of rules.
+ * <p>
+ * Usage is added by the minute, and {@link #compact(long)} rolls minutes older than
+ * {@link #MINUTE_RETENTION_MILLIS} up into hours, and hours older than
+ * {@link #HOUR_RETENTION_MILLIS} up into days, which are kept for {@link #DAY_RETENTION_MILLIS}.
+ * Queries sum whatever resolutions cover the requested period, so totals are complete whether or
+ * not they were rolled up yet.
+ */
+public class UsageDao {
+
+    public static final long MINUTE_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(2);
+
+    public static final long HOUR_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(56);
+
+    public static final long DAY_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(730);
+
+    private static final String SQL_ADD_USAGE =
+            "UPDATE " + UsageEntry.TABLE_NAME + " SET " +
+                    UsageEntry.COLUMN_NAME_BYTES_UP + " = " + UsageEntry.COLUMN_NAME_BYTES_UP + " + ?, " +
+                    UsageEntry.COLUMN_NAME_BYTES_DOWN + " = " + UsageEntry.COLUMN_NAME_BYTES_DOWN + " + ?, " +
+                    UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + " = MAX(" + UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + ", ?)" +
+                    " WHERE " + UsageEntry.COLUMN_NAME_RULE_ID + " = ? AND " +
+                    UsageEntry.COLUMN_NAME_RESOLUTION + " = ? AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " = ?";
+
+    private static final String SQL_INSERT_USAGE =
+            "INSERT INTO " + UsageEntry.TABLE_NAME + " (" +
+                    UsageEntry.COLUMN_NAME_BYTES_UP + ", " +
+                    UsageEntry.COLUMN_NAME_BYTES_DOWN + ", " +
+                    UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + ", " +
+                    UsageEntry.COLUMN_NAME_RULE_ID + ", " +
+                    UsageEntry.COLUMN_NAME_RESOLUTION + ", " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /*
+     * Sums the buckets of a resolution older than a cutoff into buckets of a coarser one, together
+     * with any coarser bucket they fall in, which a bucket added after an earlier roll up can do.
+     * The numbered arguments are ?1 the coarser resolution, ?2 the finer one and ?3 the cutoff,
+     * each used more than once.
+     */
+    private static final String SQL_ROLL_UP =
+            "INSERT OR REPLACE INTO " + UsageEntry.TABLE_NAME + " (" +
+                    UsageEntry.COLUMN_NAME_RULE_ID + ", " +
+                    UsageEntry.COLUMN_NAME_RESOLUTION + ", " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + ", " +
+                    UsageEntry.COLUMN_NAME_BYTES_UP + ", " +
+                    UsageEntry.COLUMN_NAME_BYTES_DOWN + ", " +
+                    UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + ")" +
+                    " SELECT " + UsageEntry.COLUMN_NAME_RULE_ID + ", resolution_to, start," +
+                    " SUM(" + UsageEntry.COLUMN_NAME_BYTES_UP + ")," +
+                    " SUM(" + UsageEntry.COLUMN_NAME_BYTES_DOWN + ")," +
+                    " MAX(" + UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + ")" +
+                    " FROM (SELECT *, ?1 AS resolution_to," +
+                    " (" + UsageEntry.COLUMN_NAME_BUCKET_START + " / ?1) * ?1 AS start" +
+                    " FROM " + UsageEntry.TABLE_NAME + ")" +
+                    " WHERE (" + UsageEntry.COLUMN_NAME_RESOLUTION + " = ?2 AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " < ?3)" +
+                    " OR (" + UsageEntry.COLUMN_NAME_RESOLUTION + " = ?1 AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " IN (SELECT (" +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " / ?1) * ?1 FROM " + UsageEntry.TABLE_NAME +
+                    " WHERE " + UsageEntry.COLUMN_NAME_RESOLUTION + " = ?2 AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " < ?3))" +
+                    " GROUP BY " + UsageEntry.COLUMN_NAME_RULE_ID + ", start";
+
+    private static final String SQL_DELETE_OLDER =
+            "DELETE FROM " + UsageEntry.TABLE_NAME +
+                    " WHERE " + UsageEntry.COLUMN_NAME_RESOLUTION + " = ? AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " < ?";
+
+    /*
+     * Sums the buckets of a rule as fine as or finer than a resolution into buckets of it. The
+     * arguments are the resolution, the rule and the start of the period.
+     */
+    private static final String SQL_QUERY_USAGE =
+            "SELECT (" + UsageEntry.COLUMN_NAME_BUCKET_START + " / ?1) * ?1 AS start," +
+                    " SUM(" + UsageEntry.COLUMN_NAME_BYTES_UP + ")," +
+                    " SUM(" + UsageEntry.COLUMN_NAME_BYTES_DOWN + ")," +
+                    " MAX(" + UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + ")" +
+                    " FROM " + UsageEntry.TABLE_NAME +
+                    " WHERE " + UsageEntry.COLUMN_NAME_RULE_ID + " = ?2 AND " +
+                    UsageEntry.COLUMN_NAME_RESOLUTION + " <= ?1 AND " +
+                    UsageEntry.COLUMN_NAME_BUCKET_START + " >= ?3" +
+                    " GROUP BY start ORDER BY start";
+
+    private SQLiteDatabase db;
+    private RuleDbHelper ruleDbHelper;
+
+    public UsageDao(RuleDbHelper ruleDbHelper) {
+        this.ruleDbHelper = ruleDbHelper;
+    }
+
+    /**
+     * Adds usage to the history in a single transaction, summed into any bucket already stored.
+     *
+     * @param usageModels the usage to add, each for a single bucket.
+     */
+    public void addUsage(List<UsageModel> usageModels) {
+        this.db = ruleDbHelper.getWritableDatabase();
+
+        SQLiteStatement update = db.compileStatement(SQL_ADD_USAGE);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_USAGE);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < usageModels.size(); i++) {
+                UsageModel usageModel = usageModels.get(i);
+                bindUsage(update, usageModel);
+                if (update.executeUpdateDelete() == 0) {
+                    bindUsage(insert, usageModel);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+        }
+    }
+
+    private static void bindUsage(SQLiteStatement statement, UsageModel usageModel) {
+        statement.bindLong(1, usageModel.getBytesUp());
+        statement.bindLong(2, usageModel.getBytesDown());
+        statement.bindLong(3, usageModel.getPeakConnections());
+        statement.bindLong(4, usageModel.getRuleId());
+        statement.bindLong(5, usageModel.getResolution());
+        statement.bindLong(6, usageModel.getBucketStart());
+    }
+
+    /**
+     * Rolls aged usage up into coarser buckets, and deletes what is past retention, in a single
+     * transaction.
+     * <p>
+     * The cutoffs are aligned to the coarser bucket, so only complete buckets are rolled up.
+     *
+     * @param nowMillis the current time, in milliseconds since the epoch.
+     */
+    public void compact(long nowMillis) {
+        this.db = ruleDbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            rollUp(UsageEntry.RESOLUTION_MINUTE, UsageEntry.RESOLUTION_HOUR,
+                    nowMillis - MINUTE_RETENTION_MILLIS);
+            rollUp(UsageEntry.RESOLUTION_HOUR, UsageEntry.RESOLUTION_DAY,
+                    nowMillis - HOUR_RETENTION_MILLIS);
+            db.execSQL(SQL_DELETE_OLDER, new Object[]{
+                    UsageEntry.RESOLUTION_DAY, nowMillis - DAY_RETENTION_MILLIS});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void rollUp(long fromResolution, long toResolution, long cutoffMillis) {
+        long cutoff = cutoffMillis - cutoffMillis % toResolution;
+        db.execSQL(SQL_ROLL_UP, new Object[]{toResolution, fromResolution, cutoff});
+        db.execSQL(SQL_DELETE_OLDER, new Object[]{fromResolution, cutoff});
+    }
+
+    /**
+     * Finds the usage of a rule over a period, in buckets of a resolution.
+     *
+     * @param ruleId      the id of the rule.
+     * @param resolution  the length of the buckets, such as {@link UsageEntry#RESOLUTION_HOUR}.
+     * @param sinceMillis the start of the period, in milliseconds since the epoch.
+     * @return the buckets of the period with usage, oldest first.
+     */
+    public List<UsageModel> getUsage(long ruleId, long resolution, long sinceMillis) {
+        List<UsageModel> usageModels = new ArrayList<UsageModel>();
+
+        this.db = ruleDbHelper.getReadableDatabase();
+
+        Cursor cursor = db.rawQuery(SQL_QUERY_USAGE, new String[]{
+                String.valueOf(resolution), String.valueOf(ruleId), String.valueOf(sinceMillis)});
+
+        cursor.moveToFirst();
+        while (!cursor.isAfterLast()) {
+            UsageModel usageModel = new UsageModel(ruleId, resolution, cursor.getLong(0));
+            usageModel.add(cursor.getLong(1), cursor.getLong(2), cursor.getInt(3));
+            usageModels.add(usageModel);
+            cursor.moveToNext();
+        }
+        // make sure to close the cursor
+        cursor.close();
+
+        return usageModels;
+    }
+}
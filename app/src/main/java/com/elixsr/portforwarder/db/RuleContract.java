@@ -42,5 +42,50 @@ public class RuleContract {
         public static final String COLUMN_NAME_TARGET_IP_ADDRESS = "target_ip_address";
         public static final String COLUMN_NAME_TARGET_PORT = "target_port";
         public static final String COLUMN_NAME_IS_ENABLED = "is_enabled";
+        public static final String COLUMN_NAME_RECEIVE_BUFFER_SIZE = "receive_buffer_size";
+        public static final String COLUMN_NAME_SEND_BUFFER_SIZE = "send_buffer_size";
+        public static final String COLUMN_NAME_BACKLOG = "backlog";
+        public static final String COLUMN_NAME_TCP_NO_DELAY = "tcp_no_delay";
+        public static final String COLUMN_NAME_KEEP_ALIVE = "keep_alive";
+        public static final String COLUMN_NAME_REUSE_ADDRESS = "reuse_address";
+        public static final String COLUMN_NAME_RELAY_BUFFER_SIZE = "relay_buffer_size";
+        public static final String COLUMN_NAME_COALESCE_WRITES = "coalesce_writes";
+        public static final String COLUMN_NAME_COALESCE_DELAY = "coalesce_delay";
+        public static final String COLUMN_NAME_WEIGHT = "weight";
+        public static final String COLUMN_NAME_CONNECTION_RATE_LIMIT = "connection_rate_limit";
+        public static final String COLUMN_NAME_RULE_RATE_LIMIT = "rule_rate_limit";
+        public static final String COLUMN_NAME_MAX_CONNECTIONS = "max_connections";
+        public static final String COLUMN_NAME_REJECT_EXCESS_CONNECTIONS = "reject_excess_connections";
+        public static final String COLUMN_NAME_ALLOWED_SOURCES = "allowed_sources";
+        public static final String COLUMN_NAME_DENIED_SOURCES = "denied_sources";
+        public static final String COLUMN_NAME_MAX_CONNECTIONS_PER_SOURCE = "max_connections_per_source";
+        public static final String COLUMN_NAME_MAX_DATAGRAMS_PER_SOURCE = "max_datagrams_per_source";
+        public static final String COLUMN_NAME_BAN_SECONDS = "ban_seconds";
+        public static final String COLUMN_NAME_SOURCE_ROUTES = "source_routes";
+        public static final String COLUMN_NAME_WARM_CONNECTIONS = "warm_connections";
+        public static final String COLUMN_NAME_WARM_MAX_IDLE_SECONDS = "warm_max_idle_seconds";
+        public static final String COLUMN_NAME_LISTENER_SHARDS = "listener_shards";
+    }
+
+    /*
+     * Traffic of each rule, summed into buckets of a minute, an hour or a day. Recent traffic is
+     * kept by the minute, and rolled up into coarser buckets as it ages.
+     */
+    public static abstract class UsageEntry implements BaseColumns {
+        public static final String TABLE_NAME = "usage";
+        public static final String COLUMN_NAME_RULE_ID = "rule_id";
+        public static final String COLUMN_NAME_RESOLUTION = "resolution";
+        public static final String COLUMN_NAME_BUCKET_START = "bucket_start";
+        public static final String COLUMN_NAME_BYTES_UP = "bytes_up";
+        public static final String COLUMN_NAME_BYTES_DOWN = "bytes_down";
+        public static final String COLUMN_NAME_PEAK_CONNECTIONS = "peak_connections";
+
+        /*
+         * The resolution of a bucket is its length in milliseconds, buckets start at a multiple of
+         * it since the epoch, so days are UTC days.
+         */
+        public static final long RESOLUTION_MINUTE = 60 * 1000L;
+        public static final long RESOLUTION_HOUR = 60 * RESOLUTION_MINUTE;
+        public static final long RESOLUTION_DAY = 24 * RESOLUTION_HOUR;
     }
 }
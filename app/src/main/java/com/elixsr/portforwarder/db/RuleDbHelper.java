@@ -23,6 +23,10 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.elixsr.portforwarder.models.AccessPolicy;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
 /**
  * Created by Niall McShane on 07/03/2016.
  * <p>
@@ -30,7 +34,7 @@ import android.database.sqlite.SQLiteOpenHelper;
  */
 public class RuleDbHelper extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 14;
     public static final String DATABASE_NAME = "Rule.db";
 
     private static final String TEXT_TYPE = " TEXT";
@@ -46,21 +50,181 @@ public class RuleDbHelper extends SQLiteOpenHelper {
                     RuleContract.RuleEntry.COLUMN_NAME_FROM_PORT + INTEGER_TYPE + COMMA_SEP +
                     RuleContract.RuleEntry.COLUMN_NAME_TARGET_IP_ADDRESS + TEXT_TYPE + COMMA_SEP +
                     RuleContract.RuleEntry.COLUMN_NAME_TARGET_PORT + INTEGER_TYPE + COMMA_SEP +
-                    RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED + INTEGER_TYPE +
+                    RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED + INTEGER_TYPE + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_RECEIVE_BUFFER_SIZE + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_SEND_BUFFER_SIZE + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_BACKLOG + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_TCP_NO_DELAY + INTEGER_TYPE + " default 1" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_KEEP_ALIVE + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_REUSE_ADDRESS + INTEGER_TYPE + " default 1" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_RELAY_BUFFER_SIZE + INTEGER_TYPE + " default " + SocketProfile.DEFAULT_RELAY_BUFFER_SIZE + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_COALESCE_WRITES + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_COALESCE_DELAY + INTEGER_TYPE + " default " + SocketProfile.DEFAULT_COALESCE_DELAY_MILLIS + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_WEIGHT + INTEGER_TYPE + " default " + TrafficPolicy.DEFAULT_WEIGHT + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_CONNECTION_RATE_LIMIT + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_RULE_RATE_LIMIT + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_REJECT_EXCESS_CONNECTIONS + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_ALLOWED_SOURCES + TEXT_TYPE + " default ''" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_DENIED_SOURCES + TEXT_TYPE + " default ''" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS_PER_SOURCE + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_MAX_DATAGRAMS_PER_SOURCE + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_BAN_SECONDS + INTEGER_TYPE + " default " + AccessPolicy.DEFAULT_BAN_SECONDS + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_SOURCE_ROUTES + TEXT_TYPE + " default ''" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_WARM_CONNECTIONS + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_WARM_MAX_IDLE_SECONDS + INTEGER_TYPE + " default " + SocketProfile.DEFAULT_WARM_MAX_IDLE_SECONDS + COMMA_SEP +
+                    RuleContract.RuleEntry.COLUMN_NAME_LISTENER_SHARDS + INTEGER_TYPE + " default 1" +
                     " )";
 
+    /*
+     * A rule has a single bucket of each resolution for a given start, which the primary key
+     * looks up when usage is added. Rolling up scans a resolution by age, through the index.
+     */
+    private static final String[] SQL_CREATE_USAGE_ENTRIES = {
+            "CREATE TABLE " + RuleContract.UsageEntry.TABLE_NAME + " (" +
+                    RuleContract.UsageEntry.COLUMN_NAME_RULE_ID + INTEGER_TYPE + " NOT NULL" + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_RESOLUTION + INTEGER_TYPE + " NOT NULL" + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_BUCKET_START + INTEGER_TYPE + " NOT NULL" + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_BYTES_UP + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_BYTES_DOWN + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_PEAK_CONNECTIONS + INTEGER_TYPE + " default 0" + COMMA_SEP +
+                    "PRIMARY KEY (" +
+                    RuleContract.UsageEntry.COLUMN_NAME_RULE_ID + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_RESOLUTION + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_BUCKET_START + ")" +
+                    " )",
+            "CREATE INDEX " + RuleContract.UsageEntry.TABLE_NAME + "_age ON " +
+                    RuleContract.UsageEntry.TABLE_NAME + " (" +
+                    RuleContract.UsageEntry.COLUMN_NAME_RESOLUTION + COMMA_SEP +
+                    RuleContract.UsageEntry.COLUMN_NAME_BUCKET_START + ")"
+    };
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + RuleContract.RuleEntry.TABLE_NAME;
 
     private static final String DATABASE_ALTER_RULES_1 = String.format("ALTER TABLE %s ADD COLUMN %s int default 1;",
             RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED);
 
+    /*
+     * Version 4 - socket tuning profile. SQLite can only add a single column per statement.
+     */
+    private static final String[] DATABASE_ALTER_RULES_2 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_RECEIVE_BUFFER_SIZE),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_SEND_BUFFER_SIZE),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_BACKLOG),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 1;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_TCP_NO_DELAY),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_KEEP_ALIVE),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 1;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_REUSE_ADDRESS),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default %s;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_RELAY_BUFFER_SIZE,
+                    SocketProfile.DEFAULT_RELAY_BUFFER_SIZE)
+    };
+
+    /*
+     * Version 5 - write coalescing.
+     */
+    private static final String[] DATABASE_ALTER_RULES_3 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_COALESCE_WRITES),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default %s;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_COALESCE_DELAY,
+                    SocketProfile.DEFAULT_COALESCE_DELAY_MILLIS)
+    };
+
+    /*
+     * Version 6 - scheduling weight.
+     */
+    private static final String[] DATABASE_ALTER_RULES_4 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default %s;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_WEIGHT,
+                    TrafficPolicy.DEFAULT_WEIGHT)
+    };
+
+    /*
+     * Version 7 - bandwidth limits.
+     */
+    private static final String[] DATABASE_ALTER_RULES_5 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_CONNECTION_RATE_LIMIT),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_RULE_RATE_LIMIT)
+    };
+
+    /*
+     * Version 8 - connection admission control.
+     */
+    private static final String[] DATABASE_ALTER_RULES_6 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_REJECT_EXCESS_CONNECTIONS)
+    };
+
+    /*
+     * Version 9 - source access lists.
+     */
+    private static final String[] DATABASE_ALTER_RULES_7 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s text default '';",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_ALLOWED_SOURCES),
+            String.format("ALTER TABLE %s ADD COLUMN %s text default '';",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_DENIED_SOURCES)
+    };
+
+    /*
+     * Version 10 - per source abuse limits.
+     */
+    private static final String[] DATABASE_ALTER_RULES_8 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS_PER_SOURCE),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_MAX_DATAGRAMS_PER_SOURCE),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default %s;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_BAN_SECONDS,
+                    AccessPolicy.DEFAULT_BAN_SECONDS)
+    };
+
+    /*
+     * Version 11 - source based routes.
+     */
+    private static final String[] DATABASE_ALTER_RULES_9 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s text default '';",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_SOURCE_ROUTES)
+    };
+
+    /*
+     * Version 12 - warm pool of target connections.
+     */
+    private static final String[] DATABASE_ALTER_RULES_10 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 0;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_WARM_CONNECTIONS),
+            String.format("ALTER TABLE %s ADD COLUMN %s int default %s;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_WARM_MAX_IDLE_SECONDS,
+                    SocketProfile.DEFAULT_WARM_MAX_IDLE_SECONDS)
+    };
+
+    /*
+     * Version 13 - listener shards.
+     */
+    private static final String[] DATABASE_ALTER_RULES_11 = {
+            String.format("ALTER TABLE %s ADD COLUMN %s int default 1;",
+                    RuleContract.RuleEntry.TABLE_NAME, RuleContract.RuleEntry.COLUMN_NAME_LISTENER_SHARDS)
+    };
+
     public RuleDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        for (String createStatement : SQL_CREATE_USAGE_ENTRIES) {
+            db.execSQL(createStatement);
+        }
     }
 
     @Override
@@ -70,6 +234,75 @@ public class RuleDbHelper extends SQLiteOpenHelper {
             db.execSQL(DATABASE_ALTER_RULES_1);
         }
 
+        if (oldVersion < 4) {
+            for (String alterStatement : DATABASE_ALTER_RULES_2) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 5) {
+            for (String alterStatement : DATABASE_ALTER_RULES_3) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 6) {
+            for (String alterStatement : DATABASE_ALTER_RULES_4) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 7) {
+            for (String alterStatement : DATABASE_ALTER_RULES_5) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 8) {
+            for (String alterStatement : DATABASE_ALTER_RULES_6) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 9) {
+            for (String alterStatement : DATABASE_ALTER_RULES_7) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 10) {
+            for (String alterStatement : DATABASE_ALTER_RULES_8) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 11) {
+            for (String alterStatement : DATABASE_ALTER_RULES_9) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 12) {
+            for (String alterStatement : DATABASE_ALTER_RULES_10) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        if (oldVersion < 13) {
+            for (String alterStatement : DATABASE_ALTER_RULES_11) {
+                db.execSQL(alterStatement);
+            }
+        }
+
+        /*
+         * Version 14 - usage history.
+         */
+        if (oldVersion < 14) {
+            for (String createStatement : SQL_CREATE_USAGE_ENTRIES) {
+                db.execSQL(createStatement);
+            }
+        }
+
     }
 
     public static String[] generateAllRowsSelection() {
@@ -82,7 +315,30 @@ public class RuleDbHelper extends SQLiteOpenHelper {
                 RuleContract.RuleEntry.COLUMN_NAME_FROM_PORT + TEXT_TYPE,
                 RuleContract.RuleEntry.COLUMN_NAME_TARGET_IP_ADDRESS,
                 RuleContract.RuleEntry.COLUMN_NAME_TARGET_PORT,
-                RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED
+                RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED,
+                RuleContract.RuleEntry.COLUMN_NAME_RECEIVE_BUFFER_SIZE,
+                RuleContract.RuleEntry.COLUMN_NAME_SEND_BUFFER_SIZE,
+                RuleContract.RuleEntry.COLUMN_NAME_BACKLOG,
+                RuleContract.RuleEntry.COLUMN_NAME_TCP_NO_DELAY,
+                RuleContract.RuleEntry.COLUMN_NAME_KEEP_ALIVE,
+                RuleContract.RuleEntry.COLUMN_NAME_REUSE_ADDRESS,
+                RuleContract.RuleEntry.COLUMN_NAME_RELAY_BUFFER_SIZE,
+                RuleContract.RuleEntry.COLUMN_NAME_COALESCE_WRITES,
+                RuleContract.RuleEntry.COLUMN_NAME_COALESCE_DELAY,
+                RuleContract.RuleEntry.COLUMN_NAME_WEIGHT,
+                RuleContract.RuleEntry.COLUMN_NAME_CONNECTION_RATE_LIMIT,
+                RuleContract.RuleEntry.COLUMN_NAME_RULE_RATE_LIMIT,
+                RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS,
+                RuleContract.RuleEntry.COLUMN_NAME_REJECT_EXCESS_CONNECTIONS,
+                RuleContract.RuleEntry.COLUMN_NAME_ALLOWED_SOURCES,
+                RuleContract.RuleEntry.COLUMN_NAME_DENIED_SOURCES,
+                RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS_PER_SOURCE,
+                RuleContract.RuleEntry.COLUMN_NAME_MAX_DATAGRAMS_PER_SOURCE,
+                RuleContract.RuleEntry.COLUMN_NAME_BAN_SECONDS,
+                RuleContract.RuleEntry.COLUMN_NAME_SOURCE_ROUTES,
+                RuleContract.RuleEntry.COLUMN_NAME_WARM_CONNECTIONS,
+                RuleContract.RuleEntry.COLUMN_NAME_WARM_MAX_IDLE_SECONDS,
+                RuleContract.RuleEntry.COLUMN_NAME_LISTENER_SHARDS
         };
 
         return projection;
@@ -0,0 +1,100 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+/**
+ * The {@link AdaptiveBufferSizer} class guesses how large the next read on a connection will be.
+ * <p>
+ * Sizes are taken from a power of two table. A read which fills the whole buffer jumps up several
+ * steps, so bulk transfers quickly reach the maximum. Two reads in a row which would also have fit
+ * in the next smaller size step down once, so interactive traffic settles at a few KB.
+ * <p>
+ * One instance is used per direction of a connection.
+ */
+public class AdaptiveBufferSizer {
+
+    /**
+     * The smallest read size, large enough for typical interactive traffic.
+     */
+    public static final int MIN_SIZE = 2048;
+
+    /**
+     * The size of the first read on a new connection.
+     */
+    public static final int INITIAL_SIZE = 4096;
+
+    private static final int INDEX_INCREMENT = 2;
+    private static final int INDEX_DECREMENT = 1;
+    private static final int MAX_INDEX = 20;
+
+    private final int maxIndex;
+    private int index;
+    private boolean decreaseNow;
+
+    /**
+     * @param maxSize the largest size to guess, typically the rule's relay buffer size. Guesses
+     *                never exceed it, unless it is smaller than {@link #MIN_SIZE}.
+     */
+    public AdaptiveBufferSizer(int maxSize) {
+        int maxIndex = 0;
+        while (maxIndex < MAX_INDEX && sizeOf(maxIndex + 1) <= maxSize) {
+            maxIndex++;
+        }
+        this.maxIndex = maxIndex;
+        this.index = Math.min(indexOf(INITIAL_SIZE), maxIndex);
+    }
+
+    /**
+     * @return the size of the buffer to use for the next read.
+     */
+    public int guess() {
+        return sizeOf(index);
+    }
+
+    /**
+     * Record the result of a read with a buffer of {@link #guess()} bytes.
+     *
+     * @param bytesRead the amount of bytes read.
+     */
+    public void record(int bytesRead) {
+        if (bytesRead <= sizeOf(Math.max(0, index - INDEX_DECREMENT)) && index > 0) {
+            if (decreaseNow) {
+                index = Math.max(0, index - INDEX_DECREMENT);
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else if (bytesRead >= sizeOf(index)) {
+            index = Math.min(maxIndex, index + INDEX_INCREMENT);
+            decreaseNow = false;
+        }
+    }
+
+    private static int sizeOf(int index) {
+        return MIN_SIZE << index;
+    }
+
+    private static int indexOf(int size) {
+        int index = 0;
+        while (index < MAX_INDEX && sizeOf(index) < size) {
+            index++;
+        }
+        return index;
+    }
+}
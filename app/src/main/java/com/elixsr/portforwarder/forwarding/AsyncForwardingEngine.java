@@ -0,0 +1,57 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import com.elixsr.portforwarder.models.RuleModel;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The {@link AsyncForwardingEngine} class serves the TCP connections of all rules from the shared
+ * group of threads of {@link AsyncTcpForwarder}, rather than a loop per rule. The thread of each
+ * TCP forwarder only waits for the engine to stop. UDP rules run as with the
+ * {@link ThreadedForwardingEngine}.
+ * <p>
+ * Requires Android 8.0, see {@link AsyncTcpForwarder#isSupported()}.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class AsyncForwardingEngine extends ThreadedForwardingEngine {
+
+    public AsyncForwardingEngine() {
+        super(NIO);
+    }
+
+    @Override
+    protected Forwarder createTcpForwarder(RuleModel ruleModel, InetSocketAddress from,
+                                           ConnectionLimiter ruleConnectionLimiter) {
+        AsyncTcpForwarder tcpForwarder = new AsyncTcpForwarder(from, ruleModel.getTarget(), ruleModel.getName(),
+                ruleModel.getSocketProfile(), ruleModel.getTrafficPolicy());
+        tcpForwarder.setConnectionLimiter(connectionLimiter);
+        tcpForwarder.setRuleConnectionLimiter(ruleConnectionLimiter);
+        return tcpForwarder;
+    }
+
+    @Override
+    public String getType() {
+        return ASYNC;
+    }
+}
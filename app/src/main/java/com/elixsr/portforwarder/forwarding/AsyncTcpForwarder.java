@@ -0,0 +1,1129 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import com.elixsr.portforwarder.exceptions.BindException;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link AsyncTcpForwarder} class forwards TCP connections with the completion based channels
+ * of NIO.2, as an alternative to the selector loop of {@link TcpForwarder}.
+ * <p>
+ * Rather than each rule running its own loop, the sockets of all rules are served by one
+ * {@link AsynchronousChannelGroup} with a thread per processor, shared while any rule uses it.
+ * Each direction of a connection reads into a buffer taken from the forwarder's
+ * {@link BufferPool}, and chains a read and a write completion handler, both shared by all
+ * connections of the forwarder, so relaying allocates nothing per operation.
+ * <p>
+ * The thread which calls {@link #call()} only waits until it is interrupted, and then closes the
+ * rule's sockets. Admission control, source filtering, source routing, hostname targets, circuit
+ * breakers and rate limits behave as with {@link TcpForwarder}. The addresses of a hostname target
+ * are tried one after the other rather than raced, and rules run without a warm pool, write
+ * coalescing, splicing or listener options. Weights do not apply, as rules share the group's
+ * threads.
+ * <p>
+ * Requires Android 8.0, see {@link #isSupported()}.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class AsyncTcpForwarder extends Forwarder {
+
+    private static final String TAG = "AsyncTcpForwarder";
+
+    /**
+     * The type of the engine which runs this forwarder, see {@link AsyncForwardingEngine}.
+     */
+    public static final String ENGINE = "async";
+
+    /**
+     * The amount of idle buffers kept per size class.
+     */
+    private static final int POOLED_BUFFERS_PER_SIZE = 16;
+
+    /**
+     * How long to wait before accepting again after accepting failed, such as when out of
+     * descriptors.
+     */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private static final Object sharedLock = new Object();
+
+    /**
+     * The group and timer shared by all running instances, and the amount of instances using them.
+     */
+    private static AsynchronousChannelGroup sharedGroup;
+    private static ScheduledExecutorService sharedTimer;
+    private static int sharedUsers;
+
+    /**
+     * The {@link CircuitBreaker} of each target, indexed by route number.
+     */
+    private CircuitBreaker[] circuitBreakers;
+
+    /**
+     * The limit on connections shared by all rules, or null if unlimited.
+     */
+    private ConnectionLimiter connectionLimiter;
+
+    /**
+     * The limit on the rule's connections shared by the shards of the rule, or null if the rule's
+     * limit is counted by this forwarder alone.
+     */
+    private ConnectionLimiter ruleConnectionLimiter;
+
+    private AsynchronousChannelGroup group;
+
+    /**
+     * Runs delayed work: reads resuming after a rate limit, and accepts being retried.
+     */
+    private ScheduledExecutorService timer;
+
+    private AsynchronousServerSocketChannel listening;
+
+    /**
+     * Guarded by itself, as completion handlers run on any thread of the group.
+     */
+    private BufferPool bufferPool;
+
+    /**
+     * Counted down when the forwarder stops.
+     */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // The state below is guarded by this forwarder
+
+    /**
+     * The open connections, closed when the forwarder stops.
+     */
+    private final Set<Connection> connections = new HashSet<>();
+
+    /**
+     * Connections waiting for their hostname target to be resolved.
+     */
+    private final List<Connection> awaitingResolution = new ArrayList<>();
+
+    /**
+     * A client accepted while a connection limit was reached, which waits for a slot while no
+     * more clients are accepted, or null.
+     */
+    private AsynchronousSocketChannel parkedClient;
+
+    /**
+     * The amount of connections admitted and not yet closed.
+     */
+    private int activeConnections;
+
+    private boolean closing;
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler =
+            new CompletionHandler<AsynchronousSocketChannel, Void>() {
+                @Override
+                public void completed(AsynchronousSocketChannel client, Void attachment) {
+                    if (admit(client)) {
+                        accept();
+                        serve(client);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    if (isClosing()) {
+                        return;
+                    }
+
+                    Log.d(TAG, "Error accepting connection: " + exc.getMessage());
+                    schedule(acceptTask, TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MILLIS));
+                }
+            };
+
+    private final CompletionHandler<Void, Connection> connectHandler =
+            new CompletionHandler<Void, Connection>() {
+                @Override
+                public void completed(Void result, Connection connection) {
+                    synchronized (AsyncTcpForwarder.this) {
+                        circuitBreakers[connection.route].recordSuccess();
+                    }
+                    startRelaying(connection);
+                }
+
+                @Override
+                public void failed(Throwable exc, Connection connection) {
+                    closeQuietly(connection.target);
+                    if (connection.closed) {
+                        recordConnectFailure(connection);
+                    } else {
+                        Log.d(TAG, "Could not connect to target: " + exc.getMessage());
+                        connectNext(connection);
+                    }
+                }
+            };
+
+    private final CompletionHandler<Integer, Relay> readHandler = new CompletionHandler<Integer, Relay>() {
+        @Override
+        public void completed(Integer result, Relay relay) {
+            int read = result;
+            if (read < 0) {
+                // Everything read before has been written, as writes complete before reading again
+                closeConnection(relay.connection);
+                finish(relay);
+                return;
+            }
+
+            consumeRate(relay.connection, read);
+            if (relay.upstream) {
+                stats.recordBytesUp(read);
+            } else {
+                stats.recordBytesDown(read);
+            }
+            relay.connection.entry.recordBytes(relay.upstream, read);
+            relay.buffer.flip();
+            write(relay);
+        }
+
+        @Override
+        public void failed(Throwable exc, Relay relay) {
+            fail(relay, exc);
+        }
+    };
+
+    private final CompletionHandler<Integer, Relay> writeHandler = new CompletionHandler<Integer, Relay>() {
+        @Override
+        public void completed(Integer result, Relay relay) {
+            if (relay.buffer.hasRemaining()) {
+                write(relay);
+                return;
+            }
+
+            relay.buffer.clear();
+            long waitNanos = rateWaitNanos(relay.connection, System.nanoTime());
+            if (waitNanos > 0) {
+                stats.recordThrottled(waitNanos);
+                relay.connection.entry.setThrottled(relay.upstream, true);
+                schedule(relay, waitNanos);
+            } else {
+                read(relay);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Relay relay) {
+            fail(relay, exc);
+        }
+    };
+
+    /**
+     * Close the connections which were asked to close through the {@link ConnectionTable}.
+     */
+    private final Runnable closeRequestsTask = new Runnable() {
+        @Override
+        public void run() {
+            Object connection;
+            while ((connection = connectionTable.pollCloseRequest()) != null) {
+                closeConnection((Connection) connection);
+            }
+        }
+    };
+
+    private final Runnable acceptTask = new Runnable() {
+        @Override
+        public void run() {
+            accept();
+        }
+    };
+
+    private final Runnable resumeAcceptingTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeAccepting();
+        }
+    };
+
+    private final Runnable connectResolvedTask = new Runnable() {
+        @Override
+        public void run() {
+            connectResolvedClients();
+        }
+    };
+
+    private final TargetResolver.Listener resolverListener = new TargetResolver.Listener() {
+        @Override
+        public void onResolved(String hostname) {
+            schedule(connectResolvedTask, 0);
+        }
+    };
+
+    public AsyncTcpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName) {
+        this(form, to, ruleName, new SocketProfile(), new TrafficPolicy());
+    }
+
+    public AsyncTcpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName,
+                             SocketProfile socketProfile, TrafficPolicy trafficPolicy) {
+        super("TCP", form, to, ruleName, socketProfile, trafficPolicy);
+        this.circuitBreakers = new CircuitBreaker[]{newCircuitBreaker(to)};
+    }
+
+    /**
+     * @return true if the device supports asynchronous channels.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    private CircuitBreaker newCircuitBreaker(InetSocketAddress target) {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(target);
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                Log.w(TAG, String.format(CIRCUIT_STATE_CHANGE_MESSAGE, circuitBreaker.getTarget(), AsyncTcpForwarder.this.ruleName, from, to));
+                if (to == CircuitBreaker.State.OPEN) {
+                    stats.recordCircuitOpened();
+                }
+            }
+        });
+        return circuitBreaker;
+    }
+
+    /**
+     * Return the {@link CircuitBreaker}s guarding each target of this forwarder, the rule's own
+     * target first and then the target of each route.
+     *
+     * @return the {@link CircuitBreaker}s.
+     */
+    @Override
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return Arrays.asList(circuitBreakers);
+    }
+
+    /**
+     * Set the router choosing a target per source, giving each target its own
+     * {@link CircuitBreaker}. Must be called before the forwarder is started, and before
+     * listening to the {@link CircuitBreaker}s.
+     *
+     * @param sourceRouter the compiled routes of the rule, or null.
+     */
+    @Override
+    public void setSourceRouter(SourceRouter sourceRouter) {
+        super.setSourceRouter(sourceRouter);
+
+        CircuitBreaker defaultCircuitBreaker = circuitBreakers[SourceRouter.DEFAULT_ROUTE];
+        if (sourceRouter == null) {
+            circuitBreakers = new CircuitBreaker[]{defaultCircuitBreaker};
+            return;
+        }
+
+        circuitBreakers = new CircuitBreaker[sourceRouter.getTargetCount()];
+        circuitBreakers[SourceRouter.DEFAULT_ROUTE] = defaultCircuitBreaker;
+        for (int route = SourceRouter.DEFAULT_ROUTE + 1; route < circuitBreakers.length; route++) {
+            circuitBreakers[route] = newCircuitBreaker(sourceRouter.getTarget(route));
+        }
+    }
+
+    /**
+     * Set the limit on connections shared by all rules. Must be called before the forwarder is
+     * started.
+     *
+     * @param connectionLimiter the shared limit, or null.
+     */
+    public void setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    /**
+     * Set the limit on the rule's connections shared by the shards of a sharded rule, in place of
+     * this forwarder's own count. Must be called before the forwarder is started.
+     *
+     * @param ruleConnectionLimiter the shared limit, or null.
+     */
+    public void setRuleConnectionLimiter(ConnectionLimiter ruleConnectionLimiter) {
+        this.ruleConnectionLimiter = ruleConnectionLimiter;
+    }
+
+    public Void call() throws IOException, BindException {
+
+        Log.d(TAG, String.format(super.START_MESSAGE, protocol, from.getPort(), to.getPort()));
+
+        acquireSharedGroup();
+        try {
+            prefetchTarget();
+
+            bufferPool = new BufferPool(AdaptiveBufferSizer.MIN_SIZE, socketProfile.getRelayBufferSize(), POOLED_BUFFERS_PER_SIZE);
+
+            listening = AsynchronousServerSocketChannel.open(group);
+            try {
+                listening.setOption(StandardSocketOptions.SO_REUSEADDR, isReuseAddress());
+
+                // Accepted sockets inherit the receive buffer, it must be set before bind for the
+                // window scale to be negotiated
+                if (socketProfile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+                    listening.setOption(StandardSocketOptions.SO_RCVBUF, socketProfile.getReceiveBufferSize());
+                }
+                shareAddress(listening);
+
+                listening.bind(this.from, socketProfile.getBacklog());
+                steerSources(listening);
+            } catch (SocketException e) {
+                Log.e(TAG, String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
+                listening.close();
+                throw new BindException(String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
+            }
+
+            notifyBound();
+            connectionTable.setCloseRequestListener(new Runnable() {
+                @Override
+                public void run() {
+                    schedule(closeRequestsTask, 0);
+                }
+            });
+            accept();
+
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Log.i(TAG, String.format(super.THREAD_INTERRUPT_CLEANUP_MESSAGE, protocol));
+            }
+            close();
+        } finally {
+            releaseSharedGroup();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stop accepting and close every connection of the forwarder.
+     */
+    private void close() {
+        List<Connection> open;
+        AsynchronousSocketChannel parked;
+        connectionTable.setCloseRequestListener(null);
+        synchronized (this) {
+            closing = true;
+            open = new ArrayList<>(connections);
+            parked = parkedClient;
+            parkedClient = null;
+        }
+
+        try {
+            listening.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close listening socket", e);
+        }
+        closeQuietly(parked);
+
+        for (Connection connection : open) {
+            closeConnection(connection);
+        }
+        stopped.countDown();
+    }
+
+    private synchronized boolean isClosing() {
+        return closing;
+    }
+
+    private void acquireSharedGroup() throws IOException {
+        synchronized (sharedLock) {
+            if (sharedUsers == 0) {
+                ThreadFactory threadFactory = new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                };
+                sharedGroup = AsynchronousChannelGroup.withFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(), threadFactory);
+                sharedTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            }
+            sharedUsers++;
+            group = sharedGroup;
+            timer = sharedTimer;
+        }
+    }
+
+    private void releaseSharedGroup() {
+        synchronized (sharedLock) {
+            sharedUsers--;
+            if (sharedUsers == 0) {
+                try {
+                    sharedGroup.shutdownNow();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not shut down channel group", e);
+                }
+                sharedTimer.shutdownNow();
+                sharedGroup = null;
+                sharedTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Run a task on the timer after a delay, unless the forwarder has stopped.
+     */
+    private void schedule(Runnable task, long delayNanos) {
+        try {
+            timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Forwarder stopped, task dropped");
+        }
+    }
+
+    private void accept() {
+        if (isClosing()) {
+            return;
+        }
+
+        try {
+            listening.accept(null, acceptHandler);
+        } catch (RuntimeException e) {
+            // Closed or shut down while stopping
+            Log.d(TAG, "Could not accept: " + e);
+        }
+    }
+
+    /**
+     * Take a connection slot for an accepted client. When a limit is reached the client is reset
+     * if the rule rejects excess connections, or otherwise parked and no more clients are accepted
+     * until a slot is free, leaving them in the listen backlog.
+     * <p>
+     * Clients from sources which are not allowed are reset first, and take no slot and no accept
+     * token from the limits shared with other rules.
+     *
+     * @return true if the client was admitted, and accepting should carry on.
+     */
+    private boolean admit(AsynchronousSocketChannel client) {
+        long now = System.nanoTime();
+        SocketAddress source;
+        try {
+            source = client.getRemoteAddress();
+        } catch (IOException e) {
+            Log.d(TAG, "Client closed before it was admitted: " + e.getMessage());
+            closeQuietly(client);
+            accept();
+            return false;
+        }
+
+        boolean allowed;
+        synchronized (this) {
+            if (closing) {
+                closeQuietly(client);
+                return false;
+            }
+
+            allowed = isSourceAllowed(source, now);
+            if (allowed) {
+                if (tryAdmitConnection(now)) {
+                    return true;
+                }
+
+                if (!trafficPolicy.isRejectExcessConnections()) {
+                    parkedClient = client;
+                    scheduleResumeAccepting(now);
+                    return false;
+                }
+            }
+        }
+
+        if (allowed) {
+            stats.recordRejectedConnection();
+        }
+        resetClient(client);
+        accept();
+        return false;
+    }
+
+    /**
+     * Take a connection slot from the rule's and the global connection limits.
+     *
+     * @return true if a connection may be admitted.
+     */
+    private synchronized boolean tryAdmitConnection(long now) {
+        if (ruleConnectionLimiter != null) {
+            if (!ruleConnectionLimiter.tryAcquire(now)) {
+                return false;
+            }
+        } else if (isRuleFull()) {
+            return false;
+        }
+
+        if (connectionLimiter != null && !connectionLimiter.tryAcquire(now)) {
+            if (ruleConnectionLimiter != null) {
+                ruleConnectionLimiter.release();
+            }
+            return false;
+        }
+
+        activeConnections++;
+        stats.recordConnectionOpened();
+        return true;
+    }
+
+    /**
+     * @return true if the rule's limit, counted by this forwarder alone, is reached.
+     */
+    private synchronized boolean isRuleFull() {
+        int maxConnections = trafficPolicy.getMaxConnections();
+        return ruleConnectionLimiter == null
+                && maxConnections != TrafficPolicy.UNLIMITED && activeConnections >= maxConnections;
+    }
+
+    /**
+     * While a client is parked, try the shared limits again after a delay, as other threads hold
+     * their connections. If the rule's own limit is reached the client waits for one of the rule's
+     * connections to close instead.
+     */
+    private synchronized void scheduleResumeAccepting(long now) {
+        if (isRuleFull() || (connectionLimiter == null && ruleConnectionLimiter == null)) {
+            return;
+        }
+
+        long retryNanos = 0;
+        if (ruleConnectionLimiter != null) {
+            retryNanos = ruleConnectionLimiter.nanosUntilAvailable(now);
+        }
+        if (connectionLimiter != null) {
+            retryNanos = Math.max(retryNanos, connectionLimiter.nanosUntilAvailable(now));
+        }
+        schedule(resumeAcceptingTask, Math.max(1, retryNanos));
+    }
+
+    /**
+     * Admit the parked client if a slot is now free, and accept again.
+     */
+    private void resumeAccepting() {
+        AsynchronousSocketChannel client;
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (parkedClient == null) {
+                return;
+            }
+            if (!tryAdmitConnection(now)) {
+                scheduleResumeAccepting(now);
+                return;
+            }
+            client = parkedClient;
+            parkedClient = null;
+        }
+
+        accept();
+        serve(client);
+    }
+
+    /**
+     * Return the slot of a connection turned away before it was used, together with the accept
+     * tokens it took, and admit the parked client if there is one.
+     */
+    private void cancelConnection() {
+        boolean resume;
+        synchronized (this) {
+            activeConnections--;
+            stats.recordConnectionClosed();
+            if (ruleConnectionLimiter != null) {
+                ruleConnectionLimiter.cancel();
+            }
+            if (connectionLimiter != null) {
+                connectionLimiter.cancel();
+            }
+            resume = parkedClient != null;
+        }
+
+        if (resume) {
+            resumeAccepting();
+        }
+    }
+
+    /**
+     * Return the slot of a closed connection, and admit the parked client if there is one.
+     */
+    private void releaseConnection() {
+        boolean resume;
+        synchronized (this) {
+            activeConnections--;
+            stats.recordConnectionClosed();
+            if (ruleConnectionLimiter != null) {
+                ruleConnectionLimiter.release();
+            }
+            if (connectionLimiter != null) {
+                connectionLimiter.release();
+            }
+            resume = parkedClient != null;
+        }
+
+        if (resume) {
+            resumeAccepting();
+        }
+    }
+
+    /**
+     * Start forwarding an admitted client, once the target of its route is not known to be
+     * refusing connections.
+     */
+    private void serve(AsynchronousSocketChannel client) {
+        SocketAddress source;
+        try {
+            source = client.getRemoteAddress();
+        } catch (IOException e) {
+            Log.d(TAG, "Client closed before it was served: " + e.getMessage());
+            closeQuietly(client);
+            releaseConnection();
+            return;
+        }
+
+        Connection connection;
+        boolean circuitOpen = false;
+        synchronized (this) {
+            if (closing) {
+                connection = null;
+            } else {
+                int route = routeOf(source);
+
+                // Fail fast while the target is known to be refusing connections
+                if (circuitBreakers[route].allowRequest()) {
+                    connection = new Connection(client, route);
+                    connections.add(connection);
+                } else {
+                    stats.recordCircuitRejection();
+                    circuitOpen = true;
+                    connection = null;
+                }
+            }
+        }
+
+        if (connection == null) {
+            resetClient(client);
+            if (circuitOpen) {
+                cancelConnection();
+            } else {
+                releaseConnection();
+            }
+            return;
+        }
+
+        connectTarget(connection);
+    }
+
+    /**
+     * Start connecting a client to the target of its route. A hostname target is resolved without
+     * blocking, and while its addresses are not yet known the client waits, holding its
+     * connection slot, until the resolver reports back.
+     */
+    private void connectTarget(Connection connection) {
+        InetSocketAddress forwardToAddress = targetOf(connection.route);
+        InetAddress[] addresses;
+
+        if (forwardToAddress.isUnresolved()) {
+            addresses = resolveTarget(forwardToAddress, resolverListener);
+            if (addresses == null) {
+                synchronized (this) {
+                    awaitingResolution.add(connection);
+                }
+                return;
+            }
+            if (addresses.length == 0) {
+                Log.d(TAG, "Could not resolve " + forwardToAddress.getHostName());
+                recordConnectFailure(connection);
+                resetClient(connection.client);
+                closeConnection(connection);
+                return;
+            }
+        } else {
+            addresses = new InetAddress[]{forwardToAddress.getAddress()};
+        }
+
+        try {
+            applySocketProfile(connection.client);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not set up client: " + e.getMessage());
+            recordConnectFailure(connection);
+            resetClient(connection.client);
+            closeConnection(connection);
+            return;
+        }
+
+        connection.addresses = addresses;
+        connection.port = forwardToAddress.getPort();
+        connectNext(connection);
+    }
+
+    /**
+     * Retry the clients waiting for their target to be resolved. Clients whose target is still
+     * being resolved wait again.
+     */
+    private void connectResolvedClients() {
+        List<Connection> resolved;
+        synchronized (this) {
+            resolved = new ArrayList<>(awaitingResolution);
+            awaitingResolution.clear();
+        }
+
+        for (Connection connection : resolved) {
+            if (connection.closed) {
+                recordConnectFailure(connection);
+            } else {
+                connectTarget(connection);
+            }
+        }
+    }
+
+    /**
+     * Connect to the next address of the target. Once every address has failed, the client is
+     * reset.
+     */
+    private void connectNext(Connection connection) {
+        if (connection.nextAddress >= connection.addresses.length) {
+            recordConnectFailure(connection);
+            resetClient(connection.client);
+            closeConnection(connection);
+            return;
+        }
+
+        InetSocketAddress address = new InetSocketAddress(
+                connection.addresses[connection.nextAddress++], connection.port);
+        try {
+            connection.target = AsynchronousSocketChannel.open(group);
+            applySocketProfile(connection.target);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not open target socket: " + e.getMessage());
+            recordConnectFailure(connection);
+            closeConnection(connection);
+            return;
+        }
+
+        // Closing the connection from now on fails the connect through the handler
+        if (connection.closed) {
+            recordConnectFailure(connection);
+            closeQuietly(connection.target);
+            return;
+        }
+        connection.target.connect(address, connection, connectHandler);
+    }
+
+    /**
+     * Report a client which will not reach its target to the breaker of its route. Every client
+     * allowed through the breaker ends here or in a recorded success, so a probe is never left
+     * without an outcome.
+     */
+    private synchronized void recordConnectFailure(Connection connection) {
+        circuitBreakers[connection.route].recordFailure();
+    }
+
+    /**
+     * Start relaying both directions of a connected client.
+     */
+    private void startRelaying(Connection connection) {
+        try {
+            connection.entry = connectionTable.add(
+                    (InetSocketAddress) connection.client.getRemoteAddress(),
+                    (InetSocketAddress) connection.target.getRemoteAddress(),
+                    connection);
+        } catch (IOException e) {
+            Log.d(TAG, "Client left before relaying: " + e.getMessage());
+            closeConnection(connection);
+            return;
+        }
+
+        // Closed meanwhile, before the entry could be removed
+        if (connection.closed) {
+            connectionTable.remove(connection.entry);
+            return;
+        }
+
+        Relay upstream;
+        Relay downstream;
+        synchronized (bufferPool) {
+            upstream = new Relay(connection, connection.client, connection.target,
+                    bufferPool.acquire(socketProfile.getRelayBufferSize()));
+            downstream = new Relay(connection, connection.target, connection.client,
+                    bufferPool.acquire(socketProfile.getRelayBufferSize()));
+        }
+        upstream.upstream = true;
+        connection.rateLimiter = TokenBucket.forLimit(trafficPolicy.getConnectionRateLimit());
+
+        read(upstream);
+        read(downstream);
+    }
+
+    private void read(Relay relay) {
+        if (relay.connection.closed) {
+            finish(relay);
+            return;
+        }
+
+        // Read no more than the rate limits allow, so a full buffer does not overshoot them
+        long allowance = rateAllowance(relay.connection, System.nanoTime());
+        if (allowance < relay.buffer.capacity()) {
+            relay.buffer.limit((int) Math.max(AdaptiveBufferSizer.MIN_SIZE, allowance));
+        }
+
+        try {
+            relay.source.read(relay.buffer, relay, readHandler);
+        } catch (RuntimeException e) {
+            fail(relay, e);
+        }
+    }
+
+    private void write(Relay relay) {
+        try {
+            relay.destination.write(relay.buffer, relay, writeHandler);
+        } catch (RuntimeException e) {
+            fail(relay, e);
+        }
+    }
+
+    /**
+     * A read or write of a relay failed, close its connection.
+     */
+    private void fail(Relay relay, Throwable exc) {
+        if (!(exc instanceof AsynchronousCloseException)) {
+            Log.d(TAG, "Error relaying connection: " + exc.getMessage());
+        }
+        closeConnection(relay.connection);
+        finish(relay);
+    }
+
+    /**
+     * Return a relay's buffer to the pool. Only called once its last read or write has completed,
+     * as the group may still be filling or draining the buffer until then.
+     */
+    private void finish(Relay relay) {
+        synchronized (bufferPool) {
+            bufferPool.release(relay.buffer);
+        }
+        relay.buffer = null;
+    }
+
+    /**
+     * Close both sides of a connection, and return its slot.
+     */
+    private void closeConnection(Connection connection) {
+        synchronized (this) {
+            if (connection.closed) {
+                return;
+            }
+            connection.closed = true;
+            connections.remove(connection);
+        }
+
+        closeQuietly(connection.client);
+        closeQuietly(connection.target);
+        if (connection.entry != null) {
+            connectionTable.remove(connection.entry);
+        }
+        releaseConnection();
+    }
+
+    /**
+     * @return the amount of bytes the connection may read before a rate limit runs out.
+     */
+    private long rateAllowance(Connection connection, long now) {
+        long allowance = Long.MAX_VALUE;
+        if (connection.rateLimiter != null) {
+            allowance = Math.min(allowance, connection.rateLimiter.available(now));
+        }
+        if (ruleRateLimiter != null) {
+            allowance = Math.min(allowance, ruleRateLimiter.available(now));
+        }
+        if (globalRateLimiter != null) {
+            allowance = Math.min(allowance, globalRateLimiter.available(now));
+        }
+        return allowance;
+    }
+
+    private void consumeRate(Connection connection, int bytes) {
+        if (connection.rateLimiter != null) {
+            connection.rateLimiter.consume(bytes);
+        }
+        if (ruleRateLimiter != null) {
+            ruleRateLimiter.consume(bytes);
+        }
+        if (globalRateLimiter != null) {
+            globalRateLimiter.consume(bytes);
+        }
+    }
+
+    /**
+     * @return the time in nanoseconds until all of the connection's rate limits have tokens.
+     */
+    private long rateWaitNanos(Connection connection, long now) {
+        long wait = 0;
+        if (connection.rateLimiter != null) {
+            wait = Math.max(wait, connection.rateLimiter.nanosUntilAvailable(now));
+        }
+        if (ruleRateLimiter != null) {
+            wait = Math.max(wait, ruleRateLimiter.nanosUntilAvailable(now));
+        }
+        if (globalRateLimiter != null) {
+            wait = Math.max(wait, globalRateLimiter.nanosUntilAvailable(now));
+        }
+        return wait;
+    }
+
+    /**
+     * Apply the rule's {@link SocketProfile} to a connected, or to be connected, socket.
+     */
+    private void applySocketProfile(AsynchronousSocketChannel socketChannel) throws IOException {
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, socketProfile.isTcpNoDelay());
+        socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, socketProfile.isKeepAlive());
+
+        if (socketProfile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketProfile.getReceiveBufferSize());
+        }
+
+        if (socketProfile.getSendBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, socketProfile.getSendBufferSize());
+        }
+    }
+
+    /**
+     * Close a client connection with a TCP reset rather than a graceful shutdown, so the client
+     * learns straight away that the target is unavailable. Asynchronous channels do not support
+     * SO_LINGER, without the native library the client is closed gracefully.
+     */
+    private static void resetClient(AsynchronousSocketChannel client) {
+        int fd = NativeTransport.isAvailable() ? NativeTransport.getFd(client) : -1;
+        if (fd >= 0) {
+            try {
+                NativeTransport.setResetOnClose(fd);
+            } catch (IOException e) {
+                Log.d(TAG, "Could not set linger on client socket", e);
+            }
+        }
+        closeQuietly(client);
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel socketChannel) {
+        if (socketChannel == null) {
+            return;
+        }
+
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close socket", e);
+        }
+    }
+
+    /**
+     * An admitted client and its connection to the target.
+     */
+    static class Connection {
+        final AsynchronousSocketChannel client;
+
+        /**
+         * The route of the client's source, see {@link SourceRouter}.
+         */
+        final int route;
+
+        /**
+         * The socket connecting or connected to the target, or null before the first attempt.
+         */
+        volatile AsynchronousSocketChannel target;
+
+        /**
+         * The addresses of the target and the next one to try.
+         */
+        InetAddress[] addresses;
+        int nextAddress;
+        int port;
+
+        /**
+         * The limit shared by both directions of the connection, or null if unlimited.
+         */
+        TokenBucket rateLimiter;
+
+        /**
+         * Set under the forwarder's lock, read by the completion handlers.
+         */
+        volatile boolean closed;
+
+        /**
+         * The connection's entry in the forwarder's {@link ConnectionTable}, set once it relays.
+         */
+        volatile ConnectionTable.Entry entry;
+
+        Connection(AsynchronousSocketChannel client, int route) {
+            this.client = client;
+            this.route = route;
+        }
+    }
+
+    /**
+     * One direction of a connection, which always has exactly one read, write or rate limit delay
+     * outstanding until the connection closes.
+     */
+    final class Relay implements Runnable {
+        final Connection connection;
+        final AsynchronousSocketChannel source;
+        final AsynchronousSocketChannel destination;
+        ByteBuffer buffer;
+
+        /**
+         * Whether the relay reads from the client and writes to the target.
+         */
+        boolean upstream;
+
+        Relay(Connection connection, AsynchronousSocketChannel source, AsynchronousSocketChannel destination,
+              ByteBuffer buffer) {
+            this.connection = connection;
+            this.source = source;
+            this.destination = destination;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read again once a rate limit has tokens.
+         */
+        @Override
+        public void run() {
+            connection.entry.setThrottled(upstream, false);
+            read(this);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link BufferPool} class recycles direct {@link ByteBuffer} objects in power of two size
+ * classes.
+ * <p>
+ * Direct buffers avoid the copy NIO performs through a temporary direct buffer for heap buffers,
+ * but are expensive to allocate, so they are kept and reused rather than left to the garbage
+ * collector. Only a bounded amount of buffers is kept per size class.
+ * <p>
+ * Instances are not thread safe and should be confined to a single forwarding thread.
+ */
+public class BufferPool {
+
+    private final int minSize;
+    private final int maxSize;
+    private final int maxPooledPerClass;
+    private final List<ArrayDeque<ByteBuffer>> classes;
+
+    private long allocatedBytes;
+
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass) {
+        this.minSize = roundUpToPowerOfTwo(minSize);
+        this.maxSize = Math.max(this.minSize, roundUpToPowerOfTwo(maxSize));
+        this.maxPooledPerClass = maxPooledPerClass;
+
+        int classCount = classIndex(this.maxSize) + 1;
+        this.classes = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            this.classes.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Return a cleared buffer which can hold at least the requested amount of bytes, or the
+     * maximum size of this pool if that is smaller.
+     *
+     * @param size the requested capacity.
+     * @return a cleared {@link ByteBuffer}.
+     */
+    public ByteBuffer acquire(int size) {
+        int capacity = Math.min(maxSize, Math.max(minSize, roundUpToPowerOfTwo(size)));
+        ByteBuffer buffer = classes.get(classIndex(capacity)).pollFirst();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocatedBytes += capacity;
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers which were not acquired from this pool, or which do not
+     * fit in a full size class, are dropped.
+     *
+     * @param buffer the buffer to recycle, may be null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if (capacity < minSize || capacity > maxSize || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> sizeClass = classes.get(classIndex(capacity));
+        if (sizeClass.size() < maxPooledPerClass) {
+            sizeClass.addFirst(buffer);
+        } else {
+            allocatedBytes -= capacity;
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the amount of direct memory currently held by this pool, including buffers in use.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private int classIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        int highest = Integer.highestOneBit(value - 1) << 1;
+        return highest < 0 ? 1 << 30 : highest;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker} class tracks connect failures to a single forwarding target.
+ * <p>
+ * While the target keeps refusing connections the breaker is {@link State#OPEN} and incoming
+ * clients should be reset straight away, rather than each one triggering an upstream connect that
+ * is known to fail. Once the open period has elapsed a single probe connection is let through
+ * ({@link State#HALF_OPEN}); if it succeeds the breaker closes again, otherwise it re-opens with a
+ * doubled open period. Every request which is allowed must be followed by
+ * {@link #recordSuccess()} or {@link #recordFailure()}; a probe left without an outcome is only
+ * replaced after {@link #PROBE_TIMEOUT_MILLIS}.
+ * <p>
+ * Instances are confined to the forwarding thread which owns them. The state may be read from any
+ * thread. Forwarders count rejected clients and openings in their {@link ForwarderStats}.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The default amount of consecutive failures before the breaker opens.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time the breaker stays open before allowing a probe.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 5000;
+
+    /**
+     * The longest time the breaker will stay open after repeated failed probes.
+     */
+    public static final long MAX_OPEN_MILLIS = 60000;
+
+    /**
+     * How long a probe may go without an outcome before another one is let through, so a probe
+     * whose outcome is never recorded cannot keep the breaker half open for good. A connect which
+     * has not finished by then is failing anyway.
+     */
+    public static final long PROBE_TIMEOUT_MILLIS = 30000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Callback for breaker state transitions. Called on the forwarding thread.
+     */
+    public interface Listener {
+        void onStateChange(CircuitBreaker circuitBreaker, State from, State to);
+    }
+
+    private final InetSocketAddress target;
+    private final int failureThreshold;
+    private final long baseOpenMillis;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMillis;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long probeStartedAt;
+
+    public CircuitBreaker(InetSocketAddress target) {
+        this(target, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    public CircuitBreaker(InetSocketAddress target, int failureThreshold, long openMillis) {
+        this.target = target;
+        this.failureThreshold = failureThreshold;
+        this.baseOpenMillis = openMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Determine whether a new upstream connection may be attempted.
+     * <p>
+     * The caller is expected to fail a rejected client immediately.
+     *
+     * @return true if the caller should connect to the target, false if the client should be
+     * rejected.
+     */
+    public boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (now() - openedAt >= openMillis) {
+                    transition(State.HALF_OPEN);
+                    startProbe();
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                if (!probeInFlight || now() - probeStartedAt >= PROBE_TIMEOUT_MILLIS) {
+                    startProbe();
+                    return true;
+                }
+                break;
+            case CLOSED:
+            default:
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record that an upstream connection to the target was established.
+     */
+    public void recordSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        openMillis = baseOpenMillis;
+
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * Record that an upstream connection to the target failed.
+     */
+    public void recordFailure() {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN) {
+            // The probe failed, back off further before trying again
+            probeInFlight = false;
+            openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public InetSocketAddress getTarget() {
+        return target;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    private void startProbe() {
+        probeInFlight = true;
+        probeStartedAt = now();
+    }
+
+    private void open() {
+        openedAt = now();
+        transition(State.OPEN);
+    }
+
+    private void transition(State to) {
+        State from = state;
+        if (from == to) {
+            return;
+        }
+        state = to;
+
+        for (Listener listener : listeners) {
+            listener.onStateChange(this, from, to);
+        }
+    }
+
+    /**
+     * @return the current time in milliseconds, on a monotonic clock. Tests override it to move
+     * time forward.
+     */
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
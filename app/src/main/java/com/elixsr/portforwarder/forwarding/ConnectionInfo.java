@@ -0,0 +1,110 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The {@link ConnectionInfo} class is an immutable copy of a connection a rule is relaying, taken
+ * from a {@link ConnectionTable}.
+ */
+public final class ConnectionInfo {
+
+    public enum State {
+        /**
+         * The connection is relaying.
+         */
+        OPEN,
+        /**
+         * Reading from the connection is paused by a rate limit.
+         */
+        THROTTLED,
+        /**
+         * The connection was asked to close, and is being closed by its forwarder.
+         */
+        CLOSING
+    }
+
+    private final long id;
+    private final InetSocketAddress client;
+    private final InetSocketAddress target;
+    private final long openedAtMillis;
+    private final long bytesUp;
+    private final long bytesDown;
+    private final State state;
+
+    ConnectionInfo(long id, InetSocketAddress client, InetSocketAddress target, long openedAtMillis,
+                   long bytesUp, long bytesDown, State state) {
+        this.id = id;
+        this.client = client;
+        this.target = target;
+        this.openedAtMillis = openedAtMillis;
+        this.bytesUp = bytesUp;
+        this.bytesDown = bytesDown;
+        this.state = state;
+    }
+
+    /**
+     * @return the id of the connection, unique while forwarding runs. Connections opened later
+     * have greater ids.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public InetSocketAddress getClient() {
+        return client;
+    }
+
+    public InetSocketAddress getTarget() {
+        return target;
+    }
+
+    /**
+     * @return when the connection started relaying, in milliseconds since the epoch.
+     */
+    public long getOpenedAtMillis() {
+        return openedAtMillis;
+    }
+
+    /**
+     * @return the bytes read from the client.
+     */
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    /**
+     * @return the bytes read from the target.
+     */
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return whether the connection's counters or state differ from those of another copy.
+     */
+    public boolean hasChanged(ConnectionInfo previous) {
+        return bytesUp != previous.bytesUp || bytesDown != previous.bytesDown || state != previous.state;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ConnectionLimiter} class limits the connections accepted by several forwarding
+ * threads combined: those of all rules, or the shards of one rule.
+ * <p>
+ * It caps the amount of concurrent connections, and the rate new connections are accepted at. It
+ * is shared between the forwarding threads it limits.
+ */
+public class ConnectionLimiter {
+
+    /**
+     * How long to wait before trying again when the concurrent connection limit is reached. The
+     * connections are held by other threads, which do not signal when they close.
+     */
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final int maxConnections;
+    private final TokenBucket acceptRateLimiter;
+
+    private int activeConnections;
+
+    /**
+     * @param maxConnections   the limit on concurrent connections, 0 for no limit.
+     * @param acceptsPerSecond the limit on new connections per second, 0 for no limit.
+     */
+    public ConnectionLimiter(int maxConnections, int acceptsPerSecond) {
+        this.maxConnections = maxConnections;
+        this.acceptRateLimiter = acceptsPerSecond > 0
+                ? new TokenBucket(acceptsPerSecond, acceptsPerSecond)
+                : null;
+    }
+
+    /**
+     * Take a connection slot if the limits allow it. A slot which is taken must be returned with
+     * {@link #release()} once the connection closes.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return true if the connection may be accepted.
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (maxConnections > 0 && activeConnections >= maxConnections) {
+            return false;
+        }
+
+        if (acceptRateLimiter != null) {
+            if (acceptRateLimiter.available(now) < 1) {
+                return false;
+            }
+            acceptRateLimiter.consume(1);
+        }
+
+        activeConnections++;
+        return true;
+    }
+
+    /**
+     * Return a connection slot taken with {@link #tryAcquire(long)}.
+     */
+    public synchronized void release() {
+        if (activeConnections > 0) {
+            activeConnections--;
+        }
+    }
+
+    /**
+     * Return a connection slot taken with {@link #tryAcquire(long)} for a connection which was
+     * turned away before it was used, together with its accept token, so it does not count against
+     * the accept rate.
+     */
+    public synchronized void cancel() {
+        release();
+        if (acceptRateLimiter != null) {
+            acceptRateLimiter.refund(1);
+        }
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in nanoseconds after which {@link #tryAcquire(long)} may succeed again.
+     */
+    public synchronized long nanosUntilAvailable(long now) {
+        if (maxConnections > 0 && activeConnections >= maxConnections) {
+            return RETRY_NANOS;
+        }
+        return acceptRateLimiter == null ? 0 : acceptRateLimiter.nanosUntilAvailable(now);
+    }
+
+    public synchronized int getActiveConnections() {
+        return activeConnections;
+    }
+}
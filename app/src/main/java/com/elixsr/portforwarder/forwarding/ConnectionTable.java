@@ -0,0 +1,196 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link ConnectionTable} class holds the connections a {@link Forwarder} is relaying, so they
+ * can be inspected and closed from other threads.
+ * <p>
+ * The forwarding thread adds and removes connections and updates their counters without locking.
+ * Readers copy a page of the connections at a time, which never waits for the forwarding thread
+ * however many connections there are; a page may miss connections opened or closed while it is
+ * copied. Connections are closed by the forwarding thread when it is told a close was requested.
+ */
+public final class ConnectionTable {
+
+    /**
+     * Ids are unique across forwarders, so the connections of a rule's forwarders are paged
+     * together in the order they were opened.
+     */
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final ConcurrentNavigableMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+    private final Queue<Entry> closeRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tells the forwarding thread that closes were requested, or null if closes are ignored.
+     */
+    private volatile Runnable closeRequestListener;
+
+    /**
+     * A connection of the table. Written by the forwarding thread, read by any thread.
+     */
+    static final class Entry {
+        final long id;
+        final InetSocketAddress client;
+        final InetSocketAddress target;
+        final long openedAtMillis;
+
+        /**
+         * The forwarder's own object for the connection.
+         */
+        final Object attachment;
+
+        volatile long bytesUp;
+        volatile long bytesDown;
+        volatile boolean throttledUp;
+        volatile boolean throttledDown;
+        volatile boolean closeRequested;
+
+        Entry(long id, InetSocketAddress client, InetSocketAddress target, Object attachment) {
+            this.id = id;
+            this.client = client;
+            this.target = target;
+            this.attachment = attachment;
+            this.openedAtMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Count bytes read in one direction. Each direction must only be counted by one thread at
+         * a time.
+         */
+        void recordBytes(boolean upstream, int bytes) {
+            if (upstream) {
+                bytesUp += bytes;
+            } else {
+                bytesDown += bytes;
+            }
+        }
+
+        void setThrottled(boolean upstream, boolean throttled) {
+            if (upstream) {
+                throttledUp = throttled;
+            } else {
+                throttledDown = throttled;
+            }
+        }
+
+        ConnectionInfo toInfo() {
+            ConnectionInfo.State state;
+            if (closeRequested) {
+                state = ConnectionInfo.State.CLOSING;
+            } else if (throttledUp || throttledDown) {
+                state = ConnectionInfo.State.THROTTLED;
+            } else {
+                state = ConnectionInfo.State.OPEN;
+            }
+            return new ConnectionInfo(id, client, target, openedAtMillis, bytesUp, bytesDown, state);
+        }
+    }
+
+    /**
+     * Add a connection which started relaying. Called by the forwarding thread.
+     *
+     * @param client     the address of the client.
+     * @param target     the address of the target the client is connected to.
+     * @param attachment the forwarder's own object for the connection, handed back by
+     *                   {@link #pollCloseRequest()}.
+     * @return the entry to count the connection's bytes with.
+     */
+    Entry add(InetSocketAddress client, InetSocketAddress target, Object attachment) {
+        Entry entry = new Entry(nextId.incrementAndGet(), client, target, attachment);
+        entries.put(entry.id, entry);
+        return entry;
+    }
+
+    /**
+     * Remove a connection which closed. Called by the forwarding thread.
+     */
+    void remove(Entry entry) {
+        entries.remove(entry.id);
+    }
+
+    /**
+     * @param listener run on the thread requesting a close, to wake the forwarding thread up.
+     */
+    void setCloseRequestListener(Runnable listener) {
+        closeRequestListener = listener;
+    }
+
+    /**
+     * @return the attachment of a connection which should be closed, or null if there is none.
+     */
+    Object pollCloseRequest() {
+        Entry entry = closeRequests.poll();
+        return entry == null ? null : entry.attachment;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Copy a page of the connections, in the order they were opened.
+     *
+     * @param afterId only connections opened after the one with this id are copied, 0 for the
+     *                first page.
+     * @param limit   the most connections copied.
+     * @param out     the list the connections are added to.
+     */
+    public void copyPage(long afterId, int limit, List<ConnectionInfo> out) {
+        Map<Long, Entry> page = entries.tailMap(afterId, false);
+        int copied = 0;
+        for (Entry entry : page.values()) {
+            if (copied++ == limit) {
+                break;
+            }
+            out.add(entry.toInfo());
+        }
+    }
+
+    /**
+     * Ask the forwarding thread to close a connection.
+     *
+     * @param connectionId the id of the connection.
+     * @return false if the connection is not in the table.
+     */
+    public boolean requestClose(long connectionId) {
+        Entry entry = entries.get(connectionId);
+        Runnable listener = closeRequestListener;
+        if (entry == null || listener == null) {
+            return false;
+        }
+
+        if (!entry.closeRequested) {
+            entry.closeRequested = true;
+            closeRequests.add(entry);
+            listener.run();
+        }
+        return true;
+    }
+}
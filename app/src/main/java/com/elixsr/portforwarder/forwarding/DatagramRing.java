@@ -0,0 +1,249 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The {@link DatagramRing} class receives and sends datagrams of a socket in batches, one system
+ * call for each batch, through recvmmsg(2) and sendmmsg(2).
+ * <p>
+ * The datagrams are held off the Java heap in slots allocated once, each with the address the
+ * datagram came from, which is then replaced with the address to send it to. A batch is received
+ * with {@link #receive()} into the first slots, and sent with {@link #send()}. Slots the socket
+ * could not take stay in the ring until the next send, and the ring must be empty before it
+ * receives again.
+ * <p>
+ * Where the kernel supports UDP GRO, see {@link #enableGro()}, a slot may hold several datagrams
+ * of one flow joined together, which are split again when they are sent.
+ */
+class DatagramRing {
+
+    private static final String TAG = "DatagramRing";
+
+    /**
+     * The size of each slot's address: 16 bytes of IPv6 address, with IPv4 addresses mapped, and
+     * 2 bytes of port, in network order. Must match the native library.
+     */
+    static final int ADDRESS_SIZE = 20;
+
+    /**
+     * The length of a slot whose datagram is not sent. Must match the native library.
+     */
+    static final int DROPPED = -1;
+
+    /**
+     * The most slots of a ring, the largest batch of the native library.
+     */
+    static final int MAX_SLOTS = 64;
+
+    private static final int PORT_OFFSET = 16;
+
+    private static final long V4_MAPPED_LOW = 0x0000ffff00000000L;
+
+    private final int fd;
+    private final boolean ipv6Socket;
+
+    final int slots;
+    final int slotSize;
+
+    private final ByteBuffer packets;
+    private final ByteBuffer addresses;
+
+    /**
+     * The length of the datagram in each slot, or {@link #DROPPED}.
+     */
+    final int[] lengths;
+
+    /**
+     * The size of the datagrams joined into each slot, or 0 if it holds a single datagram.
+     */
+    final int[] segmentSizes;
+
+    /**
+     * The slots from head up to tail wait to be sent.
+     */
+    private int head;
+    private int tail;
+
+    /**
+     * The source last decoded, so a batch from one source builds its address once.
+     */
+    private long lastSourceHigh;
+    private long lastSourceLow;
+    private int lastSourcePort = -1;
+    private InetSocketAddress lastSource;
+
+    /**
+     * The destination last encoded, by identity, as targets are shared.
+     */
+    private InetSocketAddress lastTarget;
+    private long lastTargetHigh;
+    private long lastTargetLow;
+
+    private DatagramRing(int fd, boolean ipv6Socket, int slots, int slotSize) {
+        this.fd = fd;
+        this.ipv6Socket = ipv6Socket;
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.packets = ByteBuffer.allocateDirect(slots * slotSize);
+        this.addresses = ByteBuffer.allocateDirect(slots * ADDRESS_SIZE).order(ByteOrder.BIG_ENDIAN);
+        this.lengths = new int[slots];
+        this.segmentSizes = new int[slots];
+    }
+
+    /**
+     * Open a ring for a bound, non-blocking datagram socket.
+     *
+     * @param channel  the socket.
+     * @param slots    the amount of datagrams in a batch, at most {@link #MAX_SLOTS}.
+     * @param slotSize the size of each slot, large enough for the largest datagram.
+     * @return the ring, or null if batching is not available, in which case datagrams must be
+     * received one by one.
+     */
+    static DatagramRing open(DatagramChannel channel, int slots, int slotSize) {
+        if (!NativeTransport.isAvailable()) {
+            return null;
+        }
+
+        int fd = NativeTransport.getFd(channel);
+        if (fd < 0) {
+            return null;
+        }
+
+        try {
+            return new DatagramRing(fd, NativeTransport.isIpv6Socket(fd), Math.min(slots, MAX_SLOTS), slotSize);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not open datagram ring: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Let the kernel join consecutive datagrams of a flow, so a slot carries several.
+     *
+     * @return true if the kernel supports it.
+     */
+    boolean enableGro() {
+        try {
+            NativeTransport.setUdpGro(fd, true);
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "UDP GRO is not available: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Receive a batch of datagrams into the first slots. The ring must be empty.
+     *
+     * @return the amount of datagrams received, 0 if none were waiting.
+     * @throws IOException if the socket failed.
+     */
+    int receive() throws IOException {
+        head = 0;
+        tail = NativeTransport.receiveDatagrams(fd, packets, slotSize, addresses, lengths, segmentSizes, slots);
+        return tail;
+    }
+
+    /**
+     * Send the slots waiting in the ring, as far as the socket will take them.
+     *
+     * @return true if the ring is now empty.
+     * @throws IOException if the socket failed.
+     */
+    boolean send() throws IOException {
+        if (head < tail) {
+            head += NativeTransport.sendDatagrams(fd, packets, slotSize, addresses, lengths, segmentSizes,
+                    head, tail - head, ipv6Socket);
+        }
+        return isEmpty();
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Skip a received datagram when sending.
+     */
+    void drop(int slot) {
+        lengths[slot] = DROPPED;
+    }
+
+    /**
+     * @return the address a received datagram came from.
+     */
+    InetSocketAddress sourceOf(int slot) {
+        int offset = slot * ADDRESS_SIZE;
+        long high = addresses.getLong(offset);
+        long low = addresses.getLong(offset + 8);
+        int port = addresses.getShort(offset + PORT_OFFSET) & 0xffff;
+
+        if (lastSource == null || high != lastSourceHigh || low != lastSourceLow || port != lastSourcePort) {
+            byte[] address = new byte[16];
+            for (int i = 0; i < address.length; i++) {
+                address[i] = addresses.get(offset + i);
+            }
+
+            try {
+                // Mapped addresses come back as IPv4 addresses, as the sockets report them
+                lastSource = new InetSocketAddress(InetAddress.getByAddress(address), port);
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+            lastSourceHigh = high;
+            lastSourceLow = low;
+            lastSourcePort = port;
+        }
+        return lastSource;
+    }
+
+    /**
+     * Replace the address of a received datagram with the address to send it to.
+     */
+    void setTarget(int slot, InetSocketAddress target) {
+        if (target != lastTarget) {
+            byte[] address = target.getAddress().getAddress();
+            if (target.getAddress() instanceof Inet4Address) {
+                lastTargetHigh = 0;
+                lastTargetLow = V4_MAPPED_LOW | (ByteBuffer.wrap(address).getInt() & 0xffffffffL);
+            } else {
+                ByteBuffer wrapped = ByteBuffer.wrap(address);
+                lastTargetHigh = wrapped.getLong();
+                lastTargetLow = wrapped.getLong();
+            }
+            lastTarget = target;
+        }
+
+        int offset = slot * ADDRESS_SIZE;
+        addresses.putLong(offset, lastTargetHigh);
+        addresses.putLong(offset + 8, lastTargetLow);
+        addresses.putShort(offset + PORT_OFFSET, (short) target.getPort());
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link EpollTransport} class is the {@link Transport} built on Linux epoll in edge-triggered
+ * mode.
+ * <p>
+ * Each channel is added to epoll once, for both reading and writing, and never modified. Events
+ * are read into preallocated arrays of descriptors and masks, and keys are found by descriptor in
+ * an array, so waiting allocates nothing.
+ * <p>
+ * As epoll only reports a channel when it becomes ready, readiness is remembered on the key until
+ * the forwarder reports the channel would block, see {@link TransportKey#clearReady(int)}. Keys
+ * which are still ready for an operation of interest are reported by every select, without
+ * waiting. Interest changes are only bookkeeping and cost no system call.
+ * <p>
+ * Like a Selector, a select returns when the waiting thread is interrupted, see
+ * {@link InterruptWaker}.
+ * <p>
+ * Instances are used by a single forwarding thread, apart from {@link #wakeup()}.
+ */
+final class EpollTransport extends Transport {
+
+    private static final int EPOLLIN = 0x001;
+    private static final int EPOLLOUT = 0x004;
+    private static final int EPOLLERR = 0x008;
+    private static final int EPOLLHUP = 0x010;
+    private static final int EPOLLRDHUP = 0x2000;
+    private static final int EPOLLET = 1 << 31;
+
+    private static final int CHANNEL_EVENTS = EPOLLIN | EPOLLOUT | EPOLLRDHUP | EPOLLET;
+
+    private static final int MAX_EVENTS = 256;
+
+    private final int epollFd;
+
+    /**
+     * Readable when {@link #wakeup()} has been called, watched level-triggered.
+     */
+    private final int wakeupFd;
+
+    private final int[] readyFds = new int[MAX_EVENTS];
+    private final int[] readyEvents = new int[MAX_EVENTS];
+
+    private EpollKey[] keysByFd = new EpollKey[64];
+
+    /**
+     * Keys which may be ready for an operation of interest.
+     */
+    private final List<EpollKey> readyKeys = new ArrayList<>();
+
+    private final List<TransportKey> selectedKeys = new ArrayList<>();
+
+    private InterruptWaker interruptWaker = new InterruptWaker();
+
+    private volatile boolean closed;
+
+    EpollTransport() throws IOException {
+        this.epollFd = NativeTransport.epollCreate();
+        try {
+            this.wakeupFd = NativeTransport.eventFd();
+        } catch (IOException e) {
+            NativeTransport.close(epollFd);
+            throw e;
+        }
+        NativeTransport.epollAdd(epollFd, wakeupFd, EPOLLIN);
+    }
+
+    @Override
+    public TransportKey register(SelectableChannel channel, int ops, Object attachment) throws IOException {
+        if (channel.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+
+        int fd = NativeTransport.getFd(channel);
+        if (fd < 0) {
+            throw new IOException("No descriptor for " + channel);
+        }
+
+        EpollKey existing = fd < keysByFd.length ? keysByFd[fd] : null;
+        if (existing != null && existing.channel() == channel && existing.isValid()) {
+            existing.attach(attachment);
+            existing.interestOps(ops);
+            return existing;
+        }
+
+        if (fd >= keysByFd.length) {
+            keysByFd = Arrays.copyOf(keysByFd, Math.max(fd + 1, keysByFd.length * 2));
+        }
+
+        EpollKey key = new EpollKey(this, channel, attachment, fd);
+        key.interestOps = ops;
+        keysByFd[fd] = key;
+
+        // Adding reports the channel straight away if it is already ready
+        NativeTransport.epollAdd(epollFd, fd, CHANNEL_EVENTS);
+        return key;
+    }
+
+    @Override
+    public int select() throws IOException {
+        return select(-1);
+    }
+
+    @Override
+    public int select(long timeoutMillis) throws IOException {
+        int timeout = readyKeys.isEmpty() ? (int) Math.min(timeoutMillis, Integer.MAX_VALUE) : 0;
+        if (!interruptWaker.isOpen()) {
+            interruptWaker = new InterruptWaker();
+        }
+
+        int count;
+        interruptWaker.beginWait();
+        try {
+            count = NativeTransport.epollWait(epollFd, readyFds, readyEvents, timeout);
+        } finally {
+            interruptWaker.endWait();
+        }
+
+        for (int i = 0; i < count; i++) {
+            int fd = readyFds[i];
+            if (fd == wakeupFd) {
+                NativeTransport.eventFdRead(wakeupFd);
+                continue;
+            }
+
+            EpollKey key = fd < keysByFd.length ? keysByFd[fd] : null;
+            if (key != null) {
+                key.readyOps |= toOps(readyEvents[i]);
+                markReady(key);
+            }
+        }
+
+        selectedKeys.clear();
+        int kept = 0;
+        for (int i = 0; i < readyKeys.size(); i++) {
+            EpollKey key = readyKeys.get(i);
+            if (key.isValid() && key.readyOps() != 0) {
+                selectedKeys.add(key);
+                readyKeys.set(kept++, key);
+            } else {
+                key.queued = false;
+            }
+        }
+
+        while (readyKeys.size() > kept) {
+            readyKeys.remove(readyKeys.size() - 1);
+        }
+
+        return selectedKeys.size();
+    }
+
+    /**
+     * Map an epoll event mask to the operations it makes ready. Errors and hang ups make every
+     * operation ready, so the forwarder finds out through the failing call.
+     */
+    private static int toOps(int events) {
+        int ops = 0;
+        if ((events & (EPOLLIN | EPOLLRDHUP | EPOLLHUP | EPOLLERR)) != 0) {
+            ops |= TransportKey.OP_READ | TransportKey.OP_ACCEPT;
+        }
+        if ((events & (EPOLLOUT | EPOLLHUP | EPOLLERR)) != 0) {
+            ops |= TransportKey.OP_WRITE | TransportKey.OP_CONNECT;
+        }
+        return ops;
+    }
+
+    private void markReady(EpollKey key) {
+        if (!key.queued) {
+            key.queued = true;
+            readyKeys.add(key);
+        }
+    }
+
+    @Override
+    public List<TransportKey> selectedKeys() {
+        return selectedKeys;
+    }
+
+    @Override
+    public void wakeup() {
+        NativeTransport.eventFdWrite(wakeupFd);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        NativeTransport.close(wakeupFd);
+        NativeTransport.close(epollFd);
+    }
+
+    @Override
+    public String getType() {
+        return EPOLL;
+    }
+
+    /**
+     * Wakes the transport when the waiting thread is interrupted, as epoll_wait(2) carries on
+     * through {@link Thread#interrupt()} where a Selector returns.
+     * <p>
+     * The runtime closes an interruptible channel when the thread blocked in it is interrupted, so
+     * a channel which wakes the transport when closed is marked as blocked for each wait. It is
+     * replaced after it has been closed.
+     */
+    private final class InterruptWaker extends AbstractInterruptibleChannel {
+
+        void beginWait() {
+            begin();
+        }
+
+        void endWait() {
+            try {
+                end(true);
+            } catch (ClosedByInterruptException e) {
+                // The thread stays interrupted, for the forwarder to see
+            } catch (IOException e) {
+                // Not thrown for a completed wait
+            }
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            if (!closed) {
+                wakeup();
+            }
+        }
+    }
+
+    static final class EpollKey extends TransportKey {
+
+        private final int fd;
+        private int interestOps;
+
+        /**
+         * The operations the channel became ready for and has not since been found blocked on,
+         * whether or not they are of interest.
+         */
+        private int readyOps;
+
+        /**
+         * Whether the key is held in the transport's list of ready keys.
+         */
+        private boolean queued;
+
+        private boolean cancelled;
+
+        EpollKey(EpollTransport transport, SelectableChannel channel, Object attachment, int fd) {
+            super(transport, channel, attachment);
+            this.fd = fd;
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public TransportKey interestOps(int ops) {
+            interestOps = ops;
+            if ((readyOps & ops) != 0) {
+                ((EpollTransport) transport()).markReady(this);
+            }
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return readyOps & interestOps;
+        }
+
+        @Override
+        public void clearReady(int ops) {
+            readyOps &= ~ops;
+        }
+
+        @Override
+        public boolean isValid() {
+            return !cancelled && channel().isOpen();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+
+            // The descriptor may already belong to a newer channel, whose registration must stay
+            EpollTransport transport = (EpollTransport) transport();
+            if (fd < transport.keysByFd.length && transport.keysByFd[fd] == this) {
+                transport.keysByFd[fd] = null;
+                if (channel().isOpen()) {
+                    NativeTransport.epollDelete(transport.epollFd, fd);
+                }
+            }
+        }
+    }
+}
@@ -18,7 +18,19 @@
 
 package com.elixsr.portforwarder.forwarding;
 
+import android.os.Process;
+import android.util.Log;
+
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 /**
@@ -28,6 +40,8 @@ import java.util.concurrent.Callable;
  */
 public abstract class Forwarder implements Callable<Void> {
 
+    private static final String TAG = "Forwarder";
+
     /**
      * Message to describe starting of port forwarding thread.
      */
@@ -43,6 +57,16 @@ public abstract class Forwarder implements Callable<Void> {
      */
     public static final String THREAD_INTERRUPT_CLEANUP_MESSAGE = "%s Thread interrupted, will perform cleanup";
 
+    /**
+     * Message to describe a change in a target's circuit breaker state.
+     */
+    public static final String CIRCUIT_STATE_CHANGE_MESSAGE = "Circuit for target %s of Rule '%s' changed from %s to %s";
+
+    /**
+     * Message to describe a source being banned for exceeding its rate.
+     */
+    public static final String SOURCE_BANNED_MESSAGE = "Banned source %s of %s Rule '%s' for exceeding its rate";
+
     /**
      * The from and target {@link InetSocketAddress} objects.
      */
@@ -58,10 +82,354 @@ public abstract class Forwarder implements Callable<Void> {
      */
     protected final String protocol;
 
+    /**
+     * The socket options to apply to all sockets of the rule.
+     */
+    protected final SocketProfile socketProfile;
+
+    /**
+     * The scheduling settings of the rule.
+     */
+    protected final TrafficPolicy trafficPolicy;
+
+    /**
+     * The runtime counters of this forwarder.
+     */
+    protected final ForwarderStats stats = new ForwarderStats();
+
+    /**
+     * The connections this forwarder is relaying, for forwarders of connections.
+     */
+    protected final ConnectionTable connectionTable = new ConnectionTable();
+
+    /**
+     * The rate limit shared by all forwarders of the rule, or null if unlimited.
+     */
+    protected TokenBucket ruleRateLimiter;
+
+    /**
+     * The rate limit shared by all rules, or null if unlimited.
+     */
+    protected TokenBucket globalRateLimiter;
+
+    /**
+     * The sources allowed to use the rule, or null if all are allowed.
+     */
+    protected SourceFilter sourceFilter;
+
+    /**
+     * Bans sources which open connections or send datagrams too quickly, or null if disabled.
+     */
+    protected SourceThrottle sourceThrottle;
+
+    protected SourceRouter sourceRouter;
+
+    protected TargetResolver targetResolver;
+
+    /**
+     * The amount of forwarders serving the rule's address in parallel, see
+     * {@link #setShardCount(int)}.
+     */
+    protected int shardCount = 1;
+
+    /**
+     * Whether this forwarder replaces one of the rule which failed, see
+     * {@link #setRestarted(boolean)}.
+     */
+    private boolean restarted;
+
+    private BindListener bindListener;
+
+    /**
+     * Told when a forwarder has bound the rule's address, and is forwarding.
+     */
+    public interface BindListener {
+        void onBound(Forwarder forwarder);
+    }
+
     public Forwarder(String protocol, InetSocketAddress form, InetSocketAddress to, String ruleName) {
+        this(protocol, form, to, ruleName, new SocketProfile(), new TrafficPolicy());
+    }
+
+    public Forwarder(String protocol, InetSocketAddress form, InetSocketAddress to, String ruleName,
+                     SocketProfile socketProfile, TrafficPolicy trafficPolicy) {
         this.protocol = protocol;
         this.from = form;
         this.to = to;
         this.ruleName = ruleName;
+        this.socketProfile = socketProfile;
+        this.trafficPolicy = trafficPolicy;
+    }
+
+    /**
+     * Set the rate limits shared with other forwarders. Must be called before the forwarder is
+     * started.
+     *
+     * @param ruleRateLimiter   the limit shared by the forwarders of the rule, or null.
+     * @param globalRateLimiter the limit shared by all forwarders, or null.
+     */
+    public void setSharedRateLimiters(TokenBucket ruleRateLimiter, TokenBucket globalRateLimiter) {
+        this.ruleRateLimiter = ruleRateLimiter;
+        this.globalRateLimiter = globalRateLimiter;
+    }
+
+    /**
+     * Set the filter deciding which sources may use the rule. Must be called before the forwarder
+     * is started.
+     *
+     * @param sourceFilter the compiled access policy of the rule, or null to allow all sources.
+     */
+    public void setSourceFilter(SourceFilter sourceFilter) {
+        this.sourceFilter = sourceFilter;
+    }
+
+    /**
+     * Set the throttle banning abusive sources. Each forwarder needs its own instance, which must
+     * be set before the forwarder is started.
+     *
+     * @param sourceThrottle the throttle, or null.
+     */
+    public void setSourceThrottle(SourceThrottle sourceThrottle) {
+        this.sourceThrottle = sourceThrottle;
+    }
+
+    /**
+     * Set the router choosing a target per source. Must be called before the forwarder is started.
+     *
+     * @param sourceRouter the compiled routes of the rule, or null to send all sources to the
+     *                     rule's target.
+     */
+    public void setSourceRouter(SourceRouter sourceRouter) {
+        this.sourceRouter = sourceRouter;
+    }
+
+    /**
+     * Set the resolver of hostname targets, shared by all forwarders. Must be called before the
+     * forwarder is started.
+     *
+     * @param targetResolver the resolver.
+     */
+    public void setTargetResolver(TargetResolver targetResolver) {
+        this.targetResolver = targetResolver;
+    }
+
+    /**
+     * Mark this forwarder as replacing a forwarder of the rule which failed. Its TCP listener is
+     * then bound with SO_REUSEADDR even if the rule disables it, so the address is not held back
+     * by connections of the failed forwarder lingering in TIME_WAIT. Must be called before the
+     * forwarder is started.
+     *
+     * @param restarted true if the forwarder replaces a failed one.
+     */
+    public void setRestarted(boolean restarted) {
+        this.restarted = restarted;
+    }
+
+    /**
+     * @return whether a TCP listener should be bound with SO_REUSEADDR.
+     */
+    protected boolean isReuseAddress() {
+        return socketProfile.isReuseAddress() || restarted;
+    }
+
+    /**
+     * Set the listener told when the forwarder has bound the rule's address. Must be called before
+     * the forwarder is started.
+     *
+     * @param bindListener the listener, or null.
+     */
+    public void setBindListener(BindListener bindListener) {
+        this.bindListener = bindListener;
+    }
+
+    /**
+     * Tell the {@link BindListener} the rule's address is bound. Called by the forwarding thread.
+     */
+    protected void notifyBound() {
+        if (bindListener != null) {
+            bindListener.onBound(this);
+        }
+    }
+
+    /**
+     * Make this forwarder one of several serving the rule's address in parallel, each on its own
+     * thread with its own socket bound with SO_REUSEPORT, so the kernel spreads connections or
+     * datagrams between them. Must be called before the forwarder is started.
+     *
+     * @param shardCount the amount of forwarders of the rule for this protocol, 1 if the rule is
+     *                   not sharded.
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Let a socket share the rule's address with the other shards of the rule. Must be called
+     * before the socket is bound.
+     *
+     * @param channel the socket's channel.
+     * @throws SocketException if the address cannot be shared, in which case the shards cannot all
+     *                         bind.
+     */
+    protected void shareAddress(Object channel) throws SocketException {
+        if (shardCount <= 1) {
+            return;
+        }
+
+        int fd = NativeTransport.isAvailable() ? NativeTransport.getFd(channel) : -1;
+        if (fd < 0) {
+            throw new SocketException("SO_REUSEPORT is not available");
+        }
+
+        try {
+            NativeTransport.setReusePort(fd, true);
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    /**
+     * Send each source to the same shard, so per source limits and bans see all of its traffic.
+     * Where the kernel cannot, sources are spread by the kernel's hash and each shard applies the
+     * limits to the part of a source's traffic it sees. Must be called once the socket is bound.
+     *
+     * @param channel the socket's channel.
+     */
+    protected void steerSources(Object channel) {
+        if (shardCount <= 1) {
+            return;
+        }
+
+        try {
+            NativeTransport.setReusePortSteering(NativeTransport.getFd(channel), shardCount);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not steer sources between the shards of " + protocol + " Rule '" + ruleName + "': "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Start resolving the rule's target if it is a hostname, so its addresses are known by the
+     * time the first client arrives.
+     */
+    protected void prefetchTarget() {
+        if (to.isUnresolved()) {
+            resolveTarget(to, null);
+        }
+    }
+
+    /**
+     * Look up the addresses of a hostname target without blocking, see
+     * {@link TargetResolver#lookup(String, TargetResolver.Listener)}.
+     *
+     * @param target   an unresolved target.
+     * @param listener told when the resolution finishes, if the addresses are not yet known.
+     * @return the addresses, {@link TargetResolver#UNRESOLVABLE}, or null if they are being
+     * resolved.
+     */
+    protected InetAddress[] resolveTarget(InetSocketAddress target, TargetResolver.Listener listener) {
+        if (targetResolver == null) {
+            Log.e(TAG, "No resolver for target " + target);
+            return TargetResolver.UNRESOLVABLE;
+        }
+        return targetResolver.lookup(target.getHostName(), listener);
+    }
+
+    /**
+     * @param source the remote address of a connection or datagram.
+     * @return the number of the route the source uses, see {@link SourceRouter}.
+     */
+    protected int routeOf(SocketAddress source) {
+        return sourceRouter == null ? SourceRouter.DEFAULT_ROUTE : sourceRouter.route(source);
+    }
+
+    /**
+     * @param route a route number.
+     * @return the target of the route.
+     */
+    protected InetSocketAddress targetOf(int route) {
+        return sourceRouter == null ? to : sourceRouter.getTarget(route);
+    }
+
+    /**
+     * Check a connection or datagram against the rule's access policy and source throttle,
+     * counting any refusal.
+     *
+     * @param source the remote address.
+     * @param now    the current {@link System#nanoTime()}.
+     * @return true if the source may use the rule.
+     */
+    protected boolean isSourceAllowed(SocketAddress source, long now) {
+        if (sourceFilter != null && !sourceFilter.isAllowed(source)) {
+            stats.recordDeniedSource();
+            return false;
+        }
+
+        if (sourceThrottle != null) {
+            int verdict = sourceThrottle.check(source, now);
+            if (verdict != SourceThrottle.ALLOWED) {
+                if (verdict == SourceThrottle.NEWLY_BANNED) {
+                    stats.recordSourceBan();
+                    Log.w(TAG, String.format(SOURCE_BANNED_MESSAGE, source, protocol, ruleName));
+                }
+                stats.recordDeniedSource();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public ForwarderStats getStats() {
+        return stats;
+    }
+
+    public ConnectionTable getConnectionTable() {
+        return connectionTable;
+    }
+
+    /**
+     * Return the {@link CircuitBreaker}s guarding each target of this forwarder, the rule's own
+     * target first and then the target of each route.
+     *
+     * @return the {@link CircuitBreaker}s, empty if the protocol has none.
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return Collections.emptyList();
+    }
+
+    public String getRuleName() {
+        return ruleName;
+    }
+
+    /**
+     * Set the priority of the forwarding thread from the rule's weight, see
+     * {@link #threadPriorityFor(int)}.
+     */
+    protected void applyThreadPriority() {
+        try {
+            Process.setThreadPriority(threadPriorityFor(trafficPolicy.getWeight()));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not set the priority of " + protocol + " Rule '" + ruleName + "'", e);
+        }
+    }
+
+    /**
+     * Map a rule's weight onto the nice value of its forwarding thread.
+     * <p>
+     * Every rule is served by its own thread, so the kernel's scheduler shares the processor
+     * between rules. A lower nice value gives a thread a larger share when threads compete, each
+     * step about a quarter more, but never stops the others from running. Weights map onto
+     * {@link Process#THREAD_PRIORITY_BACKGROUND} to {@link Process#THREAD_PRIORITY_DEFAULT}, so a
+     * rule never competes with the UI and render threads, which run at higher priorities.
+     *
+     * @param weight the rule's weight, from {@link TrafficPolicy#MIN_WEIGHT} to
+     *               {@link TrafficPolicy#MAX_WEIGHT}.
+     * @return the priority to pass to {@link Process#setThreadPriority(int)}.
+     */
+    static int threadPriorityFor(int weight) {
+        int clamped = Math.max(TrafficPolicy.MIN_WEIGHT, Math.min(TrafficPolicy.MAX_WEIGHT, weight));
+        int range = Process.THREAD_PRIORITY_DEFAULT - Process.THREAD_PRIORITY_BACKGROUND;
+        return Process.THREAD_PRIORITY_BACKGROUND + Math.round((float) (clamped - TrafficPolicy.MIN_WEIGHT) * range
+                / (TrafficPolicy.MAX_WEIGHT - TrafficPolicy.MIN_WEIGHT));
     }
 }
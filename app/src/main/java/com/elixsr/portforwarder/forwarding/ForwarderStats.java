@@ -0,0 +1,224 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link ForwarderStats} class holds the runtime counters of a single {@link Forwarder}.
+ * <p>
+ * Counters are updated by the forwarding thread and may be read from any thread.
+ */
+public class ForwarderStats {
+
+    private final AtomicLong schedulingDelayTotalNanos = new AtomicLong();
+    private final AtomicLong schedulingDelayCount = new AtomicLong();
+    private final AtomicLong schedulingDelayMaxNanos = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong deniedSources = new AtomicLong();
+    private final AtomicLong sourceBans = new AtomicLong();
+    private final AtomicLong warmPoolHits = new AtomicLong();
+    private final AtomicLong warmPoolMisses = new AtomicLong();
+    private final AtomicLong circuitRejections = new AtomicLong();
+    private final AtomicLong circuitOpenings = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong bytesUp = new AtomicLong();
+    private final AtomicLong bytesDown = new AtomicLong();
+
+    /**
+     * Record the time a ready connection waited between the selector waking up and the connection
+     * being serviced.
+     *
+     * @param delayNanos the delay in nanoseconds.
+     */
+    public void recordSchedulingDelay(long delayNanos) {
+        schedulingDelayTotalNanos.addAndGet(delayNanos);
+        schedulingDelayCount.incrementAndGet();
+
+        long max = schedulingDelayMaxNanos.get();
+        while (delayNanos > max && !schedulingDelayMaxNanos.compareAndSet(max, delayNanos)) {
+            max = schedulingDelayMaxNanos.get();
+        }
+    }
+
+    /**
+     * @return the average scheduling delay in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getSchedulingDelayAverageNanos() {
+        long count = schedulingDelayCount.get();
+        return count == 0 ? 0 : schedulingDelayTotalNanos.get() / count;
+    }
+
+    /**
+     * Return the largest scheduling delay recorded since the previous call, and start a new
+     * measurement window.
+     *
+     * @return the largest scheduling delay in nanoseconds.
+     */
+    public long getAndResetSchedulingDelayMaxNanos() {
+        return schedulingDelayMaxNanos.getAndSet(0);
+    }
+
+    /**
+     * Record the time reading from a connection was paused by a rate limit.
+     *
+     * @param nanos the paused time in nanoseconds.
+     */
+    public void recordThrottled(long nanos) {
+        throttledNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the total time in nanoseconds connections were paused by rate limits. Connections
+     * paused at the same time each add their own time.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    /**
+     * Record a connection closed straight away because a connection limit was reached.
+     */
+    public void recordRejectedConnection() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * Record a connection or datagram dropped because its source is not allowed by the rule, or is
+     * banned.
+     */
+    public void recordDeniedSource() {
+        deniedSources.incrementAndGet();
+    }
+
+    public long getDeniedSources() {
+        return deniedSources.get();
+    }
+
+    /**
+     * Record a source being banned for exceeding its connection or datagram rate.
+     */
+    public void recordSourceBan() {
+        sourceBans.incrementAndGet();
+    }
+
+    public long getSourceBans() {
+        return sourceBans.get();
+    }
+
+    /**
+     * Record a client being paired with an already connected upstream socket.
+     */
+    public void recordWarmPoolHit() {
+        warmPoolHits.incrementAndGet();
+    }
+
+    public long getWarmPoolHits() {
+        return warmPoolHits.get();
+    }
+
+    /**
+     * Record a client finding no connected upstream socket, and waiting for a new connection.
+     */
+    public void recordWarmPoolMiss() {
+        warmPoolMisses.incrementAndGet();
+    }
+
+    public long getWarmPoolMisses() {
+        return warmPoolMisses.get();
+    }
+
+    /**
+     * Record a client reset without connecting, because the {@link CircuitBreaker} of its target
+     * is open.
+     */
+    public void recordCircuitRejection() {
+        circuitRejections.incrementAndGet();
+    }
+
+    public long getCircuitRejections() {
+        return circuitRejections.get();
+    }
+
+    /**
+     * Record the {@link CircuitBreaker} of a target opening, including re-opening after a failed
+     * probe.
+     */
+    public void recordCircuitOpened() {
+        circuitOpenings.incrementAndGet();
+    }
+
+    public long getCircuitOpenings() {
+        return circuitOpenings.get();
+    }
+
+    public void recordConnectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void recordConnectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * @return the amount of connections currently forwarded, including those still connecting to
+     * the target.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Record data read from clients, to be forwarded to the target.
+     *
+     * @param bytes the amount of bytes read.
+     */
+    public void recordBytesUp(long bytes) {
+        bytesUp.addAndGet(bytes);
+    }
+
+    /**
+     * Record data read from the target, to be forwarded back to its client.
+     *
+     * @param bytes the amount of bytes read.
+     */
+    public void recordBytesDown(long bytes) {
+        bytesDown.addAndGet(bytes);
+    }
+
+    /**
+     * @return the total amount of bytes read from clients.
+     */
+    public long getBytesUp() {
+        return bytesUp.get();
+    }
+
+    /**
+     * @return the total amount of bytes read from targets for their clients.
+     */
+    public long getBytesDown() {
+        return bytesDown.get();
+    }
+}
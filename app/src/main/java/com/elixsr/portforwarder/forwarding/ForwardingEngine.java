@@ -0,0 +1,253 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import com.elixsr.portforwarder.models.RuleModel;
+
+import java.util.List;
+
+/**
+ * The {@link ForwardingEngine} class is the data plane which forwards the enabled rules, so the
+ * {@link ForwardingService} does not depend on how forwarders are run.
+ * <p>
+ * An engine is opened by type, configured through its setters, and started. It then forwards the
+ * rules it is given by {@link #applyRules(List)} until it is stopped, and reports what happens to
+ * them through its {@link Listener}.
+ * <p>
+ * Rules are isolated from each other: a rule which cannot be started, or whose forwarder fails, is
+ * retried with an exponential backoff while the other rules keep forwarding.
+ * <p>
+ * {@link #NIO} and {@link #EPOLL} run each forwarder on its own thread over the matching
+ * {@link Transport}, see {@link ThreadedForwardingEngine}. {@link #ASYNC} serves the TCP
+ * connections of all rules from a shared group of threads, see {@link AsyncForwardingEngine}.
+ */
+public abstract class ForwardingEngine {
+
+    private static final String TAG = "ForwardingEngine";
+
+    public static final String NIO = Transport.NIO;
+    public static final String EPOLL = Transport.EPOLL;
+    public static final String ASYNC = AsyncTcpForwarder.ENGINE;
+
+    /**
+     * Told what happens to the rules of an engine. Called on the engine's threads, which must not
+     * be blocked.
+     */
+    public interface Listener {
+
+        /**
+         * A rule is being started.
+         *
+         * @param ruleModel the rule.
+         */
+        void onRuleStarting(RuleModel ruleModel);
+
+        /**
+         * Every forwarder of a rule has bound the rule's address, after it was started or after it
+         * failed.
+         *
+         * @param ruleModel the rule.
+         * @param stats     the counters of the rule's forwarders.
+         */
+        void onRuleBound(RuleModel ruleModel, List<ForwarderStats> stats);
+
+        /**
+         * A rule could not be started, and will be started again after a delay.
+         *
+         * @param ruleModel   the rule.
+         * @param error       why it could not be started.
+         * @param retryMillis the delay before it is started again.
+         */
+        void onRuleStartFailed(RuleModel ruleModel, Exception error, long retryMillis);
+
+        /**
+         * A forwarder of a rule stopped with an error while the engine was running, and will be
+         * restarted after a delay. The rule's other forwarders keep running.
+         *
+         * @param ruleModel   the rule.
+         * @param error       the error.
+         * @param retryMillis the delay before the forwarder is restarted.
+         */
+        void onRuleFailed(RuleModel ruleModel, Throwable error, long retryMillis);
+
+        /**
+         * A rule is being stopped, and its forwarders are finishing.
+         *
+         * @param ruleModel the rule.
+         */
+        void onRuleStopping(RuleModel ruleModel);
+
+        /**
+         * Every forwarder of a rule being stopped has finished.
+         *
+         * @param ruleModel the rule.
+         */
+        void onRuleStopped(RuleModel ruleModel);
+
+        /**
+         * The {@link CircuitBreaker} of a target of a rule changed state. Each forwarder of the rule
+         * has its own breakers.
+         *
+         * @param ruleModel      the rule.
+         * @param circuitBreaker the breaker of the target.
+         * @param from           the state the breaker left.
+         * @param to             the state the breaker entered.
+         */
+        void onCircuitStateChanged(RuleModel ruleModel, CircuitBreaker circuitBreaker,
+                                   CircuitBreaker.State from, CircuitBreaker.State to);
+
+        /**
+         * Every forwarder of the engine has stopped, whether it failed or the engine was stopped.
+         */
+        void onForwardersStopped();
+    }
+
+    /**
+     * The rate limit shared by all rules, or null if unlimited.
+     */
+    protected TokenBucket globalRateLimiter;
+
+    /**
+     * The limit on connections shared by all rules, or null if unlimited.
+     */
+    protected ConnectionLimiter connectionLimiter;
+
+    protected TargetResolver targetResolver;
+
+    protected boolean zeroCopy;
+    protected boolean fastOpen;
+    protected boolean deferAccept;
+    protected boolean udpBatching;
+
+    protected Listener listener;
+
+    /**
+     * Open an engine of a type, or the {@link #NIO} engine if the type is not available on the
+     * device.
+     *
+     * @param type {@link #NIO}, {@link #EPOLL} or {@link #ASYNC}.
+     * @return the engine, not yet started.
+     */
+    public static ForwardingEngine open(String type) {
+        if (ASYNC.equals(type)) {
+            if (AsyncTcpForwarder.isSupported()) {
+                return new AsyncForwardingEngine();
+            }
+            Log.i(TAG, "Asynchronous channels are not available, using java.nio");
+        }
+        return new ThreadedForwardingEngine(EPOLL.equals(type) ? EPOLL : NIO);
+    }
+
+    /**
+     * Set the limits shared by all rules. Must be called before the engine is started.
+     *
+     * @param globalRateLimiter the rate limit, or null.
+     * @param connectionLimiter the connection limit, or null.
+     */
+    public void setSharedLimits(TokenBucket globalRateLimiter, ConnectionLimiter connectionLimiter) {
+        this.globalRateLimiter = globalRateLimiter;
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    /**
+     * Set the resolver of hostname targets. Must be called before the engine is started.
+     *
+     * @param targetResolver the resolver.
+     */
+    public void setTargetResolver(TargetResolver targetResolver) {
+        this.targetResolver = targetResolver;
+    }
+
+    /**
+     * Set the advanced options of the forwarders, each only applied where the engine and the
+     * device support it. Must be called before the engine is started.
+     *
+     * @param zeroCopy    relay TCP with splice(2), see {@link TcpForwarder#setZeroCopy(boolean)}.
+     * @param fastOpen    accept TCP Fast Open, see {@link TcpForwarder#setFastOpen(boolean)}.
+     * @param deferAccept defer accepting, see {@link TcpForwarder#setDeferAccept(boolean)}.
+     * @param udpBatching relay UDP in batches, see {@link UdpForwarder#setBatching(boolean)}.
+     */
+    public void setOptions(boolean zeroCopy, boolean fastOpen, boolean deferAccept, boolean udpBatching) {
+        this.zeroCopy = zeroCopy;
+        this.fastOpen = fastOpen;
+        this.deferAccept = deferAccept;
+        this.udpBatching = udpBatching;
+    }
+
+    /**
+     * Start the engine, which forwards nothing until rules are applied.
+     *
+     * @param listener told what happens to the rules.
+     */
+    public abstract void start(Listener listener);
+
+    /**
+     * Forward a set of rules: rules which are not yet forwarded are started, and rules which are
+     * no longer in the set are stopped. Rules already forwarded keep the settings they were
+     * started with.
+     *
+     * @param ruleModels the rules to forward, identified by {@link RuleModel#getId()}.
+     */
+    public abstract void applyRules(List<RuleModel> ruleModels);
+
+    /**
+     * Stop forwarding every rule, and wait a while for the forwarders to finish. The engine cannot
+     * be started again.
+     */
+    public abstract void stop();
+
+    /**
+     * @return true if any forwarder of the engine is running, or waiting to be restarted.
+     */
+    public abstract boolean isRunning();
+
+    /**
+     * @param ruleId the id of a rule.
+     * @return the counters of each forwarder of the rule, empty if the rule is not forwarded.
+     */
+    public abstract List<ForwarderStats> getStats(long ruleId);
+
+    /**
+     * Copy a page of the connections a rule is relaying, in the order they were opened. Copying
+     * never waits for the forwarding threads.
+     *
+     * @param ruleId  the id of a rule.
+     * @param afterId only connections opened after the one with this id are copied, 0 for the
+     *                first page.
+     * @param limit   the most connections copied.
+     * @return the page, empty if the rule is not forwarded or there are no more connections.
+     */
+    public abstract List<ConnectionInfo> getConnections(long ruleId, long afterId, int limit);
+
+    /**
+     * Ask the forwarder relaying a connection to close it, which happens shortly after.
+     *
+     * @param ruleId       the id of the rule forwarding the connection.
+     * @param connectionId the id of the connection, see {@link ConnectionInfo#getId()}.
+     * @return false if the connection is not open.
+     */
+    public abstract boolean closeConnection(long ruleId, long connectionId);
+
+    /**
+     * @return {@link #NIO}, {@link #EPOLL} or {@link #ASYNC}.
+     */
+    public abstract String getType();
+}
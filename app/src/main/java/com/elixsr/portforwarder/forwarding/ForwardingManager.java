@@ -18,24 +18,95 @@
 
 package com.elixsr.portforwarder.forwarding;
 
-import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LongSparseArray;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The {@link ForwardingManager} class encapsulates all meta data related to the status of
  * forwarding throughout the application.
  * <p>
  * The class is a singleton, and can be accessed by any object to query the current status of
- * forwarding.
+ * forwarding, and the {@link RuleState} of each forwarded rule.
+ * <p>
+ * The state is written by the forwarding threads and read by the UI without locks. Changes reach
+ * each {@link Listener} through a {@link StatusBus}: however often rules change, listeners are told
+ * at most {@link StatusBus#DEFAULT_UPDATES_PER_SECOND} times a second, with the latest state of
+ * each rule which changed since the last time. While forwarding is enabled and a listener is
+ * subscribed, rules whose counters moved are delivered as changed too, and the {@link Throughput}
+ * of each rule is measured.
  */
 public class ForwardingManager implements Serializable {
 
-    private static ForwardingManager instance = null;
+    private static volatile ForwardingManager instance = null;
+
+    /**
+     * Told on the main thread when forwarding is started or stopped, or rules change state.
+     */
+    public interface Listener {
+
+        /**
+         * @param enabled      whether forwarding is enabled.
+         * @param changedRules the latest state of each rule whose state or counters changed.
+         * @param messages     messages for the user posted since the last call, oldest first.
+         */
+        void onForwardingStateChanged(boolean enabled, List<RuleState> changedRules, List<String> messages);
+    }
+
+    private volatile boolean isEnabled = false;
+
+    private final transient ConcurrentMap<Long, RuleState> ruleStates = new ConcurrentHashMap<>();
+
+    private final transient List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The counters of each rule when they were last polled. Only used on the main thread, as are
+     * the throughputs.
+     */
+    private final transient LongSparseArray<long[]> polledCounters = new LongSparseArray<>();
+
+    private final transient LongSparseArray<Throughput> throughputs = new LongSparseArray<>();
 
+    private final transient Throughput totalThroughput = new Throughput();
+
+    /**
+     * The engine forwarding the rules, or null while forwarding is not running.
+     */
+    private transient volatile ForwardingEngine engine;
+
+    /**
+     * Whether the polled counters belong to a previous run of forwarding.
+     */
+    private volatile boolean countersStale;
+
+    private final transient StatusBus statusBus;
 
     private ForwardingManager() {
+        statusBus = new StatusBus(new Handler(Looper.getMainLooper()), StatusBus.DEFAULT_UPDATES_PER_SECOND,
+                new StatusBus.Sink() {
+                    @Override
+                    public boolean isPolling() {
+                        return isEnabled && !listeners.isEmpty();
+                    }
 
+                    @Override
+                    public void poll(StatusBus bus) {
+                        pollCounters(bus);
+                    }
+
+                    @Override
+                    public void deliver(List<Long> changedRuleIds, List<String> messages) {
+                        dispatch(changedRuleIds, messages);
+                    }
+                });
     }
 
     /**
@@ -55,19 +126,242 @@ public class ForwardingManager implements Serializable {
         return instance;
     }
 
-    private boolean isEnabled = false;
+    /**
+     * Keep the instance a singleton when it is restored from saved state.
+     */
+    private Object readResolve() {
+        return getInstance();
+    }
 
     public boolean isEnabled() {
         return isEnabled;
     }
 
+    /**
+     * @param ruleId the id of a rule.
+     * @return the state of the rule, or null if it has not been forwarded since forwarding was
+     * last started.
+     */
+    public RuleState getRuleState(long ruleId) {
+        return ruleStates.get(ruleId);
+    }
+
+    /**
+     * @return the state of every rule forwarded since forwarding was last started.
+     */
+    public List<RuleState> getRuleStates() {
+        return new ArrayList<>(ruleStates.values());
+    }
+
+    /**
+     * Must be called on the main thread.
+     *
+     * @param ruleId the id of a rule.
+     * @return the throughput of the rule when its counters were last polled, or null if they have
+     * not been polled since forwarding was last started. The instance is updated in place.
+     */
+    public Throughput getThroughput(long ruleId) {
+        return throughputs.get(ruleId);
+    }
+
+    /**
+     * Must be called on the main thread.
+     *
+     * @return the sum of the throughputs of every rule. The instance is updated in place.
+     */
+    public Throughput getTotalThroughput() {
+        return totalThroughput;
+    }
+
+    /**
+     * Copy a page of the connections a rule is relaying, see
+     * {@link ForwardingEngine#getConnections(long, long, int)}.
+     *
+     * @return the page, empty if forwarding is not running.
+     */
+    public List<ConnectionInfo> getConnections(long ruleId, long afterId, int limit) {
+        ForwardingEngine engine = this.engine;
+        if (engine == null) {
+            return Collections.emptyList();
+        }
+        return engine.getConnections(ruleId, afterId, limit);
+    }
+
+    /**
+     * Ask for a connection of a rule to be closed, see
+     * {@link ForwardingEngine#closeConnection(long, long)}.
+     *
+     * @return false if the connection is not open.
+     */
+    public boolean closeConnection(long ruleId, long connectionId) {
+        ForwardingEngine engine = this.engine;
+        return engine != null && engine.closeConnection(ruleId, connectionId);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        statusBus.wakeUp();
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    void setEngine(ForwardingEngine engine) {
+        this.engine = engine;
+    }
+
     protected void enableForwarding() {
+        ruleStates.clear();
+        countersStale = true;
         this.isEnabled = true;
+        statusBus.changed();
     }
 
     protected void disableForwarding() {
         this.isEnabled = false;
+
+        // Rules still draining when the service ends have stopped with it
+        for (Long ruleId : ruleStates.keySet()) {
+            ruleStopped(ruleId);
+        }
+        statusBus.changed();
+    }
+
+    /**
+     * Publish that a rule is being started. Called by the forwarding threads, as are the other
+     * transitions, which each replace the rule's state atomically.
+     */
+    void ruleStarting(long ruleId) {
+        ruleStates.put(ruleId, RuleState.starting(ruleId));
+        ruleChanged(ruleId);
+    }
+
+    /**
+     * @param stats the counters of the rule's current forwarders.
+     * @return the state the rule had before, or null if it is not forwarded.
+     */
+    RuleState ruleBound(long ruleId, List<ForwarderStats> stats) {
+        RuleState current;
+        do {
+            current = ruleStates.get(ruleId);
+            if (current == null || current.getPhase() == RuleState.Phase.STOPPED) {
+                return null;
+            }
+        } while (!ruleStates.replace(ruleId, current, current.bound(stats)));
+        ruleChanged(ruleId);
+        return current;
+    }
+
+    /**
+     * @param error why the rule failed.
+     * @return the state the rule had before, or null if it is not forwarded.
+     */
+    RuleState ruleFailed(long ruleId, String error) {
+        RuleState current;
+        do {
+            current = ruleStates.get(ruleId);
+            if (current == null || current.getPhase() == RuleState.Phase.STOPPED) {
+                return null;
+            }
+        } while (!ruleStates.replace(ruleId, current, current.failed(error)));
+        ruleChanged(ruleId);
+        return current;
+    }
+
+    void ruleDraining(long ruleId) {
+        RuleState current;
+        do {
+            current = ruleStates.get(ruleId);
+            if (current == null || current.getPhase() == RuleState.Phase.STOPPED) {
+                return;
+            }
+        } while (!ruleStates.replace(ruleId, current, current.draining()));
+        ruleChanged(ruleId);
     }
 
+    void ruleStopped(long ruleId) {
+        RuleState current;
+        do {
+            current = ruleStates.get(ruleId);
+            if (current == null || current.getPhase() == RuleState.Phase.STOPPED) {
+                return;
+            }
+        } while (!ruleStates.replace(ruleId, current, current.stopped()));
+        ruleChanged(ruleId);
+    }
+
+    /**
+     * Post a message for the user to the listeners. Messages are dropped if too many are waiting.
+     *
+     * @param message the message.
+     */
+    void postMessage(String message) {
+        statusBus.post(message);
+    }
+
+    private void ruleChanged(long ruleId) {
+        statusBus.ruleChanged(ruleId);
+    }
+
+    /**
+     * Mark the rules whose counters moved since they were last polled.
+     */
+    private void pollCounters(StatusBus bus) {
+        if (countersStale) {
+            countersStale = false;
+            polledCounters.clear();
+            throughputs.clear();
+        }
 
+        long now = System.nanoTime();
+        totalThroughput.clear();
+        for (RuleState ruleState : ruleStates.values()) {
+            long[] counters = polledCounters.get(ruleState.getRuleId());
+            if (counters == null) {
+                counters = new long[5];
+                polledCounters.put(ruleState.getRuleId(), counters);
+            }
+
+            Throughput throughput = throughputs.get(ruleState.getRuleId());
+            if (throughput == null) {
+                throughput = new Throughput();
+                throughputs.put(ruleState.getRuleId(), throughput);
+            }
+            boolean throughputChanged = throughput.sample(ruleState.getBytesUp(), ruleState.getBytesDown(),
+                    ruleState.getActiveConnections(), now);
+            totalThroughput.add(throughput);
+
+            long activeConnections = ruleState.getActiveConnections();
+            long rejectedConnections = ruleState.getRejectedConnections();
+            long deniedSources = ruleState.getDeniedSources();
+            long circuitRejections = ruleState.getCircuitRejections();
+            long circuitOpenings = ruleState.getCircuitOpenings();
+            if (throughputChanged || counters[0] != activeConnections || counters[1] != rejectedConnections
+                    || counters[2] != deniedSources || counters[3] != circuitRejections
+                    || counters[4] != circuitOpenings) {
+                counters[0] = activeConnections;
+                counters[1] = rejectedConnections;
+                counters[2] = deniedSources;
+                counters[3] = circuitRejections;
+                counters[4] = circuitOpenings;
+                bus.ruleChanged(ruleState.getRuleId());
+            }
+        }
+    }
+
+    private void dispatch(List<Long> changedRuleIds, List<String> messages) {
+        List<RuleState> changed = new ArrayList<>(changedRuleIds.size());
+        for (Long ruleId : changedRuleIds) {
+            RuleState ruleState = ruleStates.get(ruleId);
+            if (ruleState != null) {
+                changed.add(ruleState);
+            }
+        }
+
+        boolean enabled = isEnabled;
+        for (Listener listener : listeners) {
+            listener.onForwardingStateChanged(enabled, changed, messages);
+        }
+    }
 }
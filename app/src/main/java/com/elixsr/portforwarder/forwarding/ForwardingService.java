@@ -24,37 +24,29 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.ContextCompat;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import com.elixsr.portforwarder.FwdApplication;
 import com.elixsr.portforwarder.ui.MainActivity;
 import com.elixsr.portforwarder.R;
 import com.elixsr.portforwarder.dao.RuleDao;
+import com.elixsr.portforwarder.dao.UsageDao;
 import com.elixsr.portforwarder.db.RuleDbHelper;
-import com.elixsr.portforwarder.exceptions.ObjectNotFoundException;
 import com.elixsr.portforwarder.models.RuleModel;
+import com.elixsr.portforwarder.models.TrafficPolicy;
 import com.google.android.gms.analytics.HitBuilders;
 import com.google.android.gms.analytics.Tracker;
 
@@ -63,24 +55,11 @@ import com.google.android.gms.analytics.Tracker;
  * <p>
  * The class is responsible for starting forwarding for all rules found within the SQLite database.
  * <p>
- * The class creates a new thread for each Forwarding rule.
+ * The rules are handed to the {@link ForwardingEngine} chosen in the advanced preferences, which
+ * decides how they are forwarded.
  */
 public class ForwardingService extends IntentService {
 
-    // Defines a custom Intent action
-    public static final String BROADCAST_ACTION =
-            "com.elixsr.portforwarder.forwarding.ForwardingService.BROADCAST";
-
-    // Defines the key for the status "extra" in an Intent
-    public static final String EXTENDED_DATA_STATUS =
-            "com.elixsr.portforwarder.forwarding.ForwardingService.STATUS";
-
-    public static final String PORT_FORWARD_SERVICE_STATE =
-            "com.elixsr.portforwarder.forwarding.ForwardingService.PORT_FORWARD_STATE";
-
-    public static final String PORT_FORWARD_SERVICE_ERROR_MESSAGE =
-            "com.elixsr.portforwarder.forwarding.ForwardingService.PORT_FORWARD_ERROR_MESSAGE";
-
     private static final String PORT_FORWARD_SERVICE_WAKE_LOCK_TAG = "PortForwardServiceWakeLockTag";
 
     private static final String TAG = "ForwardingService";
@@ -92,31 +71,91 @@ public class ForwardingService extends IntentService {
     private static final String LABEL_FORWARDING_TYPE = "";
     private static final String ACTION_STOP_FORWARDING = "Stop - Java NIO";
 
+    private static final int MAX_DNS_CACHE_TTL_SECONDS = 86400;
+
+    /**
+     * The least time between two updates of the notification, which the system would otherwise
+     * drop.
+     */
+    private static final long NOTIFICATION_UPDATE_MILLIS = 1000;
+
     private String status = "Test";
 
     private boolean runService = false;
 
-    //change the magic number
-    private ExecutorService executorService;
+    /**
+     * Forwards the enabled rules while the service runs.
+     */
+    private volatile ForwardingEngine forwardingEngine;
+
+    /**
+     * Released when the service should stop waiting on its forwarders.
+     */
+    private volatile CountDownLatch forwardingStopped;
+
+    /**
+     * Resolves hostname targets for all forwarders while the service runs.
+     */
+    private TargetResolver targetResolver;
+
+    /**
+     * Records the usage history of the rules while the service runs.
+     */
+    private volatile UsageRecorder usageRecorder;
+
+    /**
+     * Builds the ongoing notification, reused each time its throughput is updated.
+     */
+    private NotificationCompat.Builder notificationBuilder;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final StringBuilder throughputText = new StringBuilder();
+
+    /**
+     * When the notification was last updated, on the {@link SystemClock#elapsedRealtime()} clock.
+     * Only used on the main thread.
+     */
+    private long notificationUpdatedAt;
+    private boolean notificationUpdatePending;
+
+    private final Runnable notificationUpdateTask = new Runnable() {
+        @Override
+        public void run() {
+            notificationUpdatePending = false;
+            updateThroughputNotification();
+        }
+    };
+
+    /**
+     * Shows the aggregate throughput in the notification, as the forwarding manager measures it.
+     */
+    private final ForwardingManager.Listener throughputListener = new ForwardingManager.Listener() {
+        @Override
+        public void onForwardingStateChanged(boolean enabled, List<RuleState> changedRules, List<String> messages) {
+            if (!enabled || changedRules.isEmpty() || notificationUpdatePending) {
+                return;
+            }
+
+            long wait = notificationUpdatedAt + NOTIFICATION_UPDATE_MILLIS - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                notificationUpdatePending = true;
+                mainHandler.postDelayed(notificationUpdateTask, wait);
+            } else {
+                updateThroughputNotification();
+            }
+        }
+    };
 
     //wake lock
     private PowerManager.WakeLock wakeLock;
     private Tracker tracker;
 
     /**
-     * Default constructor for {@link ForwardingService}.#
-     * <p>
-     * Creates a new instance of ForwardingService and initialises an {@link ExecutorService}
-     * with a fixed thread pool of 30 threads.
+     * Default constructor for {@link ForwardingService}.
      */
     public ForwardingService() {
         super(TAG);
-        executorService = Executors.newFixedThreadPool(30);
-    }
-
-    public ForwardingService(ExecutorService executorService) {
-        super(TAG);
-        this.executorService = executorService;
     }
 
     @Override
@@ -139,10 +178,10 @@ public class ForwardingService extends IntentService {
      * <p>
      * Acquires an instance of the Forwarding Manager to turn forwarding flag on.
      * <p>
-     * Creates a list off callbacks for each forward thread, and handle exceptions as they come.
+     * Hands the rules to a {@link ForwardingEngine}, and reports the rules which fail and recover
+     * as it retries them.
      * <p>
-     * If an exception is thrown, the service immediately stops, and the #onDestroy method is
-     * called.
+     * The service runs until it is destroyed, or every forwarder has stopped.
      *
      * @param intent
      */
@@ -154,81 +193,57 @@ public class ForwardingService extends IntentService {
 
         Log.i(TAG, "Ran the service");
 
+        // Listeners of the forwarding manager are told on the main thread
         ForwardingManager.getInstance().enableForwarding();
 
 
         runService = true;
 
-        /*
-         * Creates a new Intent containing a Uri object
-         * BROADCAST_ACTION is a custom Intent action
-         */
-        Intent localIntent =
-                new Intent(BROADCAST_ACTION)
-                        // Puts the status into the Intent
-                        .putExtra(PORT_FORWARD_SERVICE_STATE, ForwardingManager.getInstance().isEnabled());
-        // Broadcasts the Intent to receivers in this app.
-        LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
-
         showForwardingEnabledNotification();
+        ForwardingManager.getInstance().addListener(throughputListener);
 
         //load the rules from the datastore
         //TODO: inject the rules as extras
         RuleDao ruleDao = new RuleDao(new RuleDbHelper(this));
         List<RuleModel> ruleModels = ruleDao.getAllEnabledRuleModels();
 
-        List<Forwarder> ruleModelForwarders = new ArrayList<>();
-
-        InetSocketAddress from;
+        TokenBucket globalRateLimiter = TokenBucket.forLimit(
+                getLimitPreference(R.string.pref_global_rate_limit, TrafficPolicy.MAX_RATE_LIMIT));
 
-        Forwarder forwarder = null;
-
-        // how many futures there are to check
-        int remainingFutures = 0;
-
-        for (RuleModel ruleModel : ruleModels) {
-
-            // Something has killed the runService, no point in looping anymore
-            if (!runService) {
-                break;
-            }
-
-            try {
-                from = generateFromIpUsingInterface(ruleModel.getFromInterfaceName(), ruleModel.getFromPort());
-
-                if (ruleModel.isTcp() && runService) {
-                    ruleModelForwarders.add(new TcpForwarder(from, ruleModel.getTarget(), ruleModel.getName()));
-                    remainingFutures++;
-                }
-
-                if (ruleModel.isUdp() && runService) {
-                    ruleModelForwarders.add(new UdpForwarder(from, ruleModel.getTarget(), ruleModel.getName()));
-                    remainingFutures++;
-                }
-
-            } catch (SocketException | ObjectNotFoundException e) {
-                Log.e(TAG, "Error generating IP Address for FROM interface with rule '" + ruleModel.getName() + "'", e);
-
-                // graceful UI Exception handling - broadcast this to ui - it will deal with display something to the user e.g. a Toast
-                localIntent =
-                        new Intent(BROADCAST_ACTION)
-                                // Puts the status into the Intent
-                                .putExtra(PORT_FORWARD_SERVICE_ERROR_MESSAGE, getString(R.string.start_rule_error_message) + " '" + ruleModel.getName() + "'");
-                // Broadcasts the Intent to receivers in this app.
-                LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
-            }
+        int maxConnections = getLimitPreference(R.string.pref_max_connections, TrafficPolicy.MAX_CONNECTIONS);
+        int acceptRate = getLimitPreference(R.string.pref_accept_rate, TrafficPolicy.MAX_CONNECTIONS);
+        ConnectionLimiter connectionLimiter = null;
+        if (maxConnections != TrafficPolicy.UNLIMITED || acceptRate != TrafficPolicy.UNLIMITED) {
+            connectionLimiter = new ConnectionLimiter(maxConnections, acceptRate);
         }
 
-        executorService = Executors.newFixedThreadPool(ruleModelForwarders.size());
-
-        /*
-         Sourced from: http://stackoverflow.com/questions/19348248/waiting-on-a-list-of-future
-         */
-        CompletionService<Void> completionService =
-                new ExecutorCompletionService<>(executorService);
-
-        for (Forwarder ruleForwarder: ruleModelForwarders) {
-            completionService.submit(ruleForwarder);
+        int dnsCacheTtl = getLimitPreference(R.string.pref_dns_cache_ttl, MAX_DNS_CACHE_TTL_SECONDS);
+        targetResolver = new TargetResolver(dnsCacheTtl > 0
+                ? TimeUnit.SECONDS.toMillis(dnsCacheTtl)
+                : TargetResolver.DEFAULT_TTL_MILLIS);
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        ForwardingEngine engine = ForwardingEngine.open(
+                preferences.getString(getString(R.string.pref_transport), ForwardingEngine.NIO));
+        engine.setSharedLimits(globalRateLimiter, connectionLimiter);
+        engine.setTargetResolver(targetResolver);
+        engine.setOptions(
+                preferences.getBoolean(getString(R.string.pref_zero_copy), false),
+                preferences.getBoolean(getString(R.string.pref_tcp_fast_open), false),
+                preferences.getBoolean(getString(R.string.pref_defer_accept), false),
+                preferences.getBoolean(getString(R.string.pref_udp_batching), false));
+
+        forwardingStopped = new CountDownLatch(1);
+        forwardingEngine = engine;
+        ForwardingManager.getInstance().setEngine(engine);
+        engine.start(engineListener);
+
+        // Something may have killed the runService while the rules loaded
+        if (runService) {
+            engine.applyRules(ruleModels);
+
+            usageRecorder = new UsageRecorder(new UsageDao(new RuleDbHelper(this)));
+            usageRecorder.start();
         }
 
             // Build and send an Event.
@@ -238,69 +253,108 @@ public class ForwardingService extends IntentService {
                 .setLabel(ruleModels.size() + " rules")
                 .build());
 
-
-        Future<?> completedFuture;
-
-        // loop through each callback, and handle an exception
-        while (remainingFutures > 0 && runService) {
-
-            // block until a callable completes
+        // block until every forwarder has stopped, or the service is destroyed
+        if (engine.isRunning()) {
             try {
-                completedFuture = completionService.take();
-                remainingFutures--;
-
-                completedFuture.get();
-            } catch (ExecutionException e) {
-                Throwable cause = e.getCause();
-
-                Log.e(TAG, "Error when forwarding port.", e);
-                localIntent =
-                        new Intent(BROADCAST_ACTION)
-                                // Puts the status into the Intent
-                                .putExtra(PORT_FORWARD_SERVICE_ERROR_MESSAGE, e.getCause().getMessage());
-                // Broadcasts the Intent to receivers in this app.
-                LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
-
-                break;
+                forwardingStopped.await();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private InetSocketAddress generateFromIpUsingInterface(String interfaceName, int port) throws SocketException, ObjectNotFoundException {
-
-        String address = null;
-        InetSocketAddress inetSocketAddress;
+    /**
+     * Read a limit shared by all rules from the advanced preferences.
+     *
+     * @param keyResId the string resource of the preference key.
+     * @param max      the largest valid limit.
+     * @return the limit, or {@link TrafficPolicy#UNLIMITED} if blank or invalid.
+     */
+    private int getLimitPreference(int keyResId, int max) {
+        String value = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(getString(keyResId), "");
 
-        for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements(); ) {
-            NetworkInterface intf = en.nextElement();
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit > TrafficPolicy.UNLIMITED && limit <= max) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Blank or invalid, no limit
+        }
+        return TrafficPolicy.UNLIMITED;
+    }
 
-            Log.d(TAG, intf.getDisplayName() + " vs " + interfaceName);
-            if (intf.getDisplayName().equals(interfaceName)) {
+    /**
+     * Publishes the state of each rule to the {@link ForwardingManager}, and tells the user when a
+     * rule fails and when it recovers, and when a target starts and stops refusing connections.
+     * The engine retries failed rules, so the other rules keep forwarding and the service keeps
+     * running.
+     */
+    private final ForwardingEngine.Listener engineListener = new ForwardingEngine.Listener() {
+        @Override
+        public void onRuleStarting(RuleModel ruleModel) {
+            ForwardingManager.getInstance().ruleStarting(ruleModel.getId());
+        }
 
-                Log.i(TAG, "Found the relevant Interface. Will attempt to fetch IP Address");
+        @Override
+        public void onRuleBound(RuleModel ruleModel, List<ForwarderStats> stats) {
+            RuleState previous = ForwardingManager.getInstance().ruleBound(ruleModel.getId(), stats);
+            if (previous != null && previous.getPhase() == RuleState.Phase.FAILED) {
+                ForwardingManager.getInstance().postMessage(
+                        getString(R.string.rule_recovered_message, ruleModel.getName()));
+            }
+        }
 
-                for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements(); ) {
+        @Override
+        public void onRuleStartFailed(RuleModel ruleModel, Exception error, long retryMillis) {
+            // graceful UI Exception handling - post this to the ui - it will deal with display something to the user e.g. a Toast
+            ruleFailed(ruleModel, getString(R.string.start_rule_error_message) + " '" + ruleModel.getName() + "'");
+        }
 
-                    InetAddress inetAddress = enumIpAddr.nextElement();
+        @Override
+        public void onRuleFailed(RuleModel ruleModel, Throwable error, long retryMillis) {
+            ruleFailed(ruleModel, error.getMessage());
+        }
 
-                    address = new String(inetAddress.getHostAddress().toString());
+        @Override
+        public void onRuleStopping(RuleModel ruleModel) {
+            ForwardingManager.getInstance().ruleDraining(ruleModel.getId());
+        }
 
-                    if (address != null & address.length() > 0 && inetAddress instanceof Inet4Address) {
+        @Override
+        public void onRuleStopped(RuleModel ruleModel) {
+            ForwardingManager.getInstance().ruleStopped(ruleModel.getId());
+        }
 
-                        inetSocketAddress = new InetSocketAddress(address, port);
-                        return inetSocketAddress;
-                    }
-                }
+        @Override
+        public void onCircuitStateChanged(RuleModel ruleModel, CircuitBreaker circuitBreaker,
+                                          CircuitBreaker.State from, CircuitBreaker.State to) {
+            // Only the first opening and the recovery, a failed probe re-opening is not news
+            if (from == CircuitBreaker.State.CLOSED && to == CircuitBreaker.State.OPEN) {
+                ForwardingManager.getInstance().postMessage(getString(R.string.circuit_opened_message,
+                        circuitBreaker.getTarget().toString(), ruleModel.getName()));
+            } else if (to == CircuitBreaker.State.CLOSED) {
+                ForwardingManager.getInstance().postMessage(getString(R.string.circuit_closed_message,
+                        circuitBreaker.getTarget().toString(), ruleModel.getName()));
             }
         }
 
-        //Failed to find the relevant interface
-        //TODO: complete
-//        Toast.makeText(this, "Could not find relevant network interface.",
-//                Toast.LENGTH_LONG).show();
-        throw new ObjectNotFoundException("Could not find IP Address for Interface " + interfaceName);
+        @Override
+        public void onForwardersStopped() {
+            forwardingStopped.countDown();
+        }
+    };
+
+    /**
+     * Publish the failure of a rule, and tell the user if the rule was not already failing.
+     */
+    private void ruleFailed(RuleModel ruleModel, String message) {
+        RuleState previous = ForwardingManager.getInstance().ruleFailed(ruleModel.getId(), message);
+        if (previous == null || previous.getPhase() == RuleState.Phase.FAILED) {
+            return;
+        }
+        ForwardingManager.getInstance().postMessage(getString(R.string.rule_retrying_message, message));
     }
 
     @Override
@@ -323,33 +377,31 @@ public class ForwardingService extends IntentService {
         super.onDestroy();
         runService = false;
 
-        // Reject any new tasks
-        executorService.shutdown();
+        // Before the forwarders stop, so their last bytes are recorded
+        if (usageRecorder != null) {
+            usageRecorder.stop();
+            usageRecorder = null;
+        }
 
-        try {
-            // Shutdown any existing tasks
-            executorService.shutdownNow();
-            if (!executorService.awaitTermination(10, TimeUnit.SECONDS)) {
-                Log.e(TAG, "onDestroy: Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            // (Re-)Cancel if current thread also interrupted
-            executorService.shutdownNow();
-            // Preserve interrupt status
-            Thread.currentThread().interrupt();
+        if (forwardingEngine != null) {
+            forwardingEngine.stop();
+        }
+        if (forwardingStopped != null) {
+            forwardingStopped.countDown();
         }
 
-        ForwardingManager.getInstance().disableForwarding();
+        if (targetResolver != null) {
+            targetResolver.shutdown();
+        }
 
-        hideForwardingEnabledNotification();
+        ForwardingManager.getInstance().removeListener(throughputListener);
+        ForwardingManager.getInstance().setEngine(null);
+        mainHandler.removeCallbacks(notificationUpdateTask);
 
         //update the main activity
-        Intent localIntent =
-                new Intent(BROADCAST_ACTION)
-                        // Puts the status into the Intent
-                        .putExtra(PORT_FORWARD_SERVICE_STATE, ForwardingManager.getInstance().isEnabled());
-        // Broadcasts the Intent to receivers in this app.
-        LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
+        ForwardingManager.getInstance().disableForwarding();
+
+        hideForwardingEnabledNotification();
 
         wakeLock.release();
 
@@ -378,7 +430,8 @@ public class ForwardingService extends IntentService {
                 new NotificationCompat.Builder(this)
                         .setSmallIcon(R.drawable.ic_fwd_24dp)
                         .setContentTitle(getString(R.string.notification_forwarding_active_title))
-                        .setContentText(getString(R.string.notification_forwarding_touch_disable_text));
+                        .setContentText(getString(R.string.notification_forwarding_touch_disable_text))
+                        .setOnlyAlertOnce(true);
 
         mBuilder.setColor(ContextCompat.getColor(this, R.color.colorPrimaryDark));
 
@@ -402,10 +455,35 @@ public class ForwardingService extends IntentService {
                         PendingIntent.FLAG_UPDATE_CURRENT
                 );
         mBuilder.setContentIntent(resultPendingIntent);
+        notificationBuilder = mBuilder;
+        notifyForwardingEnabled();
+    }
+
+    /**
+     * Show the aggregate throughput and connections of all rules in the notification.
+     */
+    private void updateThroughputNotification() {
+        if (!runService) {
+            return;
+        }
+        notificationUpdatedAt = SystemClock.elapsedRealtime();
+
+        Throughput throughput = ForwardingManager.getInstance().getTotalThroughput();
+        throughputText.setLength(0);
+        Throughput.appendRate(throughputText.append("\u2191 "), throughput.getUpPerSecond());
+        Throughput.appendRate(throughputText.append("  \u2193 "), throughput.getDownPerSecond());
+
+        int connections = throughput.getActiveConnections();
+        notificationBuilder.setContentText(getResources().getQuantityString(
+                R.plurals.notification_forwarding_throughput, connections, throughputText, connections));
+        notifyForwardingEnabled();
+    }
+
+    private void notifyForwardingEnabled() {
         NotificationManager mNotificationManager =
                 (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
-        Notification notification = mBuilder.build();
+        Notification notification = notificationBuilder.build();
         notification.flags = Notification.FLAG_NO_CLEAR | Notification.FLAG_ONGOING_EVENT | Notification.DEFAULT_LIGHTS;
 
         // mId allows you to update the notification later on.
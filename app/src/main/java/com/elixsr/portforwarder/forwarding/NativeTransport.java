@@ -0,0 +1,269 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link NativeTransport} class gives the forwarders access to Linux socket operations the
+ * Java APIs do not offer, through the {@code fwd-native} library.
+ * <p>
+ * The library may be missing, for example on an ABI it was not built for. Callers must check
+ * {@link #isAvailable()} and fall back to the java.nio code paths when it returns false.
+ */
+public final class NativeTransport {
+
+    private static final String TAG = "NativeTransport";
+
+    /**
+     * Returned by operations which would have to wait for the socket or pipe.
+     */
+    public static final int WOULD_BLOCK = -1;
+
+    private static final boolean AVAILABLE;
+
+    static {
+        boolean available = false;
+        try {
+            System.loadLibrary("fwd-native");
+            available = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.i(TAG, "Native transport is not available: " + e.getMessage());
+        }
+        AVAILABLE = available;
+    }
+
+    private NativeTransport() {
+
+    }
+
+    /**
+     * @return true if the native library is loaded.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Find the file descriptor of a channel. The descriptor stays owned by the channel, and is
+     * only valid until the channel is closed.
+     *
+     * @param channel a socket channel.
+     * @return the descriptor, or -1 if the runtime's channel does not expose one.
+     */
+    public static native int getFd(Object channel);
+
+    /**
+     * Open a non-blocking pipe.
+     *
+     * @param fds      receives the read end in the first element and the write end in the second.
+     * @param capacity the capacity to ask for in bytes, or 0 for the system default.
+     * @return the capacity of the pipe, which may differ from the one asked for.
+     * @throws IOException if the pipe could not be opened, such as when out of descriptors.
+     */
+    public static native int pipe(int[] fds, int capacity) throws IOException;
+
+    /**
+     * Move data between two descriptors with splice(2), one of which must be a pipe, without
+     * copying it into user space.
+     *
+     * @param fromFd the descriptor to read from.
+     * @param toFd   the descriptor to write to.
+     * @param length the maximum amount of bytes to move.
+     * @return the amount of bytes moved, 0 at the end of the stream of a socket, or
+     * {@link #WOULD_BLOCK}.
+     * @throws IOException if either descriptor failed.
+     */
+    public static native int splice(int fromFd, int toFd, int length) throws IOException;
+
+    /**
+     * Close a descriptor opened by this class.
+     *
+     * @param fd the descriptor.
+     */
+    public static native void close(int fd);
+
+    /**
+     * @return a new epoll instance.
+     * @throws IOException if it could not be created.
+     */
+    public static native int epollCreate() throws IOException;
+
+    /**
+     * Add a descriptor to an epoll instance.
+     *
+     * @param epollFd the epoll instance.
+     * @param fd      the descriptor, reported back by {@link #epollWait(int, int[], int[], int)}.
+     * @param events  the epoll event mask, including EPOLLET for edge-triggered reporting.
+     * @throws IOException if the descriptor could not be added.
+     */
+    public static native void epollAdd(int epollFd, int fd, int events) throws IOException;
+
+    /**
+     * Remove a descriptor from an epoll instance, ignoring descriptors which are not in it.
+     *
+     * @param epollFd the epoll instance.
+     * @param fd      the descriptor.
+     */
+    public static native void epollDelete(int epollFd, int fd);
+
+    /**
+     * Wait for events on an epoll instance.
+     *
+     * @param epollFd       the epoll instance.
+     * @param fds           receives the descriptor of each event.
+     * @param events        receives the event mask of each event, the same length as fds.
+     * @param timeoutMillis the longest time to wait, or -1 to wait until an event arrives.
+     * @return the amount of events, 0 if the wait timed out or was interrupted by a signal.
+     * @throws IOException if waiting failed.
+     */
+    public static native int epollWait(int epollFd, int[] fds, int[] events, int timeoutMillis) throws IOException;
+
+    /**
+     * @return a new non-blocking eventfd, used to wake a thread waiting in epoll.
+     * @throws IOException if it could not be created.
+     */
+    public static native int eventFd() throws IOException;
+
+    /**
+     * Make an eventfd readable.
+     *
+     * @param fd the eventfd.
+     */
+    public static native void eventFdWrite(int fd);
+
+    /**
+     * Reset an eventfd, so it is no longer readable.
+     *
+     * @param fd the eventfd.
+     */
+    public static native void eventFdRead(int fd);
+
+    /**
+     * Set SO_REUSEPORT on a socket, before it is bound, so several sockets can bind the same
+     * address and the kernel spreads connections and datagrams between them.
+     *
+     * @param fd        the socket.
+     * @param reusePort true to share the address.
+     * @throws IOException if the kernel does not support the option.
+     */
+    public static native void setReusePort(int fd, boolean reusePort) throws IOException;
+
+    /**
+     * Make the kernel choose between the sockets sharing an address with SO_REUSEPORT by source
+     * address, rather than by a hash of both addresses and ports, so every connection and datagram
+     * of a source reaches the same socket. Applies to the whole group, once the socket is bound.
+     *
+     * @param fd        a bound socket of the group.
+     * @param groupSize the amount of sockets in the group.
+     * @throws IOException if the kernel does not support steering the group, before Linux 4.5.
+     */
+    public static native void setReusePortSteering(int fd, int groupSize) throws IOException;
+
+    /**
+     * Enable TCP Fast Open on a listening socket, so clients which have connected before can send
+     * data with their SYN.
+     *
+     * @param fd          the socket.
+     * @param queueLength the limit on pending Fast Open requests.
+     * @throws IOException if the kernel does not support the option.
+     */
+    public static native void setTcpFastOpen(int fd, int queueLength) throws IOException;
+
+    /**
+     * Set TCP_DEFER_ACCEPT on a listening socket, so connections are only accepted once the
+     * client has sent data, or the time has passed.
+     *
+     * @param fd      the socket.
+     * @param seconds the longest time to wait for data.
+     * @throws IOException if the kernel does not support the option.
+     */
+    public static native void setTcpDeferAccept(int fd, int seconds) throws IOException;
+
+    /**
+     * Make closing a connected socket send a TCP reset rather than shut it down gracefully, for
+     * channels which do not support SO_LINGER.
+     *
+     * @param fd the socket.
+     * @throws IOException if the socket is no longer valid.
+     */
+    public static native void setResetOnClose(int fd) throws IOException;
+
+    /**
+     * @param fd a bound socket.
+     * @return true if the socket is IPv6, which reaches IPv4 addresses through mapped addresses.
+     * @throws IOException if the socket's address could not be read.
+     */
+    public static native boolean isIpv6Socket(int fd) throws IOException;
+
+    /**
+     * Set UDP_GRO on a datagram socket, so the kernel may join consecutive datagrams of a flow
+     * into one, reported with their size by
+     * {@link #receiveDatagrams(int, ByteBuffer, int, ByteBuffer, int[], int[], int)}.
+     *
+     * @param fd  the socket.
+     * @param gro true to join datagrams.
+     * @throws IOException if the kernel does not support the option.
+     */
+    public static native void setUdpGro(int fd, boolean gro) throws IOException;
+
+    /**
+     * Receive a batch of datagrams with recvmmsg(2), one into each slot of a {@link DatagramRing}
+     * starting from the first.
+     *
+     * @param fd           a non-blocking datagram socket.
+     * @param packets      a direct buffer of count slots of slotSize bytes.
+     * @param slotSize     the size of each slot.
+     * @param addresses    a direct buffer receiving the source of each datagram, see
+     *                     {@link DatagramRing#ADDRESS_SIZE}.
+     * @param lengths      receives the length of each datagram.
+     * @param segmentSizes receives the size of the datagrams joined into each slot by UDP GRO, or
+     *                     0 if it holds a single datagram.
+     * @param count        the most datagrams to receive.
+     * @return the amount of datagrams received, 0 if none were waiting.
+     * @throws IOException if receiving failed.
+     */
+    public static native int receiveDatagrams(int fd, ByteBuffer packets, int slotSize, ByteBuffer addresses,
+                                              int[] lengths, int[] segmentSizes, int count) throws IOException;
+
+    /**
+     * Send the datagrams in a range of slots of a {@link DatagramRing} with sendmmsg(2), each to
+     * the address held for its slot. Slots whose length is {@link DatagramRing#DROPPED} are
+     * skipped, and slots holding joined datagrams are split again with UDP GSO.
+     *
+     * @param fd           a non-blocking datagram socket.
+     * @param packets      the direct buffer of slots.
+     * @param slotSize     the size of each slot.
+     * @param addresses    the direct buffer of destinations.
+     * @param lengths      the length of each datagram.
+     * @param segmentSizes the size of the datagrams joined into each slot, or 0.
+     * @param offset       the first slot to send.
+     * @param count        the amount of slots to send.
+     * @param ipv6Socket   whether the socket is IPv6, see {@link #isIpv6Socket(int)}.
+     * @return the amount of slots sent or skipped from the start of the range, less than count
+     * if the socket could not take them all.
+     * @throws IOException if sending failed.
+     */
+    public static native int sendDatagrams(int fd, ByteBuffer packets, int slotSize, ByteBuffer addresses,
+                                           int[] lengths, int[] segmentSizes, int offset, int count,
+                                           boolean ipv6Socket) throws IOException;
+}
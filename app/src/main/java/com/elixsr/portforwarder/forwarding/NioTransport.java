@@ -0,0 +1,133 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The {@link NioTransport} class is the {@link Transport} built on a java.nio {@link Selector}.
+ */
+final class NioTransport extends Transport {
+
+    private final Selector selector;
+    private final List<TransportKey> selectedKeys = new ArrayList<>();
+
+    NioTransport() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public TransportKey register(SelectableChannel channel, int ops, Object attachment) throws IOException {
+        SelectionKey existing = channel.keyFor(selector);
+        if (existing != null && existing.isValid()) {
+            NioKey key = (NioKey) existing.attachment();
+            existing.interestOps(ops);
+            key.attach(attachment);
+            return key;
+        }
+
+        NioKey key = new NioKey(this, channel, attachment);
+        key.selectionKey = channel.register(selector, ops, key);
+        return key;
+    }
+
+    @Override
+    public int select() throws IOException {
+        selector.select();
+        return collectSelectedKeys();
+    }
+
+    @Override
+    public int select(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+        return collectSelectedKeys();
+    }
+
+    private int collectSelectedKeys() {
+        selectedKeys.clear();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            selectedKeys.add((TransportKey) it.next().attachment());
+            it.remove();
+        }
+        return selectedKeys.size();
+    }
+
+    @Override
+    public List<TransportKey> selectedKeys() {
+        return selectedKeys;
+    }
+
+    @Override
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    @Override
+    public String getType() {
+        return NIO;
+    }
+
+    static final class NioKey extends TransportKey {
+
+        SelectionKey selectionKey;
+
+        NioKey(Transport transport, SelectableChannel channel, Object attachment) {
+            super(transport, channel, attachment);
+        }
+
+        @Override
+        public int interestOps() {
+            return selectionKey.interestOps();
+        }
+
+        @Override
+        public TransportKey interestOps(int ops) {
+            selectionKey.interestOps(ops);
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return selectionKey.readyOps();
+        }
+
+        @Override
+        public boolean isValid() {
+            return selectionKey.isValid();
+        }
+
+        @Override
+        public void cancel() {
+            selectionKey.cancel();
+        }
+    }
+}
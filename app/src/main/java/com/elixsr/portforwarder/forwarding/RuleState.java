@@ -0,0 +1,215 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@link RuleState} class is an immutable snapshot of what a forwarded rule is doing, published
+ * through the {@link ForwardingManager}.
+ * <p>
+ * The counters are read live from the rule's forwarders, so they keep moving between snapshots.
+ */
+public final class RuleState {
+
+    public enum Phase {
+        /**
+         * The rule's forwarders are being created, and have not all bound.
+         */
+        STARTING,
+        /**
+         * Every forwarder of the rule is bound, and forwarding.
+         */
+        BOUND,
+        /**
+         * The rule could not be started, or a forwarder of it failed, and it is being retried.
+         */
+        FAILED,
+        /**
+         * The rule is being stopped, and its forwarders are finishing.
+         */
+        DRAINING,
+        /**
+         * The rule is no longer forwarded.
+         */
+        STOPPED
+    }
+
+    private final long ruleId;
+    private final Phase phase;
+    private final String lastError;
+    private final int failures;
+    private final long changedAtMillis;
+    private final List<ForwarderStats> stats;
+
+    private RuleState(long ruleId, Phase phase, String lastError, int failures, List<ForwarderStats> stats) {
+        this.ruleId = ruleId;
+        this.phase = phase;
+        this.lastError = lastError;
+        this.failures = failures;
+        this.stats = stats;
+        this.changedAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param ruleId the id of a rule which is being started.
+     * @return the first state of the rule.
+     */
+    public static RuleState starting(long ruleId) {
+        return new RuleState(ruleId, Phase.STARTING, null, 0, Collections.<ForwarderStats>emptyList());
+    }
+
+    /**
+     * @param stats the counters of the rule's current forwarders.
+     * @return the state of the rule once all its forwarders are bound. The last error is kept.
+     */
+    public RuleState bound(List<ForwarderStats> stats) {
+        return new RuleState(ruleId, Phase.BOUND, lastError, failures, stats);
+    }
+
+    /**
+     * @param error why the rule failed.
+     * @return the state of the rule after a failure, counting the failure.
+     */
+    public RuleState failed(String error) {
+        return new RuleState(ruleId, Phase.FAILED, error, failures + 1, stats);
+    }
+
+    /**
+     * @return the state of the rule while it is being stopped.
+     */
+    public RuleState draining() {
+        return new RuleState(ruleId, Phase.DRAINING, lastError, failures, stats);
+    }
+
+    /**
+     * @return the state of the rule once it is no longer forwarded.
+     */
+    public RuleState stopped() {
+        return new RuleState(ruleId, Phase.STOPPED, lastError, failures, Collections.<ForwarderStats>emptyList());
+    }
+
+    public long getRuleId() {
+        return ruleId;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the message of the rule's last failure, or null if it has not failed.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return the amount of times the rule failed since forwarding was started.
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return when the rule entered its phase, in milliseconds since the epoch.
+     */
+    public long getChangedAtMillis() {
+        return changedAtMillis;
+    }
+
+    /**
+     * @return the amount of connections the rule currently forwards.
+     */
+    public int getActiveConnections() {
+        int activeConnections = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            activeConnections += stats.get(i).getActiveConnections();
+        }
+        return activeConnections;
+    }
+
+    /**
+     * @return the total bytes the rule read from clients.
+     */
+    public long getBytesUp() {
+        long bytesUp = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            bytesUp += stats.get(i).getBytesUp();
+        }
+        return bytesUp;
+    }
+
+    /**
+     * @return the total bytes the rule read from targets for their clients.
+     */
+    public long getBytesDown() {
+        long bytesDown = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            bytesDown += stats.get(i).getBytesDown();
+        }
+        return bytesDown;
+    }
+
+    /**
+     * @return the amount of connections the rule closed straight away because of its limits.
+     */
+    public long getRejectedConnections() {
+        long rejectedConnections = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            rejectedConnections += stats.get(i).getRejectedConnections();
+        }
+        return rejectedConnections;
+    }
+
+    /**
+     * @return the amount of connections the rule reset because the circuit of their target was
+     * open.
+     */
+    public long getCircuitRejections() {
+        long circuitRejections = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            circuitRejections += stats.get(i).getCircuitRejections();
+        }
+        return circuitRejections;
+    }
+
+    /**
+     * @return the amount of times the circuit of a target of the rule opened.
+     */
+    public long getCircuitOpenings() {
+        long circuitOpenings = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            circuitOpenings += stats.get(i).getCircuitOpenings();
+        }
+        return circuitOpenings;
+    }
+
+    /**
+     * @return the amount of connections and datagrams the rule dropped for their source.
+     */
+    public long getDeniedSources() {
+        long deniedSources = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            deniedSources += stats.get(i).getDeniedSources();
+        }
+        return deniedSources;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import com.elixsr.portforwarder.models.AccessPolicy;
+import com.elixsr.portforwarder.util.CidrTrie;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * The {@link SourceFilter} class decides whether a source address may use a rule, according to the
+ * rule's {@link AccessPolicy}.
+ * <p>
+ * The policy's lists are compiled into a {@link CidrTrie} once, when forwarding starts, so each
+ * check is a single longest prefix lookup.
+ */
+public class SourceFilter {
+
+    private static final int ALLOW = 1;
+    private static final int DENY = 2;
+
+    private final CidrTrie trie;
+    private final int defaultDecision;
+
+    private SourceFilter(CidrTrie trie, int defaultDecision) {
+        this.trie = trie;
+        this.defaultDecision = defaultDecision;
+    }
+
+    /**
+     * Compile an {@link AccessPolicy}.
+     *
+     * @param accessPolicy a valid policy.
+     * @return the filter, or null if the policy allows every source.
+     */
+    public static SourceFilter compile(AccessPolicy accessPolicy) {
+        if (!accessPolicy.isRestricted()) {
+            return null;
+        }
+
+        String[] allowed = AccessPolicy.splitSources(accessPolicy.getAllowedSources());
+        String[] denied = AccessPolicy.splitSources(accessPolicy.getDeniedSources());
+
+        CidrTrie trie = new CidrTrie();
+        for (String cidr : allowed) {
+            int[] prefix = CidrTrie.parseCidr(cidr);
+            trie.put(prefix[0], prefix[1], ALLOW);
+        }
+
+        // Denied last, so a prefix in both lists is denied
+        for (String cidr : denied) {
+            int[] prefix = CidrTrie.parseCidr(cidr);
+            trie.put(prefix[0], prefix[1], DENY);
+        }
+        trie.trimToSize();
+
+        return new SourceFilter(trie, allowed.length > 0 ? DENY : ALLOW);
+    }
+
+    /**
+     * @param address an IPv4 address as an int, see {@link CidrTrie#toInt(InetAddress)}.
+     * @return true if the source may use the rule.
+     */
+    public boolean isAllowed(int address) {
+        int decision = trie.lookup(address);
+        return (decision == CidrTrie.NONE ? defaultDecision : decision) == ALLOW;
+    }
+
+    /**
+     * @param source the remote address of a connection or datagram.
+     * @return true if the source may use the rule. Sources other than IPv4 addresses are only
+     * allowed if the allow list is empty.
+     */
+    public boolean isAllowed(SocketAddress source) {
+        if (source instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) source).getAddress();
+            if (address instanceof Inet4Address) {
+                return isAllowed(CidrTrie.toInt(address));
+            }
+        }
+        return defaultDecision == ALLOW;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import com.elixsr.portforwarder.models.SourceRoute;
+import com.elixsr.portforwarder.util.CidrTrie;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * The {@link SourceRouter} class chooses the target of a connection or datagram from its source
+ * address, according to a rule's {@link SourceRoute}s.
+ * <p>
+ * Targets are numbered, the rule's own target is {@link #DEFAULT_ROUTE} and each route follows in
+ * order. The routes are compiled into a {@link CidrTrie} of route numbers once, when forwarding
+ * starts; the lowest numbered prefix containing a source is its first matching route, so each
+ * choice is a single lookup however many routes the rule holds.
+ */
+public class SourceRouter {
+
+    /**
+     * The route number of the rule's own target.
+     */
+    public static final int DEFAULT_ROUTE = 0;
+
+    private final CidrTrie trie;
+    private final InetSocketAddress[] targets;
+
+    private SourceRouter(CidrTrie trie, InetSocketAddress[] targets) {
+        this.trie = trie;
+        this.targets = targets;
+    }
+
+    /**
+     * Compile a rule's routes.
+     *
+     * @param routes        the valid routes, in order.
+     * @param defaultTarget the rule's target.
+     * @return the router, or null if there are no routes.
+     */
+    public static SourceRouter compile(List<SourceRoute> routes, InetSocketAddress defaultTarget) {
+        if (routes.isEmpty()) {
+            return null;
+        }
+
+        InetSocketAddress[] targets = new InetSocketAddress[routes.size() + 1];
+        targets[DEFAULT_ROUTE] = defaultTarget;
+
+        CidrTrie trie = new CidrTrie();
+
+        // Backwards, so an earlier route replaces a later one with the same prefix
+        for (int i = routes.size() - 1; i >= 0; i--) {
+            SourceRoute route = routes.get(i);
+            int[] prefix = CidrTrie.parseCidr(route.getSource());
+            trie.put(prefix[0], prefix[1], i + 1);
+            targets[i + 1] = route.getTarget();
+        }
+        trie.trimToSize();
+
+        return new SourceRouter(trie, targets);
+    }
+
+    /**
+     * @param address an IPv4 address as an int, see {@link CidrTrie#toInt(InetAddress)}.
+     * @return the number of the first route matching the source, or {@link #DEFAULT_ROUTE}.
+     */
+    public int route(int address) {
+        int route = trie.lookupLowest(address);
+        return route == CidrTrie.NONE ? DEFAULT_ROUTE : route;
+    }
+
+    /**
+     * @param source the remote address of a connection or datagram.
+     * @return the number of the first route matching the source, or {@link #DEFAULT_ROUTE}.
+     * Sources other than IPv4 addresses always use the default route.
+     */
+    public int route(SocketAddress source) {
+        if (source instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) source).getAddress();
+            if (address instanceof Inet4Address) {
+                return route(CidrTrie.toInt(address));
+            }
+        }
+        return DEFAULT_ROUTE;
+    }
+
+    /**
+     * @param route a route number.
+     * @return the target of the route.
+     */
+    public InetSocketAddress getTarget(int route) {
+        return targets[route];
+    }
+
+    /**
+     * @return the amount of targets, including the rule's own.
+     */
+    public int getTargetCount() {
+        return targets.length;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import com.elixsr.portforwarder.util.CidrTrie;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link SourceThrottle} class bans source addresses which open connections or send datagrams
+ * too quickly.
+ * <p>
+ * Events are counted per source address over one second windows. A source exceeding the limit is
+ * banned for a fixed time, during which all of its events are refused.
+ * <p>
+ * Sources are held in a table of fixed capacity, keyed by the int form of the IPv4 address and
+ * stored in parallel primitive arrays. When the table is full the least recently seen source is
+ * evicted, so memory stays bounded however many sources appear, for example in a flood of
+ * datagrams with spoofed sources. Nothing is allocated after construction.
+ * <p>
+ * Instances are used by a single forwarding thread and are not thread safe.
+ */
+public class SourceThrottle {
+
+    /**
+     * The default amount of sources tracked.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The event is allowed.
+     */
+    public static final int ALLOWED = 0;
+
+    /**
+     * The event is refused, its source is banned.
+     */
+    public static final int BANNED = 1;
+
+    /**
+     * The event is refused, and its source has just been banned.
+     */
+    public static final int NEWLY_BANNED = 2;
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int NONE = -1;
+
+    private final int maxEventsPerSecond;
+    private final long banNanos;
+
+    // Hash chains, indexed by bucket and then by entry
+    private final int[] buckets;
+    private final int[] chainNext;
+
+    // Entries
+    private final int[] addresses;
+    private final long[] windowStarts;
+    private final int[] windowCounts;
+    private final long[] bannedUntil;
+
+    // Recency list, most recent at the head
+    private final int[] newer;
+    private final int[] older;
+    private int newest = NONE;
+    private int oldest = NONE;
+
+    private int size;
+
+    /**
+     * Create a throttle for a per source limit.
+     *
+     * @param maxEventsPerSecond the amount of events a source may cause per second, 0 for no limit.
+     * @param banSeconds         how long a source exceeding the limit is banned for.
+     * @return the throttle, or null if there is no limit.
+     */
+    public static SourceThrottle forLimit(int maxEventsPerSecond, int banSeconds) {
+        if (maxEventsPerSecond <= 0) {
+            return null;
+        }
+        return new SourceThrottle(maxEventsPerSecond, TimeUnit.SECONDS.toMillis(banSeconds), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param maxEventsPerSecond the amount of events a source may cause per second.
+     * @param banMillis          how long a source exceeding the limit is banned for.
+     * @param capacity           the amount of sources tracked.
+     */
+    public SourceThrottle(int maxEventsPerSecond, long banMillis, int capacity) {
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.banNanos = TimeUnit.MILLISECONDS.toNanos(banMillis);
+
+        this.buckets = new int[BufferPool.roundUpToPowerOfTwo(capacity * 2)];
+        Arrays.fill(buckets, NONE);
+        this.chainNext = new int[capacity];
+
+        this.addresses = new int[capacity];
+        this.windowStarts = new long[capacity];
+        this.windowCounts = new int[capacity];
+        this.bannedUntil = new long[capacity];
+
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+    }
+
+    /**
+     * Record an event from a source, such as a new connection or a datagram.
+     *
+     * @param source the source of the event.
+     * @param now    the current {@link System#nanoTime()}.
+     * @return {@link #ALLOWED}, {@link #BANNED} or {@link #NEWLY_BANNED}. Sources other than IPv4
+     * addresses are not tracked and always allowed.
+     */
+    public int check(SocketAddress source, long now) {
+        if (source instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) source).getAddress();
+            if (address instanceof Inet4Address) {
+                return check(CidrTrie.toInt(address), now);
+            }
+        }
+        return ALLOWED;
+    }
+
+    /**
+     * Record an event from a source.
+     *
+     * @param address the IPv4 address of the source as an int.
+     * @param now     the current {@link System#nanoTime()}.
+     * @return {@link #ALLOWED}, {@link #BANNED} or {@link #NEWLY_BANNED}.
+     */
+    public int check(int address, long now) {
+        int entry = find(address);
+
+        if (entry == NONE) {
+            entry = insert(address);
+            windowStarts[entry] = now;
+            windowCounts[entry] = 0;
+            bannedUntil[entry] = now;
+        } else {
+            touch(entry);
+
+            if (now - bannedUntil[entry] < 0) {
+                return BANNED;
+            }
+
+            if (now - windowStarts[entry] >= WINDOW_NANOS) {
+                windowStarts[entry] = now;
+                windowCounts[entry] = 0;
+            }
+        }
+
+        if (++windowCounts[entry] > maxEventsPerSecond) {
+            bannedUntil[entry] = now + banNanos;
+            windowCounts[entry] = 0;
+            return NEWLY_BANNED;
+        }
+        return ALLOWED;
+    }
+
+    /**
+     * @return the amount of sources currently tracked.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(int address) {
+        int entry = buckets[bucketOf(address)];
+        while (entry != NONE && addresses[entry] != address) {
+            entry = chainNext[entry];
+        }
+        return entry;
+    }
+
+    private int insert(int address) {
+        int entry;
+        if (size < addresses.length) {
+            entry = size++;
+        } else {
+            entry = oldest;
+            unlinkRecency(entry);
+            unlinkChain(entry);
+        }
+
+        addresses[entry] = address;
+        int bucket = bucketOf(address);
+        chainNext[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+
+        linkNewest(entry);
+        return entry;
+    }
+
+    private void touch(int entry) {
+        if (entry != newest) {
+            unlinkRecency(entry);
+            linkNewest(entry);
+        }
+    }
+
+    private void linkNewest(int entry) {
+        newer[entry] = NONE;
+        older[entry] = newest;
+        if (newest != NONE) {
+            newer[newest] = entry;
+        }
+        newest = entry;
+        if (oldest == NONE) {
+            oldest = entry;
+        }
+    }
+
+    private void unlinkRecency(int entry) {
+        if (newer[entry] != NONE) {
+            older[newer[entry]] = older[entry];
+        } else {
+            newest = older[entry];
+        }
+
+        if (older[entry] != NONE) {
+            newer[older[entry]] = newer[entry];
+        } else {
+            oldest = newer[entry];
+        }
+    }
+
+    private void unlinkChain(int entry) {
+        int bucket = bucketOf(addresses[entry]);
+        int current = buckets[bucket];
+
+        if (current == entry) {
+            buckets[bucket] = chainNext[entry];
+            return;
+        }
+
+        while (chainNext[current] != entry) {
+            current = chainNext[current];
+        }
+        chainNext[current] = chainNext[entry];
+    }
+
+    private int bucketOf(int address) {
+        // Spread the bits, neighbouring addresses differ only in the low bits
+        int hash = address * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (buckets.length - 1);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The {@link SplicePipe} class moves the data of one direction of a TCP connection from socket to
+ * socket through a kernel pipe with splice(2), so it is never copied into the Java heap.
+ * <p>
+ * Data is spliced from the source socket into the pipe with {@link #fill(int)}, and from the pipe
+ * into the destination socket with {@link #drain()}. Whatever the destination does not take waits
+ * in the pipe.
+ */
+class SplicePipe {
+
+    private static final String TAG = "SplicePipe";
+
+    private final int fromFd;
+    private final int toFd;
+    private final int readFd;
+    private final int writeFd;
+
+    /**
+     * The capacity of the pipe in bytes.
+     */
+    final int capacity;
+
+    /**
+     * The amount of bytes in the pipe.
+     */
+    int buffered;
+
+    private boolean closed;
+
+    private SplicePipe(int fromFd, int toFd, int readFd, int writeFd, int capacity) {
+        this.fromFd = fromFd;
+        this.toFd = toFd;
+        this.readFd = readFd;
+        this.writeFd = writeFd;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Open a pipe between two connected, non-blocking sockets.
+     *
+     * @param from     the socket to read from.
+     * @param to       the socket to write to.
+     * @param capacity the pipe capacity to ask for in bytes.
+     * @return the pipe, or null if splicing is not available, in which case the data must be
+     * copied.
+     */
+    static SplicePipe open(SocketChannel from, SocketChannel to, int capacity) {
+        if (!NativeTransport.isAvailable()) {
+            return null;
+        }
+
+        int fromFd = NativeTransport.getFd(from);
+        int toFd = NativeTransport.getFd(to);
+        if (fromFd < 0 || toFd < 0) {
+            return null;
+        }
+
+        int[] fds = new int[2];
+        try {
+            int actualCapacity = NativeTransport.pipe(fds, capacity);
+            return new SplicePipe(fromFd, toFd, fds[0], fds[1], actualCapacity);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not open pipe: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Splice data from the source socket into the pipe.
+     *
+     * @param length the maximum amount of bytes, no more than the free space of the pipe.
+     * @return the amount of bytes spliced, 0 if the source has nothing to read, or -1 at the end
+     * of its stream.
+     * @throws IOException if the source failed.
+     */
+    int fill(int length) throws IOException {
+        int spliced = NativeTransport.splice(fromFd, writeFd, length);
+        if (spliced == NativeTransport.WOULD_BLOCK) {
+            return 0;
+        }
+        if (spliced == 0) {
+            return -1;
+        }
+        buffered += spliced;
+        return spliced;
+    }
+
+    /**
+     * Splice as much of the pipe's data into the destination socket as it will take.
+     *
+     * @return the amount of bytes spliced.
+     * @throws IOException if the destination failed.
+     */
+    int drain() throws IOException {
+        int spliced = NativeTransport.splice(readFd, toFd, buffered);
+        if (spliced == NativeTransport.WOULD_BLOCK) {
+            return 0;
+        }
+        buffered -= spliced;
+        return spliced;
+    }
+
+    /**
+     * Close the pipe, dropping any data left in it. The sockets stay open.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffered = 0;
+        NativeTransport.close(readFd);
+        NativeTransport.close(writeFd);
+    }
+}
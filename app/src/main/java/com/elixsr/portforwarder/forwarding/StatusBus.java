@@ -0,0 +1,230 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link StatusBus} class carries status from the forwarding threads to the main thread, at
+ * most {@link #getUpdatesPerSecond()} times a second however many events happen.
+ * <p>
+ * Producers on any thread only mark what changed, without locking. Marks are coalesced: a rule
+ * which changes many times between two updates is delivered once, and its intermediate states are
+ * never seen. Messages for the user are queued, up to {@link #MAX_PENDING_MESSAGES} per update,
+ * and dropped beyond that.
+ * <p>
+ * While its {@link Sink} asks for it, the bus also wakes up on every update interval to let the
+ * sink poll counters which change without an event.
+ */
+class StatusBus {
+
+    private static final String TAG = "StatusBus";
+
+    static final int DEFAULT_UPDATES_PER_SECOND = 4;
+
+    /**
+     * The most messages delivered with one update.
+     */
+    static final int MAX_PENDING_MESSAGES = 8;
+
+    /**
+     * Receives the updates of a bus on the main thread.
+     */
+    interface Sink {
+
+        /**
+         * @return whether the bus should poll while nothing is marked.
+         */
+        boolean isPolling();
+
+        /**
+         * Mark the rules whose counters moved since the last poll. Called before each update.
+         *
+         * @param bus the bus to mark.
+         */
+        void poll(StatusBus bus);
+
+        /**
+         * @param changedRuleIds the rules marked since the last update.
+         * @param messages       the messages posted since the last update, oldest first.
+         */
+        void deliver(List<Long> changedRuleIds, List<String> messages);
+    }
+
+    private final Handler handler;
+    private final long intervalNanos;
+    private final int updatesPerSecond;
+    private final Sink sink;
+
+    private final Map<Long, Boolean> changedRules = new ConcurrentHashMap<>();
+    private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+
+    /**
+     * Whether an update is scheduled, marks made meanwhile are delivered with it.
+     */
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+
+    /**
+     * Whether something which is not a rule changed.
+     */
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    /**
+     * When the last update was delivered, on the {@link System#nanoTime()} clock.
+     */
+    private volatile long lastUpdateNanos;
+
+    private final Runnable updateTask = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * @param handler          the handler of the thread updates are delivered on.
+     * @param updatesPerSecond the most updates delivered per second.
+     * @param sink             receives the updates.
+     */
+    StatusBus(Handler handler, int updatesPerSecond, Sink sink) {
+        this.handler = handler;
+        this.updatesPerSecond = updatesPerSecond;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / updatesPerSecond;
+        this.sink = sink;
+        this.lastUpdateNanos = System.nanoTime() - intervalNanos;
+    }
+
+    int getUpdatesPerSecond() {
+        return updatesPerSecond;
+    }
+
+    /**
+     * Mark a rule whose state or counters changed.
+     */
+    void ruleChanged(long ruleId) {
+        changedRules.put(ruleId, Boolean.TRUE);
+        scheduleUpdate();
+    }
+
+    /**
+     * Mark a change which is not about a rule, such as forwarding being started.
+     */
+    void changed() {
+        changed.set(true);
+        scheduleUpdate();
+    }
+
+    /**
+     * Post a message for the user, unless too many are already waiting.
+     */
+    void post(String message) {
+        if (pendingMessages.incrementAndGet() > MAX_PENDING_MESSAGES) {
+            pendingMessages.decrementAndGet();
+            Log.d(TAG, "Dropped message: " + message);
+            return;
+        }
+        messages.add(message);
+        scheduleUpdate();
+    }
+
+    /**
+     * Schedule an update unless one is scheduled, so a {@link Sink} which has started polling is
+     * polled.
+     */
+    void wakeUp() {
+        scheduleUpdate();
+    }
+
+    /**
+     * Deliver the marks with the next update, no earlier than an interval after the last.
+     */
+    private void scheduleUpdate() {
+        if (updatePending.compareAndSet(false, true)) {
+            long delayNanos = lastUpdateNanos + intervalNanos - System.nanoTime();
+            postUpdate(updateTask, delayNanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        }
+    }
+
+    /**
+     * Run an update on the handler's thread. Tests override it to run updates by hand.
+     *
+     * @param task        the update.
+     * @param delayMillis how long to wait first, 0 to run it as soon as possible.
+     */
+    void postUpdate(Runnable task, long delayMillis) {
+        if (delayMillis == 0) {
+            handler.post(task);
+        } else {
+            handler.postDelayed(task, delayMillis);
+        }
+    }
+
+    private void update() {
+        lastUpdateNanos = System.nanoTime();
+
+        boolean polling = sink.isPolling();
+        if (polling) {
+            sink.poll(this);
+        }
+
+        // Marks made from here on schedule another update
+        updatePending.set(false);
+
+        List<Long> changedRuleIds = Collections.emptyList();
+        for (Long ruleId : changedRules.keySet()) {
+            changedRules.remove(ruleId);
+            if (changedRuleIds.isEmpty()) {
+                changedRuleIds = new ArrayList<>();
+            }
+            changedRuleIds.add(ruleId);
+        }
+
+        List<String> delivered = Collections.emptyList();
+        String message;
+        while ((message = messages.poll()) != null) {
+            pendingMessages.decrementAndGet();
+            if (delivered.isEmpty()) {
+                delivered = new ArrayList<>();
+            }
+            delivered.add(message);
+        }
+
+        if (changed.getAndSet(false) || !changedRuleIds.isEmpty() || !delivered.isEmpty()) {
+            sink.deliver(changedRuleIds, delivered);
+        }
+
+        // Keep polling counters while the sink wants them
+        if (polling && sink.isPolling()) {
+            scheduleUpdate();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link TargetResolver} class resolves target hostnames for the forwarding threads, without
+ * ever blocking them.
+ * <p>
+ * Lookups are answered from a cache. A hostname which is not cached is resolved by a small pool of
+ * resolver threads, and the forwarding thread is told through its {@link Listener} once the
+ * answer is in. Cached addresses are fresh for {@link #getTtlMillis()}; after that they are still
+ * served, while a refresh runs in the background, until they are {@link #MAX_STALE_MILLIS} past
+ * their expiry. A change of address is therefore picked up by new connections shortly after the
+ * TTL, and a slow or failing DNS server does not interrupt forwarding to the last known address.
+ * <p>
+ * The platform resolver does not expose the TTL of the DNS records, so the cache uses one TTL for
+ * all hostnames. Failures are cached for {@link #NEGATIVE_TTL_MILLIS}.
+ * <p>
+ * A single instance is shared by all forwarders and is thread safe.
+ */
+public class TargetResolver {
+
+    private static final String TAG = "TargetResolver";
+
+    /**
+     * Returned by {@link #lookup(String, Listener)} when the hostname could not be resolved.
+     */
+    public static final InetAddress[] UNRESOLVABLE = new InetAddress[0];
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * How long past its expiry a cached answer may still be served while it is refreshed.
+     */
+    public static final long MAX_STALE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * How long a failure is cached before the hostname is tried again.
+     */
+    public static final long NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int RESOLVER_THREADS = 2;
+
+    /**
+     * Told when the resolution of a hostname it looked up has finished.
+     */
+    public interface Listener {
+        /**
+         * Called on a resolver thread, implementations should only wake up their own thread.
+         *
+         * @param hostname the hostname.
+         */
+        void onResolved(String hostname);
+    }
+
+    private static class Entry {
+        /**
+         * The last addresses resolved, or null if the hostname has never been resolved.
+         */
+        InetAddress[] addresses;
+
+        /**
+         * The {@link System#nanoTime()} after which the entry must be refreshed.
+         */
+        long expiresAt;
+
+        /**
+         * The {@link System#nanoTime()} after which {@link #addresses} may no longer be served.
+         */
+        long staleUntil;
+
+        /**
+         * Whether the last resolution failed.
+         */
+        boolean failed;
+
+        boolean resolving;
+
+        final Set<Listener> listeners = new LinkedHashSet<>();
+    }
+
+    private final long ttlNanos;
+    private final ExecutorService executorService;
+    private final Map<String, Entry> cache = new HashMap<>();
+
+    public TargetResolver() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param ttlMillis how long resolved addresses are fresh for.
+     */
+    public TargetResolver(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.executorService = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Look up the addresses of a hostname without blocking.
+     *
+     * @param hostname the hostname.
+     * @param listener told when a resolution started by this lookup finishes, may be null.
+     * @return the addresses, possibly stale, {@link #UNRESOLVABLE} if the hostname recently failed
+     * to resolve, or null if it is being resolved and the listener will be told.
+     */
+    public InetAddress[] lookup(String hostname, Listener listener) {
+        long now = now();
+        boolean resolve = false;
+        InetAddress[] result;
+
+        synchronized (this) {
+            Entry entry = cache.get(hostname);
+            if (entry == null) {
+                entry = new Entry();
+                cache.put(hostname, entry);
+            }
+
+            boolean expired = (entry.addresses == null && !entry.failed) || now - entry.expiresAt >= 0;
+            if (expired && !entry.resolving) {
+                entry.resolving = true;
+                resolve = true;
+            }
+
+            if (entry.addresses != null && now - entry.staleUntil < 0) {
+                // Fresh, or stale and being refreshed
+                result = entry.addresses;
+            } else if (entry.failed && !entry.resolving) {
+                result = UNRESOLVABLE;
+            } else {
+                if (listener != null) {
+                    entry.listeners.add(listener);
+                }
+                result = null;
+            }
+        }
+
+        if (resolve) {
+            resolveAsync(hostname);
+        }
+        return result;
+    }
+
+    /**
+     * @return how long resolved addresses are fresh for.
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * Stop the resolver threads. Lookups made afterwards may never be answered.
+     */
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Resolve a hostname on a resolver thread. Tests override it to resolve on the calling thread.
+     */
+    void resolveAsync(final String hostname) {
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resolve(hostname);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Resolver is shut down, not resolving " + hostname);
+        }
+    }
+
+    void resolve(String hostname) {
+        InetAddress[] addresses = null;
+        try {
+            addresses = resolveAddresses(hostname);
+        } catch (UnknownHostException e) {
+            Log.w(TAG, "Could not resolve " + hostname + ": " + e.getMessage());
+        }
+
+        List<Listener> listeners;
+        synchronized (this) {
+            Entry entry = cache.get(hostname);
+            long now = now();
+
+            if (addresses != null && addresses.length > 0) {
+                entry.addresses = addresses;
+                entry.failed = false;
+                entry.expiresAt = now + ttlNanos;
+                entry.staleUntil = entry.expiresAt + TimeUnit.MILLISECONDS.toNanos(MAX_STALE_MILLIS);
+            } else {
+                // Keep serving the last known addresses, if any, until they are too stale
+                entry.failed = true;
+                entry.expiresAt = now + TimeUnit.MILLISECONDS.toNanos(NEGATIVE_TTL_MILLIS);
+            }
+            entry.resolving = false;
+
+            listeners = new ArrayList<>(entry.listeners);
+            entry.listeners.clear();
+        }
+
+        for (Listener listener : listeners) {
+            listener.onResolved(hostname);
+        }
+    }
+
+    /**
+     * Resolve a hostname, blocking. Tests override it to answer without a DNS server.
+     */
+    InetAddress[] resolveAddresses(String hostname) throws UnknownHostException {
+        return InetAddress.getAllByName(hostname);
+    }
+
+    /**
+     * @return the current {@link System#nanoTime()}. Tests override it to move time forward.
+     */
+    long now() {
+        return System.nanoTime();
+    }
+}
@@ -19,19 +19,26 @@
 package com.elixsr.portforwarder.forwarding;
 
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
 import com.elixsr.portforwarder.exceptions.BindException;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
 
 /**
  * Created by Niall McShane on 21/02/2016.
@@ -41,69 +48,478 @@ import com.elixsr.portforwarder.exceptions.BindException;
 public class TcpForwarder extends Forwarder implements Callable<Void> {
 
     private static final String TAG = "TcpForwarder";
-    private static final int BUFFER_SIZE = 100000;
+
+    /**
+     * The amount of idle buffers kept per size class.
+     */
+    private static final int POOLED_BUFFERS_PER_SIZE = 16;
+
+    /**
+     * The maximum amount of buffers written by one gathering write.
+     */
+    private static final int MAX_GATHERED_BUFFERS = 16;
+
+    /**
+     * When coalescing, the amount of queued data which is flushed without waiting any longer.
+     */
+    private static final int COALESCE_FLUSH_BYTES = 16 * 1024;
+
+    /**
+     * The amount of bytes a connection may read per loop iteration, for each unit of rule weight.
+     */
+    private static final int READ_BUDGET_PER_WEIGHT = 16 * 1024;
+
+    /**
+     * How long a connection attempt to one address of the target may go unanswered before the
+     * next address is tried alongside it, as recommended by RFC 8305.
+     */
+    private static final long CONNECT_ATTEMPT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * How long to wait before refilling the warm pool after the target failed.
+     */
+    private static final long WARM_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The limit on Fast Open connections waiting to be accepted.
+     */
+    private static final int FAST_OPEN_QUEUE_LENGTH = 256;
+
+    /**
+     * How long a deferred connection waits for the client to send data before it is accepted
+     * anyway.
+     */
+    private static final int DEFER_ACCEPT_SECONDS = 5;
+
+    /**
+     * The {@link CircuitBreaker} of each target, indexed by route number.
+     */
+    private CircuitBreaker[] circuitBreakers;
+
+    private final long coalesceDelayNanos;
+
+    /**
+     * The amount of bytes one direction of a connection may read per loop iteration, so a single
+     * bulk transfer cannot monopolise the loop.
+     */
+    private final int readBudget;
+
+    /**
+     * Pairs holding coalesced data which has not yet been flushed.
+     */
+    private final List<RoutingPair> coalescingPairs = new ArrayList<>();
+
+    /**
+     * Pairs which stopped reading because a rate limit ran out of tokens.
+     */
+    private final List<RoutingPair> throttledPairs = new ArrayList<>();
+
+    private BufferPool bufferPool;
+
+    /**
+     * The limit on connections shared by all rules, or null if unlimited.
+     */
+    private ConnectionLimiter connectionLimiter;
+
+    /**
+     * The limit on the rule's connections shared by the shards of the rule, or null if the rule's
+     * limit is counted by this forwarder alone.
+     */
+    private ConnectionLimiter ruleConnectionLimiter;
+
+    private TransportKey listeningKey;
+
+    /**
+     * The {@link Transport} type to run on, see {@link Transport#open(String)}.
+     */
+    private String transportType = Transport.NIO;
+
+    /**
+     * Whether the listening socket accepts TCP Fast Open, where the device supports it.
+     */
+    private boolean fastOpen;
+
+    /**
+     * Whether connections are only accepted once the client has sent data, where the device
+     * supports it.
+     */
+    private boolean deferAccept;
+
+    /**
+     * Whether connections relay through a {@link SplicePipe} where the device supports it.
+     */
+    private boolean zeroCopy;
+
+    /**
+     * Clients waiting for their hostname target to be resolved.
+     */
+    private final List<PendingConnection> awaitingResolution = new ArrayList<>();
+
+    /**
+     * Set by a resolver thread when a resolution this forwarder waits for has finished.
+     */
+    private volatile boolean resolutionFinished;
+
+    private TargetResolver.Listener resolverListener;
+
+    /**
+     * Pending connections with addresses left to try, see {@link #startDueAttempts(Transport, long)}.
+     */
+    private final List<PendingConnection> racingConnections = new ArrayList<>();
+
+    /**
+     * Connections to the rule's target waiting for clients, oldest first, or null if the rule has
+     * no warm pool.
+     */
+    private final ArrayDeque<WarmConnection> warmConnections;
+
+    /**
+     * The amount of warm connections still connecting.
+     */
+    private int warmConnecting;
+
+    private final long warmMaxIdleNanos;
+
+    /**
+     * The {@link System#nanoTime()} before which the warm pool is not refilled, after the target
+     * failed or could not be resolved.
+     */
+    private long warmRetryAt;
+
+    /**
+     * The addresses last passed to {@link #interleaveFamilies(InetAddress[])} and their order.
+     */
+    private InetAddress[] lastResolvedAddresses;
+    private InetAddress[] lastInterleavedAddresses;
+
+    /**
+     * The amount of connections accepted and not yet closed.
+     */
+    private int activeConnections;
+
+    /**
+     * Whether accepting has stopped because a connection limit was reached, and new connections
+     * wait in the listen backlog.
+     */
+    private boolean acceptPaused;
+
+    /**
+     * When accepting is paused, the {@link System#nanoTime()} to try again at, or
+     * {@link Long#MAX_VALUE} to wait for one of the rule's connections to close.
+     */
+    private long acceptResumeAt;
 
     public TcpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName) {
-        super("TCP", form, to, ruleName);
+        this(form, to, ruleName, new SocketProfile(), new TrafficPolicy());
+    }
+
+    public TcpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName,
+                        SocketProfile socketProfile, TrafficPolicy trafficPolicy) {
+        super("TCP", form, to, ruleName, socketProfile, trafficPolicy);
+        this.readBudget = trafficPolicy.getWeight() * READ_BUDGET_PER_WEIGHT;
+        this.coalesceDelayNanos = TimeUnit.MILLISECONDS.toNanos(socketProfile.getCoalesceDelayMillis());
+        this.circuitBreakers = new CircuitBreaker[]{newCircuitBreaker(to)};
+        this.warmConnections = socketProfile.getWarmConnections() > 0 ? new ArrayDeque<WarmConnection>() : null;
+        this.warmMaxIdleNanos = TimeUnit.SECONDS.toNanos(socketProfile.getWarmMaxIdleSeconds());
+    }
+
+    private CircuitBreaker newCircuitBreaker(InetSocketAddress target) {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(target);
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                Log.w(TAG, String.format(CIRCUIT_STATE_CHANGE_MESSAGE, circuitBreaker.getTarget(), TcpForwarder.this.ruleName, from, to));
+                if (to == CircuitBreaker.State.OPEN) {
+                    stats.recordCircuitOpened();
+                }
+            }
+        });
+        return circuitBreaker;
+    }
+
+    /**
+     * Return the {@link CircuitBreaker} guarding the target of this forwarder.
+     *
+     * @return the target's {@link CircuitBreaker}.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreakers[SourceRouter.DEFAULT_ROUTE];
+    }
+
+    /**
+     * Return the {@link CircuitBreaker}s guarding each target of this forwarder, the rule's own
+     * target first and then the target of each route.
+     *
+     * @return the {@link CircuitBreaker}s.
+     */
+    @Override
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return Arrays.asList(circuitBreakers);
+    }
+
+    /**
+     * Set the router choosing a target per source, giving each target its own
+     * {@link CircuitBreaker}. Must be called before the forwarder is started, and before
+     * listening to the {@link CircuitBreaker}s.
+     *
+     * @param sourceRouter the compiled routes of the rule, or null.
+     */
+    @Override
+    public void setSourceRouter(SourceRouter sourceRouter) {
+        super.setSourceRouter(sourceRouter);
+
+        CircuitBreaker defaultCircuitBreaker = circuitBreakers[SourceRouter.DEFAULT_ROUTE];
+        if (sourceRouter == null) {
+            circuitBreakers = new CircuitBreaker[]{defaultCircuitBreaker};
+            return;
+        }
+
+        circuitBreakers = new CircuitBreaker[sourceRouter.getTargetCount()];
+        circuitBreakers[SourceRouter.DEFAULT_ROUTE] = defaultCircuitBreaker;
+        for (int route = SourceRouter.DEFAULT_ROUTE + 1; route < circuitBreakers.length; route++) {
+            circuitBreakers[route] = newCircuitBreaker(sourceRouter.getTarget(route));
+        }
+    }
+
+    /**
+     * Set the limit on connections shared by all rules. Must be called before the forwarder is
+     * started.
+     *
+     * @param connectionLimiter the shared limit, or null.
+     */
+    public void setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    /**
+     * Set the limit on the rule's connections shared by the shards of a sharded rule, in place of
+     * this forwarder's own count. Must be called before the forwarder is started.
+     *
+     * @param ruleConnectionLimiter the shared limit, or null.
+     */
+    public void setRuleConnectionLimiter(ConnectionLimiter ruleConnectionLimiter) {
+        this.ruleConnectionLimiter = ruleConnectionLimiter;
+    }
+
+    /**
+     * Relay connections with splice(2) rather than by copying through buffers, where the device
+     * supports it. Must be called before the forwarder is started.
+     *
+     * @param zeroCopy true to splice.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Set the {@link Transport} the forwarder runs on. Must be called before the forwarder is
+     * started.
+     *
+     * @param transportType {@link Transport#NIO} or {@link Transport#EPOLL}.
+     */
+    public void setTransportType(String transportType) {
+        this.transportType = transportType;
+    }
+
+    /**
+     * Accept TCP Fast Open on the listening socket, so returning clients save a round trip. Must
+     * be called before the forwarder is started.
+     *
+     * @param fastOpen true to accept Fast Open.
+     */
+    public void setFastOpen(boolean fastOpen) {
+        this.fastOpen = fastOpen;
+    }
+
+    /**
+     * Only accept connections once the client has sent data, so connections which never send
+     * anything do not wake the forwarder. Only suits protocols where the client speaks first.
+     * Must be called before the forwarder is started.
+     *
+     * @param deferAccept true to defer accepting.
+     */
+    public void setDeferAccept(boolean deferAccept) {
+        this.deferAccept = deferAccept;
+    }
+
+    /**
+     * Set the options of the listening socket which have no Java API. Each is skipped with a
+     * message when the device does not support it.
+     */
+    private void applyListenerOptions(ServerSocketChannel listening) {
+        if (!fastOpen && !deferAccept) {
+            return;
+        }
+
+        int fd = NativeTransport.isAvailable() ? NativeTransport.getFd(listening) : -1;
+        if (fd < 0) {
+            Log.i(TAG, "Listener options are not available for rule " + ruleName);
+            return;
+        }
+
+        if (fastOpen) {
+            try {
+                NativeTransport.setTcpFastOpen(fd, FAST_OPEN_QUEUE_LENGTH);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not enable TCP Fast Open for rule " + ruleName + ": " + e.getMessage());
+            }
+        }
+
+        if (deferAccept) {
+            try {
+                NativeTransport.setTcpDeferAccept(fd, DEFER_ACCEPT_SECONDS);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not defer accepting for rule " + ruleName + ": " + e.getMessage());
+            }
+        }
     }
 
     public Void call() throws IOException, BindException {
 
         Log.d(TAG, String.format(super.START_MESSAGE, protocol, from.getPort(), to.getPort()));
 
+        applyThreadPriority();
+
         try {
-            Selector selector = Selector.open();
+            final Transport transport = Transport.open(transportType);
+
+            resolverListener = new TargetResolver.Listener() {
+                @Override
+                public void onResolved(String hostname) {
+                    resolutionFinished = true;
+                    transport.wakeup();
+                }
+            };
+            connectionTable.setCloseRequestListener(new Runnable() {
+                @Override
+                public void run() {
+                    transport.wakeup();
+                }
+            });
+            prefetchTarget();
 
-            ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            bufferPool = new BufferPool(AdaptiveBufferSizer.MIN_SIZE, socketProfile.getRelayBufferSize(), POOLED_BUFFERS_PER_SIZE);
 
             ServerSocketChannel listening = ServerSocketChannel.open();
             listening.configureBlocking(false);
 
             try {
-                listening.socket().bind(this.from, 0);
+                listening.socket().setReuseAddress(isReuseAddress());
+
+                // Accepted sockets inherit the receive buffer, it must be set before bind for the
+                // window scale to be negotiated
+                if (socketProfile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+                    listening.socket().setReceiveBufferSize(socketProfile.getReceiveBufferSize());
+                }
+                applyListenerOptions(listening);
+                shareAddress(listening);
+
+                listening.socket().bind(this.from, socketProfile.getBacklog());
+                steerSources(listening);
             } catch (java.net.BindException e) {
                 Log.e(TAG, String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
+                listening.close();
+                transport.close();
                 throw new BindException(String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
             } catch (java.net.SocketException e) {
                 Log.e(TAG, String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
+                listening.close();
+                transport.close();
                 throw new BindException(String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
             }
 
-            listening.register(selector, SelectionKey.OP_ACCEPT, listening);
+            notifyBound();
+            listeningKey = transport.register(listening, TransportKey.OP_ACCEPT, listening);
+
+            long selectTimeoutMillis = 0;
+            if (warmConnections != null) {
+                long now = System.nanoTime();
+                warmRetryAt = now;
+                selectTimeoutMillis = maintainWarmPool(transport, now);
+            }
 
             while (true) {
 
                 if (Thread.currentThread().isInterrupted()) {
                     Log.i(TAG, String.format(super.THREAD_INTERRUPT_CLEANUP_MESSAGE, protocol));
+                    connectionTable.setCloseRequestListener(null);
                     listening.close();
+                    if (warmConnections != null) {
+                        while (!warmConnections.isEmpty()) {
+                            discardWarmConnection(warmConnections.pollFirst());
+                        }
+                    }
+                    transport.close();
                     break;
                 }
 
-                int count = selector.select();
+                int count = selectTimeoutMillis > 0 ? transport.select(selectTimeoutMillis) : transport.select();
                 if (count > 0) {
-                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-                    while (it.hasNext()) {
+                    long selectedAt = System.nanoTime();
 
-                        SelectionKey key = it.next();
-                        it.remove();
+                    List<TransportKey> selectedKeys = transport.selectedKeys();
+                    for (int i = 0; i < selectedKeys.size(); i++) {
 
-                        if (key.isValid() && key.isAcceptable()) {
-                            processAcceptable(key, to);
-                        }
+                        TransportKey key = selectedKeys.get(i);
 
-                        if (key.isValid() && key.isConnectable()) {
-                            processConnectable(key);
-                        }
+                        stats.recordSchedulingDelay(System.nanoTime() - selectedAt);
 
-                        if (key.isValid() && key.isReadable()) {
-                            processReadable(key, readBuffer);
-                        }
+                        try {
+                            if (key.isValid() && key.isAcceptable()) {
+                                processAcceptable(key);
+                            }
+
+                            if (key.isValid() && key.isConnectable()) {
+                                if (key.attachment() instanceof WarmConnection) {
+                                    processWarmConnectable(key);
+                                } else {
+                                    processConnectable(key);
+                                }
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                if (key.attachment() instanceof WarmConnection) {
+                                    processWarmReadable(key);
+                                } else {
+                                    processReadable(key);
+                                }
+                            }
 
-                        if (key.isValid() && key.isWritable()) {
-                            processWritable(key);
+                            if (key.isValid() && key.isWritable()) {
+                                processWritable(key);
+                            }
+                        } catch (IOException e) {
+                            // A single connection failing must not stop the rule
+                            Log.d(TAG, "Error processing connection: " + e.getMessage());
+                            if (key.attachment() instanceof RoutingPair) {
+                                closePair((RoutingPair) key.attachment());
+                            } else if (key.attachment() instanceof PendingConnection) {
+                                closeQuietly((SocketChannel) key.channel());
+                                abandonConnection((PendingConnection) key.attachment());
+                            } else if (key.attachment() instanceof WarmConnection) {
+                                discardWarmConnection((WarmConnection) key.attachment());
+                            }
                         }
                     }
                 }
+
+                closeRequestedConnections();
+
+                if (resolutionFinished) {
+                    connectResolvedClients(transport);
+                }
+
+                // Timers of the loop, each returns the time until it is next due or 0 if idle
+                long now = System.nanoTime();
+                long coalesceTimeoutMillis = coalescingPairs.isEmpty() ? 0 : flushCoalescedPairs(now);
+                long throttleTimeoutMillis = throttledPairs.isEmpty() ? 0 : resumeThrottledPairs(now);
+                long acceptTimeoutMillis = acceptPaused ? resumeAcceptingWhenDue(now) : 0;
+                long connectTimeoutMillis = racingConnections.isEmpty() ? 0 : startDueAttempts(transport, now);
+                long warmTimeoutMillis = warmConnections == null ? 0 : maintainWarmPool(transport, now);
+                selectTimeoutMillis = earliestTimeout(
+                        earliestTimeout(earliestTimeout(coalesceTimeoutMillis, throttleTimeoutMillis),
+                                earliestTimeout(acceptTimeoutMillis, connectTimeoutMillis)),
+                        warmTimeoutMillis);
             }
         } catch (IOException e) {
             Log.e(TAG, "Problem opening Selector", e);
@@ -113,100 +529,1441 @@ public class TcpForwarder extends Forwarder implements Callable<Void> {
         return null;
     }
 
-    private static void registerReads(
-            Selector selector,
+    /**
+     * Start relaying between a client and its target.
+     *
+     * @return the pair forwarding from the client to the target.
+     */
+    private RoutingPair registerReads(
+            Transport transport,
             SocketChannel socket,
-            SocketChannel forwardToSocket) throws ClosedChannelException {
-        RoutingPair pairFromToPair = new RoutingPair();
-        pairFromToPair.from = socket;
-        pairFromToPair.to = forwardToSocket;
-        pairFromToPair.from.register(selector, SelectionKey.OP_READ, pairFromToPair);
+            SocketChannel forwardToSocket) throws IOException {
+        RoutingPair pairFromToPair = new RoutingPair(socket, forwardToSocket, socketProfile.getRelayBufferSize());
+        RoutingPair pairToFromPair = new RoutingPair(forwardToSocket, socket, socketProfile.getRelayBufferSize());
+        pairFromToPair.reverse = pairToFromPair;
+        pairToFromPair.reverse = pairFromToPair;
+        pairFromToPair.upstream = true;
+
+        // Both directions of a connection share its limit
+        TokenBucket connectionRateLimiter = TokenBucket.forLimit(trafficPolicy.getConnectionRateLimit());
+        pairFromToPair.connectionRateLimiter = connectionRateLimiter;
+        pairToFromPair.connectionRateLimiter = connectionRateLimiter;
+
+        try {
+            if (zeroCopy) {
+                pairFromToPair.pipe = SplicePipe.open(socket, forwardToSocket, socketProfile.getRelayBufferSize());
+                pairToFromPair.pipe = SplicePipe.open(forwardToSocket, socket, socketProfile.getRelayBufferSize());
+            }
+
+            pairFromToPair.key = transport.register(pairFromToPair.from, TransportKey.OP_READ, pairFromToPair);
+            pairToFromPair.key = transport.register(pairToFromPair.from, TransportKey.OP_READ, pairToFromPair);
+        } catch (IOException | RuntimeException e) {
+            // The callers only close the sockets, and opening fails when descriptors run out
+            cancelKey(pairFromToPair.key);
+            cancelKey(pairToFromPair.key);
+            pairFromToPair.close(bufferPool);
+            pairToFromPair.close(bufferPool);
+            throw e;
+        }
 
-        RoutingPair pairToFromPair = new RoutingPair();
-        pairToFromPair.from = forwardToSocket;
-        pairToFromPair.to = socket;
-        pairToFromPair.from.register(selector, SelectionKey.OP_READ, pairToFromPair);
+        ConnectionTable.Entry connection = connectionTable.add(
+                (InetSocketAddress) socket.socket().getRemoteSocketAddress(),
+                (InetSocketAddress) forwardToSocket.socket().getRemoteSocketAddress(),
+                pairFromToPair);
+        pairFromToPair.connection = connection;
+        pairToFromPair.connection = connection;
+        return pairFromToPair;
     }
 
-    private static void processWritable(
-            SelectionKey key) throws IOException {
+    /**
+     * The channel of the key can take more data, flush the data queued for it.
+     * <p>
+     * The queued data belongs to the pair travelling in the opposite direction to the key's own
+     * pair, as that pair writes to this key's channel. A key gets a single gathering write per
+     * loop iteration.
+     */
+    private void processWritable(
+            TransportKey key) throws IOException {
+
+        flush(((RoutingPair) key.attachment()).reverse);
+    }
+
+    /**
+     * Read from the pair's source into pooled buffers sized for this direction, and queue them for
+     * the destination.
+     * <p>
+     * Reading continues while reads fill their buffers, up to the rule's read budget for one loop
+     * iteration. Remaining data is picked up in the next iteration, after the other ready
+     * connections have had their turn.
+     * <p>
+     * When the connection, rule or global rate limit runs out, reading pauses until the limit
+     * has tokens again, see {@link #resumeThrottledPairs(long)}.
+     * <p>
+     * Without write coalescing the queue is flushed straight away. With coalescing, small reads are
+     * gathered until enough data is queued, the queue is full or the rule's maximum delay has
+     * passed, see {@link #flushCoalescedPairs(long)}. A read which fills its buffer is bulk data
+     * and is never delayed.
+     * <p>
+     * Pairs with a {@link SplicePipe} are relayed by {@link #spliceReadable(RoutingPair, long)}
+     * instead.
+     */
+    private void processReadable(
+            TransportKey key) throws IOException {
 
         RoutingPair pair = (RoutingPair) key.attachment();
+        boolean limited = isRateLimited(pair);
+        long allowance = limited ? rateAllowance(pair, System.nanoTime()) : Long.MAX_VALUE;
+
+        if (allowance <= 0) {
+            throttle(pair, System.nanoTime());
+            return;
+        }
+
+        if (pair.pipe != null) {
+            spliceReadable(pair, allowance);
+            return;
+        }
 
-        pair.writeBuffer.flip();
-        pair.to.write(pair.writeBuffer);
+        boolean wasEmpty = pair.isQueueEmpty();
+        boolean filled;
+        int budget = readBudget;
+
+        do {
+            int size = pair.bufferSizer.guess();
+            if (allowance < size) {
+                size = (int) Math.max(AdaptiveBufferSizer.MIN_SIZE, allowance);
+            }
+            ByteBuffer readBuffer = bufferPool.acquire(size);
+
+            int r;
+            try {
+                r = pair.from.read(readBuffer);
+            } catch (IOException e) {
+                r = -1;
+            }
+
+            if (r <= 0) {
+                bufferPool.release(readBuffer);
+                if (r < 0) {
+                    closeAfterFlush(pair);
+                    return;
+                }
+                filled = false;
+                break;
+            }
+
+            pair.bufferSizer.record(r);
+            recordBytes(pair, r);
+            filled = r == readBuffer.capacity();
+
+            readBuffer.flip();
+            pair.enqueue(readBuffer);
+            budget -= r;
+
+            if (limited) {
+                consumeRate(pair, r);
+                allowance -= r;
+            }
+        } while (filled && budget > 0 && allowance > 0 && !pair.isQueueFull());
+
+        // A short read drained the socket; otherwise it is read again on the next pass
+        if (!filled) {
+            key.clearReady(TransportKey.OP_READ);
+        }
 
-        if (pair.writeBuffer.remaining() > 0) {
-            pair.writeBuffer.compact();
+        if (allowance <= 0) {
+            throttle(pair, System.nanoTime());
+        }
+
+        if (pair.isQueueEmpty()) {
+            return;
+        }
+
+        if (!socketProfile.isCoalesceWrites()
+                || pair.queuedBytes >= COALESCE_FLUSH_BYTES
+                || pair.isQueueFull()) {
+            flush(pair);
+        } else if (wasEmpty) {
+            pair.flushDeadline = System.nanoTime() + coalesceDelayNanos;
+            if (!pair.coalescing) {
+                pair.coalescing = true;
+                coalescingPairs.add(pair);
+            }
+        }
+    }
+
+    /**
+     * Splice from the pair's source into its {@link SplicePipe}, and on into the destination.
+     * <p>
+     * The read budget and rate limits apply as in {@link #processReadable(TransportKey)}. Data is
+     * passed on as soon as it is read, so it is never coalesced. When the destination cannot take
+     * it all, the rest waits in the pipe and reading stops as it does for a full queue.
+     *
+     * @param allowance the amount of bytes the rate limits allow, {@link Long#MAX_VALUE} if the
+     *                  pair is not limited.
+     */
+    private void spliceReadable(
+            RoutingPair pair,
+            long allowance) throws IOException {
+        boolean limited = allowance != Long.MAX_VALUE;
+        boolean filled;
+        int budget = readBudget;
+
+        do {
+            int length = (int) Math.min(Math.min(budget, allowance), pair.pipe.capacity);
+
+            int r;
+            try {
+                r = pair.pipe.fill(length);
+            } catch (IOException e) {
+                r = -1;
+            }
+
+            if (r <= 0) {
+                if (r < 0) {
+                    closeAfterFlush(pair);
+                    return;
+                }
+                filled = false;
+                break;
+            }
+
+            filled = r == length;
+            budget -= r;
+            recordBytes(pair, r);
+
+            if (limited) {
+                consumeRate(pair, r);
+                allowance -= r;
+            }
+
+            flush(pair);
+        } while (filled && !pair.blocked && budget > 0 && allowance > 0);
+
+        if (!filled) {
+            pair.key.clearReady(TransportKey.OP_READ);
+        }
+
+        if (allowance <= 0) {
+            throttle(pair, System.nanoTime());
+        }
+    }
+
+    /**
+     * Write as much of the pair's queue as the destination will take, with a single gathering
+     * write, followed by the data waiting in the pair's {@link SplicePipe}.
+     * <p>
+     * If data remains, reading from the source stops and the destination's key waits for it to
+     * become writable. Once everything is written reading resumes.
+     */
+    private void flush(RoutingPair pair) throws IOException {
+        if (!pair.hasPendingData()) {
+            return;
+        }
+
+        if (!pair.isQueueEmpty()) {
+            long written = pair.to.write(pair.queue, pair.queueHead, pair.queueTail - pair.queueHead);
+            pair.queuedBytes -= written;
+            pair.releaseWritten(bufferPool);
+        }
+
+        // Spliced data follows anything queued before it, such as a warm connection's greeting
+        if (pair.isQueueEmpty() && pair.pipe != null && pair.pipe.buffered > 0) {
+            pair.pipe.drain();
+        }
+
+        TransportKey destinationKey = pair.reverse.key;
+
+        if (pair.hasPendingData()) {
+            destinationKey.clearReady(TransportKey.OP_WRITE);
+        }
+
+        if (!pair.hasPendingData()) {
+            if (pair.blocked) {
+                pair.blocked = false;
+                destinationKey.interestOps(destinationKey.interestOps() & ~TransportKey.OP_WRITE);
+                if (!pair.throttled) {
+                    pair.key.interestOps(pair.key.interestOps() | TransportKey.OP_READ);
+                }
+            }
+        } else if (!pair.blocked) {
+            pair.blocked = true;
+            pair.key.interestOps(pair.key.interestOps() & ~TransportKey.OP_READ);
+            destinationKey.interestOps(destinationKey.interestOps() | TransportKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Flush the coalescing pairs whose maximum delay has passed.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in milliseconds until the next pair must be flushed, or 0 if no pair is
+     * waiting.
+     */
+    private long flushCoalescedPairs(long now) {
+        long nextDeadline = Long.MAX_VALUE;
+        int kept = 0;
+
+        for (int i = 0; i < coalescingPairs.size(); i++) {
+            RoutingPair pair = coalescingPairs.get(i);
+
+            // Blocked pairs are flushed once their destination becomes writable
+            if (pair.closed || pair.blocked || pair.isQueueEmpty()) {
+                pair.coalescing = false;
+                continue;
+            }
+
+            if (now - pair.flushDeadline >= 0) {
+                pair.coalescing = false;
+                try {
+                    flush(pair);
+                } catch (IOException e) {
+                    Log.d(TAG, "Error flushing connection: " + e.getMessage());
+                    closePair(pair);
+                }
+            } else {
+                nextDeadline = Math.min(nextDeadline, pair.flushDeadline);
+                coalescingPairs.set(kept++, pair);
+            }
+        }
+
+        while (coalescingPairs.size() > kept) {
+            coalescingPairs.remove(coalescingPairs.size() - 1);
+        }
+
+        return millisUntil(nextDeadline, now);
+    }
+
+    /**
+     * Resume reading on the throttled pairs whose rate limits have tokens again.
+     * <p>
+     * The rule and global limits are shared with other threads, so a pair that is due is checked
+     * again and may have to wait longer.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in milliseconds until the next pair may resume, or 0 if no pair is
+     * throttled.
+     */
+    private long resumeThrottledPairs(long now) {
+        long nextResume = Long.MAX_VALUE;
+        int kept = 0;
+
+        for (int i = 0; i < throttledPairs.size(); i++) {
+            RoutingPair pair = throttledPairs.get(i);
+
+            if (!pair.closed && now - pair.resumeAt >= 0) {
+                long wait = rateWaitNanos(pair, now);
+                if (wait > 0) {
+                    pair.resumeAt = now + wait;
+                }
+            }
+
+            if (pair.closed || now - pair.resumeAt >= 0) {
+                pair.throttled = false;
+                pair.connection.setThrottled(pair.upstream, false);
+                stats.recordThrottled(now - pair.throttledSince);
+
+                if (!pair.closed && !pair.blocked && pair.key.isValid()) {
+                    pair.key.interestOps(pair.key.interestOps() | TransportKey.OP_READ);
+                }
+            } else {
+                nextResume = Math.min(nextResume, pair.resumeAt);
+                throttledPairs.set(kept++, pair);
+            }
+        }
+
+        while (throttledPairs.size() > kept) {
+            throttledPairs.remove(throttledPairs.size() - 1);
+        }
+
+        return millisUntil(nextResume, now);
+    }
+
+    /**
+     * Stop reading from the pair's source until its rate limits have tokens again.
+     */
+    private void throttle(RoutingPair pair, long now) {
+        if (pair.throttled) {
+            return;
+        }
+
+        pair.throttled = true;
+        pair.connection.setThrottled(pair.upstream, true);
+        pair.throttledSince = now;
+        pair.resumeAt = now + rateWaitNanos(pair, now);
+        pair.key.interestOps(pair.key.interestOps() & ~TransportKey.OP_READ);
+        throttledPairs.add(pair);
+    }
+
+    private boolean isRateLimited(RoutingPair pair) {
+        return pair.connectionRateLimiter != null || ruleRateLimiter != null || globalRateLimiter != null;
+    }
+
+    /**
+     * @return the amount of bytes the pair may read before a rate limit runs out.
+     */
+    private long rateAllowance(RoutingPair pair, long now) {
+        long allowance = Long.MAX_VALUE;
+        if (pair.connectionRateLimiter != null) {
+            allowance = Math.min(allowance, pair.connectionRateLimiter.available(now));
+        }
+        if (ruleRateLimiter != null) {
+            allowance = Math.min(allowance, ruleRateLimiter.available(now));
+        }
+        if (globalRateLimiter != null) {
+            allowance = Math.min(allowance, globalRateLimiter.available(now));
+        }
+        return allowance;
+    }
+
+    private void recordBytes(RoutingPair pair, int bytes) {
+        if (pair.upstream) {
+            stats.recordBytesUp(bytes);
         } else {
-            key.interestOps(SelectionKey.OP_READ);
-            pair.writeBuffer.clear();
+            stats.recordBytesDown(bytes);
         }
+        pair.connection.recordBytes(pair.upstream, bytes);
     }
 
-    private static void processReadable(
-            SelectionKey key,
-            ByteBuffer readBuffer) throws IOException {
+    private void consumeRate(RoutingPair pair, int bytes) {
+        if (pair.connectionRateLimiter != null) {
+            pair.connectionRateLimiter.consume(bytes);
+        }
+        if (ruleRateLimiter != null) {
+            ruleRateLimiter.consume(bytes);
+        }
+        if (globalRateLimiter != null) {
+            globalRateLimiter.consume(bytes);
+        }
+    }
 
-        readBuffer.clear();
-        RoutingPair pair = (RoutingPair) key.attachment();
+    /**
+     * @return the time in nanoseconds until all of the pair's rate limits have tokens.
+     */
+    private long rateWaitNanos(RoutingPair pair, long now) {
+        long wait = 0;
+        if (pair.connectionRateLimiter != null) {
+            wait = Math.max(wait, pair.connectionRateLimiter.nanosUntilAvailable(now));
+        }
+        if (ruleRateLimiter != null) {
+            wait = Math.max(wait, ruleRateLimiter.nanosUntilAvailable(now));
+        }
+        if (globalRateLimiter != null) {
+            wait = Math.max(wait, globalRateLimiter.nanosUntilAvailable(now));
+        }
+        return wait;
+    }
+
+    /**
+     * @return the select timeout in milliseconds until a deadline, or 0 if there is no deadline.
+     */
+    private static long millisUntil(long deadline, long now) {
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        // Round up, a select timeout of 0 would block indefinitely
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999));
+    }
+
+    /**
+     * @return the earlier of two select timeouts, where 0 means no timeout.
+     */
+    private static long earliestTimeout(long first, long second) {
+        if (first == 0) {
+            return second;
+        }
+        if (second == 0) {
+            return first;
+        }
+        return Math.min(first, second);
+    }
 
-        int r = 0;
+    /**
+     * The source of the pair has closed, pass on what was read before closing the connection.
+     */
+    private void closeAfterFlush(RoutingPair pair) {
         try {
-            r = pair.from.read(readBuffer);
+            flush(pair);
         } catch (IOException e) {
+            Log.d(TAG, "Error flushing closed connection: " + e.getMessage());
+        }
+        closePair(pair);
+    }
+
+    /**
+     * Close the connections which were asked to close through the {@link ConnectionTable}.
+     */
+    private void closeRequestedConnections() {
+        Object pair;
+        while ((pair = connectionTable.pollCloseRequest()) != null) {
+            closePair((RoutingPair) pair);
+        }
+    }
+
+    /**
+     * Close both sides of a connection and recycle any queued buffers.
+     */
+    private void closePair(RoutingPair pair) {
+        if (pair.closed) {
+            return;
+        }
+        System.out.println("Connection closed: " + pair.from);
+
+        // Cancelled first, so the transport forgets the descriptors before they can be reused
+        cancelKey(pair.key);
+        if (pair.reverse != null) {
+            cancelKey(pair.reverse.key);
+        }
+
+        closeQuietly(pair.from);
+        closeQuietly(pair.to);
+
+        pair.close(bufferPool);
+        if (pair.reverse != null) {
+            pair.reverse.close(bufferPool);
+        }
+        if (pair.connection != null) {
+            connectionTable.remove(pair.connection);
+        }
+
+        releaseConnection();
+    }
+
+    private static void cancelKey(TransportKey key) {
+        if (key != null) {
             key.cancel();
-            System.out.println("Connection closed: " + key.channel());
         }
-        if (r <= 0) {
-            pair.from.close();
-            pair.to.close();
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close socket", e);
+        }
+    }
+
+    private void processConnectable(
+            TransportKey key) {
+        PendingConnection pending = (PendingConnection) key.attachment();
+        SocketChannel forwardToSocket = (SocketChannel) key.channel();
+
+        try {
+            if (!forwardToSocket.finishConnect()) {
+                key.clearReady(TransportKey.OP_CONNECT);
+                return;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not connect to " + forwardToSocket.socket().getInetAddress() + ": " + e.getMessage());
             key.cancel();
-            System.out.println("Connection closed: " + key.channel());
+            closeQuietly(forwardToSocket);
+            pending.attempts.remove(key);
+
+            // The next address is tried straight away rather than after the attempt delay
+            startNextAttempt(key.transport(), pending, System.nanoTime());
+            return;
+        }
+
+        pending.attempts.remove(key);
+        completeConnection(key.transport(), pending, forwardToSocket);
+    }
+
+    /**
+     * Accept a new connection and start connecting to the target.
+     * <p>
+     * Connections from sources the rule's access policy does not allow, or which are banned for
+     * connecting too quickly, are reset before anything is set up for them. They take no
+     * connection slot, and no accept token from the limits shared with other rules.
+     * <p>
+     * When the rule's or the global connection limits are reached, the connection is either reset
+     * straight away, or accepting pauses and connections wait in the listen backlog, depending on
+     * the rule's {@link TrafficPolicy}. The limits are only checked before accepting, and the slot
+     * is taken once the connection's source is allowed.
+     */
+    private void processAcceptable(
+            TransportKey key) throws IOException {
+        ServerSocketChannel listening = (ServerSocketChannel) key.attachment();
+        long now = System.nanoTime();
+
+        if (!hasRoomForConnection(now)) {
+            if (trafficPolicy.isRejectExcessConnections()) {
+                SocketChannel excess = listening.accept();
+                if (excess != null) {
+                    stats.recordRejectedConnection();
+                    resetClient(excess);
+                } else {
+                    key.clearReady(TransportKey.OP_ACCEPT);
+                }
+            } else {
+                pauseAccepting(now);
+            }
+            return;
+        }
+
+        SocketChannel from = listening.accept();
+        if (from == null) {
+            key.clearReady(TransportKey.OP_ACCEPT);
+            return;
+        }
+
+        SocketAddress source = from.socket().getRemoteSocketAddress();
+        if (!isSourceAllowed(source, now)) {
+            resetClient(from);
+            return;
+        }
+
+        if (!tryAdmitConnection(now)) {
+            // The shards of the rule or the other rules took the room since it was checked
+            stats.recordRejectedConnection();
+            resetClient(from);
+            return;
+        }
+
+        int route = routeOf(source);
+
+        // Fail fast while the target is known to be refusing connections
+        if (!circuitBreakers[route].allowRequest()) {
+            stats.recordCircuitRejection();
+            resetClient(from);
+            cancelConnection();
+            return;
+        }
+
+        System.out.println("Accepted " + from.socket());
+
+        if (route == SourceRouter.DEFAULT_ROUTE && takeWarmConnection(key.transport(), from)) {
+            return;
+        }
+
+        connectTarget(key.transport(), new PendingConnection(from, route));
+    }
+
+    /**
+     * Start connecting an accepted client to the target of its route.
+     * <p>
+     * A hostname target is resolved without blocking. While its addresses are not yet known the
+     * client waits, holding its connection slot, until the resolver reports back, see
+     * {@link #connectResolvedClients(Transport)}.
+     * <p>
+     * When a hostname has several addresses they are raced: the first address is tried, and each
+     * following address is tried as soon as the previous attempt fails, or after
+     * {@link #CONNECT_ATTEMPT_DELAY_NANOS} without an answer, while the earlier attempts carry on.
+     * The first attempt to connect is kept and the others are closed, so an address which does not
+     * answer delays clients by the attempt delay rather than a whole connect timeout.
+     */
+    private void connectTarget(
+            Transport transport,
+            PendingConnection pending) {
+        InetSocketAddress forwardToAddress = targetOf(pending.route);
+        InetAddress[] addresses;
+
+        if (forwardToAddress.isUnresolved()) {
+            addresses = resolveTarget(forwardToAddress, resolverListener);
+            if (addresses == null) {
+                awaitingResolution.add(pending);
+                return;
+            }
+            if (addresses.length == 0) {
+                Log.d(TAG, "Could not resolve " + forwardToAddress.getHostName());
+                failConnection(pending);
+                return;
+            }
+            addresses = interleaveFamilies(addresses);
         } else {
-            readBuffer.flip();
-            pair.to.write(readBuffer);
+            addresses = new InetAddress[]{forwardToAddress.getAddress()};
+        }
 
-            if (readBuffer.remaining() > 0) {
-                pair.writeBuffer.put(readBuffer);
-                key.interestOps(SelectionKey.OP_WRITE);
+        try {
+            applySocketProfile(pending.client);
+            pending.client.configureBlocking(false);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not set up client: " + e.getMessage());
+            failConnection(pending);
+            return;
+        }
+
+        pending.addresses = addresses;
+        pending.port = forwardToAddress.getPort();
+        startNextAttempt(transport, pending, System.nanoTime());
+
+        if (!pending.done && pending.nextAddress < addresses.length) {
+            racingConnections.add(pending);
+        }
+    }
+
+    /**
+     * Start connecting to the next address of a pending connection. Addresses which fail straight
+     * away are skipped; once every address has failed the client is reset.
+     */
+    private void startNextAttempt(
+            Transport transport,
+            PendingConnection pending,
+            long now) {
+        while (pending.nextAddress < pending.addresses.length) {
+            InetSocketAddress address = new InetSocketAddress(pending.addresses[pending.nextAddress++], pending.port);
+            SocketChannel forwardToSocket = null;
+            try {
+                forwardToSocket = SocketChannel.open();
+                applySocketProfile(forwardToSocket);
+                forwardToSocket.configureBlocking(false);
+
+                if (forwardToSocket.connect(address)) {
+                    completeConnection(transport, pending, forwardToSocket);
+                    return;
+                }
+
+                pending.attempts.add(transport.register(forwardToSocket, TransportKey.OP_CONNECT, pending));
+                pending.nextAttemptAt = now + CONNECT_ATTEMPT_DELAY_NANOS;
+                return;
+            } catch (IOException e) {
+                Log.d(TAG, "Could not connect to " + address + ": " + e.getMessage());
+                if (forwardToSocket != null) {
+                    closeQuietly(forwardToSocket);
+                }
             }
         }
+
+        if (pending.attempts.isEmpty()) {
+            failConnection(pending);
+        }
     }
 
-    private static void processConnectable(
-            SelectionKey key) throws IOException {
-        SocketChannel from = (SocketChannel) key.attachment();
-        SocketChannel forwardToSocket = (SocketChannel) key.channel();
+    /**
+     * Keep the attempt which connected, close the others and start relaying.
+     */
+    private void completeConnection(
+            Transport transport,
+            PendingConnection pending,
+            SocketChannel forwardToSocket) {
+        pending.done = true;
+
+        for (TransportKey attempt : pending.attempts) {
+            if (attempt.channel() != forwardToSocket) {
+                attempt.cancel();
+                closeQuietly((SocketChannel) attempt.channel());
+            }
+        }
+        pending.attempts.clear();
+
+        // The target answered, whatever happens to the relay from here
+        circuitBreakers[pending.route].recordSuccess();
+
+        try {
+            registerReads(transport, pending.client, forwardToSocket);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not start relaying: " + e.getMessage());
+            closeQuietly(forwardToSocket);
+            resetClient(pending.client);
+            releaseConnection();
+        }
+    }
 
-        forwardToSocket.finishConnect();
-        forwardToSocket.socket().setTcpNoDelay(true);
-        registerReads(key.selector(), from, forwardToSocket);
+    /**
+     * The target could not be resolved, every address of it failed, or the client could not be set
+     * up, reset the client.
+     */
+    private void failConnection(
+            PendingConnection pending) {
+        pending.done = true;
+        circuitBreakers[pending.route].recordFailure();
+        resetClient(pending.client);
+        releaseConnection();
     }
 
-    private static void processAcceptable(
-            SelectionKey key,
-            InetSocketAddress forwardToAddress) throws IOException {
-        SocketChannel from = ((ServerSocketChannel) key.attachment()).accept();
-        System.out.println("Accepted " + from.socket());
-        from.socket().setTcpNoDelay(true);
-        from.configureBlocking(false);
+    /**
+     * Give up on a pending connection after an unexpected error, closing all of its attempts. The
+     * connection counts as failed, so a probe of the route's breaker is not left without an
+     * outcome.
+     */
+    private void abandonConnection(
+            PendingConnection pending) {
+        pending.done = true;
+        circuitBreakers[pending.route].recordFailure();
+        for (TransportKey attempt : pending.attempts) {
+            attempt.cancel();
+            closeQuietly((SocketChannel) attempt.channel());
+        }
+        pending.attempts.clear();
+        closeQuietly(pending.client);
+        releaseConnection();
+    }
+
+    /**
+     * Start the next attempt of the racing connections which have waited
+     * {@link #CONNECT_ATTEMPT_DELAY_NANOS} without connecting.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in milliseconds until the next attempt is due, or 0 if no connection is
+     * racing.
+     */
+    private long startDueAttempts(
+            Transport transport,
+            long now) {
+        long nextAttempt = Long.MAX_VALUE;
+        int kept = 0;
+
+        for (int i = 0; i < racingConnections.size(); i++) {
+            PendingConnection pending = racingConnections.get(i);
+
+            if (!pending.done && now - pending.nextAttemptAt >= 0) {
+                startNextAttempt(transport, pending, now);
+            }
+
+            if (!pending.done && pending.nextAddress < pending.addresses.length) {
+                nextAttempt = Math.min(nextAttempt, pending.nextAttemptAt);
+                racingConnections.set(kept++, pending);
+            }
+        }
+
+        while (racingConnections.size() > kept) {
+            racingConnections.remove(racingConnections.size() - 1);
+        }
+
+        return millisUntil(nextAttempt, now);
+    }
+
+    /**
+     * Pair an accepted client with a connected target socket from the warm pool, the most recently
+     * connected first. The client was let through the breaker of the default route, so its outcome
+     * is recorded there as for a new connection.
+     *
+     * @return true if the client was taken care of, false if the pool is off or empty and the
+     * client must wait for a new connection to the target.
+     */
+    private boolean takeWarmConnection(
+            Transport transport,
+            SocketChannel client) {
+        if (warmConnections == null) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        WarmConnection warm;
+        while ((warm = warmConnections.pollLast()) != null) {
+            if (warm.key.isValid() && now - warm.connectedAt < warmMaxIdleNanos) {
+                break;
+            }
+            discardWarmConnection(warm);
+        }
+
+        if (warm == null) {
+            stats.recordWarmPoolMiss();
+            return false;
+        }
+        stats.recordWarmPoolHit();
+
+        RoutingPair pair = null;
+        try {
+            applySocketProfile(client);
+            client.configureBlocking(false);
+            pair = registerReads(transport, client, warm.channel);
+
+            if (warm.greeting != null) {
+                ByteBuffer greeting = warm.greeting;
+                warm.greeting = null;
+                greeting.flip();
 
-        SocketChannel forwardToSocket = SocketChannel.open();
-        forwardToSocket.configureBlocking(false);
+                // Data the target sent before the client arrived, such as a protocol banner
+                if (greeting.hasRemaining()) {
+                    pair.reverse.enqueue(greeting);
+                    flush(pair.reverse);
+                } else {
+                    bufferPool.release(greeting);
+                }
+            }
+
+            circuitBreakers[SourceRouter.DEFAULT_ROUTE].recordSuccess();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not use warm connection: " + e.getMessage());
+            circuitBreakers[SourceRouter.DEFAULT_ROUTE].recordFailure();
+            if (pair != null) {
+                closePair(pair);
+            } else {
+                discardWarmConnection(warm);
+                resetClient(client);
+                releaseConnection();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace the warm connections which have been idle too long, and connect new ones until the
+     * pool is full.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in milliseconds until a warm connection expires or connecting is retried,
+     * or 0 if neither is due.
+     */
+    private long maintainWarmPool(
+            Transport transport,
+            long now) {
+        WarmConnection oldest;
+        while ((oldest = warmConnections.peekFirst()) != null && now - oldest.connectedAt >= warmMaxIdleNanos) {
+            discardWarmConnection(warmConnections.pollFirst());
+        }
+
+        long deadline = Long.MAX_VALUE;
+        if (warmConnections.size() + warmConnecting < socketProfile.getWarmConnections()) {
+            if (now - warmRetryAt >= 0) {
+                openWarmConnections(transport, now);
+            }
+            if (warmConnections.size() + warmConnecting < socketProfile.getWarmConnections()) {
+                deadline = warmRetryAt;
+            }
+        }
+
+        if (!warmConnections.isEmpty()) {
+            deadline = Math.min(deadline, warmConnections.peekFirst().connectedAt + warmMaxIdleNanos);
+        }
+        return millisUntil(deadline, now);
+    }
+
+    /**
+     * Start connecting to the rule's target until the warm pool will be full. The pool is only
+     * filled while the target's {@link CircuitBreaker} is closed, so it does not take the probes
+     * of a recovering target away from clients.
+     */
+    private void openWarmConnections(
+            Transport transport,
+            long now) {
+        CircuitBreaker circuitBreaker = circuitBreakers[SourceRouter.DEFAULT_ROUTE];
+        if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            warmRetryAt = now + WARM_RETRY_NANOS;
+            return;
+        }
+
+        InetSocketAddress target = targetOf(SourceRouter.DEFAULT_ROUTE);
+        if (target.isUnresolved()) {
+            InetAddress[] addresses = resolveTarget(target, resolverListener);
+            if (addresses == null || addresses.length == 0) {
+                warmRetryAt = now + WARM_RETRY_NANOS;
+                return;
+            }
+            target = new InetSocketAddress(interleaveFamilies(addresses)[0], target.getPort());
+        }
+
+        while (warmConnections.size() + warmConnecting < socketProfile.getWarmConnections()) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                applySocketProfile(channel);
+                channel.configureBlocking(false);
+
+                WarmConnection warm = new WarmConnection(channel);
+                warmConnecting++;
+                if (channel.connect(target)) {
+                    warm.key = transport.register(channel, 0, warm);
+                    addWarmConnection(warm, now);
+                } else {
+                    warm.key = transport.register(channel, TransportKey.OP_CONNECT, warm);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Could not open warm connection to " + target + ": " + e.getMessage());
+                if (channel != null) {
+                    warmConnecting--;
+                    closeQuietly(channel);
+                }
+                circuitBreaker.recordFailure();
+                warmRetryAt = now + WARM_RETRY_NANOS;
+                return;
+            }
+        }
+    }
+
+    private void processWarmConnectable(
+            TransportKey key) {
+        WarmConnection warm = (WarmConnection) key.attachment();
+        CircuitBreaker circuitBreaker = circuitBreakers[SourceRouter.DEFAULT_ROUTE];
+
+        try {
+            if (!warm.channel.finishConnect()) {
+                key.clearReady(TransportKey.OP_CONNECT);
+                return;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not open warm connection to " + circuitBreaker.getTarget() + ": " + e.getMessage());
+            warmConnecting--;
+            key.cancel();
+            closeQuietly(warm.channel);
+            circuitBreaker.recordFailure();
+            warmRetryAt = System.nanoTime() + WARM_RETRY_NANOS;
+            return;
+        }
+
+        circuitBreaker.recordSuccess();
+        addWarmConnection(warm, System.nanoTime());
+    }
+
+    private void addWarmConnection(
+            WarmConnection warm,
+            long now) {
+        warmConnecting--;
+        warm.connectedAt = now;
+
+        // An idle connection only becomes readable when the target closes it or speaks first
+        warm.key.interestOps(TransportKey.OP_READ);
+        warmConnections.addLast(warm);
+    }
+
+    /**
+     * An idle warm connection is readable. Data the target sends first is kept for the client,
+     * up to one buffer; a connection the target closes is dropped from the pool.
+     */
+    private void processWarmReadable(
+            TransportKey key) {
+        WarmConnection warm = (WarmConnection) key.attachment();
+        if (warm.greeting == null) {
+            warm.greeting = bufferPool.acquire(AdaptiveBufferSizer.MIN_SIZE);
+        }
+
+        int r;
+        try {
+            r = warm.channel.read(warm.greeting);
+        } catch (IOException e) {
+            r = -1;
+        }
 
-        boolean connected = forwardToSocket.connect(forwardToAddress);
-        if (connected) {
-            forwardToSocket.socket().setTcpNoDelay(true);
-            registerReads(key.selector(), from, forwardToSocket);
+        if (r < 0) {
+            warmConnections.remove(warm);
+            discardWarmConnection(warm);
+        } else if (!warm.greeting.hasRemaining()) {
+            // Leave anything more in the socket until a client arrives
+            key.interestOps(0);
         } else {
-            forwardToSocket.register(key.selector(), SelectionKey.OP_CONNECT, from);
+            key.clearReady(TransportKey.OP_READ);
+        }
+    }
+
+    private void discardWarmConnection(
+            WarmConnection warm) {
+        if (warm.key != null) {
+            warm.key.cancel();
+        }
+        closeQuietly(warm.channel);
+        if (warm.greeting != null) {
+            bufferPool.release(warm.greeting);
+            warm.greeting = null;
+        }
+    }
+
+    /**
+     * Order the addresses of a hostname alternating between IPv6 and IPv4, starting with the
+     * family of the first address, so an unreachable family costs at most one attempt delay.
+     * <p>
+     * The resolver hands out the same array until the hostname is resolved again, so the order of
+     * the last array is kept.
+     */
+    private InetAddress[] interleaveFamilies(InetAddress[] addresses) {
+        if (addresses == lastResolvedAddresses) {
+            return lastInterleavedAddresses;
+        }
+
+        InetAddress[] interleaved = new InetAddress[addresses.length];
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        int nextFirstFamily = 0;
+        int nextOtherFamily = 0;
+
+        for (int i = 0; i < interleaved.length; i++) {
+            boolean wantIpv6 = (i % 2 == 0) == firstIsIpv6;
+            int next = wantIpv6 == firstIsIpv6 ? nextFirstFamily : nextOtherFamily;
+            while (next < addresses.length && (addresses[next] instanceof Inet6Address) != wantIpv6) {
+                next++;
+            }
+
+            if (next >= addresses.length) {
+                // One family has run out, take the rest of the other
+                wantIpv6 = !wantIpv6;
+                next = wantIpv6 == firstIsIpv6 ? nextFirstFamily : nextOtherFamily;
+                while ((addresses[next] instanceof Inet6Address) != wantIpv6) {
+                    next++;
+                }
+            }
+
+            interleaved[i] = addresses[next];
+            if (wantIpv6 == firstIsIpv6) {
+                nextFirstFamily = next + 1;
+            } else {
+                nextOtherFamily = next + 1;
+            }
+        }
+
+        lastResolvedAddresses = addresses;
+        lastInterleavedAddresses = interleaved;
+        return interleaved;
+    }
+
+    /**
+     * Check the rule's and the global connection limits without taking anything from them.
+     *
+     * @return true if a connection may be accepted.
+     */
+    private boolean hasRoomForConnection(long now) {
+        if (ruleConnectionLimiter != null) {
+            if (ruleConnectionLimiter.nanosUntilAvailable(now) > 0) {
+                return false;
+            }
+        } else if (isRuleFull()) {
+            return false;
+        }
+        return connectionLimiter == null || connectionLimiter.nanosUntilAvailable(now) == 0;
+    }
+
+    /**
+     * Take a connection slot from the rule's and the global connection limits.
+     *
+     * @return true if a connection may be accepted.
+     */
+    private boolean tryAdmitConnection(long now) {
+        if (ruleConnectionLimiter != null) {
+            if (!ruleConnectionLimiter.tryAcquire(now)) {
+                return false;
+            }
+        } else if (isRuleFull()) {
+            return false;
+        }
+
+        if (connectionLimiter != null && !connectionLimiter.tryAcquire(now)) {
+            if (ruleConnectionLimiter != null) {
+                ruleConnectionLimiter.release();
+            }
+            return false;
+        }
+
+        activeConnections++;
+        stats.recordConnectionOpened();
+        return true;
+    }
+
+    /**
+     * Return the slot of a connection turned away before it was used, together with the accept
+     * tokens it took.
+     */
+    private void cancelConnection() {
+        activeConnections--;
+        stats.recordConnectionClosed();
+        if (ruleConnectionLimiter != null) {
+            ruleConnectionLimiter.cancel();
+        }
+        if (connectionLimiter != null) {
+            connectionLimiter.cancel();
+        }
+
+        if (acceptPaused) {
+            resumeAccepting();
+        }
+    }
+
+    /**
+     * Return the slot of a closed connection, and accept again if accepting was paused.
+     */
+    private void releaseConnection() {
+        activeConnections--;
+        stats.recordConnectionClosed();
+        if (ruleConnectionLimiter != null) {
+            ruleConnectionLimiter.release();
+        }
+        if (connectionLimiter != null) {
+            connectionLimiter.release();
+        }
+
+        if (acceptPaused) {
+            resumeAccepting();
+        }
+    }
+
+    /**
+     * Stop accepting, leaving new connections in the listen backlog.
+     * <p>
+     * If the rule's own limit is reached, accepting resumes when one of its connections closes.
+     * Otherwise the shared limits are tried again after a delay, as other threads hold their
+     * connections.
+     */
+    private void pauseAccepting(long now) {
+        long retryNanos = 0;
+        if (ruleConnectionLimiter != null) {
+            retryNanos = ruleConnectionLimiter.nanosUntilAvailable(now);
+        }
+        if (connectionLimiter != null) {
+            retryNanos = Math.max(retryNanos, connectionLimiter.nanosUntilAvailable(now));
+        }
+
+        acceptPaused = true;
+        acceptResumeAt = isRuleFull() || (connectionLimiter == null && ruleConnectionLimiter == null)
+                ? Long.MAX_VALUE
+                : now + Math.max(1, retryNanos);
+        listeningKey.interestOps(0);
+    }
+
+    /**
+     * @return true if the rule's limit, counted by this forwarder alone, is reached.
+     */
+    private boolean isRuleFull() {
+        int maxConnections = trafficPolicy.getMaxConnections();
+        return ruleConnectionLimiter == null
+                && maxConnections != TrafficPolicy.UNLIMITED && activeConnections >= maxConnections;
+    }
+
+    private void resumeAccepting() {
+        acceptPaused = false;
+        if (listeningKey.isValid()) {
+            listeningKey.interestOps(TransportKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Resume accepting if the delay set when it was paused has passed.
+     *
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in milliseconds until accepting should resume, or 0 if it waits for a
+     * connection to close.
+     */
+    private long resumeAcceptingWhenDue(long now) {
+        if (acceptResumeAt != Long.MAX_VALUE && now - acceptResumeAt >= 0) {
+            resumeAccepting();
+            return 0;
+        }
+        return millisUntil(acceptResumeAt, now);
+    }
+
+    /**
+     * Apply the rule's {@link SocketProfile} to a connected, or to be connected, socket.
+     */
+    private void applySocketProfile(SocketChannel socketChannel) throws IOException {
+        Socket socket = socketChannel.socket();
+        socket.setTcpNoDelay(socketProfile.isTcpNoDelay());
+        socket.setKeepAlive(socketProfile.isKeepAlive());
+
+        if (socketProfile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+            socket.setReceiveBufferSize(socketProfile.getReceiveBufferSize());
+        }
+
+        if (socketProfile.getSendBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+            socket.setSendBufferSize(socketProfile.getSendBufferSize());
+        }
+    }
+
+    /**
+     * Close a client connection with a TCP reset rather than a graceful shutdown, so the client
+     * learns straight away that the target is unavailable.
+     */
+    private static void resetClient(SocketChannel client) {
+        try {
+            client.socket().setSoLinger(true, 0);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not set linger on client socket", e);
+        }
+
+        try {
+            client.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not close client socket", e);
+        }
+    }
+
+    /**
+     * Retry the clients waiting for their target to be resolved, after the resolver has reported
+     * back. Clients whose target is still being resolved wait again.
+     */
+    private void connectResolvedClients(
+            Transport transport) {
+        resolutionFinished = false;
+
+        int waiting = awaitingResolution.size();
+        for (int i = 0; i < waiting; i++) {
+            connectTarget(transport, awaitingResolution.remove(0));
         }
     }
 
+    /**
+     * A connection to the rule's target opened before any client needs it, attached to its key.
+     */
+    static class WarmConnection {
+        final SocketChannel channel;
+        TransportKey key;
+
+        /**
+         * The {@link System#nanoTime()} the connection was established at.
+         */
+        long connectedAt;
+
+        /**
+         * Data the target sent before a client was paired with the connection, or null.
+         */
+        ByteBuffer greeting;
+
+        WarmConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A client waiting for its connection to the target, attached to the keys of its connection
+     * attempts, or held while the target is resolved.
+     */
+    static class PendingConnection {
+        final SocketChannel client;
+
+        /**
+         * The route number of the target.
+         */
+        final int route;
+
+        /**
+         * The addresses of the target in the order they are tried, and the next one to try.
+         */
+        InetAddress[] addresses;
+        int port;
+        int nextAddress;
+
+        /**
+         * The keys of the attempts which have not yet connected or failed.
+         */
+        final List<TransportKey> attempts = new ArrayList<>(2);
+
+        /**
+         * The {@link System#nanoTime()} at which the next address is tried if no attempt has
+         * connected by then.
+         */
+        long nextAttemptAt;
+
+        /**
+         * Whether the client has been connected or given up on.
+         */
+        boolean done;
+
+        PendingConnection(SocketChannel client, int route) {
+            this.client = client;
+            this.route = route;
+        }
+    }
+
+    /**
+     * One direction of a forwarded connection.
+     */
     static class RoutingPair {
-        SocketChannel from;
-        SocketChannel to;
-        ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final SocketChannel from;
+        final SocketChannel to;
+        final AdaptiveBufferSizer bufferSizer;
+
+        /**
+         * The pair forwarding in the opposite direction of the same connection.
+         */
+        RoutingPair reverse;
+
+        /**
+         * Whether the pair forwards from the client to the target.
+         */
+        boolean upstream;
+
+        /**
+         * The connection's entry in the forwarder's {@link ConnectionTable}, shared by both pairs.
+         */
+        ConnectionTable.Entry connection;
+
+        /**
+         * The key of the {@link #from} channel.
+         */
+        TransportKey key;
+
+        /**
+         * Data read from {@link #from} which has not yet been written to {@link #to}, between
+         * {@link #queueHead} and {@link #queueTail}.
+         */
+        final ByteBuffer[] queue = new ByteBuffer[MAX_GATHERED_BUFFERS];
+        int queueHead;
+        int queueTail;
+        long queuedBytes;
+
+        /**
+         * When coalescing, the {@link System#nanoTime()} by which the queue must be flushed.
+         */
+        long flushDeadline;
+
+        /**
+         * Whether the pair is held in the list of coalescing pairs.
+         */
+        boolean coalescing;
+
+        /**
+         * The pipe splicing {@link #from} into {@link #to}, or null if the data is copied through
+         * the queue.
+         */
+        SplicePipe pipe;
+
+        /**
+         * Whether {@link #to} could not take all queued data, and reading has stopped.
+         */
+        boolean blocked;
+
+        /**
+         * The limit shared by both directions of the connection, or null if unlimited.
+         */
+        TokenBucket connectionRateLimiter;
+
+        /**
+         * Whether reading has stopped because a rate limit ran out, until {@link #resumeAt}.
+         */
+        boolean throttled;
+        long throttledSince;
+        long resumeAt;
+
+        boolean closed;
+
+        RoutingPair(SocketChannel from, SocketChannel to, int maxBufferSize) {
+            this.from = from;
+            this.to = to;
+            this.bufferSizer = new AdaptiveBufferSizer(maxBufferSize);
+        }
+
+        boolean isQueueEmpty() {
+            return queueHead == queueTail;
+        }
+
+        boolean isQueueFull() {
+            return queueTail == queue.length;
+        }
+
+        /**
+         * @return true if data read from {@link #from} is waiting to be written to {@link #to}.
+         */
+        boolean hasPendingData() {
+            return queueHead != queueTail || (pipe != null && pipe.buffered > 0);
+        }
+
+        void enqueue(ByteBuffer buffer) {
+            queue[queueTail++] = buffer;
+            queuedBytes += buffer.remaining();
+        }
+
+        /**
+         * Return fully written buffers at the head of the queue to the pool.
+         */
+        void releaseWritten(BufferPool bufferPool) {
+            while (queueHead < queueTail && !queue[queueHead].hasRemaining()) {
+                bufferPool.release(queue[queueHead]);
+                queue[queueHead++] = null;
+            }
+
+            if (queueHead == queueTail) {
+                queueHead = 0;
+                queueTail = 0;
+            }
+        }
+
+        void close(BufferPool bufferPool) {
+            closed = true;
+            for (int i = queueHead; i < queueTail; i++) {
+                bufferPool.release(queue[i]);
+                queue[i] = null;
+            }
+            queueHead = 0;
+            queueTail = 0;
+            queuedBytes = 0;
+
+            if (pipe != null) {
+                pipe.close();
+            }
+        }
     }
 }
@@ -0,0 +1,712 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import com.elixsr.portforwarder.exceptions.ObjectNotFoundException;
+import com.elixsr.portforwarder.models.RuleModel;
+import com.elixsr.portforwarder.models.SourceRoute;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ThreadedForwardingEngine} class runs every forwarder on a thread of its own: one per
+ * protocol of each rule, or one per shard of a sharded rule.
+ * <p>
+ * TCP forwarders run on the engine's {@link Transport} type, and fall back to java.nio where it is
+ * not available.
+ * <p>
+ * The engine supervises its forwarders. A forwarder which fails, for example because its port is
+ * still in use, is replaced by a new one after a delay which doubles with each failure in a row, up
+ * to {@link #MAX_RETRY_MILLIS}. The delay starts over once a forwarder has stayed bound for
+ * {@link #STABLE_MILLIS}. The rule's other forwarders, and the other rules, are not affected.
+ */
+public class ThreadedForwardingEngine extends ForwardingEngine {
+
+    private static final String TAG = "ThreadedEngine";
+
+    /**
+     * How long {@link #stop()} waits for the forwarders to finish.
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    /**
+     * The delay before a rule or forwarder is retried after its first failure.
+     */
+    static final long MIN_RETRY_MILLIS = 1000;
+
+    /**
+     * The longest delay before a rule or forwarder is retried.
+     */
+    static final long MAX_RETRY_MILLIS = 30000;
+
+    /**
+     * How long a forwarder must stay bound for its next failure to be retried after
+     * {@link #MIN_RETRY_MILLIS} again.
+     */
+    static final long STABLE_MILLIS = 30000;
+
+    private static final Comparator<ConnectionInfo> OPENED_ORDER = new Comparator<ConnectionInfo>() {
+        @Override
+        public int compare(ConnectionInfo first, ConnectionInfo second) {
+            return first.getId() < second.getId() ? -1 : (first.getId() == second.getId() ? 0 : 1);
+        }
+    };
+
+    private final String transportType;
+
+    private ExecutorService executorService;
+
+    /**
+     * Starts rules and forwarders again once their retry delay has passed.
+     */
+    private ScheduledExecutorService supervisor;
+
+    /**
+     * The rules being forwarded by id, including those waiting to be retried. Guarded by this
+     * engine.
+     */
+    private final Map<Long, RunningRule> runningRules = new HashMap<>();
+
+    /**
+     * The amount of forwarders running or waiting to be restarted, and of rules waiting to be
+     * started. Guarded by this engine.
+     */
+    private int activeTasks;
+
+    private boolean stopped;
+
+    /**
+     * @param transportType the {@link Transport} type of the TCP forwarders.
+     */
+    public ThreadedForwardingEngine(String transportType) {
+        this.transportType = transportType;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        this.executorService = Executors.newCachedThreadPool();
+        this.supervisor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    public void applyRules(List<RuleModel> ruleModels) {
+        Set<Long> ruleIds = new HashSet<>();
+        for (RuleModel ruleModel : ruleModels) {
+            ruleIds.add(ruleModel.getId());
+        }
+
+        List<RunningRule> started = new ArrayList<>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+
+            for (RunningRule runningRule : new ArrayList<>(runningRules.values())) {
+                if (!ruleIds.contains(runningRule.ruleModel.getId())) {
+                    runningRules.remove(runningRule.ruleModel.getId());
+                    stopRule(runningRule);
+                }
+            }
+
+            for (RuleModel ruleModel : ruleModels) {
+                if (!runningRules.containsKey(ruleModel.getId())) {
+                    RunningRule runningRule = new RunningRule(ruleModel);
+                    runningRules.put(ruleModel.getId(), runningRule);
+                    startTask(runningRule);
+                    started.add(runningRule);
+                }
+            }
+        }
+
+        for (RunningRule runningRule : started) {
+            listener.onRuleStarting(runningRule.ruleModel);
+            startRule(runningRule);
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            List<RunningRule> stopping = new ArrayList<>(runningRules.values());
+            runningRules.clear();
+            for (RunningRule runningRule : stopping) {
+                stopRule(runningRule);
+            }
+        }
+
+        if (executorService == null) {
+            return;
+        }
+
+        supervisor.shutdownNow();
+        executorService.shutdownNow();
+        try {
+            if (!executorService.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.e(TAG, "Forwarders did not stop");
+            }
+        } catch (InterruptedException e) {
+            // Preserve interrupt status
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return activeTasks > 0;
+    }
+
+    @Override
+    public synchronized List<ForwarderStats> getStats(long ruleId) {
+        RunningRule runningRule = runningRules.get(ruleId);
+        if (runningRule == null) {
+            return Collections.emptyList();
+        }
+
+        List<ForwarderStats> stats = new ArrayList<>(runningRule.slots.size());
+        for (ForwarderSlot slot : runningRule.slots) {
+            stats.add(slot.forwarder.getStats());
+        }
+        return stats;
+    }
+
+    @Override
+    public List<ConnectionInfo> getConnections(long ruleId, long afterId, int limit) {
+        List<ConnectionTable> tables = getConnectionTables(ruleId);
+        List<ConnectionInfo> page = new ArrayList<>();
+        for (int i = 0; i < tables.size(); i++) {
+            tables.get(i).copyPage(afterId, limit, page);
+        }
+
+        // Each table is in order, the page of the rule is the first connections of them all
+        if (tables.size() > 1) {
+            Collections.sort(page, OPENED_ORDER);
+            while (page.size() > limit) {
+                page.remove(page.size() - 1);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public boolean closeConnection(long ruleId, long connectionId) {
+        List<ConnectionTable> tables = getConnectionTables(ruleId);
+        for (int i = 0; i < tables.size(); i++) {
+            if (tables.get(i).requestClose(connectionId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The tables are copied from outside the lock, which the forwarding threads may need.
+     */
+    private synchronized List<ConnectionTable> getConnectionTables(long ruleId) {
+        RunningRule runningRule = runningRules.get(ruleId);
+        if (runningRule == null) {
+            return Collections.emptyList();
+        }
+
+        List<ConnectionTable> tables = new ArrayList<>(runningRule.slots.size());
+        for (ForwarderSlot slot : runningRule.slots) {
+            tables.add(slot.forwarder.getConnectionTable());
+        }
+        return tables;
+    }
+
+    @Override
+    public String getType() {
+        return transportType;
+    }
+
+    /**
+     * @param failures the amount of failures in a row, before this one.
+     * @return the delay before retrying.
+     */
+    static long retryDelayMillis(int failures) {
+        return Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << Math.min(failures, 16));
+    }
+
+    /**
+     * Create the forwarders of a rule and start each on its own thread, or schedule the rule to be
+     * started again if its forwarders cannot be created. Ends the rule's start task.
+     */
+    private void startRule(final RunningRule runningRule) {
+        RuleModel ruleModel = runningRule.ruleModel;
+        List<ForwarderSlot> slots;
+        try {
+            slots = createSlots(runningRule);
+        } catch (SocketException | ObjectNotFoundException e) {
+            Log.e(TAG, "Error generating IP Address for FROM interface with rule '" + ruleModel.getName() + "'", e);
+
+            long retryMillis;
+            synchronized (this) {
+                if (runningRule.stopping) {
+                    endTask(runningRule);
+                    return;
+                }
+                runningRule.bound = false;
+                retryMillis = retryDelayMillis(runningRule.startFailures++);
+                runningRule.retry = supervisor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startRule(runningRule);
+                    }
+                }, retryMillis, TimeUnit.MILLISECONDS);
+            }
+            listener.onRuleStartFailed(ruleModel, e, retryMillis);
+            return;
+        }
+
+        synchronized (this) {
+            runningRule.retry = null;
+            if (!runningRule.stopping) {
+                runningRule.startFailures = 0;
+                for (ForwarderSlot slot : slots) {
+                    runningRule.slots.add(slot);
+                    startTask(runningRule);
+                    launch(slot);
+                }
+            }
+            endTask(runningRule);
+        }
+    }
+
+    /**
+     * Replace the failed forwarder of a slot with a new one, or schedule it to be replaced again if
+     * it cannot be created.
+     */
+    private void restartForwarder(final ForwarderSlot slot) {
+        RunningRule runningRule = slot.runningRule;
+        Forwarder forwarder;
+        try {
+            forwarder = createForwarder(runningRule, slot.tcp);
+        } catch (SocketException | ObjectNotFoundException e) {
+            Log.e(TAG, "Error generating IP Address for FROM interface with rule '" + runningRule.ruleModel.getName() + "'", e);
+            forwarderStopped(slot, e);
+            return;
+        }
+
+        synchronized (this) {
+            slot.retry = null;
+            if (runningRule.stopping) {
+                endTask(runningRule);
+                return;
+            }
+
+            forwarder.setRestarted(true);
+            slot.forwarder = forwarder;
+            launch(slot);
+        }
+    }
+
+    /**
+     * Start the forwarder of a slot on its own thread. Called with the engine's lock held.
+     */
+    private void launch(ForwarderSlot slot) {
+        slot.boundAtNanos = 0;
+        slot.forwarder.setBindListener(slot);
+        slot.task = new ForwarderTask(slot);
+        try {
+            executorService.execute(slot.task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Engine stopped, forwarder not started");
+            slot.task.cancel(false);
+        }
+    }
+
+    /**
+     * Stop the forwarders of a rule, and cancel its retries. Called with the engine's lock held.
+     */
+    private void stopRule(RunningRule runningRule) {
+        runningRule.stopping = true;
+        listener.onRuleStopping(runningRule.ruleModel);
+
+        // Retries which already started end their task once they see the rule is stopping
+        if (runningRule.retry != null && runningRule.retry.cancel(false)) {
+            endTask(runningRule);
+        }
+        for (ForwarderSlot slot : runningRule.slots) {
+            if (slot.retry != null) {
+                if (slot.retry.cancel(false)) {
+                    endTask(runningRule);
+                }
+            } else if (slot.task != null) {
+                slot.task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * A task of a rule has begun. Called with the engine's lock held.
+     */
+    private void startTask(RunningRule runningRule) {
+        runningRule.activeTasks++;
+        activeTasks++;
+    }
+
+    /**
+     * A task of a rule has ended for good. Called with the engine's lock held.
+     */
+    private void endTask(RunningRule runningRule) {
+        runningRule.activeTasks--;
+        activeTasks--;
+        if (runningRule.activeTasks == 0) {
+            RunningRule current = runningRules.get(runningRule.ruleModel.getId());
+            if (current == runningRule) {
+                runningRules.remove(runningRule.ruleModel.getId());
+            }
+
+            // A rule stopped and started again by the same change is reported by its new instance
+            if (current == null || current == runningRule) {
+                listener.onRuleStopped(runningRule.ruleModel);
+            }
+        }
+        if (activeTasks == 0) {
+            listener.onForwardersStopped();
+        }
+    }
+
+    /**
+     * The forwarder of a slot has returned, failed, or could not be created. A failed forwarder is
+     * replaced after a delay unless its rule is stopping.
+     */
+    private void forwarderStopped(final ForwarderSlot slot, Throwable error) {
+        RunningRule runningRule = slot.runningRule;
+        long retryMillis;
+        synchronized (this) {
+            // Forwarders interrupted while stopping may fail on their closed channels
+            if (error == null || runningRule.stopping) {
+                endTask(runningRule);
+                return;
+            }
+
+            if (slot.boundAtNanos != 0
+                    && System.nanoTime() - slot.boundAtNanos >= TimeUnit.MILLISECONDS.toNanos(STABLE_MILLIS)) {
+                slot.failures = 0;
+            }
+            runningRule.bound = false;
+            retryMillis = retryDelayMillis(slot.failures++);
+            slot.task = null;
+            slot.retry = supervisor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    restartForwarder(slot);
+                }
+            }, retryMillis, TimeUnit.MILLISECONDS);
+        }
+
+        Log.e(TAG, "Error when forwarding port, retrying in " + retryMillis + "ms", error);
+        listener.onRuleFailed(runningRule.ruleModel, error, retryMillis);
+    }
+
+    /**
+     * The forwarder of a slot has bound the rule's address.
+     */
+    private void forwarderBound(ForwarderSlot slot) {
+        RunningRule runningRule = slot.runningRule;
+        List<ForwarderStats> stats;
+        synchronized (this) {
+            slot.boundAtNanos = System.nanoTime();
+            if (runningRule.bound || runningRule.stopping) {
+                return;
+            }
+
+            // The rule is bound once none of its forwarders is starting or waiting to be restarted
+            stats = new ArrayList<>(runningRule.slots.size());
+            for (ForwarderSlot other : runningRule.slots) {
+                if (other.retry != null || other.boundAtNanos == 0) {
+                    return;
+                }
+                stats.add(other.forwarder.getStats());
+            }
+            runningRule.bound = true;
+        }
+        listener.onRuleBound(runningRule.ruleModel, stats);
+    }
+
+    /**
+     * Create the forwarders of a rule, each with its own source throttle and the rule's shared
+     * limits.
+     *
+     * @throws SocketException         if the network interfaces could not be listed.
+     * @throws ObjectNotFoundException if the rule's interface has no IPv4 address.
+     */
+    private List<ForwarderSlot> createSlots(RunningRule runningRule) throws SocketException, ObjectNotFoundException {
+        RuleModel ruleModel = runningRule.ruleModel;
+
+        // The TCP and UDP forwarders of a rule share its limit
+        runningRule.ruleRateLimiter = TokenBucket.forLimit(ruleModel.getTrafficPolicy().getRuleRateLimit());
+        runningRule.sourceFilter = SourceFilter.compile(ruleModel.getAccessPolicy());
+        runningRule.sourceRouter = SourceRouter.compile(
+                SourceRoute.parseList(ruleModel.getSourceRoutes()), ruleModel.getTarget());
+
+        // Shards share the rule's address with SO_REUSEPORT, without it one thread serves the rule
+        runningRule.shards = NativeTransport.isAvailable() ? ruleModel.getSocketProfile().getListenerShards() : 1;
+
+        // The shards of a TCP rule share its connection limit
+        int ruleMaxConnections = ruleModel.getTrafficPolicy().getMaxConnections();
+        runningRule.ruleConnectionLimiter = runningRule.shards > 1 && ruleMaxConnections != TrafficPolicy.UNLIMITED
+                ? new ConnectionLimiter(ruleMaxConnections, 0)
+                : null;
+
+        List<ForwarderSlot> slots = new ArrayList<>();
+        for (int shard = 0; shard < runningRule.shards && ruleModel.isTcp(); shard++) {
+            slots.add(new ForwarderSlot(runningRule, true, createForwarder(runningRule, true)));
+        }
+        for (int shard = 0; shard < runningRule.shards && ruleModel.isUdp(); shard++) {
+            slots.add(new ForwarderSlot(runningRule, false, createForwarder(runningRule, false)));
+        }
+        return slots;
+    }
+
+    /**
+     * Create a forwarder of a rule, with the limits shared by the rule's forwarders and its own
+     * source throttle. The address of the rule's interface is looked up each time, as it may have
+     * changed since the rule was started.
+     *
+     * @throws SocketException         if the network interfaces could not be listed.
+     * @throws ObjectNotFoundException if the rule's interface has no IPv4 address.
+     */
+    private Forwarder createForwarder(RunningRule runningRule, boolean tcp) throws SocketException, ObjectNotFoundException {
+        final RuleModel ruleModel = runningRule.ruleModel;
+        InetSocketAddress from = generateFromIpUsingInterface(ruleModel.getFromInterfaceName(), ruleModel.getFromPort());
+
+        if (tcp) {
+            Forwarder tcpForwarder = createTcpForwarder(ruleModel, from, runningRule.ruleConnectionLimiter);
+            tcpForwarder.setSourceRouter(runningRule.sourceRouter);
+            tcpForwarder.setTargetResolver(targetResolver);
+            CircuitBreaker.Listener circuitBreakerListener = new CircuitBreaker.Listener() {
+                @Override
+                public void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                    listener.onCircuitStateChanged(ruleModel, circuitBreaker, from, to);
+                }
+            };
+            for (CircuitBreaker circuitBreaker : tcpForwarder.getCircuitBreakers()) {
+                circuitBreaker.addListener(circuitBreakerListener);
+            }
+            tcpForwarder.setSharedRateLimiters(runningRule.ruleRateLimiter, globalRateLimiter);
+            tcpForwarder.setShardCount(runningRule.shards);
+            tcpForwarder.setSourceFilter(runningRule.sourceFilter);
+            tcpForwarder.setSourceThrottle(SourceThrottle.forLimit(
+                    ruleModel.getAccessPolicy().getMaxConnectionsPerSource(), ruleModel.getAccessPolicy().getBanSeconds()));
+            return tcpForwarder;
+        }
+
+        UdpForwarder udpForwarder = new UdpForwarder(from, ruleModel.getTarget(), ruleModel.getName(),
+                ruleModel.getSocketProfile(), ruleModel.getTrafficPolicy());
+        udpForwarder.setSharedRateLimiters(runningRule.ruleRateLimiter, globalRateLimiter);
+        udpForwarder.setBatching(udpBatching);
+        udpForwarder.setShardCount(runningRule.shards);
+        udpForwarder.setSourceFilter(runningRule.sourceFilter);
+        udpForwarder.setSourceRouter(runningRule.sourceRouter);
+        udpForwarder.setTargetResolver(targetResolver);
+        udpForwarder.setSourceThrottle(SourceThrottle.forLimit(
+                ruleModel.getAccessPolicy().getMaxDatagramsPerSource(), ruleModel.getAccessPolicy().getBanSeconds()));
+        return udpForwarder;
+    }
+
+    /**
+     * Create a TCP forwarder of a rule with the options of the engine. Settings shared by all
+     * forwarders are applied by the caller.
+     *
+     * @param ruleConnectionLimiter the connection limit shared by the rule's shards, or null.
+     */
+    protected Forwarder createTcpForwarder(RuleModel ruleModel, InetSocketAddress from,
+                                           ConnectionLimiter ruleConnectionLimiter) {
+        TcpForwarder tcpForwarder = new TcpForwarder(from, ruleModel.getTarget(), ruleModel.getName(),
+                ruleModel.getSocketProfile(), ruleModel.getTrafficPolicy());
+        tcpForwarder.setConnectionLimiter(connectionLimiter);
+        tcpForwarder.setRuleConnectionLimiter(ruleConnectionLimiter);
+        tcpForwarder.setZeroCopy(zeroCopy);
+        tcpForwarder.setTransportType(transportType);
+        tcpForwarder.setFastOpen(fastOpen);
+        tcpForwarder.setDeferAccept(deferAccept);
+        return tcpForwarder;
+    }
+
+    private static InetSocketAddress generateFromIpUsingInterface(String interfaceName, int port) throws SocketException, ObjectNotFoundException {
+
+        String address = null;
+        InetSocketAddress inetSocketAddress;
+
+        for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements(); ) {
+            NetworkInterface intf = en.nextElement();
+
+            Log.d(TAG, intf.getDisplayName() + " vs " + interfaceName);
+            if (intf.getDisplayName().equals(interfaceName)) {
+
+                Log.i(TAG, "Found the relevant Interface. Will attempt to fetch IP Address");
+
+                for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr.hasMoreElements(); ) {
+
+                    InetAddress inetAddress = enumIpAddr.nextElement();
+
+                    address = new String(inetAddress.getHostAddress().toString());
+
+                    if (address != null & address.length() > 0 && inetAddress instanceof Inet4Address) {
+
+                        inetSocketAddress = new InetSocketAddress(address, port);
+                        return inetSocketAddress;
+                    }
+                }
+            }
+        }
+
+        //Failed to find the relevant interface
+        throw new ObjectNotFoundException("Could not find IP Address for Interface " + interfaceName);
+    }
+
+    /**
+     * Runs the forwarder of a slot and reports when it returns, fails, or is cancelled before it
+     * ran.
+     */
+    private class ForwarderTask extends FutureTask<Void> {
+        private final ForwarderSlot slot;
+
+        ForwarderTask(ForwarderSlot slot) {
+            super(slot.forwarder);
+            this.slot = slot;
+        }
+
+        @Override
+        protected void done() {
+            Throwable error = null;
+            try {
+                get();
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            } catch (CancellationException | InterruptedException e) {
+                // Stopped by the engine
+            }
+            forwarderStopped(slot, error);
+        }
+    }
+
+    /**
+     * A rule being forwarded, and the settings shared by its forwarders.
+     */
+    static class RunningRule {
+        final RuleModel ruleModel;
+        final List<ForwarderSlot> slots = new ArrayList<>();
+
+        TokenBucket ruleRateLimiter;
+        SourceFilter sourceFilter;
+        SourceRouter sourceRouter;
+        ConnectionLimiter ruleConnectionLimiter;
+        int shards;
+
+        /**
+         * The scheduled start of the rule after it could not be started, or null.
+         */
+        ScheduledFuture<?> retry;
+
+        /**
+         * The amount of times in a row the rule could not be started.
+         */
+        int startFailures;
+
+        /**
+         * Whether every forwarder of the rule is bound, and none has failed since.
+         */
+        boolean bound;
+
+        /**
+         * The amount of the rule's forwarders running or waiting to be restarted, and of its
+         * pending starts.
+         */
+        int activeTasks;
+
+        /**
+         * Whether the rule is being stopped, after which errors of its forwarders are expected.
+         */
+        boolean stopping;
+
+        RunningRule(RuleModel ruleModel) {
+            this.ruleModel = ruleModel;
+        }
+    }
+
+    /**
+     * One forwarder of a rule, which is replaced by a new forwarder each time it fails.
+     */
+    class ForwarderSlot implements Forwarder.BindListener {
+        final RunningRule runningRule;
+        final boolean tcp;
+
+        Forwarder forwarder;
+        ForwarderTask task;
+
+        /**
+         * The scheduled restart of the forwarder after it failed, or null.
+         */
+        ScheduledFuture<?> retry;
+
+        /**
+         * The amount of times in a row the forwarder failed.
+         */
+        int failures;
+
+        /**
+         * When the current forwarder bound the rule's address, or 0 if it has not.
+         */
+        long boundAtNanos;
+
+        ForwarderSlot(RunningRule runningRule, boolean tcp, Forwarder forwarder) {
+            this.runningRule = runningRule;
+            this.tcp = tcp;
+            this.forwarder = forwarder;
+        }
+
+        @Override
+        public void onBound(Forwarder forwarder) {
+            forwarderBound(this);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link Throughput} class holds the rates a rule forwards at, measured by the
+ * {@link ForwardingManager} each time it polls the rule's counters.
+ * <p>
+ * Instances are reused between polls, and must only be used on the main thread.
+ */
+public final class Throughput {
+
+    private static final String[] BYTE_UNITS = {" B", " KB", " MB", " GB", " TB"};
+
+    private long bytesUp;
+    private long bytesDown;
+    private long upPerSecond;
+    private long downPerSecond;
+    private int activeConnections;
+
+    /**
+     * When the counters were last sampled, on the {@link System#nanoTime()} clock.
+     */
+    private long sampledAtNanos;
+    private boolean sampled;
+
+    /**
+     * Measure the rates since the last sample.
+     *
+     * @param bytesUp           the total bytes read from clients.
+     * @param bytesDown         the total bytes read from targets.
+     * @param activeConnections the amount of connections currently forwarded.
+     * @param nowNanos          the current {@link System#nanoTime()}.
+     * @return whether the rates or connections changed.
+     */
+    boolean sample(long bytesUp, long bytesDown, int activeConnections, long nowNanos) {
+        long upPerSecond = 0;
+        long downPerSecond = 0;
+        long elapsedNanos = nowNanos - sampledAtNanos;
+        if (sampled && elapsedNanos > 0) {
+            // Counters start again from 0 when a rule's forwarders are restarted
+            upPerSecond = perSecond(bytesUp >= this.bytesUp ? bytesUp - this.bytesUp : bytesUp, elapsedNanos);
+            downPerSecond = perSecond(bytesDown >= this.bytesDown ? bytesDown - this.bytesDown : bytesDown, elapsedNanos);
+        }
+
+        boolean changed = upPerSecond != this.upPerSecond
+                || downPerSecond != this.downPerSecond
+                || activeConnections != this.activeConnections;
+
+        this.bytesUp = bytesUp;
+        this.bytesDown = bytesDown;
+        this.upPerSecond = upPerSecond;
+        this.downPerSecond = downPerSecond;
+        this.activeConnections = activeConnections;
+        this.sampledAtNanos = nowNanos;
+        this.sampled = true;
+        return changed;
+    }
+
+    /**
+     * Forget the rates, before summing the rates of several rules with {@link #add(Throughput)}.
+     */
+    void clear() {
+        bytesUp = 0;
+        bytesDown = 0;
+        upPerSecond = 0;
+        downPerSecond = 0;
+        activeConnections = 0;
+        sampled = false;
+    }
+
+    void add(Throughput throughput) {
+        bytesUp += throughput.bytesUp;
+        bytesDown += throughput.bytesDown;
+        upPerSecond += throughput.upPerSecond;
+        downPerSecond += throughput.downPerSecond;
+        activeConnections += throughput.activeConnections;
+    }
+
+    private static long perSecond(long bytes, long elapsedNanos) {
+        return (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+    }
+
+    /**
+     * @return the total bytes read from clients when last sampled.
+     */
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    /**
+     * @return the total bytes read from targets when last sampled.
+     */
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    /**
+     * @return the bytes per second read from clients between the last two samples.
+     */
+    public long getUpPerSecond() {
+        return upPerSecond;
+    }
+
+    /**
+     * @return the bytes per second read from targets between the last two samples.
+     */
+    public long getDownPerSecond() {
+        return downPerSecond;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    /**
+     * Append a rate such as "1.5 MB/s", without allocating.
+     *
+     * @param out            the builder to append to.
+     * @param bytesPerSecond the rate.
+     * @return the builder.
+     */
+    public static StringBuilder appendRate(StringBuilder out, long bytesPerSecond) {
+        return appendBytes(out, bytesPerSecond).append("/s");
+    }
+
+    /**
+     * Append an amount of data such as "1.5 MB", without allocating.
+     *
+     * @param out   the builder to append to.
+     * @param bytes the amount of bytes.
+     * @return the builder.
+     */
+    public static StringBuilder appendBytes(StringBuilder out, long bytes) {
+        int unit = 0;
+        long divisor = 1;
+        while (unit < BYTE_UNITS.length - 1 && bytes >= divisor * 1024) {
+            divisor *= 1024;
+            unit++;
+        }
+
+        if (unit == 0) {
+            out.append(bytes);
+        } else {
+            long tenths = bytes * 10 / divisor;
+            out.append(tenths / 10).append('.').append(tenths % 10);
+        }
+        return out.append(BYTE_UNITS[unit]);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link TokenBucket} class limits a rate, such as the bytes forwarded or the connections
+ * accepted per second.
+ * <p>
+ * Tokens are added at a fixed rate up to the capacity of the bucket, and every forwarded byte
+ * takes a token. A read may take more tokens than are available, leaving the bucket in debt; the
+ * reader must then wait until the debt has been repaid. This lets reads use normal buffer sizes
+ * while the average rate stays at the limit.
+ * <p>
+ * Buckets shared between forwarding threads, such as the rule and global buckets, are safe to use
+ * from several threads.
+ */
+public class TokenBucket {
+
+    /**
+     * The smallest burst a bucket allows, so slow limits still forward reasonably sized reads.
+     */
+    public static final long MIN_CAPACITY = 16 * 1024;
+
+    /**
+     * The part of a second's worth of tokens a bucket holds, a tenth of a second.
+     */
+    private static final long CAPACITY_DIVISOR = 10;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long tokensPerSecond;
+    private final long capacity;
+
+    private long tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param tokensPerSecond the rate tokens are added at.
+     * @param capacity       the largest amount of tokens the bucket holds.
+     */
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        if (tokensPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        }
+        this.tokensPerSecond = tokensPerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Create a bucket for a rate limit, holding a tenth of a second of traffic or
+     * {@link #MIN_CAPACITY}, whichever is larger.
+     *
+     * @param kilobytesPerSecond the limit in KB/s, 0 for no limit.
+     * @return the bucket, or null if there is no limit.
+     */
+    public static TokenBucket forLimit(int kilobytesPerSecond) {
+        if (kilobytesPerSecond <= 0) {
+            return null;
+        }
+        long bytesPerSecond = kilobytesPerSecond * 1024L;
+        return new TokenBucket(bytesPerSecond, Math.max(MIN_CAPACITY, bytesPerSecond / CAPACITY_DIVISOR));
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}.
+     * @return the amount of tokens available, 0 or less if the bucket is empty or in debt.
+     */
+    public synchronized long available(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    /**
+     * Take tokens, for example for forwarded bytes. The bucket may go into debt.
+     *
+     * @param amount the amount of tokens to take.
+     */
+    public synchronized void consume(long amount) {
+        tokens -= amount;
+    }
+
+    /**
+     * Give back tokens which were taken but not used, up to the capacity of the bucket.
+     *
+     * @param amount the amount of tokens to give back.
+     */
+    public synchronized void refund(long amount) {
+        tokens = Math.min(capacity, tokens + amount);
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}.
+     * @return the time in nanoseconds until a token is available, 0 if one is available now.
+     */
+    public synchronized long nanosUntilAvailable(long now) {
+        refill(now);
+        if (tokens > 0) {
+            return 0;
+        }
+        return ((1 - tokens) * NANOS_PER_SECOND + tokensPerSecond - 1) / tokensPerSecond;
+    }
+
+    public long getTokensPerSecond() {
+        return tokensPerSecond;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        long missing = capacity - tokens;
+        if (elapsed >= (missing * NANOS_PER_SECOND) / tokensPerSecond) {
+            tokens = capacity;
+            lastRefillNanos = now;
+            return;
+        }
+
+        long added = (elapsed * tokensPerSecond) / NANOS_PER_SECOND;
+        if (added > 0) {
+            tokens += added;
+            // Only advance by the time the whole tokens took, so fractions are not lost
+            lastRefillNanos += (added * NANOS_PER_SECOND) / tokensPerSecond;
+        }
+    }
+}
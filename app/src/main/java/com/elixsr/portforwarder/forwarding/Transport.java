@@ -0,0 +1,130 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * The {@link Transport} class is the event loop of a forwarding thread. It waits until registered
+ * channels are ready, the way a {@link java.nio.channels.Selector} does, so forwarders can run on
+ * different readiness mechanisms.
+ * <p>
+ * {@link #NIO} uses a java.nio Selector, and is always available. {@link #EPOLL} uses Linux epoll
+ * in edge-triggered mode through the native library, see {@link EpollTransport}.
+ * <p>
+ * Forwarders must work with both, by telling their keys when an operation would block, see
+ * {@link TransportKey#clearReady(int)}.
+ */
+public abstract class Transport {
+
+    private static final String TAG = "Transport";
+
+    public static final String NIO = "nio";
+    public static final String EPOLL = "epoll";
+
+    /**
+     * Open a transport of a type, or the java.nio transport if the type is not available on the
+     * device.
+     *
+     * @param type {@link #NIO} or {@link #EPOLL}.
+     * @return the transport.
+     * @throws IOException if the transport could not be opened.
+     */
+    public static Transport open(String type) throws IOException {
+        if (EPOLL.equals(type)) {
+            if (isEpollAvailable()) {
+                return new EpollTransport();
+            }
+            Log.i(TAG, "epoll transport is not available, using java.nio");
+        }
+        return new NioTransport();
+    }
+
+    /**
+     * @return true if the native library is loaded and can find the descriptors of channels.
+     */
+    private static boolean isEpollAvailable() throws IOException {
+        if (!NativeTransport.isAvailable()) {
+            return false;
+        }
+
+        SocketChannel probe = SocketChannel.open();
+        try {
+            return NativeTransport.getFd(probe) >= 0;
+        } finally {
+            probe.close();
+        }
+    }
+
+    /**
+     * Register a non-blocking channel, or update the registration of a channel which is already
+     * registered.
+     *
+     * @param channel    the channel.
+     * @param ops        the operations of interest, see {@link TransportKey}.
+     * @param attachment the object the key carries.
+     * @return the channel's key.
+     * @throws IOException if the channel could not be registered.
+     */
+    public abstract TransportKey register(SelectableChannel channel, int ops, Object attachment) throws IOException;
+
+    /**
+     * Wait until a registered channel is ready, or {@link #wakeup()} is called.
+     *
+     * @return the amount of ready keys.
+     * @throws IOException if waiting failed.
+     */
+    public abstract int select() throws IOException;
+
+    /**
+     * Wait until a registered channel is ready, {@link #wakeup()} is called, or a time has passed.
+     *
+     * @param timeoutMillis the longest time to wait, greater than 0.
+     * @return the amount of ready keys.
+     * @throws IOException if waiting failed.
+     */
+    public abstract int select(long timeoutMillis) throws IOException;
+
+    /**
+     * @return the keys found ready by the last select, valid until the next one.
+     */
+    public abstract List<TransportKey> selectedKeys();
+
+    /**
+     * Make the current or next select return straight away. May be called from any thread.
+     */
+    public abstract void wakeup();
+
+    /**
+     * Release the transport. The registered channels stay open.
+     *
+     * @throws IOException if the transport could not be closed.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * @return {@link #NIO} or {@link #EPOLL}.
+     */
+    public abstract String getType();
+}
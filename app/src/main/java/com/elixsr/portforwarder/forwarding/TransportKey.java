@@ -0,0 +1,110 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * The {@link TransportKey} class is the registration of a channel with a {@link Transport}, like
+ * a {@link SelectionKey} is with a Selector. The operation bits are those of {@link SelectionKey}.
+ */
+public abstract class TransportKey {
+
+    public static final int OP_READ = SelectionKey.OP_READ;
+    public static final int OP_WRITE = SelectionKey.OP_WRITE;
+    public static final int OP_CONNECT = SelectionKey.OP_CONNECT;
+    public static final int OP_ACCEPT = SelectionKey.OP_ACCEPT;
+
+    private final Transport transport;
+    private final SelectableChannel channel;
+    private Object attachment;
+
+    protected TransportKey(Transport transport, SelectableChannel channel, Object attachment) {
+        this.transport = transport;
+        this.channel = channel;
+        this.attachment = attachment;
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public abstract int interestOps();
+
+    public abstract TransportKey interestOps(int ops);
+
+    /**
+     * @return the operations of interest the channel was found ready for.
+     */
+    public abstract int readyOps();
+
+    /**
+     * @return true until the key is cancelled or its channel is closed.
+     */
+    public abstract boolean isValid();
+
+    /**
+     * Stop watching the channel. The channel stays open.
+     */
+    public abstract void cancel();
+
+    /**
+     * Report that the channel is no longer ready for some operations: a read or accept found
+     * nothing, a read returned less than asked for, a write could not take everything, or a
+     * connection is still in progress.
+     * <p>
+     * An edge-triggered transport keeps reporting a channel as ready until it is told so, and
+     * after that only reports it again once new readiness arrives. A level-triggered transport
+     * asks the kernel every time, and ignores this.
+     *
+     * @param ops the operations which would block.
+     */
+    public void clearReady(int ops) {
+
+    }
+
+    public boolean isReadable() {
+        return (readyOps() & OP_READ) != 0;
+    }
+
+    public boolean isWritable() {
+        return (readyOps() & OP_WRITE) != 0;
+    }
+
+    public boolean isConnectable() {
+        return (readyOps() & OP_CONNECT) != 0;
+    }
+
+    public boolean isAcceptable() {
+        return (readyOps() & OP_ACCEPT) != 0;
+    }
+}
@@ -21,8 +21,11 @@ package com.elixsr.portforwarder.forwarding;
 import android.util.Log;
 
 import com.elixsr.portforwarder.exceptions.BindException;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
@@ -32,6 +35,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Skeleton taken from: http://cs.ecs.baylor.edu/~donahoo/practical/JavaSockets2/code/UDPEchoServerSelector.java
@@ -41,33 +45,105 @@ import java.util.concurrent.Callable;
 public class UdpForwarder extends Forwarder implements Callable<Void> {
 
     private static final String TAG = "UdpForwarder";
-    private static final int BUFFER_SIZE = 100000;
+
+    /**
+     * The largest possible UDP payload, buffers must be able to hold a whole datagram or the
+     * remainder is discarded.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65535;
 
     private static final int TIMEOUT = 3000; // Wait timeout (milliseconds)
 
+    /**
+     * The amount of datagrams received and sent by one system call with a {@link DatagramRing}.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * The address a hostname target last resolved to, and the target built from it, so datagrams
+     * do not each build a new address.
+     */
+    private InetAddress resolvedAddress;
+    private InetSocketAddress resolvedTarget;
+
+    /**
+     * Whether datagrams are relayed in batches through a {@link DatagramRing} where the device
+     * supports it.
+     */
+    private boolean batching;
+
+    /**
+     * Whether the rule or global rate limit has run out and reading is paused. Only used by the
+     * forwarding thread.
+     */
+    private boolean throttled;
+
     public UdpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName) {
-        super("UDP", form, to, ruleName);
+        this(form, to, ruleName, new SocketProfile(), new TrafficPolicy());
+    }
+
+    public UdpForwarder(InetSocketAddress form, InetSocketAddress to, String ruleName,
+                        SocketProfile socketProfile, TrafficPolicy trafficPolicy) {
+        super("UDP", form, to, ruleName, socketProfile, trafficPolicy);
+    }
+
+    /**
+     * Relay datagrams in batches, with one system call for many, rather than one by one, where the
+     * device supports it. Must be called before the forwarder is started.
+     *
+     * @param batching true to batch.
+     */
+    public void setBatching(boolean batching) {
+        this.batching = batching;
     }
 
     public Void call() throws IOException, BindException {
 
         Log.d(TAG, String.format(super.START_MESSAGE, protocol, from.getPort(), to.getPort()));
 
+        applyThreadPriority();
+        prefetchTarget();
+
         try {
-            ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int bufferSize = Math.max(socketProfile.getRelayBufferSize(), MAX_DATAGRAM_SIZE);
+            ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
 
             DatagramChannel inChannel = DatagramChannel.open();
             inChannel.configureBlocking(false);
 
             try {
+                inChannel.socket().setReuseAddress(socketProfile.isReuseAddress());
+
+                if (socketProfile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+                    inChannel.socket().setReceiveBufferSize(socketProfile.getReceiveBufferSize());
+                }
+
+                if (socketProfile.getSendBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+                    inChannel.socket().setSendBufferSize(socketProfile.getSendBufferSize());
+                }
+
+                shareAddress(inChannel);
+
                 inChannel.socket().bind(this.from);
+                steerSources(inChannel);
             } catch (SocketException e) {
                 Log.e(TAG, String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
+                inChannel.close();
                 throw new BindException(String.format(super.BIND_FAILED_MESSAGE, from.getPort(), protocol, ruleName), e);
             }
 
+            DatagramRing ring = batching ? DatagramRing.open(inChannel, BATCH_SIZE, MAX_DATAGRAM_SIZE) : null;
+            if (ring != null) {
+                ring.enableGro();
+            }
+            notifyBound();
+
             Selector selector = Selector.open();
-            inChannel.register(selector, SelectionKey.OP_READ, new ClientRecord(to));
+            SelectionKey inKey = inChannel.register(selector, SelectionKey.OP_READ, new ClientRecord(to, bufferSize));
+
+            // When reading was paused by the rate limits, and when they may have tokens again
+            long throttledSince = 0;
+            long resumeAt = 0;
 
             while (true) { // Run forever, receiving and echoing datagrams
 
@@ -77,31 +153,71 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
                     break;
                 }
 
-                int count = selector.select();
-                if (count > 0) {
+                int count;
+                if (throttled) {
+                    count = selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(resumeAt - System.nanoTime() + 999999)));
+                } else {
+                    count = selector.select();
+                }
 
+                if (count > 0) {
+                    long selectedAt = System.nanoTime();
 
                     // Get iterator on set of keys with I/O to process
                     Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
                     while (keyIter.hasNext()) {
                         SelectionKey key = keyIter.next(); // Key is bit mask
 
+                        stats.recordSchedulingDelay(System.nanoTime() - selectedAt);
+
                         // Client socket channel has pending data?
                         if (key.isReadable()) {
                             // Log.i(TAG, "Have Something to READ");
-                            handleRead(key, readBuffer);
+                            int received = ring != null ? handleBatchRead(key, ring) : handleRead(key, readBuffer);
+                            consumeRate(received);
+                            stats.recordBytesUp(received);
+
+                            long now = System.nanoTime();
+                            long wait = rateWaitNanos(now);
+                            if (wait > 0 && !throttled) {
+                                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                                throttled = true;
+                                throttledSince = now;
+                                resumeAt = now + wait;
+                            }
                         }
 
                         // Client socket channel is available for writing and
                         // key is valid (i.e., channel not closed).
                         if (key.isValid() && key.isWritable()) {
                             // Log.i(TAG, "Have Something to WRITE");
-                            handleWrite(key);
+                            if (ring != null) {
+                                handleBatchWrite(key, ring);
+                            } else {
+                                handleWrite(key);
+                            }
                         }
 
                         keyIter.remove();
                     }
                 }
+
+                if (throttled && System.nanoTime() - resumeAt >= 0) {
+                    long now = System.nanoTime();
+                    long wait = rateWaitNanos(now);
+                    if (wait > 0) {
+                        // The limits are shared with other threads, which may have used the tokens
+                        resumeAt = now + wait;
+                    } else {
+                        throttled = false;
+                        stats.recordThrottled(now - throttledSince);
+
+                        // A datagram still waiting to be sent turns reading back on once it is
+                        if ((inKey.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                            inKey.interestOps(inKey.interestOps() | SelectionKey.OP_READ);
+                        }
+                    }
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "Problem opening Selector", e);
@@ -111,7 +227,13 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
         return null;
     }
 
-    public static void handleRead(SelectionKey key, ByteBuffer readBuffer) throws IOException {
+    /**
+     * Receive a datagram and forward it to the target of its source's route. Datagrams from
+     * sources which are not allowed, or which are banned for sending too quickly, are dropped.
+     *
+     * @return the size of the forwarded datagram, 0 if nothing was forwarded.
+     */
+    public int handleRead(SelectionKey key, ByteBuffer readBuffer) throws IOException {
 
         // Log.i("UdpForwarder", "Handling Read");
         DatagramChannel channel = (DatagramChannel) key.channel();
@@ -121,18 +243,30 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
         readBuffer.clear();
 
         // Receive the data
-        channel.receive(readBuffer);
+        SocketAddress source = channel.receive(readBuffer);
+        if (source == null) {
+            return 0;
+        }
+
+        InetSocketAddress target = targetFor(source, System.nanoTime());
+        if (target == null) {
+            return 0;
+        }
 
         // Get read to wrte, then send
         readBuffer.flip();
-        channel.send(readBuffer, clientRecord.toAddress);
+        int received = readBuffer.remaining();
+        channel.send(readBuffer, target);
 
         // If there is anything remaining in the buffer
         if (readBuffer.remaining() > 0) {
+            clientRecord.toAddress = target;
             clientRecord.writeBuffer.put(readBuffer);
-            key.interestOps(SelectionKey.OP_WRITE);
+            awaitWritable(key);
         }
 
+        return received;
+
 //        ClientRecord clientRecord = (ClientRecord) key.attachment();
 //        clientRecord.buffer.clear();    // Prepare buffer for receiving
 //        clientRecord.clientAddress = channel.receive(clientRecord.buffer);
@@ -143,7 +277,122 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
 //        }
     }
 
-    public static void handleWrite(SelectionKey key) throws IOException {
+    /**
+     * Receive a batch of datagrams into the ring and forward each to the target of its source's
+     * route, as {@link #handleRead(SelectionKey, ByteBuffer)} does for one. Datagrams the socket
+     * cannot take yet wait in the ring, and reading stops until they are sent.
+     *
+     * @return the size of the forwarded datagrams, 0 if nothing was forwarded.
+     */
+    private int handleBatchRead(SelectionKey key, DatagramRing ring) throws IOException {
+        int count = ring.receive();
+        if (count == 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        int received = 0;
+        for (int slot = 0; slot < count; slot++) {
+            InetSocketAddress target = targetFor(ring.sourceOf(slot), now);
+            if (target == null) {
+                ring.drop(slot);
+                continue;
+            }
+
+            ring.setTarget(slot, target);
+            received += ring.lengths[slot];
+        }
+
+        handleBatchWrite(key, ring);
+        return received;
+    }
+
+    private void handleBatchWrite(SelectionKey key, DatagramRing ring) throws IOException {
+        if (!ring.send()) {
+            awaitWritable(key);
+        } else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            writeDrained(key);
+        }
+    }
+
+    /**
+     * Stop reading until the socket takes the datagrams waiting to be sent.
+     */
+    private static void awaitWritable(SelectionKey key) {
+        key.interestOps((key.interestOps() & ~SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * The datagrams waiting to be sent have been sent, read again unless the rate limits have run
+     * out, in which case reading resumes once they have tokens.
+     */
+    private void writeDrained(SelectionKey key) {
+        int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+        key.interestOps(throttled ? ops : ops | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Find where to forward a datagram. Datagrams from sources which are not allowed, or which are
+     * banned for sending too quickly, are dropped.
+     *
+     * @param source the address the datagram came from.
+     * @param now    the current {@link System#nanoTime()}.
+     * @return the target of the source's route, or null to drop the datagram.
+     */
+    private InetSocketAddress targetFor(SocketAddress source, long now) {
+        if (!isSourceAllowed(source, now)) {
+            return null;
+        }
+
+        InetSocketAddress target = targetOf(routeOf(source));
+        if (target.isUnresolved()) {
+            // Datagrams may be lost, there is no point holding them until the target is known
+            target = resolvedTarget(target);
+        }
+        return target;
+    }
+
+    /**
+     * @param target an unresolved target.
+     * @return the target with its first resolved address, or null if it is not yet known.
+     */
+    private InetSocketAddress resolvedTarget(InetSocketAddress target) {
+        InetAddress[] addresses = resolveTarget(target, null);
+        if (addresses == null || addresses.length == 0) {
+            return null;
+        }
+
+        if (!addresses[0].equals(resolvedAddress)) {
+            resolvedAddress = addresses[0];
+            resolvedTarget = new InetSocketAddress(resolvedAddress, target.getPort());
+        }
+        return resolvedTarget;
+    }
+
+    private void consumeRate(int bytes) {
+        if (ruleRateLimiter != null) {
+            ruleRateLimiter.consume(bytes);
+        }
+        if (globalRateLimiter != null) {
+            globalRateLimiter.consume(bytes);
+        }
+    }
+
+    /**
+     * @return the time in nanoseconds until the rule and global rate limits have tokens.
+     */
+    private long rateWaitNanos(long now) {
+        long wait = 0;
+        if (ruleRateLimiter != null) {
+            wait = Math.max(wait, ruleRateLimiter.nanosUntilAvailable(now));
+        }
+        if (globalRateLimiter != null) {
+            wait = Math.max(wait, globalRateLimiter.nanosUntilAvailable(now));
+        }
+        return wait;
+    }
+
+    public void handleWrite(SelectionKey key) throws IOException {
         DatagramChannel channel = (DatagramChannel) key.channel();
         ClientRecord clientRecord = (ClientRecord) key.attachment();
         clientRecord.writeBuffer.flip(); // Prepare buffer for sending
@@ -153,7 +402,7 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
         if (clientRecord.writeBuffer.remaining() > 0) {
             clientRecord.writeBuffer.compact();
         } else {
-            key.interestOps(SelectionKey.OP_READ);
+            writeDrained(key);
             clientRecord.writeBuffer.clear();
         }
 
@@ -164,11 +413,15 @@ public class UdpForwarder extends Forwarder implements Callable<Void> {
     }
 
     static class ClientRecord {
+        /**
+         * The target of the datagram held in {@link #writeBuffer}.
+         */
         public SocketAddress toAddress;
-        public ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        public ByteBuffer writeBuffer;
 
-        public ClientRecord(SocketAddress toAddress) {
+        public ClientRecord(SocketAddress toAddress, int bufferSize) {
             this.toAddress = toAddress;
+            this.writeBuffer = ByteBuffer.allocate(bufferSize);
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.elixsr.portforwarder.dao.UsageDao;
+import com.elixsr.portforwarder.db.RuleContract;
+import com.elixsr.portforwarder.models.UsageModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link UsageRecorder} class records the usage history of the forwarded rules, from snapshots
+ * of their counters.
+ * <p>
+ * Counters are sampled every {@link #SAMPLE_INTERVAL_MILLIS}, and their deltas summed in memory
+ * into a bucket per rule and minute. The buckets are written in a single transaction at most every
+ * {@link #FLUSH_INTERVAL_MILLIS}, and not at all while nothing is forwarded, to keep writes to
+ * flash rare. The history is compacted every {@link #COMPACT_INTERVAL_MILLIS}.
+ * <p>
+ * Bytes counted by a rule's forwarders after the last sample and before they are replaced are
+ * not recorded.
+ */
+final class UsageRecorder {
+
+    private static final String TAG = "UsageRecorder";
+
+    static final long SAMPLE_INTERVAL_MILLIS = 5000;
+
+    static final long FLUSH_INTERVAL_MILLIS = 30000;
+
+    static final long COMPACT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The most buckets kept while they cannot be written, beyond which they are dropped.
+     */
+    private static final int MAX_PENDING_BUCKETS = 4096;
+
+    private final UsageDao usageDao;
+
+    private final ScheduledExecutorService executorService;
+
+    /*
+     * Only used on the recorder thread.
+     */
+    private final LongSparseArray<long[]> counters = new LongSparseArray<>();
+    private final List<UsageModel> pending = new ArrayList<>();
+    private long flushedAt;
+    private long compactedAt;
+
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            sample(ForwardingManager.getInstance().getRuleStates());
+            if (SystemClock.elapsedRealtime() - flushedAt >= FLUSH_INTERVAL_MILLIS) {
+                flush();
+            }
+        }
+    };
+
+    UsageRecorder(UsageDao usageDao) {
+        this.usageDao = usageDao;
+        // Not a daemon, so the last flush is written while the process is stopping
+        this.executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start sampling. The history is compacted with the first flush, to catch up with the time
+     * nothing was forwarded.
+     */
+    void start() {
+        flushedAt = SystemClock.elapsedRealtime();
+        compactedAt = flushedAt - COMPACT_INTERVAL_MILLIS;
+        executorService.scheduleAtFixedRate(sampleTask, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling, and write what was counted since the last flush. Must be called before the
+     * forwarders are stopped, whose counters are read one last time.
+     */
+    void stop() {
+        // The states hold on to the counters of the forwarders which are being stopped
+        final List<RuleState> ruleStates = ForwardingManager.getInstance().getRuleStates();
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                sample(ruleStates);
+                flush();
+            }
+        });
+        executorService.shutdown();
+    }
+
+    private void sample(List<RuleState> ruleStates) {
+        long now = System.currentTimeMillis();
+        long minute = now - now % RuleContract.UsageEntry.RESOLUTION_MINUTE;
+
+        for (int i = 0; i < ruleStates.size(); i++) {
+            RuleState ruleState = ruleStates.get(i);
+            long bytesUp = ruleState.getBytesUp();
+            long bytesDown = ruleState.getBytesDown();
+            int connections = ruleState.getActiveConnections();
+
+            long[] last = counters.get(ruleState.getRuleId());
+            if (last == null) {
+                last = new long[2];
+                counters.put(ruleState.getRuleId(), last);
+            }
+
+            // Counters start again from zero when the rule's forwarders are replaced
+            long upDelta = bytesUp >= last[0] ? bytesUp - last[0] : bytesUp;
+            long downDelta = bytesDown >= last[1] ? bytesDown - last[1] : bytesDown;
+            last[0] = bytesUp;
+            last[1] = bytesDown;
+
+            if (upDelta != 0 || downDelta != 0 || connections != 0) {
+                getPendingBucket(ruleState.getRuleId(), minute).add(upDelta, downDelta, connections);
+            }
+        }
+    }
+
+    private UsageModel getPendingBucket(long ruleId, long minute) {
+        // Only the last minute or two of each rule are pending
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            UsageModel usageModel = pending.get(i);
+            if (usageModel.getRuleId() == ruleId && usageModel.getBucketStart() == minute) {
+                return usageModel;
+            }
+        }
+        UsageModel usageModel = new UsageModel(ruleId, RuleContract.UsageEntry.RESOLUTION_MINUTE, minute);
+        pending.add(usageModel);
+        return usageModel;
+    }
+
+    private void flush() {
+        flushedAt = SystemClock.elapsedRealtime();
+
+        if (!pending.isEmpty()) {
+            try {
+                usageDao.addUsage(pending);
+                pending.clear();
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not write " + pending.size() + " usage buckets", e);
+                if (pending.size() > MAX_PENDING_BUCKETS) {
+                    pending.clear();
+                }
+            }
+        }
+
+        if (flushedAt - compactedAt >= COMPACT_INTERVAL_MILLIS) {
+            compactedAt = flushedAt;
+            try {
+                usageDao.compact(System.currentTimeMillis());
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not compact the usage history", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+import com.elixsr.portforwarder.util.CidrTrie;
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+
+/**
+ * The {@link AccessPolicy} class holds the source addresses which may connect to a rule, and the
+ * limits which ban abusive sources.
+ * <p>
+ * Each list holds IPv4 prefixes in CIDR notation, separated by commas or whitespace. The longest
+ * prefix containing a source decides whether it is allowed; a source in neither list is allowed
+ * only if the allow list is empty.
+ * <p>
+ * A source which opens more connections, or sends more datagrams, per second than allowed is
+ * banned for {@link #getBanSeconds()}.
+ */
+public class AccessPolicy implements Serializable {
+
+    /**
+     * The characters separating the prefixes of a list.
+     */
+    public static final String SEPARATOR_PATTERN = "[\\s,]+";
+
+    /**
+     * A per source limit of 0 turns banning off.
+     */
+    public static final int UNLIMITED = 0;
+
+    public static final int MAX_SOURCE_RATE = 1000000;
+
+    public static final int DEFAULT_BAN_SECONDS = 60;
+
+    public static final int MIN_BAN_SECONDS = 1;
+
+    public static final int MAX_BAN_SECONDS = 86400;
+
+    @Expose
+    private String allowedSources = "";
+
+    @Expose
+    private String deniedSources = "";
+
+    /**
+     * The amount of TCP connections a single source may open per second.
+     */
+    @Expose
+    private int maxConnectionsPerSource = UNLIMITED;
+
+    /**
+     * The amount of UDP datagrams a single source may send per second.
+     */
+    @Expose
+    private int maxDatagramsPerSource = UNLIMITED;
+
+    @Expose
+    private int banSeconds = DEFAULT_BAN_SECONDS;
+
+    public AccessPolicy() {
+
+    }
+
+    public String getAllowedSources() {
+        return allowedSources;
+    }
+
+    public void setAllowedSources(String allowedSources) {
+        this.allowedSources = allowedSources;
+    }
+
+    public String getDeniedSources() {
+        return deniedSources;
+    }
+
+    public void setDeniedSources(String deniedSources) {
+        this.deniedSources = deniedSources;
+    }
+
+    public int getMaxConnectionsPerSource() {
+        return maxConnectionsPerSource;
+    }
+
+    public void setMaxConnectionsPerSource(int maxConnectionsPerSource) {
+        this.maxConnectionsPerSource = maxConnectionsPerSource;
+    }
+
+    public int getMaxDatagramsPerSource() {
+        return maxDatagramsPerSource;
+    }
+
+    public void setMaxDatagramsPerSource(int maxDatagramsPerSource) {
+        this.maxDatagramsPerSource = maxDatagramsPerSource;
+    }
+
+    public int getBanSeconds() {
+        return banSeconds;
+    }
+
+    public void setBanSeconds(int banSeconds) {
+        this.banSeconds = banSeconds;
+    }
+
+    /**
+     * @return true if the policy restricts sources.
+     */
+    public boolean isRestricted() {
+        return splitSources(allowedSources).length > 0 || splitSources(deniedSources).length > 0;
+    }
+
+    /**
+     * Split a list of prefixes into its entries.
+     *
+     * @param sources the list, may be null.
+     * @return the prefixes, empty if there are none.
+     */
+    public static String[] splitSources(String sources) {
+        if (sources == null || sources.trim().length() <= 0) {
+            return new String[0];
+        }
+        return sources.trim().split(SEPARATOR_PATTERN);
+    }
+
+    /**
+     * Validate the policy.
+     * <p>
+     * Every entry of both lists must be a valid IPv4 prefix, per source limits must be between
+     * {@link #UNLIMITED} and {@link #MAX_SOURCE_RATE}, and the ban must be between
+     * {@link #MIN_BAN_SECONDS} and {@link #MAX_BAN_SECONDS}.
+     *
+     * @return true if valid, false if not valid.
+     */
+    public boolean isValid() {
+        if (maxConnectionsPerSource < UNLIMITED || maxConnectionsPerSource > MAX_SOURCE_RATE) {
+            return false;
+        }
+
+        if (maxDatagramsPerSource < UNLIMITED || maxDatagramsPerSource > MAX_SOURCE_RATE) {
+            return false;
+        }
+
+        if (banSeconds < MIN_BAN_SECONDS || banSeconds > MAX_BAN_SECONDS) {
+            return false;
+        }
+
+        return isValidList(allowedSources) && isValidList(deniedSources);
+    }
+
+    /**
+     * @param sources a list of prefixes.
+     * @return true if every entry of the list is a valid IPv4 prefix.
+     */
+    public static boolean isValidList(String sources) {
+        try {
+            for (String cidr : splitSources(sources)) {
+                CidrTrie.parseCidr(cidr);
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return true;
+    }
+}
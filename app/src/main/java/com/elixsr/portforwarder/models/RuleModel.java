@@ -25,6 +25,7 @@ import java.net.InetSocketAddress;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.JsonAdapter;
 
+import com.elixsr.portforwarder.util.NetworkHelper;
 import com.elixsr.portforwarder.util.RuleHelper;
 
 /**
@@ -59,6 +60,21 @@ public class RuleModel implements Serializable {
 
     private boolean isEnabled = true;
 
+    @Expose
+    private SocketProfile socketProfile = new SocketProfile();
+
+    @Expose
+    private TrafficPolicy trafficPolicy = new TrafficPolicy();
+
+    @Expose
+    private AccessPolicy accessPolicy = new AccessPolicy();
+
+    /**
+     * The rule's {@link SourceRoute}s, in order.
+     */
+    @Expose
+    private String sourceRoutes = "";
+
     // Null constructor - for object building
     public RuleModel() {
 
@@ -74,7 +90,7 @@ public class RuleModel implements Serializable {
     }
 
     public RuleModel(boolean isTcp, boolean isUdp, String name, String fromInterfaceName, int fromPort, String targetIp, int targetPort) {
-        this(isTcp, isUdp, name, fromInterfaceName, fromPort, new InetSocketAddress(targetIp, targetPort));
+        this(isTcp, isUdp, name, fromInterfaceName, fromPort, NetworkHelper.createTarget(targetIp, targetPort));
     }
 
     public long getId() {
@@ -133,17 +149,49 @@ public class RuleModel implements Serializable {
         this.target = target;
     }
 
+    public SocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    public TrafficPolicy getTrafficPolicy() {
+        return trafficPolicy;
+    }
+
+    public void setTrafficPolicy(TrafficPolicy trafficPolicy) {
+        this.trafficPolicy = trafficPolicy;
+    }
+
+    public AccessPolicy getAccessPolicy() {
+        return accessPolicy;
+    }
+
+    public void setAccessPolicy(AccessPolicy accessPolicy) {
+        this.accessPolicy = accessPolicy;
+    }
+
+    public String getSourceRoutes() {
+        return sourceRoutes;
+    }
+
+    public void setSourceRoutes(String sourceRoutes) {
+        this.sourceRoutes = sourceRoutes;
+    }
+
     public String protocolToString() {
         return RuleHelper.getRuleProtocolFromModel(this);
     }
 
     /**
-     * Return a string of the target IPv4 address
+     * Return a string of the target IPv4 address, or of the target hostname
      *
-     * @return the IPv4 address as a String
+     * @return the IPv4 address or hostname as a String
      */
     public String getTargetIpAddress() {
-        return this.target.getAddress().getHostAddress();
+        return NetworkHelper.getTargetHost(this.target);
     }
 
     /**
@@ -202,6 +250,22 @@ public class RuleModel implements Serializable {
             return false;
         }
 
+        if (socketProfile == null || !socketProfile.isValid()) {
+            return false;
+        }
+
+        if (trafficPolicy == null || !trafficPolicy.isValid()) {
+            return false;
+        }
+
+        if (accessPolicy == null || !accessPolicy.isValid()) {
+            return false;
+        }
+
+        if (!SourceRoute.isValidList(sourceRoutes)) {
+            return false;
+        }
+
         return true;
 
     }
@@ -0,0 +1,287 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+
+/**
+ * The {@link SocketProfile} class holds the socket options applied to the sockets of a single rule.
+ * <p>
+ * Bulk transfer rules benefit from large kernel and relay buffers, while interactive rules want
+ * small buffers and Nagle's algorithm disabled. A value of {@link #SYSTEM_DEFAULT} leaves the
+ * corresponding option untouched.
+ */
+public class SocketProfile implements Serializable {
+
+    /**
+     * Leave the option at the value chosen by the operating system.
+     */
+    public static final int SYSTEM_DEFAULT = 0;
+
+    /**
+     * The default size of the buffer used to relay data between two sockets.
+     */
+    public static final int DEFAULT_RELAY_BUFFER_SIZE = 100000;
+
+    public static final int MIN_RELAY_BUFFER_SIZE = 1024;
+
+    public static final int MAX_RELAY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    public static final int MAX_SOCKET_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    public static final int MAX_BACKLOG = 65535;
+
+    /**
+     * The default upper bound on the delay write coalescing may add.
+     */
+    public static final int DEFAULT_COALESCE_DELAY_MILLIS = 2;
+
+    public static final int MAX_COALESCE_DELAY_MILLIS = 100;
+
+    public static final int MAX_WARM_CONNECTIONS = 64;
+
+    /**
+     * The default time a pre-connected target socket may stay unused before it is replaced.
+     */
+    public static final int DEFAULT_WARM_MAX_IDLE_SECONDS = 30;
+
+    public static final int MIN_WARM_MAX_IDLE_SECONDS = 1;
+
+    public static final int MAX_WARM_MAX_IDLE_SECONDS = 3600;
+
+    public static final int MAX_LISTENER_SHARDS = 16;
+
+    @Expose
+    private int receiveBufferSize = SYSTEM_DEFAULT;
+
+    @Expose
+    private int sendBufferSize = SYSTEM_DEFAULT;
+
+    @Expose
+    private int backlog = SYSTEM_DEFAULT;
+
+    @Expose
+    private boolean tcpNoDelay = true;
+
+    @Expose
+    private boolean keepAlive = false;
+
+    @Expose
+    private boolean reuseAddress = true;
+
+    @Expose
+    private int relayBufferSize = DEFAULT_RELAY_BUFFER_SIZE;
+
+    @Expose
+    private boolean coalesceWrites = false;
+
+    @Expose
+    private int coalesceDelayMillis = DEFAULT_COALESCE_DELAY_MILLIS;
+
+    @Expose
+    private int warmConnections = 0;
+
+    @Expose
+    private int warmMaxIdleSeconds = DEFAULT_WARM_MAX_IDLE_SECONDS;
+
+    @Expose
+    private int listenerShards = 1;
+
+    public SocketProfile() {
+
+    }
+
+    public SocketProfile(int receiveBufferSize, int sendBufferSize, int backlog, boolean tcpNoDelay,
+                         boolean keepAlive, boolean reuseAddress, int relayBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.reuseAddress = reuseAddress;
+        this.relayBufferSize = relayBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public int getRelayBufferSize() {
+        return relayBufferSize;
+    }
+
+    public void setRelayBufferSize(int relayBufferSize) {
+        this.relayBufferSize = relayBufferSize;
+    }
+
+    /**
+     * Determine whether small reads should be gathered into a single write.
+     * <p>
+     * This trades up to {@link #getCoalesceDelayMillis()} of added latency for fewer system calls
+     * and packets on chatty connections.
+     *
+     * @return true if writes should be coalesced.
+     */
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    public void setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+    }
+
+    public int getCoalesceDelayMillis() {
+        return coalesceDelayMillis;
+    }
+
+    public void setCoalesceDelayMillis(int coalesceDelayMillis) {
+        this.coalesceDelayMillis = coalesceDelayMillis;
+    }
+
+    /**
+     * The amount of TCP connections to the target kept open in advance, so accepted clients can be
+     * paired with one straight away instead of waiting for a handshake with the target. 0 turns
+     * the pool off.
+     *
+     * @return the size of the pool.
+     */
+    public int getWarmConnections() {
+        return warmConnections;
+    }
+
+    public void setWarmConnections(int warmConnections) {
+        this.warmConnections = warmConnections;
+    }
+
+    /**
+     * @return how long a pre-connected socket may stay unused before it is replaced.
+     */
+    public int getWarmMaxIdleSeconds() {
+        return warmMaxIdleSeconds;
+    }
+
+    public void setWarmMaxIdleSeconds(int warmMaxIdleSeconds) {
+        this.warmMaxIdleSeconds = warmMaxIdleSeconds;
+    }
+
+    /**
+     * The amount of forwarding threads serving the rule's address in parallel, each with its own
+     * socket bound with SO_REUSEPORT, so the kernel spreads connections and datagrams across
+     * cores. Each thread keeps its own warm pool. 1 serves the rule from a single thread.
+     *
+     * @return the amount of listening sockets per protocol.
+     */
+    public int getListenerShards() {
+        return listenerShards;
+    }
+
+    public void setListenerShards(int listenerShards) {
+        this.listenerShards = listenerShards;
+    }
+
+    /**
+     * Validate the profile.
+     * <p>
+     * Buffer sizes and backlog must not be negative, and must not exceed their maximums. The relay
+     * buffer must be between {@link #MIN_RELAY_BUFFER_SIZE} and {@link #MAX_RELAY_BUFFER_SIZE}, the
+     * coalesce delay must not exceed {@link #MAX_COALESCE_DELAY_MILLIS}, and the warm pool must not
+     * exceed {@link #MAX_WARM_CONNECTIONS} with an idle age between
+     * {@link #MIN_WARM_MAX_IDLE_SECONDS} and {@link #MAX_WARM_MAX_IDLE_SECONDS}. There must be
+     * between 1 and {@link #MAX_LISTENER_SHARDS} listener shards.
+     *
+     * @return true if valid, false if not valid.
+     */
+    public boolean isValid() {
+        if (receiveBufferSize < 0 || receiveBufferSize > MAX_SOCKET_BUFFER_SIZE) {
+            return false;
+        }
+
+        if (sendBufferSize < 0 || sendBufferSize > MAX_SOCKET_BUFFER_SIZE) {
+            return false;
+        }
+
+        if (backlog < 0 || backlog > MAX_BACKLOG) {
+            return false;
+        }
+
+        if (coalesceDelayMillis < 0 || coalesceDelayMillis > MAX_COALESCE_DELAY_MILLIS) {
+            return false;
+        }
+
+        if (warmConnections < 0 || warmConnections > MAX_WARM_CONNECTIONS) {
+            return false;
+        }
+
+        if (warmMaxIdleSeconds < MIN_WARM_MAX_IDLE_SECONDS || warmMaxIdleSeconds > MAX_WARM_MAX_IDLE_SECONDS) {
+            return false;
+        }
+
+        if (listenerShards < 1 || listenerShards > MAX_LISTENER_SHARDS) {
+            return false;
+        }
+
+        return relayBufferSize >= MIN_RELAY_BUFFER_SIZE && relayBufferSize <= MAX_RELAY_BUFFER_SIZE;
+    }
+}
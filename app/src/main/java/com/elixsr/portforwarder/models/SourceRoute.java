@@ -0,0 +1,154 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+import com.elixsr.portforwarder.util.CidrTrie;
+import com.elixsr.portforwarder.util.IpAddressValidator;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link SourceRoute} class sends the clients of a source prefix to a target other than the
+ * rule's own.
+ * <p>
+ * A rule holds its routes as an ordered list, written as {@code SOURCE=TARGET:PORT} entries
+ * separated by commas or whitespace, for example {@code 10.8.0.0/16=192.168.1.20:8080}. The first
+ * route whose prefix contains a client decides its target; clients matching no route use the
+ * rule's target.
+ */
+public class SourceRoute implements Serializable {
+
+    /**
+     * The characters separating the routes of a list.
+     */
+    public static final String SEPARATOR_PATTERN = "[\\s,]+";
+
+    private static final int MIN_PORT = 1;
+
+    private static final int MAX_PORT = 65535;
+
+    private final String source;
+
+    private final String targetIpAddress;
+
+    private final int targetPort;
+
+    public SourceRoute(String source, String targetIpAddress, int targetPort) {
+        this.source = source;
+        this.targetIpAddress = targetIpAddress;
+        this.targetPort = targetPort;
+    }
+
+    /**
+     * @return the source prefix in CIDR notation.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public String getTargetIpAddress() {
+        return targetIpAddress;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    public InetSocketAddress getTarget() {
+        return new InetSocketAddress(targetIpAddress, targetPort);
+    }
+
+    @Override
+    public String toString() {
+        return source + "=" + targetIpAddress + ":" + targetPort;
+    }
+
+    /**
+     * Parse a single route.
+     *
+     * @param route the route, in the form {@code SOURCE=TARGET:PORT}.
+     * @return the route.
+     * @throws IllegalArgumentException if the route is not valid.
+     */
+    public static SourceRoute parse(String route) {
+        int equals = route.indexOf('=');
+        int colon = route.lastIndexOf(':');
+        if (equals <= 0 || colon < equals) {
+            throw new IllegalArgumentException("Invalid route " + route);
+        }
+
+        String source = route.substring(0, equals);
+        String targetIpAddress = route.substring(equals + 1, colon);
+
+        // Throws if the prefix is not valid
+        CidrTrie.parseCidr(source);
+
+        if (!new IpAddressValidator().validate(targetIpAddress)) {
+            throw new IllegalArgumentException("Invalid target address in " + route);
+        }
+
+        int targetPort;
+        try {
+            targetPort = Integer.parseInt(route.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid target port in " + route, e);
+        }
+        if (targetPort < MIN_PORT || targetPort > MAX_PORT) {
+            throw new IllegalArgumentException("Invalid target port in " + route);
+        }
+
+        return new SourceRoute(source, targetIpAddress, targetPort);
+    }
+
+    /**
+     * Parse a list of routes, keeping their order.
+     *
+     * @param routes the list, may be null.
+     * @return the routes, empty if there are none.
+     * @throws IllegalArgumentException if any route is not valid.
+     */
+    public static List<SourceRoute> parseList(String routes) {
+        List<SourceRoute> parsed = new ArrayList<>();
+        if (routes == null || routes.trim().length() <= 0) {
+            return parsed;
+        }
+
+        // Allow spaces around the separator of a route
+        for (String route : routes.trim().replaceAll("\\s*=\\s*", "=").split(SEPARATOR_PATTERN)) {
+            parsed.add(parse(route));
+        }
+        return parsed;
+    }
+
+    /**
+     * @param routes a list of routes.
+     * @return true if every entry of the list is a valid route.
+     */
+    public static boolean isValidList(String routes) {
+        try {
+            parseList(routes);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+import com.google.gson.annotations.Expose;
+
+import java.io.Serializable;
+
+/**
+ * The {@link TrafficPolicy} class holds the settings which govern how a rule's traffic is scheduled
+ * against the traffic of other rules.
+ */
+public class TrafficPolicy implements Serializable {
+
+    public static final int MIN_WEIGHT = 1;
+
+    public static final int DEFAULT_WEIGHT = 5;
+
+    public static final int MAX_WEIGHT = 10;
+
+    /**
+     * A rate limit of 0 leaves the traffic unlimited.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * The largest rate limit in KB/s.
+     */
+    public static final int MAX_RATE_LIMIT = 1000000;
+
+    /**
+     * The largest limit on concurrent connections.
+     */
+    public static final int MAX_CONNECTIONS = 65535;
+
+    /**
+     * The relative share of processing a rule receives. Interactive rules should be given a higher
+     * weight than bulk transfer rules.
+     */
+    @Expose
+    private int weight = DEFAULT_WEIGHT;
+
+    /**
+     * The limit in KB/s on the traffic of each connection, in both directions combined.
+     */
+    @Expose
+    private int connectionRateLimit = UNLIMITED;
+
+    /**
+     * The limit in KB/s on the traffic of all connections of the rule combined.
+     */
+    @Expose
+    private int ruleRateLimit = UNLIMITED;
+
+    /**
+     * The limit on concurrent connections to the rule, {@link #UNLIMITED} for no limit.
+     */
+    @Expose
+    private int maxConnections = UNLIMITED;
+
+    /**
+     * Whether connections over the limits are closed straight away. Otherwise they wait in the
+     * listen backlog until the rule may accept them.
+     */
+    @Expose
+    private boolean rejectExcessConnections = false;
+
+    public TrafficPolicy() {
+
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getConnectionRateLimit() {
+        return connectionRateLimit;
+    }
+
+    public void setConnectionRateLimit(int connectionRateLimit) {
+        this.connectionRateLimit = connectionRateLimit;
+    }
+
+    public int getRuleRateLimit() {
+        return ruleRateLimit;
+    }
+
+    public void setRuleRateLimit(int ruleRateLimit) {
+        this.ruleRateLimit = ruleRateLimit;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public boolean isRejectExcessConnections() {
+        return rejectExcessConnections;
+    }
+
+    public void setRejectExcessConnections(boolean rejectExcessConnections) {
+        this.rejectExcessConnections = rejectExcessConnections;
+    }
+
+    /**
+     * Validate the policy.
+     * <p>
+     * The weight must be between {@link #MIN_WEIGHT} and {@link #MAX_WEIGHT}, and rate limits must
+     * be between {@link #UNLIMITED} and {@link #MAX_RATE_LIMIT}. The connection limit must not
+     * exceed {@link #MAX_CONNECTIONS}.
+     *
+     * @return true if valid, false if not valid.
+     */
+    public boolean isValid() {
+        if (weight < MIN_WEIGHT || weight > MAX_WEIGHT) {
+            return false;
+        }
+
+        if (connectionRateLimit < UNLIMITED || connectionRateLimit > MAX_RATE_LIMIT) {
+            return false;
+        }
+
+        if (ruleRateLimit < UNLIMITED || ruleRateLimit > MAX_RATE_LIMIT) {
+            return false;
+        }
+
+        return maxConnections >= UNLIMITED && maxConnections <= MAX_CONNECTIONS;
+    }
+}
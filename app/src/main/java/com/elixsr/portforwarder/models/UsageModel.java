@@ -0,0 +1,88 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+/**
+ * The {@link UsageModel} class holds the traffic of a rule during one bucket of its usage history.
+ * <p>
+ * A bucket is a minute, an hour or a day, and its resolution is its length in milliseconds.
+ */
+public class UsageModel {
+
+    private final long ruleId;
+
+    private final long resolution;
+
+    private final long bucketStart;
+
+    private long bytesUp;
+
+    private long bytesDown;
+
+    private int peakConnections;
+
+    public UsageModel(long ruleId, long resolution, long bucketStart) {
+        this.ruleId = ruleId;
+        this.resolution = resolution;
+        this.bucketStart = bucketStart;
+    }
+
+    /**
+     * Add traffic to the bucket.
+     *
+     * @param bytesUp     the bytes read from clients.
+     * @param bytesDown   the bytes read from targets.
+     * @param connections the connections the rule was forwarding, kept if the most so far.
+     */
+    public void add(long bytesUp, long bytesDown, int connections) {
+        this.bytesUp += bytesUp;
+        this.bytesDown += bytesDown;
+        this.peakConnections = Math.max(peakConnections, connections);
+    }
+
+    public long getRuleId() {
+        return ruleId;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return when the bucket starts, in milliseconds since the epoch.
+     */
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public long getBytesUp() {
+        return bytesUp;
+    }
+
+    public long getBytesDown() {
+        return bytesDown;
+    }
+
+    /**
+     * @return the most connections the rule was seen forwarding at once during the bucket.
+     */
+    public int getPeakConnections() {
+        return peakConnections;
+    }
+}
@@ -18,10 +18,7 @@
 
 package com.elixsr.portforwarder.ui;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -29,7 +26,6 @@ import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
 import android.support.percent.PercentRelativeLayout;
-import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -45,6 +41,7 @@ import com.elixsr.portforwarder.R;
 import com.elixsr.portforwarder.dao.RuleDao;
 import com.elixsr.portforwarder.db.RuleDbHelper;
 import com.elixsr.portforwarder.forwarding.ForwardingManager;
+import com.elixsr.portforwarder.forwarding.RuleState;
 import com.elixsr.portforwarder.forwarding.ForwardingService;
 import com.elixsr.portforwarder.models.RuleModel;
 import com.elixsr.portforwarder.adapters.RuleListAdapter;
@@ -71,6 +68,7 @@ public class MainActivity extends BaseActivity {
 
 
     private ForwardingManager forwardingManager;
+    private boolean forwardingEnabled;
     private CoordinatorLayout coordinatorLayout;
     private FloatingActionButton fab;
 
@@ -147,23 +145,6 @@ public class MainActivity extends BaseActivity {
         forwardingServiceIntent = new Intent(this, ForwardingService.class);
 
 
-        /*
-            Service stuff
-         */
-
-        // Handle intents
-        IntentFilter mStatusIntentFilter = new IntentFilter(
-                ForwardingService.BROADCAST_ACTION);
-
-        // Instantiates a new ForwardingServiceResponseReceiver
-        ForwardingServiceResponseReceiver forwardingServiceResponseReceiver =
-                new ForwardingServiceResponseReceiver();
-
-        // Registers the ForwardingServiceResponseReceiver and its intent filters
-        LocalBroadcastManager.getInstance(this).registerReceiver(
-                forwardingServiceResponseReceiver,
-                mStatusIntentFilter);
-
         // Get tracker.
         tracker = ((FwdApplication) this.getApplication()).getDefaultTracker();
 
@@ -178,6 +159,10 @@ public class MainActivity extends BaseActivity {
         this.ruleListAdapter.notifyDataSetChanged();
         invalidateOptionsMenu();
 
+        // Follow the forwarding status while visible, the list above shows the current one
+        forwardingEnabled = forwardingManager.isEnabled();
+        forwardingManager.addListener(forwardingListener);
+
         // Decide whether to show the rule list or the empty view
         if (this.ruleModels.isEmpty()) {
             mRecyclerView.setVisibility(View.GONE);
@@ -188,6 +173,12 @@ public class MainActivity extends BaseActivity {
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        forwardingManager.removeListener(forwardingListener);
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -294,35 +285,36 @@ public class MainActivity extends BaseActivity {
         Log.i(TAG, "Destroyed");
     }
 
-    // Broadcast receiver for receiving status updates from the IntentService
-    private class ForwardingServiceResponseReceiver extends BroadcastReceiver {
-        // Prevents instantiation
-        private ForwardingServiceResponseReceiver() {
-        }
-
-        // Called when the BroadcastReceiver gets an Intent it's registered to receive
+    /**
+     * Updates the menu and the rule list when forwarding is started or stopped, or rules change
+     * state, and shows the messages of the forwarding service.
+     */
+    private final ForwardingManager.Listener forwardingListener = new ForwardingManager.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            /*
-             * Handle Intents here.
-             */
-
-            if (intent.getExtras().containsKey(ForwardingService.PORT_FORWARD_SERVICE_STATE)) {
-                Log.i(TAG, "Response from ForwardingService, Forwarding status has changed.");
-                Log.i(TAG, "Forwarding status has changed to " + String.valueOf(intent.getExtras().getBoolean(ForwardingService.PORT_FORWARD_SERVICE_STATE)));
+        public void onForwardingStateChanged(boolean enabled, List<RuleState> changedRules, List<String> messages) {
+            if (enabled != forwardingEnabled) {
+                Log.i(TAG, "Forwarding status has changed to " + enabled);
+                forwardingEnabled = enabled;
                 invalidateOptionsMenu();
+                if (!enabled) {
+                    fab.show();
+                }
             }
-
-            if (intent.getExtras().containsKey(ForwardingService.PORT_FORWARD_SERVICE_ERROR_MESSAGE)) {
-
-                Toast.makeText(context, intent.getExtras().getString(ForwardingService.PORT_FORWARD_SERVICE_ERROR_MESSAGE),
-                        Toast.LENGTH_SHORT).show();
-                Snackbar.make(coordinatorLayout, R.string.snackbar_port_forwarding_stopped_text, Snackbar.LENGTH_SHORT).show();
-                fab.show();
-
+            ruleListAdapter.onRuleStatesChanged(changedRules);
+
+            // Messages arriving together share a toast
+            if (!messages.isEmpty()) {
+                StringBuilder text = new StringBuilder();
+                for (String message : messages) {
+                    if (text.length() > 0) {
+                        text.append('\n');
+                    }
+                    text.append(message);
+                }
+                Toast.makeText(MainActivity.this, text, Toast.LENGTH_SHORT).show();
             }
         }
-    }
+    };
 
     @Override
     public void onBackPressed() {
@@ -25,6 +25,7 @@ import com.elixsr.portforwarder.models.RuleModel;
 import com.elixsr.portforwarder.ui.BaseActivity;
 import com.elixsr.portforwarder.ui.MainActivity;
 import com.elixsr.portforwarder.util.InterfaceHelper;
+import com.elixsr.portforwarder.util.NetworkHelper;
 import com.elixsr.portforwarder.validators.RuleModelValidator;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -193,7 +194,7 @@ public class ImportRulesActivity extends BaseActivity {
         for (RuleModel ruleModel : ruleModels) {
 
             // Create an InetSocketAddress object using data
-            InetSocketAddress target = new InetSocketAddress(targetIpAddress, ruleModel.getTargetPort());
+            InetSocketAddress target = NetworkHelper.createTarget(targetIpAddress, ruleModel.getTargetPort());
             ruleModel.setTarget(target);
 
             Spinner fromInterfaceSpinner = (Spinner) findViewById(R.id.from_interface_spinner);
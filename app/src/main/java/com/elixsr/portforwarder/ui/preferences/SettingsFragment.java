@@ -135,6 +135,7 @@ public class SettingsFragment extends PreferenceFragment {
 
 
                                 db.delete(RuleContract.RuleEntry.TABLE_NAME, null, null);
+                                db.delete(RuleContract.UsageEntry.TABLE_NAME, null, null);
 
                                 db.close();
 
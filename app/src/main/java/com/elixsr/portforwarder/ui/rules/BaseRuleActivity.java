@@ -23,6 +23,7 @@ import android.support.design.widget.TextInputEditText;
 import android.support.design.widget.TextInputLayout;
 import android.util.Log;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.Spinner;
 import android.widget.Toast;
 
@@ -32,7 +33,11 @@ import java.util.List;
 
 import com.elixsr.portforwarder.R;
 import com.elixsr.portforwarder.exceptions.RuleValidationException;
+import com.elixsr.portforwarder.models.AccessPolicy;
 import com.elixsr.portforwarder.models.RuleModel;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.SourceRoute;
+import com.elixsr.portforwarder.models.TrafficPolicy;
 import com.elixsr.portforwarder.ui.BaseActivity;
 import com.elixsr.portforwarder.ui.MainActivity;
 import com.elixsr.portforwarder.util.InterfaceHelper;
@@ -130,6 +135,198 @@ public abstract class BaseRuleActivity extends BaseActivity {
         // Apply the protocolAdapter to the spinner
         fromInterfaceSpinner.setAdapter(fromSpinnerAdapter);
 
+        // Show the defaults for socket tuning and traffic, subclasses may overwrite these
+        populateSocketProfile(new SocketProfile());
+        populateTrafficPolicy(new TrafficPolicy());
+        populateAccessPolicy(new AccessPolicy());
+        populateSourceRoutes("");
+    }
+
+    /**
+     * Set the socket tuning inputs to the values of a {@link SocketProfile}.
+     * <p>
+     * Options which are left at {@link SocketProfile#SYSTEM_DEFAULT} are shown as blank.
+     *
+     * @param socketProfile the {@link SocketProfile} to display.
+     */
+    protected void populateSocketProfile(SocketProfile socketProfile) {
+        setOptionalNumber(R.id.new_rule_receive_buffer_size, socketProfile.getReceiveBufferSize(), SocketProfile.SYSTEM_DEFAULT);
+        setOptionalNumber(R.id.new_rule_send_buffer_size, socketProfile.getSendBufferSize(), SocketProfile.SYSTEM_DEFAULT);
+        setOptionalNumber(R.id.new_rule_backlog, socketProfile.getBacklog(), SocketProfile.SYSTEM_DEFAULT);
+        setOptionalNumber(R.id.new_rule_relay_buffer_size, socketProfile.getRelayBufferSize(), SocketProfile.SYSTEM_DEFAULT);
+
+        ((CheckBox) findViewById(R.id.new_rule_tcp_no_delay)).setChecked(socketProfile.isTcpNoDelay());
+        ((CheckBox) findViewById(R.id.new_rule_keep_alive)).setChecked(socketProfile.isKeepAlive());
+        ((CheckBox) findViewById(R.id.new_rule_reuse_address)).setChecked(socketProfile.isReuseAddress());
+        ((CheckBox) findViewById(R.id.new_rule_coalesce_writes)).setChecked(socketProfile.isCoalesceWrites());
+        setOptionalNumber(R.id.new_rule_coalesce_delay, socketProfile.getCoalesceDelayMillis(), SocketProfile.DEFAULT_COALESCE_DELAY_MILLIS);
+        setOptionalNumber(R.id.new_rule_warm_connections, socketProfile.getWarmConnections(), 0);
+        setOptionalNumber(R.id.new_rule_warm_max_idle_seconds, socketProfile.getWarmMaxIdleSeconds(), SocketProfile.DEFAULT_WARM_MAX_IDLE_SECONDS);
+        setOptionalNumber(R.id.new_rule_listener_shards, socketProfile.getListenerShards(), 1);
+    }
+
+    /**
+     * Constructs a {@link SocketProfile} from the socket tuning inputs.
+     *
+     * @return the {@link SocketProfile} entered by the user.
+     */
+    protected SocketProfile generateSocketProfile() {
+        SocketProfile socketProfile = new SocketProfile();
+
+        socketProfile.setReceiveBufferSize(readOptionalNumber(R.id.new_rule_receive_buffer_size,
+                SocketProfile.SYSTEM_DEFAULT, 0, SocketProfile.MAX_SOCKET_BUFFER_SIZE));
+        socketProfile.setSendBufferSize(readOptionalNumber(R.id.new_rule_send_buffer_size,
+                SocketProfile.SYSTEM_DEFAULT, 0, SocketProfile.MAX_SOCKET_BUFFER_SIZE));
+        socketProfile.setBacklog(readOptionalNumber(R.id.new_rule_backlog,
+                SocketProfile.SYSTEM_DEFAULT, 0, SocketProfile.MAX_BACKLOG));
+        socketProfile.setRelayBufferSize(readOptionalNumber(R.id.new_rule_relay_buffer_size,
+                SocketProfile.DEFAULT_RELAY_BUFFER_SIZE, SocketProfile.MIN_RELAY_BUFFER_SIZE, SocketProfile.MAX_RELAY_BUFFER_SIZE));
+
+        socketProfile.setTcpNoDelay(((CheckBox) findViewById(R.id.new_rule_tcp_no_delay)).isChecked());
+        socketProfile.setKeepAlive(((CheckBox) findViewById(R.id.new_rule_keep_alive)).isChecked());
+        socketProfile.setReuseAddress(((CheckBox) findViewById(R.id.new_rule_reuse_address)).isChecked());
+        socketProfile.setCoalesceWrites(((CheckBox) findViewById(R.id.new_rule_coalesce_writes)).isChecked());
+        socketProfile.setCoalesceDelayMillis(readOptionalNumber(R.id.new_rule_coalesce_delay,
+                SocketProfile.DEFAULT_COALESCE_DELAY_MILLIS, 0, SocketProfile.MAX_COALESCE_DELAY_MILLIS));
+        socketProfile.setWarmConnections(readOptionalNumber(R.id.new_rule_warm_connections,
+                0, 0, SocketProfile.MAX_WARM_CONNECTIONS));
+        socketProfile.setWarmMaxIdleSeconds(readOptionalNumber(R.id.new_rule_warm_max_idle_seconds,
+                SocketProfile.DEFAULT_WARM_MAX_IDLE_SECONDS, SocketProfile.MIN_WARM_MAX_IDLE_SECONDS,
+                SocketProfile.MAX_WARM_MAX_IDLE_SECONDS));
+        socketProfile.setListenerShards(readOptionalNumber(R.id.new_rule_listener_shards,
+                1, 1, SocketProfile.MAX_LISTENER_SHARDS));
+
+        return socketProfile;
+    }
+
+    /**
+     * Set the traffic inputs to the values of a {@link TrafficPolicy}.
+     *
+     * @param trafficPolicy the {@link TrafficPolicy} to display.
+     */
+    protected void populateTrafficPolicy(TrafficPolicy trafficPolicy) {
+        setOptionalNumber(R.id.new_rule_weight, trafficPolicy.getWeight(), TrafficPolicy.DEFAULT_WEIGHT);
+        setOptionalNumber(R.id.new_rule_connection_rate_limit, trafficPolicy.getConnectionRateLimit(), TrafficPolicy.UNLIMITED);
+        setOptionalNumber(R.id.new_rule_rule_rate_limit, trafficPolicy.getRuleRateLimit(), TrafficPolicy.UNLIMITED);
+        setOptionalNumber(R.id.new_rule_max_connections, trafficPolicy.getMaxConnections(), TrafficPolicy.UNLIMITED);
+        ((CheckBox) findViewById(R.id.new_rule_reject_excess_connections)).setChecked(trafficPolicy.isRejectExcessConnections());
+    }
+
+    /**
+     * Constructs a {@link TrafficPolicy} from the traffic inputs.
+     *
+     * @return the {@link TrafficPolicy} entered by the user.
+     */
+    protected TrafficPolicy generateTrafficPolicy() {
+        TrafficPolicy trafficPolicy = new TrafficPolicy();
+
+        trafficPolicy.setWeight(readOptionalNumber(R.id.new_rule_weight,
+                TrafficPolicy.DEFAULT_WEIGHT, TrafficPolicy.MIN_WEIGHT, TrafficPolicy.MAX_WEIGHT));
+        trafficPolicy.setConnectionRateLimit(readOptionalNumber(R.id.new_rule_connection_rate_limit,
+                TrafficPolicy.UNLIMITED, TrafficPolicy.UNLIMITED, TrafficPolicy.MAX_RATE_LIMIT));
+        trafficPolicy.setRuleRateLimit(readOptionalNumber(R.id.new_rule_rule_rate_limit,
+                TrafficPolicy.UNLIMITED, TrafficPolicy.UNLIMITED, TrafficPolicy.MAX_RATE_LIMIT));
+        trafficPolicy.setMaxConnections(readOptionalNumber(R.id.new_rule_max_connections,
+                TrafficPolicy.UNLIMITED, TrafficPolicy.UNLIMITED, TrafficPolicy.MAX_CONNECTIONS));
+        trafficPolicy.setRejectExcessConnections(((CheckBox) findViewById(R.id.new_rule_reject_excess_connections)).isChecked());
+
+        return trafficPolicy;
+    }
+
+    /**
+     * Set the access inputs to the values of an {@link AccessPolicy}.
+     *
+     * @param accessPolicy the {@link AccessPolicy} to display.
+     */
+    protected void populateAccessPolicy(AccessPolicy accessPolicy) {
+        ((TextInputEditText) findViewById(R.id.new_rule_allowed_sources)).setText(accessPolicy.getAllowedSources());
+        ((TextInputEditText) findViewById(R.id.new_rule_denied_sources)).setText(accessPolicy.getDeniedSources());
+        setOptionalNumber(R.id.new_rule_max_connections_per_source, accessPolicy.getMaxConnectionsPerSource(), AccessPolicy.UNLIMITED);
+        setOptionalNumber(R.id.new_rule_max_datagrams_per_source, accessPolicy.getMaxDatagramsPerSource(), AccessPolicy.UNLIMITED);
+        setOptionalNumber(R.id.new_rule_ban_seconds, accessPolicy.getBanSeconds(), AccessPolicy.DEFAULT_BAN_SECONDS);
+    }
+
+    /**
+     * Constructs an {@link AccessPolicy} from the access inputs, showing an error message on lists
+     * which are not valid.
+     *
+     * @return the {@link AccessPolicy} entered by the user.
+     */
+    protected AccessPolicy generateAccessPolicy() {
+        TextInputEditText allowedSourcesText = (TextInputEditText) findViewById(R.id.new_rule_allowed_sources);
+        TextInputEditText deniedSourcesText = (TextInputEditText) findViewById(R.id.new_rule_denied_sources);
+
+        AccessPolicy accessPolicy = new AccessPolicy();
+        accessPolicy.setAllowedSources(allowedSourcesText.getText().toString().trim());
+        accessPolicy.setDeniedSources(deniedSourcesText.getText().toString().trim());
+
+        if (!AccessPolicy.isValidList(accessPolicy.getAllowedSources())) {
+            allowedSourcesText.setError(getString(R.string.new_rule_invalid_sources));
+        }
+
+        if (!AccessPolicy.isValidList(accessPolicy.getDeniedSources())) {
+            deniedSourcesText.setError(getString(R.string.new_rule_invalid_sources));
+        }
+
+        accessPolicy.setMaxConnectionsPerSource(readOptionalNumber(R.id.new_rule_max_connections_per_source,
+                AccessPolicy.UNLIMITED, AccessPolicy.UNLIMITED, AccessPolicy.MAX_SOURCE_RATE));
+        accessPolicy.setMaxDatagramsPerSource(readOptionalNumber(R.id.new_rule_max_datagrams_per_source,
+                AccessPolicy.UNLIMITED, AccessPolicy.UNLIMITED, AccessPolicy.MAX_SOURCE_RATE));
+        accessPolicy.setBanSeconds(readOptionalNumber(R.id.new_rule_ban_seconds,
+                AccessPolicy.DEFAULT_BAN_SECONDS, AccessPolicy.MIN_BAN_SECONDS, AccessPolicy.MAX_BAN_SECONDS));
+
+        return accessPolicy;
+    }
+
+    /**
+     * Set the routing input to a rule's {@link SourceRoute}s.
+     *
+     * @param sourceRoutes the routes to display.
+     */
+    protected void populateSourceRoutes(String sourceRoutes) {
+        ((TextInputEditText) findViewById(R.id.new_rule_source_routes)).setText(sourceRoutes);
+    }
+
+    /**
+     * Reads the {@link SourceRoute}s from the routing input, showing an error message if they are
+     * not valid.
+     *
+     * @return the routes entered by the user.
+     */
+    protected String generateSourceRoutes() {
+        TextInputEditText sourceRoutesText = (TextInputEditText) findViewById(R.id.new_rule_source_routes);
+        String sourceRoutes = sourceRoutesText.getText().toString().trim();
+
+        if (!SourceRoute.isValidList(sourceRoutes)) {
+            sourceRoutesText.setError(getString(R.string.new_rule_invalid_source_routes));
+        }
+
+        return sourceRoutes;
+    }
+
+    /**
+     * Show a number in an optional input, leaving it blank when it holds the default.
+     */
+    protected void setOptionalNumber(int viewId, int value, int defaultValue) {
+        TextInputEditText editText = (TextInputEditText) findViewById(viewId);
+        editText.setText(value == defaultValue ? "" : String.valueOf(value));
+    }
+
+    /**
+     * Read an optional number input, showing an error message if it is not valid.
+     * <p>
+     * An invalid input results in a value below the minimum, so that the model holding it fails
+     * validation.
+     */
+    protected int readOptionalNumber(int viewId, int defaultValue, int min, int max) {
+        TextInputEditText editText = (TextInputEditText) findViewById(viewId);
+
+        try {
+            return RuleModelValidator.parseRuleOptionalNumber(editText.getText().toString(), defaultValue, min, max);
+        } catch (RuleValidationException e) {
+            editText.setError(e.getMessage());
+            return min - 1;
+        }
     }
 
     /**
@@ -249,7 +446,7 @@ public abstract class BaseRuleActivity extends BaseActivity {
 
         if (targetIpAddress != null && targetIpAddress.length() > 0 && targetPort >= 0) {
             // Create a InetSocketAddress object using data
-            InetSocketAddress target = new InetSocketAddress(targetIpAddress, targetPort);
+            InetSocketAddress target = NetworkHelper.createTarget(targetIpAddress, targetPort);
             ruleModel.setTarget(target);
         } else {
             Log.w(TAG, "Could not create Target InetSocketAddress Object");
@@ -259,6 +456,26 @@ public abstract class BaseRuleActivity extends BaseActivity {
         String selectedFromInterface = fromInterfaceSpinner.getSelectedItem().toString();
         ruleModel.setFromInterfaceName(selectedFromInterface);
 
+        /*
+            Socket tuning
+         */
+        ruleModel.setSocketProfile(generateSocketProfile());
+
+        /*
+            Traffic
+         */
+        ruleModel.setTrafficPolicy(generateTrafficPolicy());
+
+        /*
+            Access
+         */
+        ruleModel.setAccessPolicy(generateAccessPolicy());
+
+        /*
+            Routing
+         */
+        ruleModel.setSourceRoutes(generateSourceRoutes());
+
         return ruleModel;
     }
 
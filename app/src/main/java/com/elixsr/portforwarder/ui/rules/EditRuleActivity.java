@@ -162,6 +162,14 @@ public class EditRuleActivity extends BaseRuleActivity {
         // Protocol spinner
         protocolSpinner.setSelection(protocolAdapter.getPosition(RuleHelper.getRuleProtocolFromModel(this.ruleModel)));
 
+        /*
+        Set the socket tuning content
+         */
+        populateSocketProfile(this.ruleModel.getSocketProfile());
+        populateTrafficPolicy(this.ruleModel.getTrafficPolicy());
+        populateAccessPolicy(this.ruleModel.getAccessPolicy());
+        populateSourceRoutes(this.ruleModel.getSourceRoutes());
+
 
         // Set up tracking
         // Get tracker.
@@ -272,6 +280,9 @@ public class EditRuleActivity extends BaseRuleActivity {
                         String[] selectionArgs = {String.valueOf(ruleModelId)};
                         // Issue SQL statement.
                         db.delete(RuleContract.RuleEntry.TABLE_NAME, selection, selectionArgs);
+                        // Rule ids can be reused, so the history goes with the rule
+                        db.delete(RuleContract.UsageEntry.TABLE_NAME,
+                                RuleContract.UsageEntry.COLUMN_NAME_RULE_ID + "=?", selectionArgs);
 
                         // Close the db
                         db.close();
@@ -0,0 +1,172 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.ui.rules;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.view.View;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elixsr.portforwarder.R;
+import com.elixsr.portforwarder.adapters.ConnectionListAdapter;
+import com.elixsr.portforwarder.forwarding.ConnectionInfo;
+import com.elixsr.portforwarder.forwarding.ForwardingManager;
+import com.elixsr.portforwarder.ui.BaseActivity;
+import com.elixsr.portforwarder.util.RuleHelper;
+
+/**
+ * The {@link RuleConnectionsActivity} class lists the connections a forwarded rule is relaying,
+ * and lets the user close them.
+ * <p>
+ * The list is refreshed every second while the activity is shown. Connections are copied from the
+ * forwarding engine a page at a time, and only as many pages as the user has scrolled through.
+ */
+public class RuleConnectionsActivity extends BaseActivity implements ConnectionListAdapter.Listener {
+
+    private static final String TAG = "RuleConnectionsActivity";
+
+    public static final String RULE_MODEL_NAME = "RuleModelName";
+
+    private static final String NO_RULE_ID_FOUND_LOG_MESSAGE = "No ID was supplied to RuleConnectionsActivity";
+
+    /**
+     * The amount of connections copied from the engine at once, and added to the list when the
+     * user scrolls to its end.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    private static final long REFRESH_MILLIS = 1000;
+
+    private long ruleModelId;
+
+    /**
+     * The most connections shown, grown by a page each time the user reaches the end of the list.
+     */
+    private int connectionLimit = PAGE_SIZE;
+
+    private ForwardingManager forwardingManager;
+    private ConnectionListAdapter connectionListAdapter;
+    private LinearLayoutManager layoutManager;
+    private View emptyView;
+
+    private final Handler handler = new Handler();
+
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // If we can't locate the id, then we can't continue
+        if (getIntent().getExtras() == null || !getIntent().getExtras().containsKey(RuleHelper.RULE_MODEL_ID)) {
+            Log.e(TAG, NO_RULE_ID_FOUND_LOG_MESSAGE);
+            finish();
+            return;
+        }
+        ruleModelId = getIntent().getExtras().getLong(RuleHelper.RULE_MODEL_ID);
+
+        setContentView(R.layout.activity_rule_connections);
+
+        Toolbar toolbar = getActionBarToolbar();
+        setSupportActionBar(toolbar);
+        toolbar.setSubtitle(getIntent().getExtras().getString(RULE_MODEL_NAME));
+        toolbar.setNavigationIcon(R.drawable.ic_arrow_back_24dp);
+        toolbar.setNavigationOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                onBackPressed();
+            }
+        });
+
+        forwardingManager = ForwardingManager.getInstance();
+        emptyView = findViewById(R.id.connection_list_empty_view);
+
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.connection_recycler_view);
+        layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        connectionListAdapter = new ConnectionListAdapter(this);
+        recyclerView.setAdapter(connectionListAdapter);
+
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Load the next page once the end of a full list is in sight
+                int itemCount = connectionListAdapter.getItemCount();
+                if (dy > 0 && itemCount >= connectionLimit
+                        && layoutManager.findLastVisibleItemPosition() >= itemCount - PAGE_SIZE / 4) {
+                    connectionLimit += PAGE_SIZE;
+                    refresh();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refreshTask);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refreshTask);
+    }
+
+    /**
+     * Copy the first {@link #connectionLimit} connections of the rule, and show them.
+     */
+    private void refresh() {
+        List<ConnectionInfo> connections = new ArrayList<>();
+        long afterId = 0;
+        while (connections.size() < connectionLimit) {
+            int limit = Math.min(PAGE_SIZE, connectionLimit - connections.size());
+            List<ConnectionInfo> page = forwardingManager.getConnections(ruleModelId, afterId, limit);
+            connections.addAll(page);
+            if (page.size() < limit) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).getId();
+        }
+
+        connectionListAdapter.setConnections(connections);
+        emptyView.setVisibility(connections.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void onCloseConnection(ConnectionInfo connection) {
+        if (!forwardingManager.closeConnection(ruleModelId, connection.getId())) {
+            Toast.makeText(this, R.string.connection_already_closed_message, Toast.LENGTH_SHORT).show();
+        }
+        refresh();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.util;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * The {@link CidrTrie} class maps IPv4 prefixes to positive values, and finds the value of the
+ * longest, or of the lowest valued, prefix matching an address.
+ * <p>
+ * The trie is a binary tree over the bits of the address, one level per bit, stored in flat
+ * arrays. A lookup walks at most 32 nodes and allocates nothing, however many prefixes are held.
+ */
+public class CidrTrie {
+
+    /**
+     * The value of a node which ends no prefix.
+     */
+    public static final int NONE = 0;
+
+    private static final int ADDRESS_BITS = 32;
+    private static final int INITIAL_NODES = 64;
+
+    /**
+     * The two child node indices of each node, 0 where there is no child. The root is node 0 and
+     * is never a child.
+     */
+    private int[] children = new int[INITIAL_NODES * 2];
+
+    /**
+     * The value of the prefix ending at each node, or {@link #NONE}.
+     */
+    private int[] values = new int[INITIAL_NODES];
+
+    private int size = 1;
+
+    /**
+     * Map a prefix to a value, replacing the value of an identical prefix.
+     *
+     * @param address      the address of the prefix, bits past the prefix length are ignored.
+     * @param prefixLength the prefix length, 0 to 32.
+     * @param value        the value, greater than {@link #NONE}.
+     */
+    public void put(int address, int prefixLength, int value) {
+        int node = 0;
+        for (int bit = 0; bit < prefixLength; bit++) {
+            int branch = node * 2 + ((address >>> (ADDRESS_BITS - 1 - bit)) & 1);
+            int child = children[branch];
+            if (child == 0) {
+                child = newNode();
+                children[branch] = child;
+            }
+            node = child;
+        }
+        values[node] = value;
+    }
+
+    /**
+     * Find the value of the longest prefix containing an address.
+     *
+     * @param address the address.
+     * @return the value, or {@link #NONE} if no prefix contains the address.
+     */
+    public int lookup(int address) {
+        int match = values[0];
+        int node = 0;
+        for (int bit = 0; bit < ADDRESS_BITS; bit++) {
+            node = children[node * 2 + ((address >>> (ADDRESS_BITS - 1 - bit)) & 1)];
+            if (node == 0) {
+                break;
+            }
+            if (values[node] != NONE) {
+                match = values[node];
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Find the lowest value of all prefixes containing an address. When values are the positions
+     * of prefixes in an ordered table, this is the first prefix of the table matching the address.
+     *
+     * @param address the address.
+     * @return the value, or {@link #NONE} if no prefix contains the address.
+     */
+    public int lookupLowest(int address) {
+        int match = values[0];
+        int node = 0;
+        for (int bit = 0; bit < ADDRESS_BITS; bit++) {
+            node = children[node * 2 + ((address >>> (ADDRESS_BITS - 1 - bit)) & 1)];
+            if (node == 0) {
+                break;
+            }
+            int value = values[node];
+            if (value != NONE && (match == NONE || value < match)) {
+                match = value;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Release the space reserved for further prefixes.
+     */
+    public void trimToSize() {
+        children = Arrays.copyOf(children, size * 2);
+        values = Arrays.copyOf(values, size);
+    }
+
+    private int newNode() {
+        if (size == values.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        return size++;
+    }
+
+    /**
+     * Parse a prefix in CIDR notation, such as {@code 192.168.0.0/16}. A plain address is a /32
+     * prefix.
+     *
+     * @param cidr the prefix.
+     * @return the address in the first element, and the prefix length in the second.
+     * @throws IllegalArgumentException if the prefix is not a valid IPv4 prefix.
+     */
+    public static int[] parseCidr(String cidr) {
+        String trimmed = cidr.trim();
+        int slash = trimmed.indexOf('/');
+        String address = slash < 0 ? trimmed : trimmed.substring(0, slash);
+
+        if (!new IpAddressValidator().validate(address)) {
+            throw new IllegalArgumentException("Invalid address in " + cidr);
+        }
+
+        int prefixLength = ADDRESS_BITS;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(trimmed.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix length in " + cidr, e);
+            }
+            if (prefixLength < 0 || prefixLength > ADDRESS_BITS) {
+                throw new IllegalArgumentException("Invalid prefix length in " + cidr);
+            }
+        }
+
+        int value = 0;
+        for (String octet : address.split("\\.")) {
+            value = (value << 8) | Integer.parseInt(octet);
+        }
+        return new int[]{value, prefixLength};
+    }
+
+    /**
+     * @param address an IPv4 address.
+     * @return the address as an int, with the first octet in the highest bits.
+     */
+    public static int toInt(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+}
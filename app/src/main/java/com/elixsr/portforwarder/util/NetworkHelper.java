@@ -18,6 +18,9 @@
 
 package com.elixsr.portforwarder.util;
 
+import java.net.InetSocketAddress;
+import java.util.regex.Pattern;
+
 /**
  * The {@link NetworkHelper} class provides static objects and methods related to network metadata.
  *
@@ -40,6 +43,58 @@ public class NetworkHelper {
      */
     public static final String BOTH = "BOTH";
 
+    private static final int MAX_HOSTNAME_LENGTH = 253;
+
+    /**
+     * Dot separated labels of letters, digits and inner hyphens, the last of which is not all
+     * digits so that malformed IPv4 addresses are not taken for hostnames.
+     */
+    private static final Pattern HOSTNAME_PATTERN = Pattern.compile(
+            "^([a-zA-Z0-9]([a-zA-Z0-9-]{0,61}[a-zA-Z0-9])?\\.)*"
+                    + "(?![0-9]+\\.?$)[a-zA-Z0-9]([a-zA-Z0-9-]{0,61}[a-zA-Z0-9])?\\.?$");
+
+    /**
+     * Return whether a string is a valid hostname.
+     *
+     * @param hostname the hostname.
+     * @return true if valid, false if not valid.
+     */
+    public static boolean isValidHostname(String hostname) {
+        return hostname != null && hostname.length() > 0 && hostname.length() <= MAX_HOSTNAME_LENGTH
+                && HOSTNAME_PATTERN.matcher(hostname).matches();
+    }
+
+    /**
+     * Create the target of a rule, without any DNS lookup.
+     * <p>
+     * An IPv4 address gives a resolved target. A hostname gives an unresolved target, which the
+     * forwarders resolve when they need it, so the DNS is never queried when a rule is loaded and
+     * changes of address are picked up while forwarding.
+     *
+     * @param host an IPv4 address or a hostname.
+     * @param port the port.
+     * @return the target.
+     */
+    public static InetSocketAddress createTarget(String host, int port) {
+        if (new IpAddressValidator().validate(host)) {
+            return new InetSocketAddress(host, port);
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Return the host of a target as entered, without any DNS lookup.
+     *
+     * @param target the target.
+     * @return the hostname of an unresolved target, or the IP address of a resolved target.
+     */
+    public static String getTargetHost(InetSocketAddress target) {
+        if (target.isUnresolved()) {
+            return target.getHostName();
+        }
+        return target.getAddress().getHostAddress();
+    }
+
     /**
      * Return whether or not an IPv4 Address is valid.
      *
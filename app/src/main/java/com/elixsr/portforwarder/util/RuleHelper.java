@@ -22,9 +22,10 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.util.Log;
 
-import java.net.InetSocketAddress;
-
 import com.elixsr.portforwarder.models.RuleModel;
+import com.elixsr.portforwarder.models.SocketProfile;
+import com.elixsr.portforwarder.models.TrafficPolicy;
+import com.elixsr.portforwarder.models.AccessPolicy;
 import com.elixsr.portforwarder.db.RuleContract;
 
 import static com.facebook.GraphRequest.TAG;
@@ -75,6 +76,37 @@ public class RuleHelper {
         contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_TARGET_PORT, ruleModel.getTargetPort());
         contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_IS_ENABLED, ruleModel.isEnabled());
 
+        SocketProfile socketProfile = ruleModel.getSocketProfile();
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_RECEIVE_BUFFER_SIZE, socketProfile.getReceiveBufferSize());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_SEND_BUFFER_SIZE, socketProfile.getSendBufferSize());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_BACKLOG, socketProfile.getBacklog());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_TCP_NO_DELAY, socketProfile.isTcpNoDelay());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_KEEP_ALIVE, socketProfile.isKeepAlive());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_REUSE_ADDRESS, socketProfile.isReuseAddress());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_RELAY_BUFFER_SIZE, socketProfile.getRelayBufferSize());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_COALESCE_WRITES, socketProfile.isCoalesceWrites());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_COALESCE_DELAY, socketProfile.getCoalesceDelayMillis());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_WARM_CONNECTIONS, socketProfile.getWarmConnections());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_WARM_MAX_IDLE_SECONDS, socketProfile.getWarmMaxIdleSeconds());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_LISTENER_SHARDS, socketProfile.getListenerShards());
+
+        TrafficPolicy trafficPolicy = ruleModel.getTrafficPolicy();
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_WEIGHT, trafficPolicy.getWeight());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_CONNECTION_RATE_LIMIT, trafficPolicy.getConnectionRateLimit());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_RULE_RATE_LIMIT, trafficPolicy.getRuleRateLimit());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS, trafficPolicy.getMaxConnections());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_REJECT_EXCESS_CONNECTIONS, trafficPolicy.isRejectExcessConnections());
+
+        AccessPolicy accessPolicy = ruleModel.getAccessPolicy();
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_ALLOWED_SOURCES, accessPolicy.getAllowedSources());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_DENIED_SOURCES, accessPolicy.getDeniedSources());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_MAX_CONNECTIONS_PER_SOURCE, accessPolicy.getMaxConnectionsPerSource());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_MAX_DATAGRAMS_PER_SOURCE, accessPolicy.getMaxDatagramsPerSource());
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_BAN_SECONDS, accessPolicy.getBanSeconds());
+
+        contentValues.put(RuleContract.RuleEntry.COLUMN_NAME_SOURCE_ROUTES,
+                ruleModel.getSourceRoutes() == null ? "" : ruleModel.getSourceRoutes());
+
         return contentValues;
     }
 
@@ -95,9 +127,42 @@ public class RuleHelper {
         ruleModel.setIsUdp(cursor.getInt(3) != 0);
         ruleModel.setFromInterfaceName(cursor.getString(4));
         ruleModel.setFromPort(cursor.getInt(5));
-        ruleModel.setTarget(new InetSocketAddress(cursor.getString(6), cursor.getInt(7)));
+        ruleModel.setTarget(NetworkHelper.createTarget(cursor.getString(6), cursor.getInt(7)));
         ruleModel.setEnabled(cursor.getInt(8) != 0);
 
+        SocketProfile socketProfile = new SocketProfile();
+        socketProfile.setReceiveBufferSize(cursor.getInt(9));
+        socketProfile.setSendBufferSize(cursor.getInt(10));
+        socketProfile.setBacklog(cursor.getInt(11));
+        socketProfile.setTcpNoDelay(cursor.getInt(12) != 0);
+        socketProfile.setKeepAlive(cursor.getInt(13) != 0);
+        socketProfile.setReuseAddress(cursor.getInt(14) != 0);
+        socketProfile.setRelayBufferSize(cursor.getInt(15));
+        socketProfile.setCoalesceWrites(cursor.getInt(16) != 0);
+        socketProfile.setCoalesceDelayMillis(cursor.getInt(17));
+        socketProfile.setWarmConnections(cursor.getInt(29));
+        socketProfile.setWarmMaxIdleSeconds(cursor.getInt(30));
+        socketProfile.setListenerShards(cursor.getInt(31));
+        ruleModel.setSocketProfile(socketProfile);
+
+        TrafficPolicy trafficPolicy = new TrafficPolicy();
+        trafficPolicy.setWeight(cursor.getInt(18));
+        trafficPolicy.setConnectionRateLimit(cursor.getInt(19));
+        trafficPolicy.setRuleRateLimit(cursor.getInt(20));
+        trafficPolicy.setMaxConnections(cursor.getInt(21));
+        trafficPolicy.setRejectExcessConnections(cursor.getInt(22) != 0);
+        ruleModel.setTrafficPolicy(trafficPolicy);
+
+        AccessPolicy accessPolicy = new AccessPolicy();
+        accessPolicy.setAllowedSources(cursor.isNull(23) ? "" : cursor.getString(23));
+        accessPolicy.setDeniedSources(cursor.isNull(24) ? "" : cursor.getString(24));
+        accessPolicy.setMaxConnectionsPerSource(cursor.getInt(25));
+        accessPolicy.setMaxDatagramsPerSource(cursor.getInt(26));
+        accessPolicy.setBanSeconds(cursor.getInt(27));
+        ruleModel.setAccessPolicy(accessPolicy);
+
+        ruleModel.setSourceRoutes(cursor.isNull(28) ? "" : cursor.getString(28));
+
         return ruleModel;
     }
 
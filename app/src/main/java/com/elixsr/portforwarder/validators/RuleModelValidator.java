@@ -6,6 +6,7 @@ import com.elixsr.portforwarder.exceptions.RuleValidationException;
 import com.elixsr.portforwarder.models.RuleModel;
 import com.elixsr.portforwarder.util.RuleHelper;
 import com.elixsr.portforwarder.util.IpAddressValidator;
+import com.elixsr.portforwarder.util.NetworkHelper;
 
 /**
  * Created by Cathan on 25/07/2017.
@@ -14,6 +15,7 @@ import com.elixsr.portforwarder.util.IpAddressValidator;
 public class RuleModelValidator implements Validator<RuleModel> {
 
     private static final String INVALID_PORT_ERROR_MESSAGE = "Please enter a value greater than or equal to %s and less than or equal to %s";
+    private static final String INVALID_NUMBER_ERROR_MESSAGE = "Please enter a value between %s and %s, or leave blank for the default";
     private static final String TAG = "RuleModelValidator";
 
 
@@ -86,12 +88,43 @@ public class RuleModelValidator implements Validator<RuleModel> {
     }
 
     public static boolean validateRuleTargetIpAddressSyntax(String ruleTargetIpAddress) throws RuleValidationException {
-        if (!new IpAddressValidator().validate(ruleTargetIpAddress)) {
-            throw new RuleValidationException(String.format("Target IP address was not valid"));
+        if (!new IpAddressValidator().validate(ruleTargetIpAddress)
+                && !NetworkHelper.isValidHostname(ruleTargetIpAddress)) {
+            throw new RuleValidationException(String.format("Target IP address or hostname was not valid"));
         }
 
         Log.i(TAG, "validateRuleTargetIpAddressSyntax: TARGET IP VALID");
         return true;
     }
 
+    /**
+     * Parse an optional numeric rule setting.
+     * <p>
+     * An empty value results in the supplied default, anything else must be a whole number within
+     * the inclusive range.
+     *
+     * @param value        the user input.
+     * @param defaultValue the value to use when nothing was entered.
+     * @param min          the minimum accepted value.
+     * @param max          the maximum accepted value.
+     * @return the parsed value.
+     * @throws RuleValidationException if the value is not a number within range.
+     */
+    public static int parseRuleOptionalNumber(String value, int defaultValue, int min, int max) throws RuleValidationException {
+        if (value == null || value.trim().length() <= 0) {
+            return defaultValue;
+        }
+
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number >= min && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "parseRuleOptionalNumber: not a number " + value);
+        }
+
+        throw new RuleValidationException(String.format(INVALID_NUMBER_ERROR_MESSAGE, min, max));
+    }
+
 }
@@ -0,0 +1,209 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link CircuitBreaker} through its states on a manual clock.
+ */
+public class CircuitBreakerTest {
+
+    private static final int THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 1000;
+
+    private long now;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        circuitBreaker = new CircuitBreaker(new InetSocketAddress("127.0.0.1", 8080), THRESHOLD, OPEN_MILLIS) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    private void failConnects(int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(circuitBreaker.allowRequest());
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        failConnects(THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        failConnects(1);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertFalse(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void successResetsConsecutiveFailures() {
+        failConnects(THRESHOLD - 1);
+        circuitBreaker.recordSuccess();
+        failConnects(THRESHOLD - 1);
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void allowsSingleProbeOnceOpenPeriodElapsed() {
+        failConnects(THRESHOLD);
+
+        now += OPEN_MILLIS - 1;
+        assertFalse(circuitBreaker.allowRequest());
+
+        now += 1;
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeReopensForTwiceAsLong() {
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        now += OPEN_MILLIS;
+        assertFalse(circuitBreaker.allowRequest());
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void openPeriodIsCapped() {
+        failConnects(THRESHOLD);
+        long openMillis = OPEN_MILLIS;
+        for (int i = 0; i < 10; i++) {
+            now += openMillis;
+            assertTrue(circuitBreaker.allowRequest());
+            circuitBreaker.recordFailure();
+            openMillis = Math.min(openMillis * 2, CircuitBreaker.MAX_OPEN_MILLIS);
+        }
+
+        now += CircuitBreaker.MAX_OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void successAfterBackoffRestoresOpenPeriod() {
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        circuitBreaker.allowRequest();
+        circuitBreaker.recordFailure();
+        now += 2 * OPEN_MILLIS;
+        circuitBreaker.allowRequest();
+        circuitBreaker.recordSuccess();
+
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void probeWithoutOutcomeExpires() {
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+
+        // The probe's outcome is never recorded
+        now += CircuitBreaker.PROBE_TIMEOUT_MILLIS - 1;
+        assertFalse(circuitBreaker.allowRequest());
+        now += 1;
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void abandonedProbeLetsNextClientThrough() {
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        failConnects(THRESHOLD);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        now += OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        // A forwarder abandoning the probe's connection records it as failed
+        circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        now += 2 * OPEN_MILLIS;
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void listenersSeeEachTransition() {
+        final List<String> transitions = new ArrayList<>();
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(from + ">" + to);
+            }
+        });
+
+        failConnects(THRESHOLD);
+        now += OPEN_MILLIS;
+        circuitBreaker.allowRequest();
+        circuitBreaker.recordSuccess();
+
+        assertEquals("[CLOSED>OPEN, OPEN>HALF_OPEN, HALF_OPEN>CLOSED]", transitions.toString());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the concurrent and rate limits of {@link ConnectionLimiter}.
+ */
+public class ConnectionLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void capsConcurrentConnections() {
+        ConnectionLimiter limiter = new ConnectionLimiter(2, 0);
+        long now = System.nanoTime();
+
+        assertTrue(limiter.tryAcquire(now));
+        assertTrue(limiter.tryAcquire(now));
+        assertFalse(limiter.tryAcquire(now));
+        assertEquals(2, limiter.getActiveConnections());
+        assertTrue(limiter.nanosUntilAvailable(now) > 0);
+
+        limiter.release();
+        assertEquals(0, limiter.nanosUntilAvailable(now));
+        assertTrue(limiter.tryAcquire(now));
+    }
+
+    @Test
+    public void releaseNeverGoesNegative() {
+        ConnectionLimiter limiter = new ConnectionLimiter(1, 0);
+
+        limiter.release();
+        assertEquals(0, limiter.getActiveConnections());
+        assertTrue(limiter.tryAcquire(System.nanoTime()));
+        assertFalse(limiter.tryAcquire(System.nanoTime()));
+    }
+
+    @Test
+    public void limitsAcceptRate() {
+        ConnectionLimiter limiter = new ConnectionLimiter(0, 5);
+        long now = System.nanoTime();
+
+        // A second's worth of accepts may burst
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(now));
+        }
+        assertFalse(limiter.tryAcquire(now));
+        assertEquals(SECOND / 5, limiter.nanosUntilAvailable(now));
+
+        now += SECOND / 5;
+        assertTrue(limiter.tryAcquire(now));
+        assertFalse(limiter.tryAcquire(now));
+    }
+
+    @Test
+    public void rejectedAcceptsTakeNoSlot() {
+        ConnectionLimiter limiter = new ConnectionLimiter(10, 1);
+        long now = System.nanoTime();
+
+        assertTrue(limiter.tryAcquire(now));
+        assertFalse(limiter.tryAcquire(now));
+        assertEquals(1, limiter.getActiveConnections());
+    }
+
+    @Test
+    public void cancelReturnsSlotAndAcceptToken() {
+        ConnectionLimiter limiter = new ConnectionLimiter(1, 1);
+        long now = System.nanoTime();
+
+        assertTrue(limiter.tryAcquire(now));
+        assertTrue(limiter.nanosUntilAvailable(now) > 0);
+
+        limiter.cancel();
+        assertEquals(0, limiter.getActiveConnections());
+        assertEquals(0, limiter.nanosUntilAvailable(now));
+        assertTrue(limiter.tryAcquire(now));
+    }
+
+    @Test
+    public void noLimits() {
+        ConnectionLimiter limiter = new ConnectionLimiter(0, 0);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(now));
+        }
+        assertEquals(0, limiter.nanosUntilAvailable(now));
+    }
+}
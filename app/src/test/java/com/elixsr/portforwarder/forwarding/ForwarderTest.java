@@ -0,0 +1,54 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import android.os.Process;
+
+import com.elixsr.portforwarder.models.TrafficPolicy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link Forwarder} maps rule weights onto thread priorities.
+ */
+public class ForwarderTest {
+
+    @Test
+    public void weightsSpanBackgroundToDefault() {
+        assertEquals(Process.THREAD_PRIORITY_BACKGROUND, Forwarder.threadPriorityFor(TrafficPolicy.MIN_WEIGHT));
+        assertEquals(Process.THREAD_PRIORITY_DEFAULT, Forwarder.threadPriorityFor(TrafficPolicy.MAX_WEIGHT));
+    }
+
+    @Test
+    public void higherWeightNeverLowersPriority() {
+        for (int weight = TrafficPolicy.MIN_WEIGHT; weight < TrafficPolicy.MAX_WEIGHT; weight++) {
+            // A lower value is a higher priority
+            assertTrue(Forwarder.threadPriorityFor(weight + 1) < Forwarder.threadPriorityFor(weight));
+        }
+    }
+
+    @Test
+    public void weightsOutOfRangeAreClamped() {
+        assertEquals(Process.THREAD_PRIORITY_BACKGROUND, Forwarder.threadPriorityFor(0));
+        assertEquals(Process.THREAD_PRIORITY_DEFAULT, Forwarder.threadPriorityFor(100));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import com.elixsr.portforwarder.models.AccessPolicy;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link SourceFilter} combines the allow and deny lists of an {@link AccessPolicy}.
+ */
+public class SourceFilterTest {
+
+    private static SourceFilter compile(String allowedSources, String deniedSources) {
+        AccessPolicy accessPolicy = new AccessPolicy();
+        accessPolicy.setAllowedSources(allowedSources);
+        accessPolicy.setDeniedSources(deniedSources);
+        return SourceFilter.compile(accessPolicy);
+    }
+
+    private static boolean allows(SourceFilter filter, String address) {
+        return filter.isAllowed(new InetSocketAddress(address, 1234));
+    }
+
+    @Test
+    public void emptyListsNeedNoFilter() {
+        assertNull(compile("", " "));
+        assertNull(compile(null, null));
+    }
+
+    @Test
+    public void allowListDeniesEverythingElse() {
+        SourceFilter filter = compile("192.168.0.0/16, 10.0.0.1", "");
+
+        assertTrue(allows(filter, "192.168.4.5"));
+        assertTrue(allows(filter, "10.0.0.1"));
+        assertFalse(allows(filter, "10.0.0.2"));
+    }
+
+    @Test
+    public void denyListAllowsEverythingElse() {
+        SourceFilter filter = compile("", "10.0.0.0/8");
+
+        assertFalse(allows(filter, "10.9.9.9"));
+        assertTrue(allows(filter, "11.0.0.1"));
+    }
+
+    @Test
+    public void longestPrefixDecides() {
+        SourceFilter filter = compile("10.0.0.0/8", "10.1.0.0/16\n10.2.3.4");
+
+        assertTrue(allows(filter, "10.3.0.1"));
+        assertFalse(allows(filter, "10.1.0.1"));
+        assertFalse(allows(filter, "10.2.3.4"));
+        assertTrue(allows(filter, "10.2.3.5"));
+    }
+
+    @Test
+    public void prefixInBothListsIsDenied() {
+        SourceFilter filter = compile("10.0.0.0/8", "10.0.0.0/8");
+
+        assertFalse(allows(filter, "10.0.0.1"));
+    }
+
+    @Test
+    public void ipv6SourcesOnlyPassWithoutAllowList() {
+        assertTrue(allows(compile("", "10.0.0.0/8"), "::1"));
+        assertFalse(allows(compile("10.0.0.0/8", ""), "::1"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import com.elixsr.portforwarder.models.SourceRoute;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link SourceRouter} sends each source to its first matching route.
+ */
+public class SourceRouterTest {
+
+    private static final InetSocketAddress DEFAULT_TARGET = new InetSocketAddress("192.168.1.10", 80);
+
+    private static int route(SourceRouter router, String source) {
+        return router.route(new InetSocketAddress(source, 1234));
+    }
+
+    @Test
+    public void noRoutesNeedNoRouter() {
+        assertNull(SourceRouter.compile(Collections.<SourceRoute>emptyList(), DEFAULT_TARGET));
+    }
+
+    @Test
+    public void firstMatchingRouteWins() {
+        SourceRouter router = SourceRouter.compile(SourceRoute.parseList(
+                "10.1.0.0/16=192.168.1.1:81 10.0.0.0/8=192.168.1.2:82 10.1.2.0/24=192.168.1.3:83"),
+                DEFAULT_TARGET);
+
+        assertEquals(4, router.getTargetCount());
+        // The /24 is more specific, but listed after the /16 containing it
+        assertEquals(1, route(router, "10.1.2.3"));
+        assertEquals(2, route(router, "10.2.0.1"));
+        assertEquals(SourceRouter.DEFAULT_ROUTE, route(router, "11.0.0.1"));
+    }
+
+    @Test
+    public void earlierRouteKeepsADuplicatePrefix() {
+        SourceRouter router = SourceRouter.compile(SourceRoute.parseList(
+                "10.0.0.0/8=192.168.1.1:81 10.0.0.0/8=192.168.1.2:82"), DEFAULT_TARGET);
+
+        assertEquals(1, route(router, "10.0.0.1"));
+    }
+
+    @Test
+    public void numbersTargetsAfterTheDefault() {
+        SourceRouter router = SourceRouter.compile(SourceRoute.parseList(
+                "10.0.0.0/8=192.168.1.1:81 11.0.0.0/8=192.168.1.2:82"), DEFAULT_TARGET);
+
+        assertEquals(DEFAULT_TARGET, router.getTarget(SourceRouter.DEFAULT_ROUTE));
+        assertEquals(new InetSocketAddress("192.168.1.1", 81), router.getTarget(1));
+        assertEquals(new InetSocketAddress("192.168.1.2", 82), router.getTarget(2));
+    }
+
+    @Test
+    public void ipv6SourcesUseTheDefaultRoute() {
+        SourceRouter router = SourceRouter.compile(SourceRoute.parseList("0.0.0.0/0=192.168.1.1:81"), DEFAULT_TARGET);
+
+        assertEquals(1, route(router, "10.0.0.1"));
+        assertEquals(SourceRouter.DEFAULT_ROUTE, route(router, "::1"));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the windows, bans and eviction of {@link SourceThrottle}.
+ */
+public class SourceThrottleTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int A = 0x0a000001;
+    private static final int B = 0x0a000002;
+    private static final int C = 0x0a000003;
+
+    @Test
+    public void noLimitNeedsNoThrottle() {
+        assertNull(SourceThrottle.forLimit(0, 60));
+    }
+
+    @Test
+    public void bansSourceOverTheLimit() {
+        SourceThrottle throttle = new SourceThrottle(3, 10000, 16);
+        long now = 0;
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SourceThrottle.ALLOWED, throttle.check(A, now));
+        }
+        assertEquals(SourceThrottle.NEWLY_BANNED, throttle.check(A, now));
+        assertEquals(SourceThrottle.BANNED, throttle.check(A, now + 9 * SECOND));
+
+        // Other sources are not affected
+        assertEquals(SourceThrottle.ALLOWED, throttle.check(B, now));
+    }
+
+    @Test
+    public void banExpires() {
+        SourceThrottle throttle = new SourceThrottle(1, 2000, 16);
+
+        throttle.check(A, 0);
+        assertEquals(SourceThrottle.NEWLY_BANNED, throttle.check(A, 0));
+        assertEquals(SourceThrottle.BANNED, throttle.check(A, 2 * SECOND - 1));
+        assertEquals(SourceThrottle.ALLOWED, throttle.check(A, 2 * SECOND));
+    }
+
+    @Test
+    public void countsRestartEachWindow() {
+        SourceThrottle throttle = new SourceThrottle(2, 10000, 16);
+
+        for (int second = 0; second < 5; second++) {
+            assertEquals(SourceThrottle.ALLOWED, throttle.check(A, second * SECOND));
+            assertEquals(SourceThrottle.ALLOWED, throttle.check(A, second * SECOND + 1));
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenSource() {
+        SourceThrottle throttle = new SourceThrottle(1, 10000, 2);
+
+        throttle.check(A, 0);
+        throttle.check(B, 0);
+        // A is seen again, so B is the oldest when C arrives
+        assertEquals(SourceThrottle.NEWLY_BANNED, throttle.check(A, 0));
+        throttle.check(C, 0);
+        assertEquals(2, throttle.size());
+
+        // A is still banned, B was forgotten and starts over
+        assertEquals(SourceThrottle.BANNED, throttle.check(A, 0));
+        assertEquals(SourceThrottle.ALLOWED, throttle.check(B, 0));
+    }
+
+    @Test
+    public void ipv6SourcesAreNotTracked() {
+        SourceThrottle throttle = new SourceThrottle(1, 10000, 16);
+        InetSocketAddress source = new InetSocketAddress("::1", 1234);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(SourceThrottle.ALLOWED, throttle.check(source, 0));
+        }
+        assertEquals(0, throttle.size());
+    }
+
+    @Test
+    public void matchesReferenceModelUnderChurn() {
+        final int capacity = 64;
+        SourceThrottle throttle = new SourceThrottle(5, 3000, capacity);
+        Map<Integer, long[]> model = new LinkedHashMap<Integer, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        Random random = new Random(42);
+        long now = 0;
+        for (int i = 0; i < 200000; i++) {
+            now += random.nextInt((int) (SECOND / 50));
+            // Few enough addresses to collide in the table, and to be evicted and come back
+            int address = 0x0a000000 | random.nextInt(96);
+
+            assertEquals("event " + i, check(model, address, now), throttle.check(address, now));
+            assertEquals(model.size(), throttle.size());
+        }
+    }
+
+    /**
+     * The expected outcome, with each entry holding the window start, window count and ban end.
+     */
+    private static int check(Map<Integer, long[]> model, int address, long now) {
+        long[] entry = model.get(address);
+        if (entry == null) {
+            entry = new long[]{now, 0, now};
+            model.put(address, entry);
+        } else {
+            if (now - entry[2] < 0) {
+                return SourceThrottle.BANNED;
+            }
+            if (now - entry[0] >= SECOND) {
+                entry[0] = now;
+                entry[1] = 0;
+            }
+        }
+
+        if (++entry[1] > 5) {
+            entry[2] = now + 3 * SECOND;
+            entry[1] = 0;
+            return SourceThrottle.NEWLY_BANNED;
+        }
+        return SourceThrottle.ALLOWED;
+    }
+}
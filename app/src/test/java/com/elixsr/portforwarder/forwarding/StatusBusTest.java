@@ -0,0 +1,160 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how a {@link StatusBus} coalesces marks and caps messages, running its updates by hand
+ * rather than on a handler.
+ */
+public class StatusBusTest {
+
+    private static final int UPDATES_PER_SECOND = 4;
+
+    private final List<Runnable> posted = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<List<Long>> deliveredRules = new ArrayList<>();
+    private final List<List<String>> deliveredMessages = new ArrayList<>();
+
+    private boolean polling;
+    private int polls;
+    private StatusBus statusBus;
+
+    @Before
+    public void setUp() {
+        statusBus = new StatusBus(null, UPDATES_PER_SECOND, new StatusBus.Sink() {
+            @Override
+            public boolean isPolling() {
+                return polling;
+            }
+
+            @Override
+            public void poll(StatusBus bus) {
+                polls++;
+            }
+
+            @Override
+            public void deliver(List<Long> changedRuleIds, List<String> messages) {
+                List<Long> ruleIds = new ArrayList<>(changedRuleIds);
+                Collections.sort(ruleIds);
+                deliveredRules.add(ruleIds);
+                deliveredMessages.add(messages);
+            }
+        }) {
+            @Override
+            void postUpdate(Runnable task, long delayMillis) {
+                posted.add(task);
+                delays.add(delayMillis);
+            }
+        };
+    }
+
+    /**
+     * Run the one update which should be scheduled.
+     */
+    private void runUpdate() {
+        assertEquals(1, posted.size());
+        posted.remove(0).run();
+    }
+
+    @Test
+    public void coalescesMarksIntoOneUpdate() {
+        statusBus.ruleChanged(2);
+        statusBus.ruleChanged(1);
+        statusBus.ruleChanged(2);
+        statusBus.changed();
+        assertEquals(1, posted.size());
+        assertEquals(Long.valueOf(0), delays.get(0));
+
+        runUpdate();
+        assertEquals(1, deliveredRules.size());
+        assertEquals("[1, 2]", deliveredRules.get(0).toString());
+        assertTrue(deliveredMessages.get(0).isEmpty());
+    }
+
+    @Test
+    public void nextUpdateWaitsForInterval() {
+        statusBus.ruleChanged(1);
+        runUpdate();
+
+        statusBus.ruleChanged(1);
+        assertEquals(1, posted.size());
+        long delay = delays.get(1);
+        assertTrue(delay > 0);
+        assertTrue(delay <= 1000 / UPDATES_PER_SECOND + 1);
+    }
+
+    @Test
+    public void changeWithoutRulesIsDelivered() {
+        statusBus.changed();
+        runUpdate();
+        assertEquals(1, deliveredRules.size());
+        assertTrue(deliveredRules.get(0).isEmpty());
+    }
+
+    @Test
+    public void nothingMarkedDeliversNothing() {
+        statusBus.wakeUp();
+        runUpdate();
+        assertTrue(deliveredRules.isEmpty());
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void messagesBeyondCapAreDropped() {
+        for (int i = 0; i < StatusBus.MAX_PENDING_MESSAGES + 3; i++) {
+            statusBus.post("message " + i);
+        }
+        runUpdate();
+
+        List<String> messages = deliveredMessages.get(0);
+        assertEquals(StatusBus.MAX_PENDING_MESSAGES, messages.size());
+        assertEquals("message 0", messages.get(0));
+        assertEquals("message " + (StatusBus.MAX_PENDING_MESSAGES - 1), messages.get(messages.size() - 1));
+
+        // Delivering frees the room for new messages
+        statusBus.post("later");
+        runUpdate();
+        assertEquals("[later]", deliveredMessages.get(1).toString());
+    }
+
+    @Test
+    public void pollsWhileSinkAsks() {
+        polling = true;
+        statusBus.wakeUp();
+        runUpdate();
+        runUpdate();
+        assertEquals(2, polls);
+        assertTrue(deliveredRules.isEmpty());
+
+        polling = false;
+        runUpdate();
+        assertEquals(2, polls);
+        assertTrue(posted.isEmpty());
+    }
+}
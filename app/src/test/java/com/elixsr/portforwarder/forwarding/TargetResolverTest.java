@@ -0,0 +1,177 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the TTL cache of {@link TargetResolver}, with a manual clock and a fake DNS which answers
+ * on the calling thread, so each lookup has finished resolving when it returns.
+ */
+public class TargetResolverTest {
+
+    private static final long TTL_MILLIS = 1000;
+    private static final String HOSTNAME = "target.example";
+
+    private long now;
+    private InetAddress[] answer;
+    private int resolutions;
+    private TargetResolver resolver;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        now = 1000000000L;
+        answer = new InetAddress[]{InetAddress.getByName("10.0.0.1")};
+        resolver = new TargetResolver(TTL_MILLIS) {
+            @Override
+            InetAddress[] resolveAddresses(String hostname) throws UnknownHostException {
+                resolutions++;
+                if (answer == null) {
+                    throw new UnknownHostException(hostname);
+                }
+                return answer;
+            }
+
+            @Override
+            void resolveAsync(String hostname) {
+                resolve(hostname);
+            }
+
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        resolver.shutdown();
+    }
+
+    /**
+     * Look up the hostname, expecting it to be resolved and the listener told.
+     */
+    private void resolve() {
+        final List<String> resolved = new ArrayList<>();
+        TargetResolver.Listener listener = new TargetResolver.Listener() {
+            @Override
+            public void onResolved(String hostname) {
+                resolved.add(hostname);
+            }
+        };
+
+        assertNull(resolver.lookup(HOSTNAME, listener));
+        assertEquals(Collections.singletonList(HOSTNAME), resolved);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void answersFromCacheWithinTtl() throws UnknownHostException {
+        resolve();
+        InetAddress[] addresses = answer;
+
+        now += millis(TTL_MILLIS - 1);
+        assertSame(addresses, resolver.lookup(HOSTNAME, null));
+        assertEquals(1, resolutions);
+    }
+
+    @Test
+    public void lookupsDuringResolutionWaitForIt() {
+        resolver = new TargetResolver(TTL_MILLIS) {
+            @Override
+            InetAddress[] resolveAddresses(String hostname) throws UnknownHostException {
+                resolutions++;
+                // Another forwarder looks the hostname up before the answer is in
+                assertNull(resolver.lookup(HOSTNAME, null));
+                return answer;
+            }
+
+            @Override
+            void resolveAsync(String hostname) {
+                resolve(hostname);
+            }
+        };
+
+        resolve();
+        assertEquals(1, resolutions);
+    }
+
+    @Test
+    public void servesStaleAddressesWhileRefreshing() throws UnknownHostException {
+        resolve();
+        InetAddress[] first = answer;
+        answer = new InetAddress[]{InetAddress.getByName("10.0.0.2")};
+
+        now += millis(TTL_MILLIS);
+        assertSame(first, resolver.lookup(HOSTNAME, null));
+        assertEquals(2, resolutions);
+        assertSame(answer, resolver.lookup(HOSTNAME, null));
+    }
+
+    @Test
+    public void cachesFailures() throws UnknownHostException {
+        answer = null;
+        resolve();
+
+        assertSame(TargetResolver.UNRESOLVABLE, resolver.lookup(HOSTNAME, null));
+        now += millis(TargetResolver.NEGATIVE_TTL_MILLIS - 1);
+        assertSame(TargetResolver.UNRESOLVABLE, resolver.lookup(HOSTNAME, null));
+        assertEquals(1, resolutions);
+
+        // Retried once the failure expires
+        answer = new InetAddress[]{InetAddress.getByName("10.0.0.3")};
+        now += millis(1);
+        resolve();
+        assertSame(answer, resolver.lookup(HOSTNAME, null));
+    }
+
+    @Test
+    public void keepsLastAddressesWhenRefreshFailsUntilTooStale() throws UnknownHostException {
+        resolve();
+        InetAddress[] addresses = answer;
+        answer = null;
+
+        now += millis(TTL_MILLIS);
+        assertSame(addresses, resolver.lookup(HOSTNAME, null));
+        assertSame(addresses, resolver.lookup(HOSTNAME, null));
+
+        // Too stale to serve, the lookup waits for another refresh, which fails too
+        now += millis(TargetResolver.MAX_STALE_MILLIS);
+        assertNull(resolver.lookup(HOSTNAME, null));
+        assertSame(TargetResolver.UNRESOLVABLE, resolver.lookup(HOSTNAME, null));
+        assertEquals(3, resolutions);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the delays {@link ThreadedForwardingEngine} waits before retrying a failed rule or
+ * forwarder.
+ */
+public class ThreadedForwardingEngineTest {
+
+    @Test
+    public void firstRetryWaitsMinimumDelay() {
+        assertEquals(ThreadedForwardingEngine.MIN_RETRY_MILLIS, ThreadedForwardingEngine.retryDelayMillis(0));
+    }
+
+    @Test
+    public void delayDoublesWithEachFailure() {
+        long delay = ThreadedForwardingEngine.retryDelayMillis(0);
+        for (int failures = 1; delay * 2 <= ThreadedForwardingEngine.MAX_RETRY_MILLIS; failures++) {
+            long next = ThreadedForwardingEngine.retryDelayMillis(failures);
+            assertEquals(delay * 2, next);
+            delay = next;
+        }
+    }
+
+    @Test
+    public void delayIsCapped() {
+        assertEquals(ThreadedForwardingEngine.MAX_RETRY_MILLIS, ThreadedForwardingEngine.retryDelayMillis(5));
+        assertEquals(ThreadedForwardingEngine.MAX_RETRY_MILLIS, ThreadedForwardingEngine.retryDelayMillis(16));
+    }
+
+    @Test
+    public void manyFailuresDoNotOverflow() {
+        assertEquals(ThreadedForwardingEngine.MAX_RETRY_MILLIS, ThreadedForwardingEngine.retryDelayMillis(63));
+        assertEquals(ThreadedForwardingEngine.MAX_RETRY_MILLIS, ThreadedForwardingEngine.retryDelayMillis(Integer.MAX_VALUE));
+    }
+}
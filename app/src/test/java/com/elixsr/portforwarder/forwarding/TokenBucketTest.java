@@ -0,0 +1,120 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.forwarding;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the refill and debt arithmetic of {@link TokenBucket}, with times passed in explicitly.
+ * <p>
+ * Buckets start refilling from their creation, so each test reads the clock after creating its
+ * bucket and moves it forward from there.
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void noLimitHasNoBucket() {
+        assertNull(TokenBucket.forLimit(0));
+        assertNull(TokenBucket.forLimit(-1));
+    }
+
+    @Test
+    public void limitHoldsATenthOfASecondOrTheMinimum() {
+        long now = System.nanoTime();
+
+        TokenBucket slow = TokenBucket.forLimit(1);
+        assertEquals(1024, slow.getTokensPerSecond());
+        assertEquals(TokenBucket.MIN_CAPACITY, slow.available(now));
+
+        TokenBucket fast = TokenBucket.forLimit(10240);
+        assertEquals(10240 * 1024 / 10, fast.available(now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new TokenBucket(0, 1);
+    }
+
+    @Test
+    public void debtIsRepaidBeforeTokensAreAvailable() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long now = System.nanoTime();
+
+        bucket.consume(300);
+        assertEquals(-200, bucket.available(now));
+        // 201 tokens at 1000 a second until one is available
+        assertEquals(201 * SECOND / 1000, bucket.nanosUntilAvailable(now));
+
+        now += 201 * SECOND / 1000;
+        assertEquals(1, bucket.available(now));
+        assertEquals(0, bucket.nanosUntilAvailable(now));
+    }
+
+    @Test
+    public void refillStopsAtCapacity() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long now = System.nanoTime();
+
+        bucket.consume(50);
+        now += 10 * SECOND;
+        assertEquals(100, bucket.available(now));
+    }
+
+    @Test
+    public void refundStopsAtCapacity() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long now = System.nanoTime();
+
+        bucket.consume(30);
+        bucket.refund(10);
+        assertEquals(80, bucket.available(now));
+        bucket.refund(50);
+        assertEquals(100, bucket.available(now));
+    }
+
+    @Test
+    public void fractionsOfTokensAreNotLost() {
+        TokenBucket bucket = new TokenBucket(3, 10);
+        long now = System.nanoTime();
+        bucket.consume(10);
+
+        // A token takes a third of a second, refilled in steps of a tenth
+        for (int i = 0; i < 10; i++) {
+            now += SECOND / 10;
+            bucket.available(now);
+        }
+        assertEquals(3, bucket.available(now));
+    }
+
+    @Test
+    public void timeGoingBackwardsAddsNothing() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long now = System.nanoTime();
+        bucket.consume(100);
+
+        assertEquals(0, bucket.available(now - SECOND));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.models;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the parsing of {@link SourceRoute} lists.
+ */
+public class SourceRouteTest {
+
+    @Test
+    public void parsesRoute() {
+        SourceRoute route = SourceRoute.parse("10.8.0.0/16=192.168.1.20:8080");
+
+        assertEquals("10.8.0.0/16", route.getSource());
+        assertEquals("192.168.1.20", route.getTargetIpAddress());
+        assertEquals(8080, route.getTargetPort());
+        assertEquals("10.8.0.0/16=192.168.1.20:8080", route.toString());
+    }
+
+    @Test
+    public void parsesListInOrder() {
+        List<SourceRoute> routes = SourceRoute.parseList(
+                " 10.0.0.1=192.168.1.1:80,10.0.0.0/8 = 192.168.1.2:81\n\n0.0.0.0/0=192.168.1.3:82 ");
+
+        assertEquals(3, routes.size());
+        assertEquals("10.0.0.1=192.168.1.1:80", routes.get(0).toString());
+        assertEquals("10.0.0.0/8=192.168.1.2:81", routes.get(1).toString());
+        assertEquals("0.0.0.0/0=192.168.1.3:82", routes.get(2).toString());
+    }
+
+    @Test
+    public void emptyListHasNoRoutes() {
+        assertTrue(SourceRoute.parseList(null).isEmpty());
+        assertTrue(SourceRoute.parseList("  \n").isEmpty());
+        assertTrue(SourceRoute.isValidList(""));
+    }
+
+    @Test
+    public void rejectsInvalidRoutes() {
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8"));
+        assertFalse(SourceRoute.isValidList("=192.168.1.1:80"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/40=192.168.1.1:80"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.300:80"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1:0"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1:65536"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1:http"));
+    }
+
+    @Test
+    public void oneInvalidRouteInvalidatesTheList() {
+        assertTrue(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1:80"));
+        assertFalse(SourceRoute.isValidList("10.0.0.0/8=192.168.1.1:80 11.0.0.0/8=bad:80"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseListThrowsOnInvalidRoute() {
+        SourceRoute.parseList("10.0.0.0/8=192.168.1.1:80, nonsense");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Fwd: the port forwarding app
+ * Copyright (C) 2016  Elixsr Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.elixsr.portforwarder.util;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks prefix parsing and the longest and lowest prefix lookups of {@link CidrTrie}.
+ */
+public class CidrTrieTest {
+
+    private static int address(String address) {
+        return CidrTrie.parseCidr(address)[0];
+    }
+
+    private static void put(CidrTrie trie, String cidr, int value) {
+        int[] prefix = CidrTrie.parseCidr(cidr);
+        trie.put(prefix[0], prefix[1], value);
+    }
+
+    @Test
+    public void parsesPrefixes() {
+        int[] prefix = CidrTrie.parseCidr(" 192.168.1.0/24 ");
+        assertEquals(0xc0a80100, prefix[0]);
+        assertEquals(24, prefix[1]);
+
+        prefix = CidrTrie.parseCidr("10.0.0.1");
+        assertEquals(0x0a000001, prefix[0]);
+        assertEquals(32, prefix[1]);
+
+        assertEquals(0, CidrTrie.parseCidr("0.0.0.0/0")[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPrefixLengthOver32() {
+        CidrTrie.parseCidr("10.0.0.0/33");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativePrefixLength() {
+        CidrTrie.parseCidr("10.0.0.0/-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonNumericPrefixLength() {
+        CidrTrie.parseCidr("10.0.0.0/x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidAddress() {
+        CidrTrie.parseCidr("300.0.0.1/8");
+    }
+
+    @Test
+    public void convertsAddresses() throws Exception {
+        assertEquals(0xc0a80101, CidrTrie.toInt(InetAddress.getByName("192.168.1.1")));
+        assertEquals(0xffffffff, CidrTrie.toInt(InetAddress.getByName("255.255.255.255")));
+    }
+
+    @Test
+    public void findsLongestPrefix() {
+        CidrTrie trie = new CidrTrie();
+        put(trie, "10.0.0.0/8", 1);
+        put(trie, "10.1.0.0/16", 2);
+        put(trie, "10.1.2.3", 3);
+
+        assertEquals(1, trie.lookup(address("10.2.0.1")));
+        assertEquals(2, trie.lookup(address("10.1.9.9")));
+        assertEquals(3, trie.lookup(address("10.1.2.3")));
+        assertEquals(CidrTrie.NONE, trie.lookup(address("11.0.0.1")));
+    }
+
+    @Test
+    public void ignoresBitsPastThePrefix() {
+        CidrTrie trie = new CidrTrie();
+        put(trie, "10.1.2.3/8", 1);
+
+        assertEquals(1, trie.lookup(address("10.200.0.0")));
+    }
+
+    @Test
+    public void defaultRouteMatchesEverything() {
+        CidrTrie trie = new CidrTrie();
+        put(trie, "0.0.0.0/0", 7);
+        put(trie, "192.168.0.0/16", 8);
+
+        assertEquals(7, trie.lookup(address("8.8.8.8")));
+        assertEquals(8, trie.lookup(address("192.168.3.4")));
+        assertEquals(7, trie.lookupLowest(address("192.168.3.4")));
+    }
+
+    @Test
+    public void findsLowestMatchingValue() {
+        CidrTrie trie = new CidrTrie();
+        put(trie, "10.1.0.0/16", 1);
+        put(trie, "10.0.0.0/8", 2);
+        put(trie, "10.1.2.0/24", 3);
+
+        assertEquals(1, trie.lookupLowest(address("10.1.2.3")));
+        assertEquals(2, trie.lookupLowest(address("10.2.2.3")));
+        assertEquals(CidrTrie.NONE, trie.lookupLowest(address("11.1.2.3")));
+    }
+
+    @Test
+    public void replacesIdenticalPrefix() {
+        CidrTrie trie = new CidrTrie();
+        put(trie, "10.0.0.0/8", 1);
+        put(trie, "10.0.0.0/8", 2);
+
+        assertEquals(2, trie.lookup(address("10.0.0.1")));
+    }
+
+    @Test
+    public void growsAndTrims() {
+        CidrTrie trie = new CidrTrie();
+        for (int i = 0; i < 256; i++) {
+            put(trie, "172.16." + i + ".0/24", i + 1);
+        }
+        trie.trimToSize();
+
+        for (int i = 0; i < 256; i++) {
+            assertEquals(i + 1, trie.lookup(address("172.16." + i + ".9")));
+        }
+        put(trie, "172.17.0.0/16", 1000);
+        assertEquals(1000, trie.lookup(address("172.17.1.1")));
+    }
+}